@@ -0,0 +1,150 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.integration.apt;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * The dpkg status database which describes every package known to dpkg as a
+ * stanza of "Field: value" lines separated by blank lines.
+ */
+public record DpkgStatus(Path file) {
+
+	/**
+	 * An installed package.
+	 *
+	 * @param name          The package's name
+	 * @param version       The package's version
+	 * @param architecture  The package's architecture
+	 * @param description   The first line of the package's description
+	 * @param homepage      The package's upstream URL
+	 * @param installedSize The package's installed size in bytes
+	 * @param depends       The package's dependencies
+	 * @param fingerprint   A hash of the package's stanza
+	 */
+	public static record Entry( //
+			String name, //
+			String version, //
+			String architecture, //
+			String description, //
+			String homepage, //
+			long installedSize, //
+			List<String> depends, //
+			String fingerprint) {
+	}
+
+	public static DpkgStatus load() {
+		return new DpkgStatus(Path.of("/var/lib/dpkg/status"));
+	}
+
+	/**
+	 * Compute a fingerprint of the entire database from its modification time and
+	 * size. dpkg always replaces the file when it changes.
+	 *
+	 * @return The fingerprint
+	 * @throws IOException
+	 */
+	public String fingerprint() throws IOException {
+		var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		return attributes.lastModifiedTime().toMillis() + ":" + attributes.size();
+	}
+
+	/**
+	 * Read the database one stanza at a time without holding the whole file in
+	 * memory.
+	 *
+	 * @param consumer Receives each installed package
+	 * @throws IOException
+	 */
+	public void read(Consumer<Entry> consumer) throws IOException {
+		try (var reader = Files.newBufferedReader(file)) {
+			read(reader, consumer);
+		}
+	}
+
+	static void read(BufferedReader reader, Consumer<Entry> consumer) throws IOException {
+		Map<String, String> fields = new HashMap<>();
+		var crc = new CRC32C();
+		String field = null;
+
+		String line;
+		do {
+			line = reader.readLine();
+
+			if (line == null || line.isEmpty()) {
+				if (!fields.isEmpty()) {
+					var entry = entry(fields, crc);
+					if (entry != null) {
+						consumer.accept(entry);
+					}
+				}
+				fields.clear();
+				crc.reset();
+				field = null;
+				continue;
+			}
+
+			crc.update(line.getBytes(StandardCharsets.UTF_8));
+			crc.update('\n');
+
+			if (line.charAt(0) == ' ' || line.charAt(0) == '\t') {
+				// Continuation lines only matter for the fingerprint
+				continue;
+			}
+
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				field = line.substring(0, colon);
+				fields.put(field, line.substring(colon + 1).strip());
+			}
+		} while (line != null);
+	}
+
+	private static Entry entry(Map<String, String> fields, CRC32C crc) {
+		String name = fields.get("Package");
+		String status = fields.get("Status");
+
+		// Skip packages that are removed, half-installed, or only configured
+		if (name == null || status == null || !status.endsWith(" installed"))
+			return null;
+
+		String architecture = fields.get("Architecture");
+
+		List<String> depends = new ArrayList<>();
+		for (var field : List.of("Pre-Depends", "Depends")) {
+			String value = fields.get(field);
+			if (value != null) {
+				for (var dependency : value.split(",")) {
+					depends.add(dependency.strip());
+				}
+			}
+		}
+
+		String size = fields.get("Installed-Size");
+
+		// Multi-arch packages can be installed once for each architecture
+		String id = "same".equals(fields.get("Multi-Arch")) ? name + ":" + architecture : name;
+
+		return new Entry(id, fields.get("Version"), architecture, fields.get("Description"), fields.get("Homepage"),
+				size == null ? 0 : Long.parseLong(size) * 1024, List.copyOf(depends),
+				HexFormat.of().toHexDigits((int) crc.getValue()));
+	}
+}
@@ -0,0 +1,67 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.integration.apt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class DpkgStatusTest {
+
+	private static final Path STATUS = Path.of("src/test/resources/org/s7s/core/integration/apt/status");
+
+	private static List<DpkgStatus.Entry> read(String status) throws Exception {
+		var entries = new ArrayList<DpkgStatus.Entry>();
+		DpkgStatus.read(new BufferedReader(new StringReader(status)), entries::add);
+		return entries;
+	}
+
+	@Test
+	@DisplayName("Check that installed packages are read from the status database")
+	void read_1() throws Exception {
+		var entries = new ArrayList<DpkgStatus.Entry>();
+		new DpkgStatus(STATUS).read(entries::add);
+
+		// Removed packages are skipped and multi-arch packages are distinct
+		assertEquals(List.of("bash", "libc6:amd64", "libc6:i386"),
+				entries.stream().map(DpkgStatus.Entry::name).toList());
+
+		var bash = entries.get(0);
+		assertEquals("5.1-6", bash.version());
+		assertEquals("amd64", bash.architecture());
+		assertEquals("GNU Bourne Again SHell", bash.description());
+		assertEquals("http://tiswww.case.edu/php/chet/bash/bashtop.html", bash.homepage());
+		assertEquals(6469 * 1024, bash.installedSize());
+		assertEquals(List.of("libc6 (>= 2.34)", "libtinfo6 (>= 6)", "base-files (>= 2.1.12)", "debianutils (>= 2.15)"),
+				bash.depends());
+	}
+
+	@Test
+	@DisplayName("Check that fingerprints follow changes to each stanza")
+	void fingerprint_1() throws Exception {
+		String stanza = Files.readString(STATUS).split("\n\n")[0];
+
+		var original = read(stanza).get(0);
+		assertEquals(original, read("\n" + stanza + "\n\n").get(0));
+
+		// Changes to continuation lines are detected
+		var changed = read(stanza.replace("from a file", "from a pipe")).get(0);
+		assertEquals(original.version(), changed.version());
+		assertNotEquals(original.fingerprint(), changed.fingerprint());
+	}
+}
@@ -0,0 +1,114 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.integration.pacman;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Pacman's local database which contains a directory for each installed
+ * package.
+ */
+public record LocalDatabase(Path directory) {
+
+	/**
+	 * A package in the local database.
+	 *
+	 * @param name        The package's name
+	 * @param directory   The package's directory
+	 * @param fingerprint A value that changes whenever the package is installed,
+	 *                    upgraded, or modified
+	 */
+	public static record Entry(String name, Path directory, String fingerprint) {
+
+		/**
+		 * @return The package's metadata without its file listing
+		 * @throws IOException
+		 */
+		public PackageData read() throws IOException {
+			return PackageData.of(directory, false);
+		}
+	}
+
+	public static LocalDatabase load() {
+		return new LocalDatabase(Path.of("/var/lib/pacman/local"));
+	}
+
+	/**
+	 * List the packages in the database without reading their metadata. Each
+	 * fingerprint is derived from the package's directory name, which contains its
+	 * version, and the modification time and size of its "desc" file.
+	 *
+	 * @return The packages sorted by name
+	 * @throws IOException
+	 */
+	public List<Entry> list() throws IOException {
+		var entries = new ArrayList<Entry>();
+
+		try (var stream = Files.newDirectoryStream(directory, Files::isDirectory)) {
+			for (var path : stream) {
+				var desc = path.resolve("desc");
+				BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(desc, BasicFileAttributes.class);
+				} catch (IOException e) {
+					// The package is being installed or removed
+					continue;
+				}
+
+				String id = path.getFileName().toString();
+				entries.add(new Entry(name(id), path, id + ":" + attributes.lastModifiedTime().toMillis() + ":"
+						+ attributes.size()));
+			}
+		}
+
+		entries.sort(Comparator.comparing(Entry::name));
+		return entries;
+	}
+
+	/**
+	 * Compute a fingerprint of the entire database from the fingerprints of its
+	 * packages.
+	 *
+	 * @param entries The database's packages
+	 * @return The fingerprint
+	 */
+	public static String fingerprint(List<Entry> entries) {
+		var crc = new CRC32C();
+		for (var entry : entries) {
+			crc.update(entry.fingerprint().getBytes(StandardCharsets.UTF_8));
+			crc.update('\n');
+		}
+		return entries.size() + ":" + HexFormat.of().toHexDigits((int) crc.getValue());
+	}
+
+	/**
+	 * Get a package's name from its directory name which has the form
+	 * "name-pkgver-pkgrel".
+	 */
+	static String name(String id) {
+		int release = id.lastIndexOf('-');
+		if (release <= 0)
+			return id;
+
+		int version = id.lastIndexOf('-', release - 1);
+		if (version <= 0)
+			return id;
+
+		return id.substring(0, version);
+	}
+}
@@ -16,7 +16,11 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiConsumer;
 
+/**
+ * The metadata of a package in pacman's local database.
+ */
 public record PackageData( //
 		String name, //
 		String version, //
@@ -34,88 +38,90 @@ public record PackageData( //
 		Map<String, String> optdepends, //
 		List<String> files) {
 
+	/**
+	 * Read a package from its directory in the local database.
+	 *
+	 * @param directory The package's directory
+	 * @return The package
+	 * @throws IOException
+	 */
 	public static PackageData of(Path directory) throws IOException {
+		return of(directory, true);
+	}
 
-		int index;
+	/**
+	 * Read a package from its directory in the local database.
+	 *
+	 * @param directory The package's directory
+	 * @param files     Whether to read the package's file listing which can be
+	 *                  much larger than the rest of its metadata
+	 * @return The package
+	 * @throws IOException
+	 */
+	public static PackageData of(Path directory, boolean files) throws IOException {
+
+		Map<String, List<String>> desc = new HashMap<>();
+		readSections(directory.resolve("desc"), (section, value) -> {
+			desc.computeIfAbsent(section, k -> new ArrayList<>()).add(value);
+		});
 
-		String name;
-		String version;
-		String base;
-		String desc;
-		String url;
-		String arch;
-		long builddate;
-		long installdate;
-		String packager;
-		long size;
-		String license;
-		String validation;
-		List<String> depends = new ArrayList<>();
 		Map<String, String> optdepends = new HashMap<>();
-		List<String> files = new ArrayList<>();
-
-		// Read "desc"
-		var descLines = Files.readAllLines(directory.resolve("desc"));
-
-		index = descLines.indexOf("%NAME%");
-		name = descLines.get(index + 1);
-
-		index = descLines.indexOf("%VERSION%");
-		version = descLines.get(index + 1);
-
-		index = descLines.indexOf("%BASE%");
-		base = descLines.get(index + 1);
-
-		index = descLines.indexOf("%DESC%");
-		desc = descLines.get(index + 1);
-
-		index = descLines.indexOf("%URL%");
-		url = descLines.get(index + 1);
-
-		index = descLines.indexOf("%ARCH%");
-		arch = descLines.get(index + 1);
-
-		index = descLines.indexOf("%BUILDDATE%");
-		builddate = Long.parseLong(descLines.get(index + 1));
-
-		index = descLines.indexOf("%INSTALLDATE%");
-		installdate = Long.parseLong(descLines.get(index + 1));
-
-		index = descLines.indexOf("%PACKAGER%");
-		packager = descLines.get(index + 1);
-
-		index = descLines.indexOf("%SIZE%");
-		size = Long.parseLong(descLines.get(index + 1));
-
-		index = descLines.indexOf("%LICENSE%");
-		license = descLines.get(index + 1);
-
-		index = descLines.indexOf("%VALIDATION%");
-		validation = descLines.get(index + 1);
-
-		index = descLines.indexOf("%DEPENDS%");
-		while (!descLines.get(++index).isBlank()) {
-			depends.add(descLines.get(index));
+		for (var value : desc.getOrDefault("OPTDEPENDS", List.of())) {
+			var components = value.split(":", 2);
+			optdepends.put(components[0].strip(), components.length == 2 ? components[1].strip() : "");
 		}
 
-		index = descLines.indexOf("%OPTDEPENDS%");
-		while (!descLines.get(++index).isBlank()) {
-			var components = descLines.get(index).split(":");
-			optdepends.put(components[0], components[1]);
+		List<String> fileList = new ArrayList<>();
+		if (files) {
+			readSections(directory.resolve("files"), (section, value) -> {
+				// Ignore directories
+				if (section.equals("FILES") && !value.endsWith("/")) {
+					fileList.add(value);
+				}
+			});
 		}
 
-		// Read "files"
-		var filesLines = Files.readAllLines(directory.resolve("files"));
-		index = filesLines.indexOf("%FILES%");
-		while (!filesLines.get(++index).isBlank()) {
-			// Ignore directories
-			if (!filesLines.get(index).endsWith("/")) {
-				files.add(filesLines.get(index));
+		return new PackageData(first(desc, "NAME"), first(desc, "VERSION"), first(desc, "BASE"), first(desc, "DESC"),
+				first(desc, "URL"), first(desc, "ARCH"), number(desc, "BUILDDATE"), number(desc, "INSTALLDATE"),
+				first(desc, "PACKAGER"), number(desc, "SIZE"),
+				desc.containsKey("LICENSE") ? String.join(", ", desc.get("LICENSE")) : null, first(desc, "VALIDATION"),
+				Collections.unmodifiableList(desc.getOrDefault("DEPENDS", List.of())),
+				Collections.unmodifiableMap(optdepends), Collections.unmodifiableList(fileList));
+	}
+
+	/**
+	 * Read a database file line by line. Each section begins with a header like
+	 * "%NAME%" and ends with a blank line.
+	 *
+	 * @param file     The database file
+	 * @param consumer Receives each value with the name of its section
+	 * @throws IOException
+	 */
+	static void readSections(Path file, BiConsumer<String, String> consumer) throws IOException {
+		try (var reader = Files.newBufferedReader(file)) {
+			String section = null;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isBlank()) {
+					section = null;
+				} else if (section == null) {
+					if (line.length() > 2 && line.startsWith("%") && line.endsWith("%")) {
+						section = line.substring(1, line.length() - 1);
+					}
+				} else {
+					consumer.accept(section, line);
+				}
 			}
 		}
+	}
+
+	private static String first(Map<String, List<String>> sections, String section) {
+		var values = sections.get(section);
+		return values == null ? null : values.get(0);
+	}
 
-		return new PackageData(name, version, base, desc, url, arch, builddate, installdate, packager, size, license,
-				validation, Collections.unmodifiableList(depends), Collections.unmodifiableMap(optdepends),
-				Collections.unmodifiableList(files));
+	private static long number(Map<String, List<String>> sections, String section) {
+		var value = first(sections, section);
+		return value == null ? 0 : Long.parseLong(value);
 	}
 }
@@ -0,0 +1,89 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.integration.pacman;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LocalDatabaseTest {
+
+	private static final Path LOCAL = Path.of("src/test/resources/org/s7s/core/integration/pacman/local");
+
+	@Test
+	@DisplayName("Check that packages are read from the local database")
+	void read_1() throws Exception {
+		var bash = PackageData.of(LOCAL.resolve("bash-5.1.016-1"));
+
+		assertEquals("bash", bash.name());
+		assertEquals("5.1.016-1", bash.version());
+		assertEquals("https://www.gnu.org/software/bash/bash.html", bash.url());
+		assertEquals(1641480565, bash.builddate());
+		assertEquals(8523776, bash.size());
+		assertEquals(List.of("readline>=7.0", "glibc", "ncurses"), bash.depends());
+		assertEquals(Map.of("bash-completion", "for tab completion"), bash.optdepends());
+		assertEquals(List.of("usr/bin/bash", "usr/bin/sh"), bash.files());
+	}
+
+	@Test
+	@DisplayName("Check that missing sections are tolerated")
+	void read_2() throws Exception {
+		var glibc = PackageData.of(LOCAL.resolve("glibc-2.35-6"), false);
+
+		assertEquals("glibc", glibc.name());
+		assertNull(glibc.url());
+		assertNull(glibc.packager());
+		assertEquals(0, glibc.builddate());
+		assertEquals("GPL, LGPL", glibc.license());
+		assertEquals(Map.of("gd", "for memusagestat", "perl", ""), glibc.optdepends());
+		assertEquals(List.of(), glibc.files());
+	}
+
+	@Test
+	@DisplayName("Check that packages are listed without reading their metadata")
+	void list_1() throws Exception {
+		var entries = new LocalDatabase(LOCAL).list();
+
+		// Incomplete packages and the version file are skipped
+		assertEquals(List.of("bash", "glibc"), entries.stream().map(LocalDatabase.Entry::name).toList());
+		assertEquals("GNU C Library", entries.get(1).read().desc());
+
+		assertEquals("lib32-gcc-libs", LocalDatabase.name("lib32-gcc-libs-11.2.0-4"));
+		assertEquals("zlib", LocalDatabase.name("zlib-1:1.2.12-2"));
+	}
+
+	@Test
+	@DisplayName("Check that the fingerprint follows package changes")
+	void fingerprint_1(@TempDir Path local) throws Exception {
+		var package1 = Files.createDirectory(local.resolve("a-1.0-1"));
+		Files.writeString(package1.resolve("desc"), "%NAME%\na\n\n%VERSION%\n1.0-1\n");
+
+		var database = new LocalDatabase(local);
+		String initial = LocalDatabase.fingerprint(database.list());
+		assertEquals(initial, LocalDatabase.fingerprint(database.list()));
+
+		// Reinstall with a modified description
+		Files.writeString(package1.resolve("desc"), "%NAME%\na\n\n%VERSION%\n1.0-1\n\n%REASON%\n1\n");
+		String modified = LocalDatabase.fingerprint(database.list());
+		assertNotEquals(initial, modified);
+
+		var package2 = Files.createDirectory(local.resolve("b-2.0-1"));
+		Files.writeString(package2.resolve("desc"), "%NAME%\nb\n");
+		assertNotEquals(modified, LocalDatabase.fingerprint(database.list()));
+	}
+}
@@ -29,3 +29,21 @@ dependencies {
 		implementation(project(":core:foundation"))
 	}
 }
+
+// Throughput benchmarks are kept out of the unit tests
+val benchmark by sourceSets.creating {
+	compileClasspath += sourceSets.main.get().output + sourceSets.test.get().output
+	runtimeClasspath += sourceSets.main.get().output + sourceSets.test.get().output
+}
+
+configurations["benchmarkImplementation"].extendsFrom(configurations.testImplementation.get())
+configurations["benchmarkRuntimeOnly"].extendsFrom(configurations.testRuntimeOnly.get())
+
+tasks.register<Test>("benchmark") {
+	description = "Runs the throughput benchmarks."
+	group = "verification"
+
+	testClassesDirs = benchmark.output.classesDirs
+	classpath = benchmark.runtimeClasspath
+	useJUnitPlatform()
+}
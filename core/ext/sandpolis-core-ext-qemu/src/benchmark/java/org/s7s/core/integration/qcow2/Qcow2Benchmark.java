@@ -0,0 +1,122 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.integration.qcow2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.s7s.core.integration.qcow2.Qcow2Test.assertConsistent;
+import static org.s7s.core.integration.qcow2.Qcow2Test.assertPattern;
+import static org.s7s.core.integration.qcow2.Qcow2Test.createSparse;
+import static org.s7s.core.integration.qcow2.Qcow2Test.diskData;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class Qcow2Benchmark {
+
+	@Test
+	@DisplayName("Measure sequential read throughput of a sparse image")
+	void read_1(@TempDir Path temp) throws Exception {
+		// Small clusters make metadata lookups dominate
+		LongPredicate allocated = c -> (c / 64) % 2 == 0;
+		var file = temp.resolve("sparse.qcow2");
+		createSparse(file, 512L * 1024 * 1024, 12, allocated, false);
+
+		try (var qcow2 = new Qcow2(file)) {
+			var buffer = ByteBuffer.allocateDirect(1024 * 1024);
+
+			for (int pass = 0; pass < 3; pass++) {
+				long start = System.nanoTime();
+				long total = 0;
+				for (long offset = 0; offset < qcow2.header.size(); offset += buffer.capacity()) {
+					total += qcow2.read(buffer.clear(), offset);
+				}
+				long elapsed = System.nanoTime() - start;
+
+				assertEquals(qcow2.header.size(), total);
+				System.out.printf("Pass %d: read %d MiB in %d ms (%.0f MiB/s)%n", pass, total >> 20,
+						TimeUnit.NANOSECONDS.toMillis(elapsed), (total >> 20) / (elapsed / 1e9));
+			}
+
+			// Spot check the data from the last pass
+			assertPattern(buffer.flip(), qcow2.header.size() - buffer.capacity(), allocated, 12);
+		}
+	}
+
+	@Test
+	@DisplayName("Measure write throughput of concurrent block streams")
+	void write_1(@TempDir Path temp) throws Exception {
+		var file = temp.resolve("new.qcow2");
+		long size = 512L * 1024 * 1024;
+		int block_size = 1024 * 1024;
+
+		try (var qcow2 = new Qcow2(file, size, 65536)) {
+			var block = ByteBuffer.allocateDirect(block_size);
+			new Random(0).ints(block_size / Integer.BYTES).forEach(block::putInt);
+
+			var executor = Executors.newFixedThreadPool(4);
+			long start = System.nanoTime();
+			var futures = new Future<?>[4];
+			for (int t = 0; t < futures.length; t++) {
+				int stream = t;
+				futures[t] = executor.submit(() -> {
+					for (long offset = stream * (long) block_size; offset < size; offset += 4L * block_size) {
+						qcow2.write(block.duplicate().clear(), offset);
+					}
+					return null;
+				});
+			}
+			for (var future : futures) {
+				future.get();
+			}
+			qcow2.flush();
+			long elapsed = System.nanoTime() - start;
+			executor.shutdown();
+
+			System.out.printf("Wrote %d MiB in %d ms (%.0f MiB/s)%n", size >> 20,
+					TimeUnit.NANOSECONDS.toMillis(elapsed), (size >> 20) / (elapsed / 1e9));
+		}
+
+		assertConsistent(file);
+	}
+
+	@Test
+	@DisplayName("Measure compressed write throughput and storage savings")
+	void write_2(@TempDir Path temp) throws Exception {
+		var file = temp.resolve("compressed.qcow2");
+		int cluster_size = 65536;
+		int size = 128 * 1024 * 1024;
+		var data = diskData(size, cluster_size, 3);
+
+		try (var qcow2 = new Qcow2(file, size, cluster_size)) {
+			long start = System.nanoTime();
+			try (var writer = qcow2.newCompressedWriter(Runtime.getRuntime().availableProcessors(),
+					64 * 1024 * 1024)) {
+				for (int offset = 0; offset < size; offset += 1024 * 1024) {
+					writer.write(ByteBuffer.wrap(data, offset, 1024 * 1024), offset);
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+
+			System.out.printf("Compressed %d MiB to %d MiB in %d ms (%.0f MiB/s)%n", size >> 20,
+					Files.size(file) >> 20, TimeUnit.NANOSECONDS.toMillis(elapsed), (size >> 20) / (elapsed / 1e9));
+		}
+
+		assertConsistent(file);
+	}
+}
@@ -8,12 +8,20 @@
 //============================================================================//
 package org.s7s.core.integration.qcow2;
 
-import static java.nio.file.StandardOpenOption.READ;
-import static java.nio.file.StandardOpenOption.WRITE;
-
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 class ClusterTable {
 
@@ -27,11 +35,11 @@ class ClusterTable {
 	public record L2Entry(long data) {
 
 		public L2StandardDescriptor standard_descriptor() {
-			return new L2StandardDescriptor(data() & ((1 << 62) - 1));
+			return new L2StandardDescriptor(data() & ((1L << 62) - 1));
 		}
 
 		public L2CompressedDescriptor compressed_descriptor() {
-			return new L2CompressedDescriptor(data() & ((1 << 62) - 1));
+			return new L2CompressedDescriptor(data() & ((1L << 62) - 1));
 		}
 
 		public boolean is_compressed() {
@@ -56,120 +64,978 @@ class ClusterTable {
 
 	public record L2CompressedDescriptor(long data) {
 
-		public long offset() {
-			return data() & 0x3fffffffffffffffL;
+		/**
+		 * @param cluster_bits The image's cluster bits
+		 * @return The byte offset of the compressed data in the image file
+		 */
+		public long offset(int cluster_bits) {
+			return data() & ((1L << (70 - cluster_bits)) - 1);
+		}
+
+		/**
+		 * @param cluster_bits The image's cluster bits
+		 * @return The number of bytes that may contain compressed data
+		 */
+		public int size(int cluster_bits) {
+			long sectors = (data() >>> (70 - cluster_bits)) + 1;
+			return (int) (sectors * 512 - (offset(cluster_bits) & 511));
+		}
+
+		/**
+		 * Encode a compressed descriptor.
+		 *
+		 * @param cluster_bits The image's cluster bits
+		 * @param offset       The byte offset of the compressed data
+		 * @param length       The length of the compressed data
+		 * @return The L2 entry
+		 */
+		public static long encode(int cluster_bits, long offset, int length) {
+			long sectors = ((offset + length - 1) >> 9) - (offset >> 9);
+			return COMPRESSED | (sectors << (70 - cluster_bits)) | offset;
 		}
 	}
 
-	private final FileChannel channel;
+	private static final Logger log = LoggerFactory.getLogger(ClusterTable.class);
+
+	/**
+	 * Set in L1 and L2 entries whose cluster has a refcount of exactly one and may
+	 * therefore be written in place.
+	 */
+	static final long COPIED = 1L << 63;
+
+	/**
+	 * Set in L2 entries of compressed clusters.
+	 */
+	static final long COMPRESSED = 1L << 62;
+
+	/**
+	 * Set in L2 entries of clusters that read as zeros.
+	 */
+	static final long ZERO = 1L;
+
+	/**
+	 * The default amount of memory used to cache L2 tables. With 64 KiB clusters,
+	 * this covers 2 TiB of virtual disk.
+	 */
+	static final long DEFAULT_L2_CACHE_SIZE = 32 * 1024 * 1024;
+
+	/**
+	 * A source of zeros for unallocated clusters.
+	 */
+	private static final byte[] ZEROS = new byte[64 * 1024];
+
+	/**
+	 * The largest number of bytes copied at once by {@link #commit(Qcow2)}.
+	 */
+	private static final int COMMIT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+	/**
+	 * The active L1 table.
+	 */
+	final long[] l1_table;
 
-	public final L1Entry[] l1_table;
+	/**
+	 * Whether the L1 table was modified since the last flush.
+	 */
+	private boolean dirty_l1;
+
+	/**
+	 * L2 tables that were modified since the last flush keyed by their offset in
+	 * the image file. These are never evicted.
+	 */
+	private final Map<Long, long[]> dirty_l2 = new HashMap<>();
+
+	/**
+	 * Recently used L2 tables keyed by their offset in the image file.
+	 */
+	private final Map<Long, long[]> l2_cache;
+
+	/**
+	 * The number of L2 tables that were read from the image file.
+	 */
+	final LongAdder l2_reads = new LongAdder();
+
+	/**
+	 * The layer of the backing chain that stores each virtual cluster of an L2
+	 * table.
+	 *
+	 * @param l1_index The L2 table's index in the L1 table
+	 * @param entries  The L2 entry of each cluster in its layer
+	 * @param depth    The index of each cluster's layer in the chain or -1 if no
+	 *                 layer stores it
+	 */
+	private record Resolved(int l1_index, long[] entries, byte[] depth) {
+	}
+
+	/**
+	 * Recently resolved L2 tables keyed by their L1 index. Only used when the
+	 * image has a backing file.
+	 */
+	private final Map<Integer, Resolved> chain_cache;
+
+	/**
+	 * Incremented whenever an entry of {@link #chain_cache} is invalidated.
+	 */
+	private long chain_generation;
+
+	/**
+	 * Whether clusters have been shared by {@link #share(long, long)}.
+	 */
+	private boolean shared;
+
+	/**
+	 * Whether an entry may be missing the COPIED flag.
+	 */
+	private boolean copied_stale;
+
+	/**
+	 * The offset of the next free byte in the host cluster that compressed
+	 * clusters are currently packed into, or 0.
+	 */
+	private long compressed_offset;
 
 	private final Qcow2 qcow2;
 
 	public ClusterTable(Qcow2 qcow2) throws IOException {
+		this(qcow2, DEFAULT_L2_CACHE_SIZE);
+	}
+
+	/**
+	 * @param qcow2         The image
+	 * @param l2_cache_size The maximum number of bytes of L2 tables to keep in
+	 *                      memory
+	 */
+	ClusterTable(Qcow2 qcow2, long l2_cache_size) throws IOException {
 		this.qcow2 = qcow2;
-		this.channel = FileChannel.open(qcow2.file, READ, WRITE);
 		this.l1_table = readL1Table();
+
+		int capacity = (int) Math.max(1, l2_cache_size / qcow2.header.cluster_size());
+		this.l2_cache = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, long[]> eldest) {
+				return size() > capacity;
+			}
+		};
+		this.chain_cache = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Resolved> eldest) {
+				return size() > capacity;
+			}
+		};
 	}
 
+	/**
+	 * Read virtual data into the given buffer, starting at the buffer's position.
+	 * The read stops at the buffer's limit or the end of the virtual disk and the
+	 * buffer's position is advanced by the number of bytes read.
+	 *
+	 * <p>
+	 * Runs of clusters that are contiguous in the image file are read with a
+	 * single positional read and unallocated clusters are filled with zeros. This
+	 * method may be called concurrently.
+	 *
+	 * @param data    The destination buffer
+	 * @param vOffset The virtual offset
+	 * @return The number of bytes read or -1 if the offset is beyond the end of the
+	 *         virtual disk
+	 */
 	public int read(ByteBuffer data, long vOffset) throws IOException {
 
-		System.out.println("Read request for " + data.capacity() + " bytes at virtual offset: " + vOffset);
-
 		if (vOffset >= qcow2.header.size()) {
 			return -1;
 		}
 
-		int read = 0;
-		final long end = vOffset + qcow2.header.cluster_size();
+		final int cluster_size = qcow2.header.cluster_size();
+		final int length = (int) Math.min(data.remaining(), qcow2.header.size() - vOffset);
+		final int start = data.position();
+		final int end = start + length;
+
+		// The current run of contiguous clusters in the image file of one layer
+		ClusterTable run_layer = this;
+		long run_offset = 0;
+		int run_start = start;
+		int run_length = 0;
+
+		Resolved resolved = null;
 
-		while (vOffset < end) {
-			int l2_index = (int) ((vOffset / qcow2.header.cluster_size()) % qcow2.header.l2_entries());
-			int l1_index = (int) ((vOffset / qcow2.header.cluster_size()) / qcow2.header.l2_entries());
-			vOffset += qcow2.header.cluster_size();
+		for (int position = start; position < end;) {
+			long cluster = vOffset / cluster_size;
+			int cluster_offset = (int) (vOffset % cluster_size);
+			int increment = Math.min(end - position, cluster_size - cluster_offset);
+
+			// Find the layer of the backing chain that stores the cluster
+			ClusterTable layer = this;
+			long entry;
+			if (qcow2.backing == null) {
+				entry = lookup(cluster);
+			} else {
+				int l1_index = (int) (cluster / qcow2.header.l2_entries());
+				if (resolved == null || resolved.l1_index() != l1_index) {
+					resolved = resolve(l1_index);
+				}
+				int l2_index = (int) (cluster % qcow2.header.l2_entries());
+				entry = resolved.entries()[l2_index];
+				layer = resolved.depth()[l2_index] < 0 ? this : qcow2.chain[resolved.depth()[l2_index]].cluster_table;
+			}
 
-			L1Entry l1_table_entry = l1_table[l1_index];
-			System.out.println("l1_table[" + l1_index + "].offset = " + l1_table_entry.offset());
+			long offset = 0;
+			var l2_entry = new L2Entry(entry);
+			if (l2_entry.is_compressed()) {
+				if (run_length != 0) {
+					run_layer.readFully(data, run_start, run_length, run_offset);
+					run_length = 0;
+				}
 
-			if (l1_table_entry.offset() == 0) {
-				int increment = Math.min(data.capacity() - data.position(), qcow2.header.cluster_size());
-				read += increment;
-				data.position(data.position() + increment);
+				data.put(position, layer.decompress(l2_entry.data()), cluster_offset, increment);
+				position += increment;
+				vOffset += increment;
 				continue;
 			}
 
-			L2Entry[] l2_table = readL2Table(l1_table[l1_index]);
-			L2Entry l2_table_entry = l2_table[l2_index];
+			var descriptor = l2_entry.standard_descriptor();
+			if (descriptor.all_zeros() == 0) {
+				offset = descriptor.offset();
+			}
 
-			if (l2_table_entry.is_compressed()) {
-				// TODO
+			if (offset != 0 && run_length != 0 && run_layer == layer
+					&& run_offset + run_length == offset + cluster_offset) {
+				// Extend the current run
+				run_length += increment;
 			} else {
+				if (run_length != 0) {
+					run_layer.readFully(data, run_start, run_length, run_offset);
+					run_length = 0;
+				}
 
-				System.out.println(
-						"l2_table[" + l2_index + "].offset = " + l2_table_entry.standard_descriptor().offset());
-				if (l2_table_entry.standard_descriptor().offset() == 0) {
-					int increment = Math.min(data.capacity() - data.position(), qcow2.header.cluster_size());
-					read += increment;
-					data.position(data.position() + increment);
-					continue;
+				if (offset == 0) {
+					zero(data, position, increment);
+				} else {
+					run_layer = layer;
+					run_offset = offset + cluster_offset;
+					run_start = position;
+					run_length = increment;
+				}
+			}
+
+			position += increment;
+			vOffset += increment;
+		}
+
+		if (run_length != 0) {
+			run_layer.readFully(data, run_start, run_length, run_offset);
+		}
+
+		data.position(end);
+		return length;
+	}
+
+	/**
+	 * Write virtual data from the given buffer. Clusters are allocated at the end
+	 * of the image as needed and clusters that are shared with a snapshot are
+	 * copied first. Runs of clusters that are contiguous in the image file are
+	 * written with a single positional write.
+	 *
+	 * <p>
+	 * This method may be called concurrently for different virtual offsets.
+	 * Metadata changes are only kept in memory until {@link #flush()}.
+	 *
+	 * @param data    The source buffer
+	 * @param vOffset The virtual offset
+	 * @return The number of bytes written
+	 */
+	public int write(ByteBuffer data, long vOffset) throws IOException {
+
+		final int length = data.remaining();
+		if (vOffset < 0 || vOffset + length > qcow2.header.size()) {
+			throw new IOException("Write beyond the end of the virtual disk at offset: " + vOffset);
+		}
+		if (length == 0) {
+			return 0;
+		}
+
+		final int cluster_size = qcow2.header.cluster_size();
+		final int start = data.position();
+		final int end = start + length;
+
+		long first = vOffset / cluster_size;
+		long[] offsets = prepareWrite(first, (int) ((vOffset + length - 1) / cluster_size - first + 1), vOffset,
+				length);
+
+		long run_offset = 0;
+		int run_start = start;
+		int run_length = 0;
+
+		for (int position = start, i = 0; position < end; i++) {
+			int cluster_offset = (int) (vOffset % cluster_size);
+			int increment = Math.min(end - position, cluster_size - cluster_offset);
+
+			long offset = offsets[i] + cluster_offset;
+			if (run_length != 0 && run_offset + run_length == offset) {
+				run_length += increment;
+			} else {
+				if (run_length != 0) {
+					writeFully(data, run_start, run_length, run_offset);
 				}
+				run_offset = offset;
+				run_start = position;
+				run_length = increment;
+			}
+
+			position += increment;
+			vOffset += increment;
+		}
+
+		writeFully(data, run_start, run_length, run_offset);
+
+		data.position(end);
+		return length;
+	}
 
-				System.out.println("Reading from real offset: " + l2_table_entry.standard_descriptor().offset());
-				read += channel.read(data,
-						l2_table_entry.standard_descriptor().offset() + (vOffset % qcow2.header.cluster_size()));
+	/**
+	 * Find or allocate writable clusters for a write.
+	 *
+	 * @param first   The first virtual cluster
+	 * @param count   The number of virtual clusters
+	 * @param vOffset The virtual offset of the write
+	 * @param length  The length of the write
+	 * @return The cluster offset in the image file for each virtual cluster
+	 */
+	private synchronized long[] prepareWrite(long first, int count, long vOffset, int length) throws IOException {
+		final int cluster_size = qcow2.header.cluster_size();
+		final int l2_entries = qcow2.header.l2_entries();
+
+		// Make L2 tables writable first so new data clusters stay contiguous
+		for (long l1_index = first / l2_entries; l1_index <= (first + count - 1) / l2_entries; l1_index++) {
+			writableL2Table((int) l1_index);
+		}
+
+		var offsets = new long[count];
+		int allocations = 0;
+		for (int i = 0; i < count; i++) {
+			long l2_entry = writableL2Table((int) ((first + i) / l2_entries))[(int) ((first + i) % l2_entries)];
+			if ((l2_entry & COPIED) != 0 && new L2Entry(l2_entry).standard_descriptor().all_zeros() == 0) {
+				offsets[i] = new L2Entry(l2_entry).standard_descriptor().offset();
+			} else {
+				allocations++;
 			}
 		}
+		if (allocations == 0) {
+			return offsets;
+		}
 
-		data.position(0);
-		return read;
+		long next = qcow2.refcount_table.allocate(allocations);
+		for (int i = 0; i < count; i++) {
+			if (offsets[i] != 0) {
+				continue;
+			}
+
+			long cluster = first + i;
+			long[] l2_table = writableL2Table((int) (cluster / l2_entries));
+			int l2_index = (int) (cluster % l2_entries);
+
+			// Copy whatever this write doesn't cover from a shared or compressed cluster
+			long cluster_start = cluster * cluster_size;
+			if (vOffset > cluster_start || vOffset + length < cluster_start + cluster_size) {
+				var l2_entry = new L2Entry(l2_table[l2_index]);
+				if (l2_entry.is_compressed()) {
+					writeFully(decompress(l2_entry.data()), 0, cluster_size, next);
+				} else if (l2_entry.standard_descriptor().offset() != 0
+						&& l2_entry.standard_descriptor().all_zeros() == 0) {
+					var buffer = ByteBuffer.allocate(cluster_size);
+					readFully(buffer, 0, cluster_size, l2_entry.standard_descriptor().offset());
+					writeFully(buffer, 0, cluster_size, next);
+				} else if (l2_entry.data() == 0 && qcow2.backing != null) {
+					var buffer = ByteBuffer.allocate(cluster_size);
+					qcow2.backing.read(buffer, cluster_start);
+					writeFully(buffer.flip(), 0, buffer.limit(), next);
+				}
+			}
+			free(l2_table[l2_index]);
+
+			l2_table[l2_index] = next | COPIED;
+			offsets[i] = next;
+			next += cluster_size;
+		}
+
+		return offsets;
 	}
 
-	private L1Entry[] readL1Table() throws IOException {
+	/**
+	 * Write a compressed cluster. The compressed data is packed into host clusters
+	 * together with other compressed clusters and the L2 entry is only updated
+	 * once the data is in place, so concurrent readers never see a partial
+	 * cluster.
+	 *
+	 * @param cluster    The virtual cluster
+	 * @param compressed The compressed data
+	 * @param length     The length of the compressed data
+	 */
+	public void writeCompressed(long cluster, byte[] compressed, int length) throws IOException {
+		if (length > qcow2.header.cluster_size()) {
+			throw new IllegalArgumentException("Compressed data is larger than a cluster");
+		}
 
-		System.out.println("Loading L1 table at: " + qcow2.header.l1_table_offset());
+		long offset = allocateCompressed(length);
+		qcow2.writeFully(ByteBuffer.wrap(compressed, 0, length), offset);
+		update(cluster, L2CompressedDescriptor.encode(qcow2.header.cluster_bits(), offset, length));
+	}
 
-		var table_buffer = ByteBuffer.allocateDirect(qcow2.header.l1_size() * Long.BYTES);
-		if (channel.read(table_buffer, qcow2.header.l1_table_offset()) != qcow2.header.l1_size() * Long.BYTES) {
-			throw new IOException();
+	/**
+	 * Mark a virtual cluster as reading zeros and release its storage.
+	 *
+	 * @param cluster The virtual cluster
+	 */
+	public void writeZeros(long cluster) throws IOException {
+		if (qcow2.backing == null) {
+			if (lookup(cluster) != 0) {
+				update(cluster, qcow2.header.version() >= 3 ? ZERO : 0);
+			}
+		} else if (qcow2.header.version() >= 3) {
+			update(cluster, ZERO);
+		} else {
+			// The backing file would show through an unallocated cluster
+			long start = cluster * qcow2.header.cluster_size();
+			write(ByteBuffer.allocate((int) Math.min(qcow2.header.cluster_size(), qcow2.header.size() - start)), start);
 		}
+	}
 
-		var table = new L1Entry[qcow2.header.l1_size()];
+	/**
+	 * Make a virtual cluster refer to the data of another one without copying
+	 * it. Both clusters are copied on their next write.
+	 *
+	 * @param source      The source virtual cluster
+	 * @param destination The destination virtual cluster
+	 * @return Whether the cluster could be shared. Clusters that are read from a
+	 *         backing file can't be shared.
+	 */
+	synchronized boolean share(long source, long destination) throws IOException {
+		if (source == destination) {
+			return true;
+		}
 
-		table_buffer.position(0);
-		for (int i = 0; i < table.length; i++) {
-			table[i] = new L1Entry(table_buffer.getLong());
-			System.out.println(
-					"Loaded L1 entry: " + Long.toBinaryString(table[i].data()) + " [offset=" + table[i].offset() + "]");
+		var l2_entry = new L2Entry(lookup(source));
+		if (l2_entry.data() == 0) {
+			if (qcow2.backing != null) {
+				return false;
+			}
+			update(destination, qcow2.header.version() >= 3 ? ZERO : 0);
+			return true;
+		}
+		if (!l2_entry.is_compressed() && l2_entry.standard_descriptor().all_zeros() != 0) {
+			update(destination, ZERO);
+			return true;
 		}
 
+		// The source entry is no longer the only reference
+		shared = true;
+		update_refcount(l2_entry.data(), 1);
+		long[] l2_table = writableL2Table((int) (source / qcow2.header.l2_entries()));
+		l2_table[(int) (source % qcow2.header.l2_entries())] &= ~COPIED;
+
+		update(destination, l2_entry.data() & ~COPIED);
+		return true;
+	}
+
+	/**
+	 * Replace the L2 entry of a virtual cluster and release the old cluster.
+	 */
+	private synchronized void update(long cluster, long l2_entry) throws IOException {
+		long[] l2_table = writableL2Table((int) (cluster / qcow2.header.l2_entries()));
+		int l2_index = (int) (cluster % qcow2.header.l2_entries());
+
+		free(l2_table[l2_index]);
+		l2_table[l2_index] = l2_entry;
+	}
+
+	/**
+	 * Reserve space for compressed data, preferably in the host cluster that's
+	 * currently being packed. Every host cluster that the data touches gains a
+	 * reference.
+	 *
+	 * @param length The length of the compressed data
+	 * @return The byte offset of the reserved space
+	 */
+	private synchronized long allocateCompressed(int length) throws IOException {
+		final int cluster_size = qcow2.header.cluster_size();
+
+		long offset;
+		int free = compressed_offset % cluster_size == 0 ? 0 : cluster_size - (int) (compressed_offset % cluster_size);
+		if (free >= length) {
+			offset = compressed_offset;
+			qcow2.refcount_table.update_refcount(offset, 1);
+		} else if (free != 0 && qcow2.refcount_table.end() == compressed_offset + free) {
+			// Spill over into new clusters which directly follow the current one
+			offset = compressed_offset;
+			qcow2.refcount_table.update_refcount(offset, 1);
+			qcow2.refcount_table.append((length - free + cluster_size - 1) / cluster_size);
+		} else {
+			offset = qcow2.refcount_table.allocate((length + cluster_size - 1) / cluster_size);
+		}
+
+		compressed_offset = offset + length;
+		return offset;
+	}
+
+	/**
+	 * Release the reference that an L2 entry holds on its host clusters.
+	 */
+	private void free(long l2_entry) throws IOException {
+		int refcount = update_refcount(l2_entry, -1);
+
+		// Another entry may now be the only reference to a shared cluster
+		if (shared && refcount == 1 && (l2_entry & COPIED) == 0) {
+			copied_stale = true;
+		}
+	}
+
+	/**
+	 * Add the given addend to the refcount of every host cluster that an L2 entry
+	 * refers to.
+	 *
+	 * @return The new refcount of the first host cluster or 0 if the entry refers
+	 *         to nothing
+	 */
+	private int update_refcount(long l2_entry, int addend) throws IOException {
+		var entry = new L2Entry(l2_entry);
+		if (entry.is_compressed()) {
+			final int cluster_bits = qcow2.header.cluster_bits();
+			long offset = entry.compressed_descriptor().offset(cluster_bits);
+			long last = offset + entry.compressed_descriptor().size(cluster_bits) - 1;
+
+			int refcount = 0;
+			for (long cluster = offset >> cluster_bits; cluster <= last >> cluster_bits; cluster++) {
+				int r = qcow2.refcount_table.update_refcount(cluster << cluster_bits, addend);
+				if (refcount == 0)
+					refcount = r;
+			}
+			return refcount;
+		} else if (entry.standard_descriptor().offset() != 0) {
+			return qcow2.refcount_table.update_refcount(entry.standard_descriptor().offset(), addend);
+		}
+		return 0;
+	}
+
+	/**
+	 * Get the L2 table for the given L1 index, allocating it or copying it if it's
+	 * shared with a snapshot. The table is marked dirty.
+	 */
+	private long[] writableL2Table(int l1_index) throws IOException {
+		invalidate(l1_index);
+
+		long l1_entry = l1_table[l1_index];
+		long offset = new L1Entry(l1_entry).offset();
+
+		if (offset != 0 && (l1_entry & COPIED) != 0) {
+			var table = l2Table(offset);
+			dirty_l2.put(offset, table);
+			return table;
+		}
+
+		long[] table;
+		if (offset == 0) {
+			table = new long[qcow2.header.l2_entries()];
+		} else {
+			table = l2Table(offset).clone();
+			qcow2.refcount_table.update_refcount(offset, -1);
+		}
+
+		long new_offset = qcow2.refcount_table.allocate(1);
+		l1_table[l1_index] = new_offset | COPIED;
+		dirty_l1 = true;
+		dirty_l2.put(new_offset, table);
+		l2_cache.put(new_offset, table);
 		return table;
 	}
 
-	private L2Entry[] readL2Table(L1Entry l1_entry) throws IOException {
+	/**
+	 * Add the given addend to the refcount of every L2 table and data cluster
+	 * reachable from the active L1 table and update the {@link #COPIED} flags.
+	 */
+	synchronized void update_refcounts(int addend) throws IOException {
+		chain_cache.clear();
+		chain_generation++;
+
+		for (int i = 0; i < l1_table.length; i++) {
+			long l2_table_offset = new L1Entry(l1_table[i]).offset();
+			if (l2_table_offset == 0) {
+				continue;
+			}
+
+			var table = l2Table(l2_table_offset);
+			for (int j = 0; j < table.length; j++) {
+				int refcount = update_refcount(table[j], addend);
+
+				// Compressed clusters are never written in place
+				if (refcount != 0 && !new L2Entry(table[j]).is_compressed()) {
+					table[j] = refcount == 1 ? table[j] | COPIED : table[j] & ~COPIED;
+				}
+			}
+			dirty_l2.put(l2_table_offset, table);
+
+			int refcount = qcow2.refcount_table.update_refcount(l2_table_offset, addend);
+			l1_table[i] = refcount == 1 ? l1_table[i] | COPIED : l1_table[i] & ~COPIED;
+			dirty_l1 = true;
+		}
+	}
+
+	/**
+	 * Set the COPIED flag on entries whose clusters are no longer shared after
+	 * the other references to them were overwritten.
+	 */
+	synchronized void repair_copied() throws IOException {
+		if (!copied_stale) {
+			return;
+		}
+		copied_stale = false;
+
+		for (int i = 0; i < l1_table.length; i++) {
+			long l2_table_offset = new L1Entry(l1_table[i]).offset();
+			if (l2_table_offset == 0) {
+				continue;
+			}
+
+			var table = l2Table(l2_table_offset);
+			for (int j = 0; j < table.length; j++) {
+				var entry = new L2Entry(table[j]);
+				if ((table[j] & COPIED) != 0 || entry.is_compressed() || entry.standard_descriptor().offset() == 0) {
+					continue;
+				}
+
+				if (qcow2.refcount_table.lookup_refcount(entry.standard_descriptor().offset()) == 1) {
+					table = writableL2Table(i);
+					table[j] |= COPIED;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The number of bytes of metadata waiting to be flushed
+	 */
+	synchronized long dirty() {
+		return (long) dirty_l2.size() * qcow2.header.cluster_size();
+	}
+
+	/**
+	 * Write modified L2 tables to the image.
+	 *
+	 * @return Whether anything was written
+	 */
+	synchronized boolean flushL2Tables() throws IOException {
+		if (dirty_l2.isEmpty()) {
+			return false;
+		}
+
+		log.trace("Flushing {} L2 tables", dirty_l2.size());
+
+		var table_buffer = ByteBuffer.allocateDirect(qcow2.header.cluster_size());
+		for (var entry : dirty_l2.entrySet()) {
+			table_buffer.clear().asLongBuffer().put(entry.getValue());
+			qcow2.writeFully(table_buffer, entry.getKey());
+		}
+		dirty_l2.clear();
+		return true;
+	}
+
+	/**
+	 * Write the L1 table to the image if it was modified.
+	 *
+	 * @return Whether anything was written
+	 */
+	synchronized boolean flushL1Table() throws IOException {
+		if (!dirty_l1) {
+			return false;
+		}
+
+		var table_buffer = ByteBuffer.allocateDirect(l1_table.length * Long.BYTES);
+		table_buffer.asLongBuffer().put(l1_table);
+		qcow2.writeFully(table_buffer, qcow2.header.l1_table_offset());
+		dirty_l1 = false;
+		return true;
+	}
+
+	/**
+	 * Find the layer of the backing chain that stores each cluster covered by an
+	 * L2 table. Results are cached until the cluster table changes.
+	 *
+	 * @param l1_index The L1 index
+	 * @return The resolved L2 entries
+	 */
+	private Resolved resolve(int l1_index) throws IOException {
+		long generation;
+		synchronized (this) {
+			var resolved = chain_cache.get(l1_index);
+			if (resolved != null) {
+				return resolved;
+			}
+			generation = chain_generation;
+		}
+
+		final int l2_entries = qcow2.header.l2_entries();
+		final long first = (long) l1_index * l2_entries;
+
+		var entries = new long[l2_entries];
+		var depth = new byte[l2_entries];
+		Arrays.fill(depth, (byte) -1);
+
+		// Clusters that have been found or lie beyond the end of a backing file
+		var done = new BitSet(l2_entries);
+
+		for (int d = 0; d < qcow2.chain.length && done.cardinality() < l2_entries; d++) {
+			var layer = qcow2.chain[d];
+			for (int i = done.nextClearBit(0); i < l2_entries; i = done.nextClearBit(i + 1)) {
+				if ((first + i) * qcow2.header.cluster_size() >= layer.header.size()) {
+					done.set(i);
+					continue;
+				}
+
+				long entry = layer.cluster_table.lookup(first + i);
+				if (entry != 0) {
+					entries[i] = entry;
+					depth[i] = (byte) d;
+					done.set(i);
+				}
+			}
+		}
+
+		var resolved = new Resolved(l1_index, entries, depth);
+		synchronized (this) {
+			// Don't cache the result if a write raced with it
+			if (generation == chain_generation) {
+				chain_cache.put(l1_index, resolved);
+			}
+		}
+		return resolved;
+	}
+
+	/**
+	 * Discard the backing chain resolution for an L2 table that's about to change.
+	 */
+	private void invalidate(int l1_index) {
+		if (qcow2.backing != null) {
+			chain_cache.remove(l1_index);
+			chain_generation++;
+		}
+	}
+
+	/**
+	 * Write every cluster that's allocated in this image to another image.
+	 *
+	 * @param target The target image
+	 */
+	void commit(Qcow2 target) throws IOException {
+		final int cluster_size = qcow2.header.cluster_size();
+		final int l2_entries = qcow2.header.l2_entries();
+		final int max_run = Math.max(1, COMMIT_BUFFER_SIZE / cluster_size);
+
+		var buffer = ByteBuffer.allocateDirect(max_run * cluster_size);
+
+		long run_start = 0;
+		int run_length = 0;
 
-		System.out.println("Loading L2 table at: " + l1_entry.offset());
+		for (long cluster = 0; cluster * cluster_size < qcow2.header.size(); cluster++) {
+			if (cluster % l2_entries == 0 && lookupL2Table(cluster) == 0) {
+				// Skip the whole L2 table
+				cluster += l2_entries - 1;
+				continue;
+			}
 
-		var table_buffer = ByteBuffer.allocateDirect(qcow2.header.l2_entries() * Long.BYTES);
-		if (channel.read(table_buffer, l1_entry.offset()) != qcow2.header.l2_entries() * Long.BYTES) {
-			throw new IOException();
+			var l2_entry = new L2Entry(lookup(cluster));
+			boolean data = l2_entry.data() != 0
+					&& (l2_entry.is_compressed() || l2_entry.standard_descriptor().all_zeros() == 0);
+
+			if (run_length != 0 && (!data || run_length == max_run || run_start + run_length != cluster)) {
+				commitRun(target, buffer, run_start, run_length);
+				run_length = 0;
+			}
+			if (data) {
+				if (run_length == 0) {
+					run_start = cluster;
+				}
+				run_length++;
+			} else if (l2_entry.data() != 0) {
+				target.writeZeros(cluster);
+			}
 		}
 
-		var table = new L2Entry[qcow2.header.l2_entries()];
+		if (run_length != 0) {
+			commitRun(target, buffer, run_start, run_length);
+		}
+	}
 
-		table_buffer.position(0);
-		for (int i = 0; i < table.length; i++) {
-			table[i] = new L2Entry(table_buffer.getLong());
+	private void commitRun(Qcow2 target, ByteBuffer buffer, long first, int count) throws IOException {
+		long start = first * qcow2.header.cluster_size();
+		buffer.clear().limit((int) Math.min((long) count * qcow2.header.cluster_size(), qcow2.header.size() - start));
+
+		read(buffer, start);
+		target.write(buffer.flip(), start);
+	}
+
+	/**
+	 * @return The offset of the L2 table that covers the given virtual cluster or
+	 *         0
+	 */
+	private synchronized long lookupL2Table(long cluster) {
+		int l1_index = (int) (cluster / qcow2.header.l2_entries());
+		return l1_index < l1_table.length ? new L1Entry(l1_table[l1_index]).offset() : 0;
+	}
+
+	/**
+	 * Get the raw L2 entry of a virtual cluster without holding the lock during
+	 * I/O.
+	 *
+	 * @param cluster The virtual cluster
+	 * @return The L2 entry or 0 if the cluster is unallocated
+	 */
+	private long lookup(long cluster) throws IOException {
+		int l1_index = (int) (cluster / qcow2.header.l2_entries());
+		int l2_index = (int) (cluster % qcow2.header.l2_entries());
+
+		while (true) {
+			long l2_table_offset;
+			synchronized (this) {
+				if (l1_index >= l1_table.length) {
+					return 0;
+				}
+				l2_table_offset = new L1Entry(l1_table[l1_index]).offset();
+				if (l2_table_offset == 0) {
+					return 0;
+				}
+				var table = cachedL2Table(l2_table_offset);
+				if (table != null) {
+					return table[l2_index];
+				}
+			}
+
+			var table = readL2Table(l2_table_offset);
+			synchronized (this) {
+				// A writer may have loaded and modified the table in the meantime
+				if (cachedL2Table(l2_table_offset) == null) {
+					l2_cache.put(l2_table_offset, table);
+				}
+			}
+		}
+	}
+
+	private long[] cachedL2Table(long offset) {
+		var table = dirty_l2.get(offset);
+		if (table == null) {
+			table = l2_cache.get(offset);
 		}
+		return table;
+	}
 
+	/**
+	 * Get an L2 table from the cache or load it from the image file while holding
+	 * the lock.
+	 *
+	 * @param offset The L2 table's offset in the image file
+	 * @return The L2 table
+	 */
+	private long[] l2Table(long offset) throws IOException {
+		var table = cachedL2Table(offset);
+		if (table == null) {
+			table = readL2Table(offset);
+			l2_cache.put(offset, table);
+		}
 		return table;
 	}
 
-	public int write(ByteBuffer data, long vOffset) {
+	/**
+	 * Read and inflate a compressed cluster.
+	 *
+	 * @param l2_entry The cluster's L2 entry
+	 * @return The cluster's data
+	 */
+	private ByteBuffer decompress(long l2_entry) throws IOException {
+		final int cluster_size = qcow2.header.cluster_size();
+		var descriptor = new L2Entry(l2_entry).compressed_descriptor();
+		long offset = descriptor.offset(qcow2.header.cluster_bits());
+		int size = descriptor.size(qcow2.header.cluster_bits());
 
-		int l2_index = (int) ((vOffset / qcow2.header.cluster_size()) % qcow2.header.l2_entries());
-		int l1_index = (int) ((vOffset / qcow2.header.cluster_size()) / qcow2.header.l2_entries());
+		// The inflater may need an extra byte beyond the compressed data
+		var compressed = ByteBuffer.allocate(size + 1);
+		readFully(compressed, 0, size, offset);
 
-		return 0;
+		var cluster = ByteBuffer.allocate(cluster_size);
+		var inflater = INFLATER.get();
+		inflater.reset();
+		inflater.setInput(compressed);
+		try {
+			while (cluster.hasRemaining() && !inflater.finished()) {
+				if (inflater.inflate(cluster) == 0 && inflater.needsInput()) {
+					break;
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid compressed cluster at offset: 0x" + Long.toHexString(offset), e);
+		}
+		if (cluster.hasRemaining()) {
+			throw new IOException("Truncated compressed cluster at offset: 0x" + Long.toHexString(offset));
+		}
+		return cluster.flip();
+	}
+
+	/**
+	 * Read from this layer's image file.
+	 */
+	private void readFully(ByteBuffer data, int position, int length, long offset) throws IOException {
+		var slice = data.duplicate().limit(position + length).position(position);
+		while (slice.hasRemaining()) {
+			int read = qcow2.channel.read(slice, offset);
+			if (read == -1) {
+				// Clusters at the end of the file may be short
+				zero(slice, slice.position(), slice.remaining());
+				break;
+			}
+			offset += read;
+		}
+	}
+
+	private void writeFully(ByteBuffer data, int position, int length, long offset) throws IOException {
+		qcow2.writeFully(data.duplicate().limit(position + length).position(position), offset);
+	}
+
+	private static void zero(ByteBuffer data, int position, int length) {
+		while (length > 0) {
+			int n = Math.min(length, ZEROS.length);
+			data.put(position, ZEROS, 0, n);
+			position += n;
+			length -= n;
+		}
+	}
+
+	private long[] readL1Table() throws IOException {
+
+		log.debug("Loading L1 table ({} entries) from offset: 0x{}", qcow2.header.l1_size(),
+				Long.toHexString(qcow2.header.l1_table_offset()));
+
+		return readTable(qcow2.header.l1_table_offset(), qcow2.header.l1_size());
+	}
+
+	private long[] readL2Table(long offset) throws IOException {
+
+		if (log.isTraceEnabled()) {
+			log.trace("Loading L2 table from offset: 0x{}", Long.toHexString(offset));
+		}
+
+		l2_reads.increment();
+		return readTable(offset, qcow2.header.l2_entries());
+	}
+
+	private long[] readTable(long offset, int entries) throws IOException {
+
+		var table_buffer = ByteBuffer.allocate(entries * Long.BYTES);
+		while (table_buffer.hasRemaining()) {
+			if (qcow2.channel.read(table_buffer, offset + table_buffer.position()) == -1) {
+				throw new EOFException("Table at offset 0x" + Long.toHexString(offset) + " is truncated");
+			}
+		}
+
+		var table = new long[entries];
+		table_buffer.flip().asLongBuffer().get(table);
+		return table;
 	}
 }
@@ -0,0 +1,261 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.integration.qcow2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes whole clusters to a {@link Qcow2} image with deflate compression.
+ * Clusters are compressed on a pool of worker threads and packed together into
+ * shared host clusters. Clusters that don't compress are stored normally and
+ * clusters that are entirely zero are not stored at all.
+ *
+ * <p>
+ * {@link #write(ByteBuffer, long)} blocks once too many clusters are waiting
+ * to be compressed, so memory usage is bounded regardless of how fast the
+ * caller produces data.
+ */
+public class CompressedWriter implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(CompressedWriter.class);
+
+	/**
+	 * qemu inflates compressed clusters with a 4 KiB window, so back-references
+	 * must not reach further than this.
+	 */
+	private static final int WINDOW_SIZE = 4096;
+
+	private final Qcow2 qcow2;
+
+	private final ExecutorService executor;
+
+	/**
+	 * Limits the number of clusters that are waiting to be compressed or written.
+	 */
+	private final Semaphore permits;
+
+	private final int max_permits;
+
+	private final ThreadLocal<Deflater> deflater = ThreadLocal
+			.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+
+	/**
+	 * The first failure of a worker which is rethrown to the caller.
+	 */
+	private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+	private final AtomicLong compressed_clusters = new AtomicLong();
+
+	private final AtomicLong standard_clusters = new AtomicLong();
+
+	private final AtomicLong zero_clusters = new AtomicLong();
+
+	private final AtomicLong compressed_bytes = new AtomicLong();
+
+	CompressedWriter(Qcow2 qcow2, int parallelism, long max_memory) {
+		this.qcow2 = qcow2;
+		this.max_permits = (int) Math.max(parallelism, max_memory / (2L * qcow2.header.cluster_size()));
+		this.permits = new Semaphore(max_permits);
+		this.executor = Executors.newFixedThreadPool(parallelism, r -> {
+			var thread = new Thread(r, "qcow2-compressor");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Write virtual data. The offset must be cluster aligned and the data must
+	 * consist of whole clusters, except for the last cluster of the virtual disk.
+	 * The data is copied before this method returns.
+	 *
+	 * @param data   The data to write
+	 * @param offset The virtual offset
+	 */
+	public void write(ByteBuffer data, long offset) throws IOException {
+		final int cluster_size = qcow2.header.cluster_size();
+
+		if (offset % cluster_size != 0) {
+			throw new IllegalArgumentException("Offset must be cluster aligned");
+		}
+		if (data.remaining() % cluster_size != 0 && offset + data.remaining() != qcow2.header.size()) {
+			throw new IllegalArgumentException("Length must be a multiple of the cluster size");
+		}
+		if (offset + data.remaining() > qcow2.header.size()) {
+			throw new IOException("Write beyond the end of the virtual disk at offset: " + offset);
+		}
+
+		while (data.hasRemaining()) {
+			checkFailure();
+
+			var cluster = new byte[cluster_size];
+			int length = Math.min(cluster_size, data.remaining());
+			data.get(cluster, 0, length);
+
+			long vOffset = offset;
+			offset += length;
+
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+
+			executor.execute(() -> {
+				try {
+					store(cluster, length, vOffset);
+				} catch (IOException e) {
+					failure.compareAndSet(null, e);
+				} catch (RuntimeException e) {
+					failure.compareAndSet(null, new IOException(e));
+				} finally {
+					permits.release();
+				}
+			});
+		}
+	}
+
+	private void store(byte[] cluster, int length, long vOffset) throws IOException {
+		final int cluster_size = qcow2.header.cluster_size();
+
+		if (isZero(cluster, length)) {
+			qcow2.writeZeros(vOffset / cluster_size);
+			zero_clusters.incrementAndGet();
+			return;
+		}
+
+		var compressed = new byte[cluster_size];
+		int compressed_length = compress(cluster, compressed);
+
+		// Only compress if it saves at least a sector
+		if (compressed_length > 0 && compressed_length <= cluster_size - 512) {
+			qcow2.writeCompressed(vOffset / cluster_size, compressed, compressed_length);
+			compressed_clusters.incrementAndGet();
+			compressed_bytes.addAndGet(compressed_length);
+		} else {
+			qcow2.write(ByteBuffer.wrap(cluster, 0, length), vOffset);
+			standard_clusters.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Deflate a whole cluster.
+	 *
+	 * @param cluster    The uncompressed cluster
+	 * @param compressed The output buffer
+	 * @return The compressed length or 0 if the output buffer was too small
+	 */
+	private int compress(byte[] cluster, byte[] compressed) {
+		var deflater = this.deflater.get();
+		deflater.reset();
+
+		int length = 0;
+		for (int offset = 0; offset < cluster.length; offset += WINDOW_SIZE) {
+			boolean last = offset + WINDOW_SIZE >= cluster.length;
+			deflater.setInput(cluster, offset, Math.min(WINDOW_SIZE, cluster.length - offset));
+			if (last) {
+				deflater.finish();
+			}
+
+			// A full flush keeps back-references within the window
+			do {
+				if (length == compressed.length) {
+					return 0;
+				}
+				length += deflater.deflate(compressed, length, compressed.length - length,
+						last ? Deflater.NO_FLUSH : Deflater.FULL_FLUSH);
+			} while (last ? !deflater.finished() : length == compressed.length);
+
+			// Give up early on data that doesn't compress at all
+			if (offset == 0 && !last && length > WINDOW_SIZE - WINDOW_SIZE / 32) {
+				return 0;
+			}
+		}
+		return length;
+	}
+
+	private static boolean isZero(byte[] cluster, int length) {
+		for (int i = 0; i < length; i++) {
+			if (cluster[i] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void checkFailure() throws IOException {
+		var e = failure.get();
+		if (e != null) {
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The number of clusters that were stored compressed
+	 */
+	public long compressedClusters() {
+		return compressed_clusters.get();
+	}
+
+	/**
+	 * @return The number of clusters that were stored uncompressed
+	 */
+	public long standardClusters() {
+		return standard_clusters.get();
+	}
+
+	/**
+	 * @return The number of clusters that were entirely zero
+	 */
+	public long zeroClusters() {
+		return zero_clusters.get();
+	}
+
+	/**
+	 * @return The total size of all compressed clusters
+	 */
+	public long compressedBytes() {
+		return compressed_bytes.get();
+	}
+
+	/**
+	 * Wait for all clusters to be written and flush the image. The image itself
+	 * remains open.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			permits.acquire(max_permits);
+			permits.release(max_permits);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} finally {
+			executor.shutdown();
+		}
+
+		checkFailure();
+		qcow2.flush();
+
+		log.debug("Wrote {} compressed ({} bytes), {} standard and {} zero clusters", compressed_clusters.get(),
+				compressed_bytes.get(), standard_clusters.get(), zero_clusters.get());
+	}
+}
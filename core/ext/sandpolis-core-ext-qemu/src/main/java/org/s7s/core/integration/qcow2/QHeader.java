@@ -86,7 +86,13 @@ public record QHeader(
 		 * Offset into the image file at which the snapshot table starts. Must be
 		 * aligned to a cluster boundary.
 		 */
-		long snapshots_offset) {
+		long snapshots_offset,
+
+		/**
+		 * Width of a refcount block entry (1 << refcount_order is the width in bits).
+		 * Always 4 for version 2 images.
+		 */
+		int refcount_order) {
 
 	public static QHeader read(FileChannel channel) throws IOException, IllegalHeaderException {
 
@@ -152,6 +158,15 @@ public record QHeader(
 			throw new IllegalHeaderException("version", version.getInt(0));
 		}
 
+		// The refcount order is one of the version 3 fields that follow
+		var refcount_order = ByteBuffer.allocate(Integer.BYTES).putInt(0, 4);
+		if (version.getInt(0) == 3 && channel.read(refcount_order, 96) != Integer.BYTES)
+			throw new IOException("Failed to read: refcount_order");
+
+		if (refcount_order.getInt(0) < 0 || refcount_order.getInt(0) > 6) {
+			throw new IllegalHeaderException("refcount_order", refcount_order.getInt(0));
+		}
+
 		return new QHeader( //
 				magic.getInt(0), //
 				version.getInt(0), //
@@ -165,7 +180,8 @@ public record QHeader(
 				refcount_table_offset.getLong(0), //
 				refcount_table_clusters.getInt(0), //
 				nb_snapshots.getInt(0), //
-				snapshots_offset.getLong(0) //
+				snapshots_offset.getLong(0), //
+				refcount_order.getInt(0) //
 		);
 	}
 
@@ -176,7 +192,7 @@ public record QHeader(
 					.putInt(magic()) //
 					.putInt(version()) //
 					.putLong(backing_file_offset()) //
-					.putLong(backing_file_size()) //
+					.putInt(backing_file_size()) //
 					.putInt(cluster_bits()) //
 					.putLong(size()) //
 					.putInt(crypt_method()) //
@@ -186,7 +202,7 @@ public record QHeader(
 					.putInt(refcount_table_clusters()) //
 					.putInt(nb_snapshots()) //
 					.putLong(snapshots_offset()) //
-					, 0);
+					.flip(), 0);
 		}
 	}
 
@@ -221,6 +237,6 @@ public record QHeader(
 	 * @return The width of a refcount block entry.
 	 */
 	public int refcount_bits() {
-		return 16;
+		return 1 << refcount_order();
 	}
 }
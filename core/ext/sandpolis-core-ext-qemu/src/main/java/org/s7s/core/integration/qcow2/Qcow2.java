@@ -8,17 +8,21 @@
 //============================================================================//
 package org.s7s.core.integration.qcow2;
 
-import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
 import static java.nio.file.StandardOpenOption.READ;
 import static java.nio.file.StandardOpenOption.WRITE;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,7 +33,33 @@ public class Qcow2 implements Closeable {
 
 	private static final Logger log = LoggerFactory.getLogger(Qcow2.class);
 
-	private final FileChannel channel;
+	/**
+	 * The amount of modified L2 tables that triggers an automatic flush.
+	 */
+	private static final long FLUSH_THRESHOLD = 16 * 1024 * 1024;
+
+	/**
+	 * The maximum number of images in a backing chain.
+	 */
+	private static final int MAX_CHAIN_DEPTH = 64;
+
+	/**
+	 * The header extension that names the format of the backing file.
+	 */
+	private static final int BACKING_FORMAT_EXTENSION = 0xE2792ACA;
+
+	/**
+	 * The image that provides clusters which are unallocated in this image or
+	 * {@code null}.
+	 */
+	final Qcow2 backing;
+
+	/**
+	 * This image followed by each image in its backing chain.
+	 */
+	final Qcow2[] chain;
+
+	final FileChannel channel;
 
 	ClusterTable cluster_table;
 
@@ -40,56 +70,295 @@ public class Qcow2 implements Closeable {
 
 	QHeader header;
 
+	/**
+	 * Whether the header was modified since the last flush.
+	 */
+	boolean header_dirty;
+
+	/**
+	 * Writes hold the read lock so they can proceed concurrently while a flush
+	 * holds the write lock. This guarantees that flushed metadata never refers to
+	 * data that hasn't been written yet.
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
 	/**
 	 * The current read/write position.
 	 */
 	private long position;
 
+	/**
+	 * Whether the image was opened without write access.
+	 */
+	private final boolean read_only;
+
+	/**
+	 * The image's refcounts which are only loaded when the image is writable.
+	 */
 	RefcountTable refcount_table;
 
 	SnapshotTable snapshot_table;
 
 	public Qcow2(Path file) throws IOException, IllegalHeaderException {
+		this(file, false);
+	}
+
+	/**
+	 * Open an existing image. Backing files are opened read-only.
+	 *
+	 * @param file      The qcow2 file
+	 * @param read_only Whether writes should be rejected
+	 */
+	public Qcow2(Path file, boolean read_only) throws IOException, IllegalHeaderException {
+		this(file, read_only, 0);
+	}
+
+	private Qcow2(Path file, boolean read_only, int depth) throws IOException, IllegalHeaderException {
 		if (!Files.exists(file)) {
 			throw new FileNotFoundException();
 		}
+		if (depth >= MAX_CHAIN_DEPTH) {
+			throw new IOException("Backing chain is too long: " + file);
+		}
 		log.debug("Opening qcow2 file: {}", file.toAbsolutePath().toString());
 
 		this.file = file;
-		this.channel = FileChannel.open(file, READ, WRITE);
-		this.header = QHeader.read(channel);
+		this.read_only = read_only;
+		this.channel = read_only ? FileChannel.open(file, READ) : FileChannel.open(file, READ, WRITE);
+		try {
+			this.header = QHeader.read(channel);
+			this.backing = openBacking(depth);
+			this.snapshot_table = new SnapshotTable(this);
+			this.refcount_table = read_only ? null : new RefcountTable(this);
+			this.cluster_table = new ClusterTable(this);
+		} catch (IOException | IllegalHeaderException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+
+		if (backing == null) {
+			this.chain = new Qcow2[] { this };
+		} else {
+			this.chain = new Qcow2[1 + backing.chain.length];
+			this.chain[0] = this;
+			System.arraycopy(backing.chain, 0, chain, 1, backing.chain.length);
+		}
+	}
+
+	/**
+	 * Create a new image that's backed by an existing image. Only clusters that
+	 * are written to the new image are stored in it; everything else is read from
+	 * the backing file.
+	 *
+	 * @param file         The qcow2 file which must not exist
+	 * @param backing_file The existing backing image which must not be modified
+	 *                     while the new image exists
+	 */
+	public Qcow2(Path file, Path backing_file) throws IOException, IllegalHeaderException {
+		this(format(file, backing_file), false);
+	}
+
+	/**
+	 * Create a new empty image.
+	 *
+	 * @param file         The qcow2 file which must not exist
+	 * @param size         The virtual disk size in bytes
+	 * @param cluster_size The cluster size in bytes
+	 */
+	public Qcow2(Path file, long size, long cluster_size) throws IOException {
+		if (Files.exists(file)) {
+			throw new IllegalArgumentException();
+		}
+
+		log.debug("Creating qcow2 file: {}", file.toAbsolutePath().toString());
+
+		this.file = file;
+		this.read_only = false;
+		this.backing = null;
+		this.chain = new Qcow2[] { this };
+		this.channel = FileChannel.open(file, READ, WRITE, CREATE_NEW);
+		try {
+			this.header = format(channel, size, cluster_size, null);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			Files.delete(file);
+			throw e;
+		}
+
 		this.snapshot_table = new SnapshotTable(this);
 		this.refcount_table = new RefcountTable(this);
 		this.cluster_table = new ClusterTable(this);
 	}
 
-	public Qcow2(Path file, long size, long cluster_size) throws IOException {
+	/**
+	 * Create an empty overlay of an existing image.
+	 *
+	 * @return The overlay file
+	 */
+	private static Path format(Path file, Path backing_file) throws IOException, IllegalHeaderException {
 		if (Files.exists(file)) {
 			throw new IllegalArgumentException();
 		}
+
+		// Store the name relative to the overlay when they share a directory
+		String backing_name;
+		if (backing_file.toAbsolutePath().getParent().equals(file.toAbsolutePath().getParent())) {
+			backing_name = backing_file.getFileName().toString();
+		} else {
+			backing_name = backing_file.toAbsolutePath().toString();
+		}
+
+		QHeader backing_header;
+		try (var channel = FileChannel.open(backing_file, READ)) {
+			backing_header = QHeader.read(channel);
+		}
+
+		log.debug("Creating qcow2 file: {} backed by: {}", file.toAbsolutePath().toString(), backing_name);
+
+		try (var channel = FileChannel.open(file, READ, WRITE, CREATE_NEW)) {
+			format(channel, backing_header.size(), backing_header.cluster_size(), backing_name);
+		} catch (IOException | RuntimeException e) {
+			Files.delete(file);
+			throw e;
+		}
+		return file;
+	}
+
+	/**
+	 * Write the metadata of an empty image.
+	 *
+	 * @param channel      The new image file
+	 * @param size         The virtual disk size in bytes
+	 * @param cluster_size The cluster size in bytes
+	 * @param backing_name The backing file name or {@code null}
+	 * @return The image's header
+	 */
+	private static QHeader format(FileChannel channel, long size, long cluster_size, String backing_name)
+			throws IOException {
 		if (Long.bitCount(cluster_size) != 1) {
 			throw new IllegalArgumentException("Cluster size must be a power of 2");
 		}
+		if (cluster_size < 512 || cluster_size > 2 * 1024 * 1024) {
+			throw new IllegalArgumentException("Cluster size must be between 512 B and 2 MiB");
+		}
 
-		log.debug("Opening qcow2 file: {}", file.toAbsolutePath().toString());
+		int cluster_bits = Long.numberOfTrailingZeros(cluster_size);
+		long l2_coverage = cluster_size * (cluster_size / Long.BYTES);
+		int l1_size = (int) ((size + l2_coverage - 1) / l2_coverage);
+		int l1_clusters = (int) Math.max(1, (l1_size * Long.BYTES + cluster_size - 1) / cluster_size);
 
-		this.file = file;
-		this.channel = FileChannel.open(file, READ, WRITE, CREATE);
+		// The initial metadata must be described by the first refcount block
+		if (3 + l1_clusters > cluster_size / 2) {
+			throw new IllegalArgumentException("Virtual size is too large for the cluster size");
+		}
+
+		// The backing file name follows the header extensions in the first cluster
+		byte[] backing = backing_name == null ? new byte[0] : backing_name.getBytes(StandardCharsets.UTF_8);
+		if (backing.length > 1023 || 128 + backing.length > cluster_size) {
+			throw new IllegalArgumentException("Backing file name is too long");
+		}
 
-		// Layout L1 table
-		long l1_table_offset = cluster_size * 3; // TODO
+		// Layout: header, refcount table, refcount block, L1 table
+		var header = new QHeader(0x514649fb, 3, backing_name == null ? 0 : 128, backing.length, cluster_bits, size, 0,
+				l1_size, cluster_size * 3, cluster_size, 1, 0, 0, 4);
+		header.write(channel);
 
-		// layout refcount table
-		long refcount_table_offset = cluster_size * 4; // TODO
+		// Version 3 fields without any feature bits and 16 bit refcounts
+		var fields = ByteBuffer.allocate(56).putLong(0).putLong(0).putLong(0).putInt(4).putInt(104);
+		if (backing_name != null) {
+			fields.putInt(BACKING_FORMAT_EXTENSION).putInt(5).put("qcow2".getBytes(StandardCharsets.US_ASCII))
+					.put(new byte[3]);
+		}
+		writeFully(channel, fields.putLong(0).flip(), header.header_length());
+		writeFully(channel, ByteBuffer.wrap(backing), 128);
 
-		// Write header
-		this.header = new QHeader(0x514649fb, 3, 0, 0, 0, size, 0, 0, l1_table_offset, refcount_table_offset, 1, 0, 0);
-		this.header.write(channel);
+		writeFully(channel, ByteBuffer.allocate((int) cluster_size).putLong(0, cluster_size * 2), cluster_size);
+
+		var refcount_block = ByteBuffer.allocate((int) cluster_size);
+		for (int i = 0; i < 3 + l1_clusters; i++) {
+			refcount_block.putShort((short) 1);
+		}
+		writeFully(channel, refcount_block.clear(), cluster_size * 2);
+		writeFully(channel, ByteBuffer.allocate((int) (l1_clusters * cluster_size)), cluster_size * 3);
+		return header;
+	}
+
+	/**
+	 * Open the backing file named in the header.
+	 *
+	 * @param depth The depth of this image in its backing chain
+	 * @return The backing image or {@code null}
+	 */
+	private Qcow2 openBacking(int depth) throws IOException, IllegalHeaderException {
+		if (header.backing_file_offset() == 0 || header.backing_file_size() == 0) {
+			return null;
+		}
+		if (header.backing_file_size() > 1023) {
+			throw new IllegalHeaderException("backing_file_size", header.backing_file_size());
+		}
+
+		var name = ByteBuffer.allocate(header.backing_file_size());
+		while (name.hasRemaining()) {
+			if (channel.read(name, header.backing_file_offset() + name.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+
+		// Relative names are relative to the directory of this image
+		var backing_file = file.toAbsolutePath()
+				.resolveSibling(Path.of(new String(name.array(), StandardCharsets.UTF_8)));
+
+		var backing = new Qcow2(backing_file, true, depth + 1);
+		if (backing.header.cluster_size() != header.cluster_size()) {
+			backing.close();
+			throw new IOException("Backing file has a different cluster size: " + backing_file);
+		}
+		return backing;
+	}
+
+	/**
+	 * @return The backing image or {@code null}
+	 */
+	public Qcow2 backing() {
+		return backing;
+	}
+
+	/**
+	 * Write the data of every cluster that's allocated in this image to its backing
+	 * file. Afterwards the backing file has the same contents as this image and
+	 * this image can be discarded.
+	 *
+	 * <p>
+	 * Other images that use the same backing file are affected by this operation.
+	 */
+	public void commit() throws IOException {
+		if (backing == null) {
+			throw new IllegalStateException("The image has no backing file");
+		}
+
+		flush();
+
+		try (var target = new Qcow2(backing.file)) {
+			cluster_table.commit(target);
+		} catch (IllegalHeaderException e) {
+			throw new IOException(e);
+		}
 	}
 
 	@Override
 	public void close() throws IOException {
-		channel.close();
+		if (channel.isOpen()) {
+			try {
+				if (!read_only) {
+					flush();
+				}
+			} finally {
+				channel.close();
+				if (backing != null) {
+					backing.close();
+				}
+			}
+		}
 	}
 
 	/**
@@ -97,14 +366,120 @@ public class Qcow2 implements Closeable {
 	 * existing clusters when possible and therefore can be more efficient than a
 	 * {@link #read(ByteBuffer)} followed by a {@link #write(ByteBuffer)}.
 	 *
+	 * <p>
+	 * Whole clusters are shared when the source and destination have the same
+	 * alignment within a cluster. The ranges may overlap.
+	 *
 	 * @param source      The source offset
 	 * @param size        The number of bytes to copy
 	 * @param destination The destination offset
 	 * @return The number of bytes copied
 	 */
-	public int copy(long source, long size, long destination) throws IOException {
-		// TODO
-		return -1;
+	public long copy(long source, long size, long destination) throws IOException {
+		if (!channel.isOpen()) {
+			throw new IllegalStateException("The channel is closed");
+		}
+		if (read_only) {
+			throw new IOException("The image is read-only");
+		}
+		if (source < 0 || destination < 0 || size < 0 || source + size > header.size()
+				|| destination + size > header.size()) {
+			throw new IOException("Copy beyond the end of the virtual disk");
+		}
+
+		final int cluster_size = header.cluster_size();
+		final boolean aligned = source % cluster_size == destination % cluster_size;
+
+		// Copy backwards if the destination overlaps the end of the source
+		final boolean backwards = destination > source && destination < source + size;
+
+		var buffer = ByteBuffer.allocate(cluster_size);
+
+		long remaining = size;
+		while (remaining > 0) {
+			// The next piece of the destination that doesn't cross a cluster boundary
+			long dst;
+			int length;
+			if (backwards) {
+				long end = destination + remaining;
+				length = (int) Math.min(remaining, (end - 1) % cluster_size + 1);
+				dst = end - length;
+			} else {
+				dst = destination + size - remaining;
+				length = (int) Math.min(remaining, cluster_size - dst % cluster_size);
+			}
+			long src = source + (dst - destination);
+
+			boolean shared = false;
+			if (aligned && length == cluster_size) {
+				lock.readLock().lock();
+				try {
+					shared = cluster_table.share(src / cluster_size, dst / cluster_size);
+				} finally {
+					lock.readLock().unlock();
+				}
+			}
+			if (!shared) {
+				read(buffer.clear().limit(length), src);
+				write(buffer.flip(), dst);
+			}
+
+			remaining -= length;
+		}
+
+		if (cluster_table.dirty() > FLUSH_THRESHOLD) {
+			flush();
+		}
+		return size;
+	}
+
+	/**
+	 * Write all modified metadata to the image. Writes made before this call are
+	 * durable once it returns.
+	 *
+	 * <p>
+	 * Metadata is written in dependency order with a barrier between each step so
+	 * an interruption can only leak clusters: data, then refcounts, then L2
+	 * tables, then the L1 table and header.
+	 */
+	public void flush() throws IOException {
+		if (read_only) {
+			return;
+		}
+
+		lock.writeLock().lock();
+		try {
+			cluster_table.repair_copied();
+
+			// Extend the file over clusters that were allocated but not fully written
+			long end = refcount_table.end();
+			if (channel.size() < end) {
+				channel.write(ByteBuffer.allocate(1), end - 1);
+			}
+			channel.force(false);
+
+			if (refcount_table.flush()) {
+				channel.force(false);
+			}
+			if (cluster_table.flushL2Tables()) {
+				channel.force(false);
+			}
+
+			boolean flushed = cluster_table.flushL1Table();
+			if (header_dirty) {
+				header.write(channel);
+				header_dirty = false;
+				flushed = true;
+			}
+			if (flushed) {
+				channel.force(false);
+			}
+
+			// Nothing on disk refers to the clusters that were freed anymore
+			refcount_table.reclaim();
+		} finally {
+			lock.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -119,6 +494,13 @@ public class Qcow2 implements Closeable {
 		return new QcowInputStream(this);
 	}
 
+	/**
+	 * @return The virtual disk size in bytes.
+	 */
+	public long size() {
+		return header.size();
+	}
+
 	/**
 	 * @return The read/write pointer.
 	 */
@@ -143,14 +525,14 @@ public class Qcow2 implements Closeable {
 			throw new IllegalStateException("The channel is closed");
 		}
 		if (log.isTraceEnabled()) {
-			log.trace("Client read request for {} bytes at virtual offset: 0x{}", data.limit(),
+			log.trace("Client read request for {} bytes at virtual offset: 0x{}", data.remaining(),
 					Long.toHexString(offset));
 		}
 
 		return cluster_table.read(data, offset);
 	}
 
-	public int write(ByteBuffer data) {
+	public int write(ByteBuffer data) throws IOException {
 		int write = write(data, position);
 		if (write != -1) {
 			position += write;
@@ -158,16 +540,85 @@ public class Qcow2 implements Closeable {
 		return write;
 	}
 
-	public int write(ByteBuffer data, long offset) {
+	/**
+	 * Write virtual data at the given offset. This method may be called
+	 * concurrently for different offsets. Metadata is flushed in batches, so call
+	 * {@link #flush()} or {@link #close()} to make writes durable.
+	 *
+	 * @param data   The data to write
+	 * @param offset The virtual offset
+	 * @return The number of bytes written
+	 */
+	public int write(ByteBuffer data, long offset) throws IOException {
 		if (!channel.isOpen()) {
 			throw new IllegalStateException("The channel is closed");
 		}
+		if (read_only) {
+			throw new IOException("The image is read-only");
+		}
 		if (log.isTraceEnabled()) {
-			log.trace("Client write request for {} bytes at virtual offset: 0x{}", data.limit(),
+			log.trace("Client write request for {} bytes at virtual offset: 0x{}", data.remaining(),
 					Long.toHexString(offset));
 		}
 
-		return cluster_table.write(data, offset);
+		int write;
+		lock.readLock().lock();
+		try {
+			write = cluster_table.write(data, offset);
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		if (cluster_table.dirty() > FLUSH_THRESHOLD) {
+			flush();
+		}
+		return write;
 	}
 
+	/**
+	 * Create a writer that stores whole clusters compressed.
+	 *
+	 * @param parallelism The number of compression threads
+	 * @param max_memory  The maximum number of bytes held by clusters that are
+	 *                    waiting to be compressed or written
+	 * @return A new {@link CompressedWriter}
+	 */
+	public CompressedWriter newCompressedWriter(int parallelism, long max_memory) {
+		if (!channel.isOpen()) {
+			throw new IllegalStateException("The channel is closed");
+		}
+		if (read_only) {
+			throw new IllegalStateException("The image is read-only");
+		}
+
+		return new CompressedWriter(this, parallelism, max_memory);
+	}
+
+	void writeCompressed(long cluster, byte[] compressed, int length) throws IOException {
+		lock.readLock().lock();
+		try {
+			cluster_table.writeCompressed(cluster, compressed, length);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	void writeZeros(long cluster) throws IOException {
+		lock.readLock().lock();
+		try {
+			cluster_table.writeZeros(cluster);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	void writeFully(ByteBuffer buffer, long offset) throws IOException {
+		writeFully(channel, buffer, offset);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+		while (buffer.hasRemaining()) {
+			offset += channel.write(buffer, offset);
+		}
+	}
 }
@@ -11,6 +11,7 @@ package org.s7s.core.integration.qcow2;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.Objects;
 
 public class QcowInputStream extends InputStream {
 
@@ -30,19 +31,35 @@ public class QcowInputStream extends InputStream {
 	public int read() throws IOException {
 		if (!buffer.hasRemaining()) {
 			int read = qcow2.read(buffer.clear(), offset);
+			buffer.flip();
 			if (read == -1) {
 				return -1;
 			}
-			buffer.limit(read);
 			offset += read;
 		}
-		return buffer.get();
+		return buffer.get() & 0xff;
 	}
 
 	@Override
 	public int read(byte[] b, int off, int len) throws IOException {
-		// TODO Auto-generated method stub
-		return super.read(b, off, len);
+		Objects.checkFromIndexSize(off, len, b.length);
+		if (len == 0) {
+			return 0;
+		}
+
+		// Drain what's left in the buffer first
+		if (buffer.hasRemaining()) {
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		// Read directly into the caller's array
+		int read = qcow2.read(ByteBuffer.wrap(b, off, len), offset);
+		if (read != -1) {
+			offset += read;
+		}
+		return read;
 	}
 
 }
@@ -8,16 +8,25 @@
 //============================================================================//
 package org.s7s.core.integration.qcow2;
 
-import static java.nio.file.StandardOpenOption.READ;
-import static java.nio.file.StandardOpenOption.WRITE;
-
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Keeps the image's refcounts in memory. Changes are tracked per refcount block
+ * and written back by {@link #flush()}.
+ *
+ * <p>
+ * Clusters whose refcount drops to zero are allocated again once a flush has
+ * removed every reference to them from the image's metadata. Zero refcounts
+ * that are found when the image is opened aren't reused because an interrupted
+ * flush may have written them before the metadata that released them.
+ */
 class RefcountTable {
 
 	public record RefcountTableEntry(long data) {
@@ -36,72 +45,307 @@ class RefcountTable {
 
 	private static final Logger log = LoggerFactory.getLogger(RefcountTable.class);
 
-	private final FileChannel channel;
-
 	private final Qcow2 qcow2;
 
-	private final RefcountTableEntry[] refcount_table;
+	/**
+	 * The refcount table which contains the offsets of refcount blocks.
+	 */
+	private long[] refcount_table;
+
+	/**
+	 * Refcount blocks by their index in the refcount table. Entries are unsigned
+	 * 16-bit refcounts.
+	 */
+	private char[][] refcount_blocks;
+
+	/**
+	 * Refcount blocks that were modified since the last flush.
+	 */
+	private final BitSet dirty_blocks = new BitSet();
+
+	/**
+	 * Whether the refcount table was modified since the last flush.
+	 */
+	private boolean dirty_table;
+
+	/**
+	 * The index of the first cluster that has never been allocated.
+	 */
+	private long next_cluster;
+
+	/**
+	 * Clusters whose refcount dropped to zero since the last flush. The metadata
+	 * on disk may still refer to them.
+	 */
+	private final BitSet released = new BitSet();
+
+	/**
+	 * Clusters that were released before the last flush and can be allocated
+	 * again.
+	 */
+	private final BitSet reusable = new BitSet();
 
 	public RefcountTable(Qcow2 qcow2) throws IOException {
 		this.qcow2 = qcow2;
-		this.channel = FileChannel.open(qcow2.file, READ, WRITE);
+
+		if (qcow2.header.refcount_bits() != 16) {
+			throw new IOException("Unsupported refcount width: " + qcow2.header.refcount_bits());
+		}
 
 		refcount_table = readRefcountTable();
+		refcount_blocks = new char[refcount_table.length][];
+
+		for (int i = 0; i < refcount_table.length; i++) {
+			long offset = new RefcountTableEntry(refcount_table[i]).offset();
+			if (offset != 0) {
+				refcount_blocks[i] = readRefcountBlock(offset);
+				for (int j = refcount_blocks[i].length - 1; j >= 0; j--) {
+					if (refcount_blocks[i][j] != 0) {
+						next_cluster = Math.max(next_cluster, (long) i * block_entries() + j + 1);
+						break;
+					}
+				}
+			}
+		}
+
+		// Don't reuse space that was written but never accounted for
+		next_cluster = Math.max(next_cluster,
+				(qcow2.channel.size() + qcow2.header.cluster_size() - 1) / qcow2.header.cluster_size());
 	}
 
-	public void increment_all() {
-		// TODO
+	/**
+	 * @return The number of refcounts in a refcount block
+	 */
+	private int block_entries() {
+		return (qcow2.header.cluster_size() * 8) / qcow2.header.refcount_bits();
 	}
 
-	public long lookup_refcount(long image_offset) throws IOException {
+	/**
+	 * Allocate contiguous clusters, reusing freed clusters where possible. Reused
+	 * clusters are zeroed so they never expose stale data.
+	 *
+	 * @param count The number of clusters
+	 * @return The offset of the first cluster
+	 */
+	public synchronized long allocate(int count) throws IOException {
+		for (int first = reusable.nextSetBit(0); first >= 0; first = reusable.nextSetBit(first)) {
+			int end = reusable.nextClearBit(first);
+			if (end - first < count) {
+				first = end;
+				continue;
+			}
 
-		long refcount_block_entries = (qcow2.header.cluster_size() * 8) / qcow2.header.refcount_bits();
+			reusable.clear(first, first + count);
+			for (long cluster = first; cluster < first + count; cluster++) {
+				update(cluster, 1);
+			}
 
-		int refcount_block_index = (int) ((image_offset / qcow2.header.cluster_size()) % refcount_block_entries);
-		int refcount_table_index = (int) ((image_offset / qcow2.header.cluster_size()) / refcount_block_entries);
+			long offset = (long) first * qcow2.header.cluster_size();
+			var zeros = ByteBuffer.allocate(count * qcow2.header.cluster_size());
+			qcow2.writeFully(zeros, offset);
+			return offset;
+		}
 
-		var refcount_block = readRefcountBlock(refcount_table[refcount_table_index]);
-		return refcount_block[refcount_block_index].refcount();
+		return append(count);
 	}
 
-	private RefcountBlockEntry[] readRefcountBlock(RefcountTableEntry refcount_table_entry) throws IOException {
+	/**
+	 * Allocate contiguous clusters at the end of the image. New clusters never
+	 * contain stale data.
+	 *
+	 * @param count The number of clusters
+	 * @return The offset of the first cluster
+	 */
+	public synchronized long append(int count) throws IOException {
+		long first = next_cluster;
+		next_cluster += count;
 
-		var block_buffer = ByteBuffer.allocateDirect(qcow2.header.cluster_size());
-		if (channel.read(block_buffer, refcount_table_entry.offset()) != qcow2.header.cluster_size()) {
-			throw new IOException();
+		for (long cluster = first; cluster < first + count; cluster++) {
+			update(cluster, 1);
 		}
+		return first * qcow2.header.cluster_size();
+	}
 
-		var table = new RefcountBlockEntry[(qcow2.header.cluster_size() * 8) / qcow2.header.refcount_bits()];
+	/**
+	 * Make the clusters that were released before a completed flush available to
+	 * {@link #allocate(int)}.
+	 */
+	public synchronized void reclaim() {
+		reusable.or(released);
+		released.clear();
+	}
 
-		block_buffer.position(0);
-		for (int i = 0; i < table.length; i++) {
-			table[i] = new RefcountBlockEntry(block_buffer.getLong());
+	/**
+	 * Increment the refcount of every cluster that's reachable from the active L1
+	 * table. This is how a new snapshot shares the image's clusters.
+	 */
+	public void increment_all() throws IOException {
+		qcow2.cluster_table.update_refcounts(1);
+	}
+
+	public synchronized long lookup_refcount(long image_offset) {
+		long cluster = image_offset / qcow2.header.cluster_size();
+
+		int refcount_table_index = (int) (cluster / block_entries());
+		int refcount_block_index = (int) (cluster % block_entries());
+
+		if (refcount_table_index >= refcount_blocks.length || refcount_blocks[refcount_table_index] == null) {
+			return 0;
 		}
+		return refcount_blocks[refcount_table_index][refcount_block_index];
+	}
 
-		return table;
+	/**
+	 * Change the refcount of the cluster at the given offset.
+	 *
+	 * @param image_offset The cluster's offset in the image file
+	 * @param addend       The change in refcount
+	 * @return The new refcount
+	 */
+	public synchronized int update_refcount(long image_offset, int addend) throws IOException {
+		return update(image_offset / qcow2.header.cluster_size(), addend);
 	}
 
-	private RefcountTableEntry[] readRefcountTable() throws IOException {
+	private int update(long cluster, int addend) throws IOException {
+		int refcount_table_index = (int) (cluster / block_entries());
+		int refcount_block_index = (int) (cluster % block_entries());
 
-		log.debug("Loading refcount table ({} bytes) from offset: 0x{}",
-				qcow2.header.refcount_table_clusters() * qcow2.header.cluster_size(),
-				Long.toHexString(qcow2.header.refcount_table_offset()));
+		var block = refcount_block(refcount_table_index);
+
+		int refcount = block[refcount_block_index] + addend;
+		if (refcount < 0 || refcount > 0xffff) {
+			throw new IOException("Refcount out of range for cluster: " + cluster);
+		}
+		block[refcount_block_index] = (char) refcount;
+		dirty_blocks.set(refcount_table_index);
+
+		if (cluster < Integer.MAX_VALUE) {
+			released.set((int) cluster, refcount == 0);
+		}
+		return refcount;
+	}
 
-		var table_buffer = ByteBuffer
-				.allocateDirect(qcow2.header.refcount_table_clusters() * qcow2.header.cluster_size());
-		if (channel.read(table_buffer, qcow2.header.refcount_table_offset()) != qcow2.header.refcount_table_clusters()
-				* qcow2.header.cluster_size()) {
-			throw new IOException();
+	/**
+	 * Get a refcount block, allocating it and growing the refcount table if
+	 * necessary.
+	 */
+	private char[] refcount_block(int index) throws IOException {
+		if (index >= refcount_table.length) {
+			grow(index + 1);
 		}
+		if (refcount_blocks[index] == null) {
+			long cluster = next_cluster++;
 
-		var table = new RefcountTableEntry[qcow2.header.refcount_table_clusters() * qcow2.header.cluster_size()
-				/ Long.BYTES];
+			refcount_blocks[index] = new char[block_entries()];
+			refcount_table[index] = cluster * qcow2.header.cluster_size();
+			dirty_table = true;
 
-		table_buffer.position(0);
-		for (int i = 0; i < table.length; i++) {
-			table[i] = new RefcountTableEntry(table_buffer.getLong());
+			// The new block may describe itself
+			update(cluster, 1);
 		}
+		return refcount_blocks[index];
+	}
+
+	/**
+	 * Move the refcount table to the end of the image with room for at least the
+	 * given number of refcount blocks.
+	 */
+	private void grow(int min_entries) throws IOException {
+		int entries_per_cluster = qcow2.header.cluster_size() / Long.BYTES;
 
+		int old_clusters = qcow2.header.refcount_table_clusters();
+		int new_clusters = Math.max(old_clusters * 2, (min_entries + entries_per_cluster - 1) / entries_per_cluster);
+		long old_offset = qcow2.header.refcount_table_offset();
+		long new_offset = next_cluster * qcow2.header.cluster_size();
+		next_cluster += new_clusters;
+
+		log.debug("Moving refcount table to offset: 0x{} ({} clusters)", Long.toHexString(new_offset), new_clusters);
+
+		refcount_table = Arrays.copyOf(refcount_table, new_clusters * entries_per_cluster);
+		refcount_blocks = Arrays.copyOf(refcount_blocks, refcount_table.length);
+		dirty_table = true;
+
+		qcow2.header = new QHeader(qcow2.header.magic(), qcow2.header.version(), qcow2.header.backing_file_offset(),
+				qcow2.header.backing_file_size(), qcow2.header.cluster_bits(), qcow2.header.size(),
+				qcow2.header.crypt_method(), qcow2.header.l1_size(), qcow2.header.l1_table_offset(), new_offset,
+				new_clusters, qcow2.header.nb_snapshots(), qcow2.header.snapshots_offset(),
+				qcow2.header.refcount_order());
+		qcow2.header_dirty = true;
+
+		for (int i = 0; i < new_clusters; i++) {
+			update(new_offset / qcow2.header.cluster_size() + i, 1);
+		}
+		for (int i = 0; i < old_clusters; i++) {
+			update(old_offset / qcow2.header.cluster_size() + i, -1);
+		}
+	}
+
+	/**
+	 * @return The offset of the end of the last allocated cluster
+	 */
+	public synchronized long end() {
+		return next_cluster * qcow2.header.cluster_size();
+	}
+
+	/**
+	 * Write modified refcount blocks and the refcount table to the image. The
+	 * caller is responsible for ordering this before any metadata that refers to
+	 * newly allocated clusters.
+	 *
+	 * @return Whether anything was written
+	 */
+	public synchronized boolean flush() throws IOException {
+		if (dirty_blocks.isEmpty() && !dirty_table) {
+			return false;
+		}
+
+		log.trace("Flushing {} refcount blocks", dirty_blocks.cardinality());
+
+		var block_buffer = ByteBuffer.allocateDirect(qcow2.header.cluster_size());
+		for (int i = dirty_blocks.nextSetBit(0); i >= 0; i = dirty_blocks.nextSetBit(i + 1)) {
+			block_buffer.clear().asCharBuffer().put(refcount_blocks[i]);
+			qcow2.writeFully(block_buffer, new RefcountTableEntry(refcount_table[i]).offset());
+		}
+		dirty_blocks.clear();
+
+		if (dirty_table) {
+			var table_buffer = ByteBuffer.allocateDirect(refcount_table.length * Long.BYTES);
+			table_buffer.asLongBuffer().put(refcount_table);
+			qcow2.writeFully(table_buffer, qcow2.header.refcount_table_offset());
+			dirty_table = false;
+		}
+		return true;
+	}
+
+	private char[] readRefcountBlock(long offset) throws IOException {
+
+		var block_buffer = ByteBuffer.allocate(qcow2.header.cluster_size());
+		readFully(block_buffer, offset);
+
+		var block = new char[block_entries()];
+		block_buffer.flip().asCharBuffer().get(block);
+		return block;
+	}
+
+	private long[] readRefcountTable() throws IOException {
+
+		log.debug("Loading refcount table ({} bytes) from offset: 0x{}",
+				qcow2.header.refcount_table_clusters() * qcow2.header.cluster_size(),
+				Long.toHexString(qcow2.header.refcount_table_offset()));
+
+		var table_buffer = ByteBuffer.allocate(qcow2.header.refcount_table_clusters() * qcow2.header.cluster_size());
+		readFully(table_buffer, qcow2.header.refcount_table_offset());
+
+		var table = new long[table_buffer.capacity() / Long.BYTES];
+		table_buffer.flip().asLongBuffer().get(table);
 		return table;
 	}
+
+	private void readFully(ByteBuffer buffer, long offset) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (qcow2.channel.read(buffer, offset + buffer.position()) == -1) {
+				throw new EOFException("Refcount structure at offset 0x" + Long.toHexString(offset) + " is truncated");
+			}
+		}
+	}
 }
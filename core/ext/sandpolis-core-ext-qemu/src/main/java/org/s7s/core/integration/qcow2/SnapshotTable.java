@@ -210,7 +210,8 @@ class SnapshotTable {
 							qcow2.header.backing_file_size(), qcow2.header.cluster_bits(), qcow2.header.size(),
 							qcow2.header.crypt_method(), qcow2.header.l1_size(), 0,
 							qcow2.header.refcount_table_offset(), qcow2.header.refcount_table_clusters(),
-							qcow2.header.nb_snapshots(), qcow2.header.snapshots_offset());
+							qcow2.header.nb_snapshots(), qcow2.header.snapshots_offset(),
+							qcow2.header.refcount_order());
 					break;
 				}
 			}
@@ -8,16 +8,328 @@
 //============================================================================//
 package org.s7s.core.integration.qcow2;
 
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.LongPredicate;
 
+import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class Qcow2Test {
 
+	/**
+	 * The virtual data stored at the given offset of a test image.
+	 */
+	static byte pattern(long offset) {
+		return (byte) ((offset ^ (offset >>> 9) ^ (offset >>> 17)) * 31);
+	}
+
+	/**
+	 * Write a qcow2 image without qemu-img. Allocated clusters contain
+	 * {@link #pattern(long)} and are laid out in virtual order, unless
+	 * {@code interleave} is set in which case neighbouring clusters are swapped so
+	 * few of them are contiguous in the image file.
+	 */
+	static void createSparse(Path file, long size, int cluster_bits, LongPredicate allocated, boolean interleave)
+			throws IOException {
+		int cluster_size = 1 << cluster_bits;
+		int l2_entries = cluster_size / Long.BYTES;
+		long clusters = (size + cluster_size - 1) / cluster_size;
+		int l1_size = (int) ((clusters + l2_entries - 1) / l2_entries);
+
+		long data_clusters = 0;
+		int l2_tables = 0;
+		for (int i = 0; i < l1_size; i++) {
+			long n = 0;
+			for (long c = (long) i * l2_entries; c < Math.min(clusters, (long) (i + 1) * l2_entries); c++) {
+				if (allocated.test(c))
+					n++;
+			}
+			data_clusters += n;
+			if (n != 0)
+				l2_tables++;
+		}
+
+		long l1_clusters = ((long) l1_size * Long.BYTES + cluster_size - 1) / cluster_size;
+		long refcount_blocks = 1;
+		long refcount_table_clusters = 1;
+		long total;
+		while (true) {
+			total = 1 + refcount_table_clusters + refcount_blocks + l1_clusters + l2_tables + data_clusters;
+			long blocks = (total + cluster_size / 2 - 1) / (cluster_size / 2);
+			long table_clusters = (blocks * Long.BYTES + cluster_size - 1) / cluster_size;
+			if (blocks == refcount_blocks && table_clusters == refcount_table_clusters)
+				break;
+			refcount_blocks = blocks;
+			refcount_table_clusters = table_clusters;
+		}
+
+		long refcount_table_offset = cluster_size;
+		long refcount_blocks_offset = refcount_table_offset + refcount_table_clusters * cluster_size;
+		long l1_table_offset = refcount_blocks_offset + refcount_blocks * cluster_size;
+		long next = l1_table_offset + l1_clusters * cluster_size;
+
+		try (var channel = FileChannel.open(file, CREATE_NEW, WRITE)) {
+			var header = ByteBuffer.allocate(112).putInt(0x514649fb).putInt(3).putLong(0).putInt(0).putInt(cluster_bits)
+					.putLong(size).putInt(0).putInt(l1_size).putLong(l1_table_offset).putLong(refcount_table_offset)
+					.putInt((int) refcount_table_clusters).putInt(0).putLong(0).putLong(0).putLong(0).putLong(0)
+					.putInt(4).putInt(104).putInt(0).putInt(0);
+			channel.write(header.flip(), 0);
+
+			var refcount_table = ByteBuffer.allocate((int) (refcount_table_clusters * cluster_size));
+			for (long i = 0; i < refcount_blocks; i++) {
+				refcount_table.putLong(refcount_blocks_offset + i * cluster_size);
+			}
+			channel.write(refcount_table.clear(), refcount_table_offset);
+
+			var refcounts = ByteBuffer.allocate((int) (refcount_blocks * cluster_size));
+			for (long i = 0; i < total; i++) {
+				refcounts.putShort((short) 1);
+			}
+			channel.write(refcounts.clear(), refcount_blocks_offset);
+
+			var l1_table = ByteBuffer.allocate((int) (l1_clusters * cluster_size));
+			var l2_table = ByteBuffer.allocate(cluster_size);
+			var data = ByteBuffer.allocate(cluster_size);
+			for (int i = 0; i < l1_size; i++) {
+				long first = (long) i * l2_entries;
+				long last = Math.min(clusters, first + l2_entries);
+
+				boolean any = false;
+				for (long c = first; c < last && !any; c++) {
+					any = allocated.test(c);
+				}
+				if (!any) {
+					l1_table.putLong(0);
+					continue;
+				}
+
+				long l2_table_offset = next;
+				next += cluster_size;
+				l1_table.putLong(l2_table_offset | (1L << 63));
+
+				// Assign host offsets in virtual order, then optionally swap neighbours
+				long[] offsets = new long[l2_entries];
+				long previous = -1;
+				for (long c = first; c < last; c++) {
+					if (!allocated.test(c))
+						continue;
+					offsets[(int) (c - first)] = next;
+					if (interleave && previous != -1) {
+						offsets[(int) (c - first)] = offsets[(int) (previous - first)];
+						offsets[(int) (previous - first)] = next;
+						previous = -1;
+					} else {
+						previous = c;
+					}
+					next += cluster_size;
+				}
+
+				l2_table.clear();
+				for (long c = first; c < first + l2_entries; c++) {
+					long offset = offsets[(int) (c - first)];
+					l2_table.putLong(offset == 0 ? 0 : offset | (1L << 63));
+					if (offset != 0) {
+						data.clear();
+						for (long v = c * cluster_size; v < (c + 1) * cluster_size; v++) {
+							data.put(pattern(v));
+						}
+						channel.write(data.flip(), offset);
+					}
+				}
+				channel.write(l2_table.flip(), l2_table_offset);
+			}
+			channel.write(l1_table.clear(), l1_table_offset);
+		}
+	}
+
+	/**
+	 * Check that the given buffer contains the virtual data of a test image.
+	 */
+	static void assertPattern(ByteBuffer buffer, long offset, LongPredicate allocated, int cluster_bits) {
+		for (int i = buffer.position(); i < buffer.limit(); i++) {
+			long v = offset + i - buffer.position();
+			byte expected = allocated.test(v >> cluster_bits) ? pattern(v) : 0;
+			if (buffer.get(i) != expected) {
+				fail("Mismatch at virtual offset: 0x" + Long.toHexString(v));
+			}
+		}
+	}
+
+	/**
+	 * Check an image's refcounts and flags from scratch like {@code qemu-img check}
+	 * would. Additional L1 tables (for example from snapshots) may be given.
+	 */
+	static void assertConsistent(Path file, long[]... snapshots) throws IOException {
+		try (var channel = FileChannel.open(file)) {
+			var header = ByteBuffer.allocate(104);
+			channel.read(header, 0);
+			int cluster_bits = header.getInt(20);
+			int cluster_size = 1 << cluster_bits;
+			int l1_size = header.getInt(36);
+			long l1_table_offset = header.getLong(40);
+			long refcount_table_offset = header.getLong(48);
+			int refcount_table_clusters = header.getInt(56);
+
+			long file_clusters = (channel.size() + cluster_size - 1) / cluster_size;
+			var expected = new int[(int) file_clusters];
+			BiConsumer<Long, Long> reference = (offset, length) -> {
+				assertEquals(0, offset % cluster_size, "Unaligned offset: 0x" + Long.toHexString(offset));
+				for (long c = offset / cluster_size; c < (offset + length + cluster_size - 1) / cluster_size; c++) {
+					assertTrue(c < expected.length, "Offset beyond end of file: 0x" + Long.toHexString(offset));
+					expected[(int) c]++;
+				}
+			};
+
+			reference.accept(0L, (long) cluster_size);
+			reference.accept(refcount_table_offset, (long) refcount_table_clusters * cluster_size);
+			var refcount_table = ByteBuffer.allocate(refcount_table_clusters * cluster_size);
+			channel.read(refcount_table, refcount_table_offset);
+			var refcounts = new int[expected.length];
+			for (int i = 0; i < refcount_table.capacity() / Long.BYTES; i++) {
+				long offset = refcount_table.getLong(i * Long.BYTES);
+				if (offset == 0)
+					continue;
+				reference.accept(offset, (long) cluster_size);
+				var block = ByteBuffer.allocate(cluster_size);
+				channel.read(block, offset);
+				for (int j = 0; j < cluster_size / 2; j++) {
+					long c = (long) i * (cluster_size / 2) + j;
+					int refcount = Short.toUnsignedInt(block.getShort(j * 2));
+					if (c < refcounts.length) {
+						refcounts[(int) c] = refcount;
+					} else {
+						assertEquals(0, refcount, "Refcount beyond end of file for cluster: " + c);
+					}
+				}
+			}
+
+			var l1_tables = new ArrayList<long[]>();
+			var l1_buffer = ByteBuffer.allocate(l1_size * Long.BYTES);
+			channel.read(l1_buffer, l1_table_offset);
+			var l1_table = new long[l1_size];
+			l1_buffer.flip().asLongBuffer().get(l1_table);
+			l1_tables.add(l1_table);
+			l1_tables.addAll(List.of(snapshots));
+			reference.accept(l1_table_offset, (long) l1_size * Long.BYTES);
+
+			var l2_tables = new HashMap<Long, long[]>();
+			for (var table : l1_tables) {
+				for (long l1_entry : table) {
+					long l2_offset = l1_entry & 0x00fffffffffffe00L;
+					if (l2_offset == 0)
+						continue;
+					reference.accept(l2_offset, (long) cluster_size);
+
+					var l2_table = l2_tables.computeIfAbsent(l2_offset, offset -> {
+						var buffer = ByteBuffer.allocate(cluster_size);
+						try {
+							channel.read(buffer, offset);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+						var entries = new long[cluster_size / Long.BYTES];
+						buffer.flip().asLongBuffer().get(entries);
+						return entries;
+					});
+					for (long l2_entry : l2_table) {
+						if ((l2_entry & (1L << 62)) != 0) {
+							// Compressed clusters reference every cluster their sectors touch
+							long offset = l2_entry & ((1L << (70 - cluster_bits)) - 1);
+							long sectors = ((l2_entry & ((1L << 62) - 1)) >>> (70 - cluster_bits)) + 1;
+							long start = offset & ~511L;
+							for (long c = start / cluster_size; c <= (start + sectors * 512 - 1) / cluster_size; c++) {
+								assertTrue(c < expected.length, "Offset beyond end of file: 0x" + Long.toHexString(offset));
+								expected[(int) c]++;
+							}
+							continue;
+						}
+						long offset = l2_entry & 0x00fffffffffffe00L;
+						if (offset != 0)
+							reference.accept(offset, (long) cluster_size);
+					}
+				}
+			}
+
+			for (int c = 0; c < expected.length; c++) {
+				assertEquals(expected[c], refcounts[c], "Refcount mismatch for cluster: " + c);
+			}
+
+			// The COPIED flag is set exactly when the refcount is one
+			for (long l1_entry : l1_table) {
+				long l2_offset = l1_entry & 0x00fffffffffffe00L;
+				if (l2_offset == 0)
+					continue;
+				assertEquals(refcounts[(int) (l2_offset / cluster_size)] == 1, l1_entry < 0,
+						"Wrong COPIED flag for L2 table: 0x" + Long.toHexString(l2_offset));
+				for (long l2_entry : l2_tables.get(l2_offset)) {
+					if ((l2_entry & (1L << 62)) != 0) {
+						assertTrue(l2_entry > 0, "COPIED flag set for compressed cluster");
+						continue;
+					}
+					long offset = l2_entry & 0x00fffffffffffe00L;
+					if (offset != 0)
+						assertEquals(refcounts[(int) (offset / cluster_size)] == 1, l2_entry < 0,
+								"Wrong COPIED flag for cluster: 0x" + Long.toHexString(offset));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Generate data that resembles a system disk: text, zeros and incompressible
+	 * regions in runs of whole clusters.
+	 */
+	static byte[] diskData(int size, int cluster_size, long seed) {
+		var words = new String[] { "usr", "lib", "share", "include", "config", "return", "static", "void", "int",
+				"the", "of", "and", "#define", "0x00", "error", "warning", "info", "debug", "\n", "    " };
+
+		var random = new Random(seed);
+		var data = new byte[size];
+		for (int cluster = 0; cluster < size / cluster_size; cluster++) {
+			int offset = cluster * cluster_size;
+			switch (cluster % 10) {
+			case 0, 1, 2, 3:
+				// Leave zeros
+				break;
+			case 4, 5:
+				var random_data = new byte[cluster_size];
+				random.nextBytes(random_data);
+				System.arraycopy(random_data, 0, data, offset, cluster_size);
+				break;
+			default:
+				var text = new StringBuilder();
+				while (text.length() < cluster_size) {
+					text.append(words[random.nextInt(words.length)]).append(' ');
+				}
+				System.arraycopy(text.toString().getBytes(), 0, data, offset, cluster_size);
+			}
+		}
+		return data;
+	}
+
 	@Test
 	void testHeader() throws Exception {
 		var qcow2 = new Qcow2(Paths.get("src/test/resources/empty_small.qcow2"));
@@ -47,4 +359,576 @@ class Qcow2Test {
 			assertArrayEquals(Files.readAllBytes(Paths.get("src/test/resources/small.txt")), out.toByteArray());
 		}
 	}
+
+	@Test
+	@DisplayName("Check that reads spanning many clusters return the right data")
+	void testReadSparse(@TempDir Path temp) throws Exception {
+		LongPredicate allocated = c -> (c / 5) % 3 != 0 && c % 11 != 0;
+		for (boolean interleave : new boolean[] { false, true }) {
+			var file = temp.resolve("sparse-" + interleave + ".qcow2");
+			createSparse(file, 16 * 1024 * 1024 + 1000, 12, allocated, interleave);
+
+			try (var qcow2 = new Qcow2(file)) {
+				var random = new Random(0);
+				var buffer = ByteBuffer.allocateDirect(1024 * 1024);
+				for (int i = 0; i < 200; i++) {
+					long offset = random.nextLong(qcow2.header.size());
+					buffer.clear().position(random.nextInt(100));
+					buffer.limit(buffer.position() + random.nextInt(buffer.capacity() - 100));
+
+					int start = buffer.position();
+					int read = qcow2.read(buffer, offset);
+					assertEquals(Math.min(buffer.limit() - start, qcow2.header.size() - offset), read);
+					assertEquals(start + read, buffer.position());
+					assertPattern(buffer.flip().position(start), offset, allocated, 12);
+				}
+
+				assertEquals(-1, qcow2.read(buffer.clear(), qcow2.header.size()));
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Check that concurrent reads with a small L2 cache return the right data")
+	void testReadConcurrent(@TempDir Path temp) throws Exception {
+		LongPredicate allocated = c -> c % 7 != 3;
+		var file = temp.resolve("sparse.qcow2");
+		createSparse(file, 32 * 1024 * 1024, 12, allocated, true);
+
+		try (var qcow2 = new Qcow2(file)) {
+			// Only a few of the 16 L2 tables fit in the cache
+			qcow2.cluster_table = new ClusterTable(qcow2, 4 * 4096);
+
+			var executor = Executors.newFixedThreadPool(8);
+			var futures = new Future<?>[8];
+			for (int t = 0; t < futures.length; t++) {
+				int seed = t;
+				futures[t] = executor.submit(() -> {
+					var random = new Random(seed);
+					var buffer = ByteBuffer.allocate(256 * 1024);
+					for (int i = 0; i < 200; i++) {
+						long offset = random.nextLong(qcow2.header.size());
+						buffer.clear().limit(random.nextInt(buffer.capacity()));
+						qcow2.read(buffer, offset);
+						assertPattern(buffer.flip(), offset, allocated, 12);
+					}
+					return null;
+				});
+			}
+			for (var future : futures) {
+				future.get();
+			}
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	@DisplayName("Check that repeated sequential reads load each L2 table once")
+	void testReadCache(@TempDir Path temp) throws Exception {
+		// Small clusters make metadata lookups dominate
+		LongPredicate allocated = c -> (c / 64) % 2 == 0;
+		var file = temp.resolve("sparse.qcow2");
+		createSparse(file, 32L * 1024 * 1024, 12, allocated, false);
+
+		try (var qcow2 = new Qcow2(file)) {
+			long l2_tables = Arrays.stream(qcow2.cluster_table.l1_table).filter(entry -> entry != 0).count();
+			var buffer = ByteBuffer.allocateDirect(1024 * 1024);
+
+			for (int pass = 0; pass < 3; pass++) {
+				long total = 0;
+				for (long offset = 0; offset < qcow2.header.size(); offset += buffer.capacity()) {
+					int read = qcow2.read(buffer.clear(), offset);
+					assertPattern(buffer.flip(), offset, allocated, 12);
+					total += read;
+				}
+
+				assertEquals(qcow2.header.size(), total);
+				assertEquals(l2_tables, qcow2.cluster_table.l2_reads.sum());
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Check that a new image is consistent")
+	void testCreate(@TempDir Path temp) throws Exception {
+		var file = temp.resolve("new.qcow2");
+		new Qcow2(file, 1024L * 1024 * 1024, 65536).close();
+		assertConsistent(file);
+
+		try (var qcow2 = new Qcow2(file)) {
+			assertEquals(1024L * 1024 * 1024, qcow2.header.size());
+			assertEquals(16, qcow2.header.cluster_bits());
+
+			var buffer = ByteBuffer.allocate(4096);
+			assertEquals(4096, qcow2.read(buffer, 12345));
+			assertArrayEquals(new byte[4096], buffer.array());
+		}
+	}
+
+	@Test
+	@DisplayName("Check that concurrent unaligned writes are stored correctly")
+	void testWriteConcurrent(@TempDir Path temp) throws Exception {
+		var file = temp.resolve("new.qcow2");
+		int size = 32 * 1024 * 1024;
+		var expected = new byte[size];
+
+		try (var qcow2 = new Qcow2(file, size, 4096)) {
+			var executor = Executors.newFixedThreadPool(8);
+			var futures = new Future<?>[8];
+			for (int t = 0; t < futures.length; t++) {
+				int thread = t;
+				futures[t] = executor.submit(() -> {
+					// Each thread owns an interleaved set of 1 MiB regions
+					var random = new Random(thread);
+					for (int i = 0; i < 200; i++) {
+						int region = (random.nextInt(32 / 8) * 8 + thread) * 1024 * 1024;
+						int offset = region + random.nextInt(1024 * 1024);
+						int length = random.nextInt(Math.min(64 * 1024, region + 1024 * 1024 - offset) + 1);
+
+						var data = new byte[length];
+						random.nextBytes(data);
+						synchronized (expected) {
+							System.arraycopy(data, 0, expected, offset, length);
+						}
+						assertEquals(length, qcow2.write(ByteBuffer.wrap(data), offset));
+					}
+					return null;
+				});
+			}
+			for (var future : futures) {
+				future.get();
+			}
+			executor.shutdown();
+
+			var buffer = ByteBuffer.allocate(size);
+			qcow2.read(buffer, 0);
+			assertArrayEquals(expected, buffer.array());
+		}
+
+		assertConsistent(file);
+		try (var qcow2 = new Qcow2(file)) {
+			var buffer = ByteBuffer.allocate(size);
+			qcow2.read(buffer, 0);
+			assertArrayEquals(expected, buffer.array());
+		}
+	}
+
+	@Test
+	@DisplayName("Check that the refcount table grows when needed")
+	void testWriteGrowRefcountTable(@TempDir Path temp) throws Exception {
+		// One refcount table cluster describes 8 MiB with 512 byte clusters
+		var file = temp.resolve("new.qcow2");
+		int size = 16 * 1024 * 1024;
+
+		try (var qcow2 = new Qcow2(file, size, 512)) {
+			var data = ByteBuffer.allocate(size);
+			for (int i = 0; i < size; i++) {
+				data.put(pattern(i));
+			}
+			qcow2.write(data.flip(), 0);
+			assertTrue(qcow2.header.refcount_table_clusters() > 1);
+		}
+
+		assertConsistent(file);
+		try (var qcow2 = new Qcow2(file)) {
+			assertTrue(qcow2.header.refcount_table_clusters() > 1);
+			var buffer = ByteBuffer.allocate(size);
+			qcow2.read(buffer, 0);
+			assertPattern(buffer.flip(), 0, c -> true, 9);
+		}
+	}
+
+	@Test
+	@DisplayName("Check that clusters shared with a snapshot are copied on write")
+	void testWriteCopyOnWrite(@TempDir Path temp) throws Exception {
+		var file = temp.resolve("new.qcow2");
+		int size = 4 * 1024 * 1024;
+		long[] snapshot;
+
+		try (var qcow2 = new Qcow2(file, size, 4096)) {
+			var data = ByteBuffer.allocate(size);
+			for (int i = 0; i < size; i++) {
+				data.put(pattern(i));
+			}
+			qcow2.write(data.flip(), 0);
+
+			// Share every cluster with a "snapshot" that keeps the current L1 table
+			qcow2.refcount_table.increment_all();
+			qcow2.flush();
+			snapshot = qcow2.cluster_table.l1_table.clone();
+
+			qcow2.write(ByteBuffer.wrap(new byte[100]), 5000);
+
+			var buffer = ByteBuffer.allocate(size);
+			qcow2.read(buffer, 0);
+			for (int i = 0; i < size; i++) {
+				assertEquals(i >= 5000 && i < 5100 ? 0 : pattern(i), buffer.get(i));
+			}
+		}
+
+		assertConsistent(file, snapshot);
+	}
+
+	@Test
+	@DisplayName("Check that images with other refcount widths are only opened for reading")
+	void testReadRefcountWidth(@TempDir Path temp) throws Exception {
+		var file = temp.resolve("new.qcow2");
+		int size = 1024 * 1024;
+
+		try (var qcow2 = new Qcow2(file, size, 4096)) {
+			var data = ByteBuffer.allocate(size);
+			for (int i = 0; i < size; i++) {
+				data.put(pattern(i));
+			}
+			qcow2.write(data.flip(), 0);
+		}
+
+		// Change the refcount order to 32 bit refcounts
+		try (var channel = FileChannel.open(file, WRITE)) {
+			channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, 5), 96);
+		}
+
+		assertThrows(IOException.class, () -> new Qcow2(file));
+		try (var qcow2 = new Qcow2(file, true)) {
+			assertEquals(32, qcow2.header.refcount_bits());
+			var buffer = ByteBuffer.allocate(size);
+			qcow2.read(buffer, 0);
+			assertPattern(buffer.flip(), 0, c -> true, 12);
+		}
+	}
+
+	@Test
+	@DisplayName("Check that freed clusters are reused after a flush")
+	void testWriteReuseClusters(@TempDir Path temp) throws Exception {
+		var file = temp.resolve("new.qcow2");
+
+		try (var qcow2 = new Qcow2(file, 1024 * 1024, 4096)) {
+			long offset = qcow2.refcount_table.allocate(4);
+			qcow2.writeFully(ByteBuffer.wrap(new byte[4 * 4096]).put(0, (byte) 1), offset);
+			qcow2.flush();
+
+			for (int i = 0; i < 4; i++) {
+				qcow2.refcount_table.update_refcount(offset + i * 4096, -1);
+			}
+
+			// The freed clusters may still be referenced on disk until the next flush
+			long end = qcow2.refcount_table.end();
+			assertEquals(end, qcow2.refcount_table.allocate(1));
+
+			qcow2.flush();
+			assertEquals(offset, qcow2.refcount_table.allocate(2));
+			assertEquals(1, qcow2.refcount_table.lookup_refcount(offset));
+
+			var buffer = ByteBuffer.allocate(4096);
+			qcow2.channel.read(buffer, offset);
+			assertArrayEquals(new byte[4096], buffer.array());
+
+			// Runs that are too short are skipped
+			assertEquals(end + 4096, qcow2.refcount_table.allocate(3));
+			assertEquals(offset + 2 * 4096, qcow2.refcount_table.allocate(2));
+
+			// Release everything so the image doesn't leak clusters
+			for (long cluster : new long[] { offset, offset + 4096, offset + 2 * 4096, offset + 3 * 4096, end,
+					end + 4096, end + 2 * 4096, end + 3 * 4096 }) {
+				qcow2.refcount_table.update_refcount(cluster, -1);
+			}
+		}
+
+		assertConsistent(file);
+	}
+
+	@Test
+	@DisplayName("Check that concurrent block streams are stored correctly")
+	void testWriteStreams(@TempDir Path temp) throws Exception {
+		var file = temp.resolve("new.qcow2");
+		long size = 16L * 1024 * 1024;
+		int block_size = 1024 * 1024;
+
+		try (var qcow2 = new Qcow2(file, size, 65536)) {
+			var block = ByteBuffer.allocateDirect(block_size);
+			new Random(0).ints(block_size / Integer.BYTES).forEach(block::putInt);
+
+			var executor = Executors.newFixedThreadPool(4);
+			var futures = new Future<?>[4];
+			for (int t = 0; t < futures.length; t++) {
+				int stream = t;
+				futures[t] = executor.submit(() -> {
+					for (long offset = stream * (long) block_size; offset < size; offset += 4L * block_size) {
+						qcow2.write(block.duplicate().clear(), offset);
+					}
+					return null;
+				});
+			}
+			for (var future : futures) {
+				future.get();
+			}
+			qcow2.flush();
+			executor.shutdown();
+
+			var buffer = ByteBuffer.allocateDirect(block_size);
+			for (long offset = 0; offset < size; offset += block_size) {
+				assertEquals(block_size, qcow2.read(buffer.clear(), offset));
+				assertEquals(block.clear(), buffer.flip());
+			}
+		}
+
+		// Every data cluster was allocated once
+		assertTrue(Files.size(file) < size + 16 * 65536, "Image has " + Files.size(file) + " bytes");
+		assertConsistent(file);
+	}
+
+	@Test
+	@DisplayName("Check that compressed clusters are written and read correctly")
+	void testWriteCompressed(@TempDir Path temp) throws Exception {
+		var file = temp.resolve("compressed.qcow2");
+		int cluster_size = 65536;
+		int size = 8 * 1024 * 1024;
+		var data = diskData(size, cluster_size, 0);
+
+		try (var qcow2 = new Qcow2(file, size, cluster_size)) {
+			try (var writer = qcow2.newCompressedWriter(4, 1024 * 1024)) {
+				for (int offset = 0; offset < size; offset += 4 * cluster_size) {
+					writer.write(ByteBuffer.wrap(data, offset, 4 * cluster_size), offset);
+				}
+				writer.close();
+
+				assertEquals(50, writer.compressedClusters());
+				assertEquals(26, writer.standardClusters());
+				assertEquals(52, writer.zeroClusters());
+			}
+
+			var buffer = ByteBuffer.allocate(size);
+			qcow2.read(buffer, 0);
+			assertArrayEquals(data, buffer.array());
+		}
+
+		// Zero clusters take no space and text compresses several times
+		assertTrue(Files.size(file) < size / 2, "Image is " + Files.size(file) + " bytes");
+		assertConsistent(file);
+
+		try (var qcow2 = new Qcow2(file)) {
+			var buffer = ByteBuffer.allocate(size);
+			qcow2.read(buffer, 0);
+			assertArrayEquals(data, buffer.array());
+
+			// Small reads within compressed clusters
+			var random = new Random(0);
+			for (int i = 0; i < 100; i++) {
+				int offset = random.nextInt(size);
+				int length = Math.min(random.nextInt(1000), size - offset);
+				buffer = ByteBuffer.allocate(length);
+				qcow2.read(buffer, offset);
+				assertArrayEquals(Arrays.copyOfRange(data, offset, offset + length), buffer.array());
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Check that compressed clusters are copied on write")
+	void testWriteCompressedOverwrite(@TempDir Path temp) throws Exception {
+		var file = temp.resolve("compressed.qcow2");
+		int cluster_size = 4096;
+		int size = 1024 * 1024;
+		var data = diskData(size, cluster_size, 1);
+		long[] snapshot;
+
+		try (var qcow2 = new Qcow2(file, size, cluster_size)) {
+			// Start with allocated clusters so zeros must be recorded explicitly
+			qcow2.write(ByteBuffer.wrap(diskData(size, cluster_size, 2)), 0);
+
+			try (var writer = qcow2.newCompressedWriter(2, 0)) {
+				writer.write(ByteBuffer.wrap(data), 0);
+				writer.close();
+				assertTrue(writer.zeroClusters() > 0);
+			}
+
+			qcow2.refcount_table.increment_all();
+			qcow2.flush();
+			snapshot = qcow2.cluster_table.l1_table.clone();
+
+			// Overwrite parts of every cluster
+			for (int offset = 100; offset < size; offset += cluster_size) {
+				Arrays.fill(data, offset, offset + 10, (byte) 1);
+				qcow2.write(ByteBuffer.wrap(data, offset, 10), offset);
+			}
+
+			var buffer = ByteBuffer.allocate(size);
+			qcow2.read(buffer, 0);
+			assertArrayEquals(data, buffer.array());
+		}
+
+		assertConsistent(file, snapshot);
+	}
+
+	@Test
+	@DisplayName("Check that copies share clusters and behave like memmove")
+	void testCopy(@TempDir Path temp) throws Exception {
+		var file = temp.resolve("copy.qcow2");
+		int size = 4 * 1024 * 1024;
+		int cluster_size = 4096;
+
+		var expected = diskData(size, cluster_size, 0);
+		try (var qcow2 = new Qcow2(file, size, cluster_size)) {
+			qcow2.write(ByteBuffer.wrap(expected, 0, size / 2), 0);
+			qcow2.flush();
+			long allocated = Files.size(file);
+
+			// Aligned copies reuse the clusters
+			qcow2.copy(0, size / 2, size / 2);
+			System.arraycopy(expected, 0, expected, size / 2, size / 2);
+			qcow2.flush();
+			assertTrue(Files.size(file) - allocated < 16 * cluster_size);
+
+			// Overlapping unaligned and aligned copies in both directions
+			long[][] copies = { { 1000, 300000, 5000 }, { 5000, 300000, 1000 }, { 8192, 1000000, 4096 * 10 },
+					{ 4096 * 10, 1000000, 8192 }, { 123, 4096 * 3, size - 4096 * 3 } };
+			for (long[] copy : copies) {
+				qcow2.copy(copy[0], copy[1], copy[2]);
+				System.arraycopy(expected, (int) copy[0], expected, (int) copy[2], (int) copy[1]);
+			}
+
+			// Writes to shared clusters don't affect the copies
+			qcow2.write(ByteBuffer.wrap(new byte[10000]), 20000);
+			Arrays.fill(expected, 20000, 30000, (byte) 0);
+
+			var buffer = ByteBuffer.allocate(size);
+			qcow2.read(buffer, 0);
+			assertArrayEquals(expected, buffer.array());
+		}
+
+		assertConsistent(file);
+	}
+
+	@Test
+	@DisplayName("Check that reads fall through a chain of backing files")
+	void testBackingChain(@TempDir Path temp) throws Exception {
+		int size = 2 * 1024 * 1024 + 1000;
+		int cluster_size = 4096;
+		var expected = new byte[size];
+		for (int i = 0; i < size; i++) {
+			expected[i] = pattern(i);
+		}
+
+		try (var qcow2 = new Qcow2(temp.resolve("0.qcow2"), size, cluster_size)) {
+			qcow2.write(ByteBuffer.wrap(expected), 0);
+		}
+
+		// Each layer overwrites some of the disk with unaligned and zero writes
+		var random = new Random(0);
+		for (int layer = 1; layer <= 4; layer++) {
+			try (var qcow2 = new Qcow2(temp.resolve(layer + ".qcow2"), temp.resolve((layer - 1) + ".qcow2"))) {
+				assertEquals(layer, qcow2.chain.length - 1);
+
+				for (int i = 0; i < 20; i++) {
+					int offset = random.nextInt(size);
+					var data = new byte[Math.min(size - offset, random.nextInt(3 * cluster_size))];
+					random.nextBytes(data);
+					qcow2.write(ByteBuffer.wrap(data), offset);
+					System.arraycopy(data, 0, expected, offset, data.length);
+				}
+
+				long cluster = random.nextInt(size / cluster_size);
+				qcow2.writeZeros(cluster);
+				Arrays.fill(expected, (int) cluster * cluster_size, (int) (cluster + 1) * cluster_size, (byte) 0);
+
+				var buffer = ByteBuffer.allocate(size);
+				qcow2.read(buffer, 0);
+				assertArrayEquals(expected, buffer.array());
+			}
+			assertConsistent(temp.resolve(layer + ".qcow2"));
+		}
+
+		try (var qcow2 = new Qcow2(temp.resolve("4.qcow2"), true)) {
+			assertEquals(temp.resolve("3.qcow2"), qcow2.backing().file);
+			assertThrows(IOException.class, () -> qcow2.write(ByteBuffer.allocate(1), 0));
+
+			// Read in small pieces so the resolved L2 tables are reused
+			var buffer = ByteBuffer.allocate(size);
+			for (int offset = 0; offset < size; offset += 1000) {
+				qcow2.read(buffer.limit(Math.min(size, offset + 1000)), offset);
+			}
+			assertArrayEquals(expected, buffer.array());
+		}
+	}
+
+	@Test
+	@DisplayName("Check that committing an overlay preserves its contents")
+	void testBackingCommit(@TempDir Path temp) throws Exception {
+		int size = 1024 * 1024;
+		var base = temp.resolve("base.qcow2");
+		var overlay = temp.resolve("overlay.qcow2");
+		var child = temp.resolve("child.qcow2");
+
+		var data = diskData(size, 4096, 0);
+		try (var qcow2 = new Qcow2(base, size, 4096)) {
+			qcow2.write(ByteBuffer.wrap(data), 0);
+		}
+
+		var expected = data.clone();
+		try (var qcow2 = new Qcow2(overlay, base)) {
+			var random = new Random(1);
+			for (int i = 0; i < 50; i++) {
+				int offset = random.nextInt(size - 10000);
+				var write = new byte[random.nextInt(10000)];
+				random.nextBytes(write);
+				qcow2.write(ByteBuffer.wrap(write), offset);
+				System.arraycopy(write, 0, expected, offset, write.length);
+			}
+			qcow2.writeZeros(7);
+			Arrays.fill(expected, 7 * 4096, 8 * 4096, (byte) 0);
+		}
+		try (var qcow2 = new Qcow2(child, overlay)) {
+			qcow2.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 100);
+		}
+
+		try (var qcow2 = new Qcow2(overlay)) {
+			qcow2.commit();
+		}
+		assertConsistent(base);
+
+		try (var qcow2 = new Qcow2(base, true)) {
+			var buffer = ByteBuffer.allocate(size);
+			qcow2.read(buffer, 0);
+			assertArrayEquals(expected, buffer.array());
+		}
+
+		// The committed base can replace the overlay under its child
+		Files.move(base, overlay, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		expected[100] = 1;
+		expected[101] = 2;
+		expected[102] = 3;
+		try (var qcow2 = new Qcow2(child, true)) {
+			assertEquals(2, qcow2.chain.length);
+
+			var buffer = ByteBuffer.allocate(size);
+			qcow2.read(buffer, 0);
+			assertArrayEquals(expected, buffer.array());
+		}
+	}
+
+	@Test
+	@DisplayName("Check the storage savings of compressed writes")
+	void testWriteCompressedSavings(@TempDir Path temp) throws Exception {
+		var file = temp.resolve("compressed.qcow2");
+		int cluster_size = 65536;
+		int size = 16 * 1024 * 1024;
+		var data = diskData(size, cluster_size, 3);
+
+		try (var qcow2 = new Qcow2(file, size, cluster_size)) {
+			try (var writer = qcow2.newCompressedWriter(4, 4 * 1024 * 1024)) {
+				for (int offset = 0; offset < size; offset += 1024 * 1024) {
+					writer.write(ByteBuffer.wrap(data, offset, 1024 * 1024), offset);
+				}
+			}
+
+			var buffer = ByteBuffer.allocate(size);
+			qcow2.read(buffer, 0);
+			assertArrayEquals(data, buffer.array());
+		}
+
+		// Zero clusters take no space and text clusters compress well
+		assertTrue(Files.size(file) < size / 2, "Image has " + Files.size(file) + " bytes");
+		assertConsistent(file);
+	}
 }
@@ -12,7 +12,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
-import java.util.UUID;
+import java.nio.charset.StandardCharsets;
 import java.util.zip.CRC32;
 
 import org.slf4j.Logger;
@@ -92,110 +92,78 @@ public record GptHeader(
 
 	private static final Logger log = LoggerFactory.getLogger(GptHeader.class);
 
+	/**
+	 * The size of the header fields in bytes.
+	 */
+	public static final int SIZE = 92;
+
 	public static GptHeader read(FileChannel channel) throws IOException {
 
-		var signature = ByteBuffer.allocate(Long.BYTES);
-		if (channel.read(signature) != Long.BYTES)
-			throw new IOException("Failed to read: signature");
-
-		var revision = ByteBuffer.allocate(Integer.BYTES);
-		if (channel.read(revision) != Integer.BYTES)
-			throw new IOException("Failed to read: revision");
-
-		var header_size = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-		if (channel.read(header_size) != Integer.BYTES)
-			throw new IOException("Failed to read: header_size");
-
-		var header_crc = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-		if (channel.read(header_crc) != Integer.BYTES)
-			throw new IOException("Failed to read: header_crc");
-
-		var reserved = ByteBuffer.allocate(Integer.BYTES);
-		if (channel.read(reserved) != Integer.BYTES)
-			throw new IOException("Failed to read: reserved");
-
-		var primary_lba = ByteBuffer.allocate(Long.BYTES);
-		if (channel.read(primary_lba) != Long.BYTES)
-			throw new IOException("Failed to read: primary_lba");
-
-		var backup_lba = ByteBuffer.allocate(Long.BYTES);
-		if (channel.read(backup_lba) != Long.BYTES)
-			throw new IOException("Failed to read: backup_lba");
-
-		var first_usable_lba = ByteBuffer.allocate(Long.BYTES);
-		if (channel.read(first_usable_lba) != Long.BYTES)
-			throw new IOException("Failed to read: first_usable_lba");
-
-		var last_usable_lba = ByteBuffer.allocate(Long.BYTES);
-		if (channel.read(last_usable_lba) != Long.BYTES)
-			throw new IOException("Failed to read: last_usable_lba");
-
-		var guid = ByteBuffer.allocate(16);
-		if (channel.read(guid) != 16)
-			throw new IOException("Failed to read: guid");
-
-		var first_entry_lba = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-		if (channel.read(first_entry_lba) != Long.BYTES)
-			throw new IOException("Failed to read: first_entry_lba");
-
-		var number_of_entries = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-		if (channel.read(number_of_entries) != Integer.BYTES)
-			throw new IOException("Failed to read: number_of_entries");
-
-		var size_of_entry = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-		if (channel.read(size_of_entry) != Integer.BYTES)
-			throw new IOException("Failed to read: size_of_entry");
-
-		var entries_crc = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-		if (channel.read(entries_crc) != Integer.BYTES)
-			throw new IOException("Failed to read: entries_crc");
-
-		var header = new GptHeader( //
-				new String(signature.array()), //
-				revision.getInt(0), //
-				header_size.getInt(0), //
-				header_crc.getInt(0), //
-				reserved.getInt(0), //
-				primary_lba.getLong(0), //
-				backup_lba.getLong(0), //
-				first_usable_lba.getLong(0), //
-				last_usable_lba.getLong(0), //
-				new UUID(guid.getLong(0), guid.getLong(1)).toString(), //
-				first_entry_lba.getLong(0), //
-				number_of_entries.getInt(0), //
-				size_of_entry.getInt(0), //
-				entries_crc.getInt(0));
+		var buffer = ByteBuffer.allocate(SIZE);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0)
+				throw new IOException("Failed to read: header");
+		}
+
+		var header = parse(buffer.flip());
 
 		// Validate signature
 		if (!header.signature().equals("EFI PART")) {
-			throw new RuntimeException();
+			throw new IOException("Invalid signature");
 		}
 
 		// Check CRC32
-		var crc = new CRC32();
-		crc.update(signature);
-		crc.update(revision);
-		crc.update(header_size);
-		crc.update(0);
-		crc.update(0);
-		crc.update(0);
-		crc.update(0);
-		crc.update(reserved);
-		crc.update(primary_lba);
-		crc.update(backup_lba);
-		crc.update(first_usable_lba);
-		crc.update(last_usable_lba);
-		crc.update(guid);
-		crc.update(first_entry_lba);
-		crc.update(number_of_entries);
-		crc.update(size_of_entry);
-		crc.update(entries_crc);
-
-		if (crc.getValue() != header.header_crc()) {
+		if (crc(buffer.rewind(), SIZE) != header.header_crc()) {
 			log.info("Detected corrupt GPT header");
 		}
 
 		log.trace("Parsed GPT header: {}", header);
 		return header;
 	}
+
+	/**
+	 * Parse a header without validating it.
+	 *
+	 * @param buffer A buffer positioned at the header which is left unchanged
+	 * @return The header
+	 */
+	public static GptHeader parse(ByteBuffer buffer) {
+		var data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+
+		var signature = new byte[Long.BYTES];
+		data.get(0, signature);
+
+		return new GptHeader( //
+				new String(signature, StandardCharsets.US_ASCII), //
+				data.getInt(8), //
+				data.getInt(12), //
+				data.getInt(16), //
+				data.getInt(20), //
+				data.getLong(24), //
+				data.getLong(32), //
+				data.getLong(40), //
+				data.getLong(48), //
+				GptPartition.guid(data, 56).toString(), //
+				data.getLong(72), //
+				data.getInt(80), //
+				data.getInt(84), //
+				data.getInt(88));
+	}
+
+	/**
+	 * Compute the CRC32 of a header with its CRC field treated as zero.
+	 *
+	 * @param buffer A buffer positioned at the header which is left unchanged
+	 * @param size   The number of bytes covered by the CRC
+	 * @return The CRC
+	 */
+	static int crc(ByteBuffer buffer, int size) {
+		var data = buffer.slice();
+
+		var crc = new CRC32();
+		crc.update(data.slice(0, 16));
+		crc.update(new byte[4]);
+		crc.update(data.slice(20, size - 20));
+		return (int) crc.getValue();
+	}
 }
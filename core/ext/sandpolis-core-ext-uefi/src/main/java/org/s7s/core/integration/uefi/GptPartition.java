@@ -52,41 +52,88 @@ public record GptPartition(
 
 	private static final Logger log = LoggerFactory.getLogger(GptPartition.class);
 
+	/**
+	 * The size of the entry fields in bytes.
+	 */
+	public static final int SIZE = 128;
+
+	/**
+	 * The type GUID of unused entries.
+	 */
+	public static final String UNUSED = new UUID(0, 0).toString();
+
 	public static GptPartition read(FileChannel channel) throws IOException {
 
-		var type_guid = ByteBuffer.allocate(16);
-		if (channel.read(type_guid) != 16)
-			throw new IOException("Failed to read: type_guid");
+		var buffer = ByteBuffer.allocate(SIZE);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0)
+				throw new IOException("Failed to read: partition");
+		}
+
+		var partition = parse(buffer.flip());
 
-		var unique_guid = ByteBuffer.allocate(16);
-		if (channel.read(unique_guid) != 16)
-			throw new IOException("Failed to read: unique_guid");
+		log.trace("Parsed GPT partition: {}", partition);
+		return partition;
+	}
 
-		var first_lba = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-		if (channel.read(first_lba) != Long.BYTES)
-			throw new IOException("Failed to read: first_lba");
+	/**
+	 * Parse a partition entry.
+	 *
+	 * @param buffer A buffer positioned at the entry which is left unchanged
+	 * @return The entry
+	 */
+	public static GptPartition parse(ByteBuffer buffer) {
+		var data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+
+		// The name is NUL-terminated unless it fills the field
+		int length = 0;
+		while (length < 72 && data.getShort(56 + length) != 0) {
+			length += 2;
+		}
+		var name = new byte[length];
+		data.get(56, name);
+
+		return new GptPartition( //
+				guid(data, 0).toString(), //
+				guid(data, 16).toString(), //
+				data.getLong(32), //
+				data.getLong(40), //
+				data.getLong(48), //
+				new String(name, StandardCharsets.UTF_16LE));
+	}
 
-		var last_lba = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-		if (channel.read(last_lba) != Long.BYTES)
-			throw new IOException("Failed to read: last_lba");
+	/**
+	 * Decode a GUID whose first three fields are little-endian.
+	 */
+	static UUID guid(ByteBuffer data, int offset) {
+		var le = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		var be = data.duplicate().order(ByteOrder.BIG_ENDIAN);
 
-		var attributes = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-		if (channel.read(attributes) != Long.BYTES)
-			throw new IOException("Failed to read: attributes");
+		long msb = (Integer.toUnsignedLong(le.getInt(offset)) << 32)
+				| (Short.toUnsignedLong(le.getShort(offset + 4)) << 16) | Short.toUnsignedLong(le.getShort(offset + 6));
+		return new UUID(msb, be.getLong(offset + 8));
+	}
 
-		var partition_name = ByteBuffer.allocate(72).order(ByteOrder.LITTLE_ENDIAN);
-		if (channel.read(partition_name) != 72)
-			throw new IOException("Failed to read: partition_name");
+	/**
+	 * @return Whether the entry describes a partition
+	 */
+	public boolean isUsed() {
+		return !type_guid.equals(UNUSED);
+	}
 
-		var partition = new GptPartition( //
-				new UUID(type_guid.getLong(0), type_guid.getLong(1)).toString(), //
-				new UUID(unique_guid.getLong(0), unique_guid.getLong(1)).toString(), //
-				first_lba.getLong(0), //
-				last_lba.getLong(0), //
-				attributes.getLong(0), //
-				new String(partition_name.array(), StandardCharsets.UTF_16LE));
+	/**
+	 * @param sectorSize The logical sector size of the disk
+	 * @return The partition's offset in bytes
+	 */
+	public long offset(int sectorSize) {
+		return first_lba * sectorSize;
+	}
 
-		log.trace("Parsed GPT partition: {}", partition);
-		return partition;
+	/**
+	 * @param sectorSize The logical sector size of the disk
+	 * @return The partition's size in bytes
+	 */
+	public long size(int sectorSize) {
+		return (last_lba - first_lba + 1) * sectorSize;
 	}
 }
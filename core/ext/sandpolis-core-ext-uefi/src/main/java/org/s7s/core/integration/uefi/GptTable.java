@@ -0,0 +1,330 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.integration.uefi;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A GUID partition table read from a block device or a disk image.
+ *
+ * <p>
+ * The header and the partition entry array are each fetched with a single
+ * mapping (or a single read when the disk isn't a regular file) and parsed in
+ * place. Both CRCs are computed over the whole region at once. If the primary
+ * table is corrupt, the backup at the end of the disk is used instead.
+ */
+public final class GptTable {
+
+	private static final Logger log = LoggerFactory.getLogger(GptTable.class);
+
+	/**
+	 * The logical sector sizes that are tried in order.
+	 */
+	private static final int[] SECTOR_SIZES = { 512, 4096 };
+
+	/**
+	 * The maximum size of a partition entry array in bytes.
+	 */
+	private static final int MAX_ENTRIES_SIZE = 1024 * 1024;
+
+	private static final long SIGNATURE = 0x5452415020494645L;
+
+	/**
+	 * Reads data from a disk at an offset.
+	 */
+	@FunctionalInterface
+	public interface Source {
+
+		/**
+		 * @param buffer The destination buffer
+		 * @param offset The offset on the disk
+		 * @return The number of bytes read or -1 at the end of the disk
+		 */
+		int read(ByteBuffer buffer, long offset) throws IOException;
+	}
+
+	/**
+	 * A range of the disk in bytes.
+	 */
+	public static record Extent(long offset, long length) {
+
+		public long end() {
+			return offset + length;
+		}
+	}
+
+	/**
+	 * Provides a region of the disk as a buffer.
+	 */
+	@FunctionalInterface
+	private interface Region {
+		ByteBuffer get(long offset, int length) throws IOException;
+	}
+
+	/**
+	 * Read the partition table of a block device or a raw disk image.
+	 */
+	public static GptTable read(Path disk) throws IOException {
+		try (var channel = FileChannel.open(disk, READ)) {
+
+			// Block devices report a size of zero and can't be mapped
+			long size = channel.size();
+			return parse((offset, length) -> {
+				if (offset + length <= size) {
+					return channel.map(MapMode.READ_ONLY, offset, length);
+				}
+				return fetch(channel::read, offset, length);
+			}, size);
+		}
+	}
+
+	/**
+	 * Read the partition table of a disk that's accessed through a
+	 * {@link Source}, for example a disk image in another format.
+	 *
+	 * @param disk The disk
+	 * @param size The size of the disk in bytes or 0 if unknown
+	 */
+	public static GptTable read(Source disk, long size) throws IOException {
+		return parse((offset, length) -> fetch(disk, offset, length), size);
+	}
+
+	private static ByteBuffer fetch(Source disk, long offset, int length) throws IOException {
+		var buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (disk.read(buffer, offset + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of disk at offset: " + (offset + buffer.position()));
+			}
+		}
+		return buffer.flip();
+	}
+
+	private static GptTable parse(Region disk, long size) throws IOException {
+		for (int sectorSize : SECTOR_SIZES) {
+			if (size != 0 && size < 3L * sectorSize) {
+				break;
+			}
+
+			var primary = disk.get(sectorSize, sectorSize);
+			if (primary.order(ByteOrder.LITTLE_ENDIAN).getLong(0) != SIGNATURE) {
+				continue;
+			}
+
+			var header = GptHeader.parse(primary);
+			try {
+				return new GptTable(header, sectorSize, entries(disk, primary, header, sectorSize, size), true);
+			} catch (IOException e) {
+				log.info("Detected corrupt primary GPT: {}", e.getMessage());
+			}
+
+			// The primary header can't be trusted to locate the backup
+			long backupLba = size != 0 ? size / sectorSize - 1 : header.backup_lba();
+
+			var backup = disk.get(backupLba * sectorSize, sectorSize);
+			if (backup.order(ByteOrder.LITTLE_ENDIAN).getLong(0) != SIGNATURE) {
+				throw new IOException("Corrupt GPT without a backup");
+			}
+
+			header = GptHeader.parse(backup);
+			return new GptTable(header, sectorSize, entries(disk, backup, header, sectorSize, size), false);
+		}
+
+		throw new IOException("No GPT found");
+	}
+
+	/**
+	 * Validate a header and read its partition entries.
+	 *
+	 * @return The used partition entries
+	 */
+	private static List<GptPartition> entries(Region disk, ByteBuffer buffer, GptHeader header, int sectorSize,
+			long size) throws IOException {
+
+		if (header.header_size() < GptHeader.SIZE || header.header_size() > sectorSize) {
+			throw new IOException("Invalid header size: " + header.header_size());
+		}
+		if (GptHeader.crc(buffer, header.header_size()) != header.header_crc()) {
+			throw new IOException("Invalid header CRC");
+		}
+
+		if (header.size_of_entry() < GptPartition.SIZE || header.size_of_entry() % 8 != 0
+				|| header.number_of_entries() <= 0
+				|| (long) header.number_of_entries() * header.size_of_entry() > MAX_ENTRIES_SIZE) {
+			throw new IOException("Invalid partition entry array");
+		}
+		if (header.first_usable_lba() > header.last_usable_lba() + 1
+				|| (size != 0 && (header.last_usable_lba() + 1) * sectorSize > size)) {
+			throw new IOException("Invalid usable range");
+		}
+
+		int length = header.number_of_entries() * header.size_of_entry();
+		var entries = disk.get(header.first_entry_lba() * sectorSize, length);
+
+		var crc = new CRC32();
+		crc.update(entries.duplicate());
+		if ((int) crc.getValue() != header.entries_crc()) {
+			throw new IOException("Invalid partition entry array CRC");
+		}
+
+		var partitions = new ArrayList<GptPartition>();
+		for (int offset = 0; offset < length; offset += header.size_of_entry()) {
+			var partition = GptPartition.parse(entries.slice(offset, GptPartition.SIZE));
+			if (!partition.isUsed()) {
+				continue;
+			}
+
+			if (partition.first_lba() < header.first_usable_lba() || partition.last_lba() > header.last_usable_lba()
+					|| partition.first_lba() > partition.last_lba()) {
+				throw new IOException("Partition outside of the usable range: " + partition.unique_guid());
+			}
+			partitions.add(partition);
+		}
+		return partitions;
+	}
+
+	private final GptHeader header;
+
+	private final int sectorSize;
+
+	private final List<GptPartition> partitions;
+
+	private final boolean primary;
+
+	private GptTable(GptHeader header, int sectorSize, List<GptPartition> partitions, boolean primary) {
+		this.header = header;
+		this.sectorSize = sectorSize;
+		this.partitions = List.copyOf(partitions);
+		this.primary = primary;
+	}
+
+	/**
+	 * @return The header that the table was read from
+	 */
+	public GptHeader header() {
+		return header;
+	}
+
+	/**
+	 * @return The logical sector size in bytes
+	 */
+	public int sectorSize() {
+		return sectorSize;
+	}
+
+	/**
+	 * @return Whether the table was read from the primary header rather than the
+	 *         backup
+	 */
+	public boolean isPrimary() {
+		return primary;
+	}
+
+	/**
+	 * @return The used partition entries in the order of the table
+	 */
+	public List<GptPartition> partitions() {
+		return partitions;
+	}
+
+	/**
+	 * Find a partition by its unique GUID.
+	 *
+	 * @param uuid The partition's unique GUID
+	 * @return The partition
+	 */
+	public Optional<GptPartition> find(String uuid) {
+		return partitions.stream().filter(partition -> partition.unique_guid().equalsIgnoreCase(uuid)).findFirst();
+	}
+
+	/**
+	 * @return The partition's range of the disk
+	 */
+	public Extent extent(GptPartition partition) {
+		return new Extent(partition.offset(sectorSize), partition.size(sectorSize));
+	}
+
+	/**
+	 * Get the ranges of the disk that are in use, which are the partitions and
+	 * both copies of the partition table. Everything else is unallocated and can
+	 * be skipped when copying the disk.
+	 *
+	 * @return Sorted ranges that don't overlap or touch
+	 */
+	public List<Extent> extents() {
+		var extents = new ArrayList<Extent>();
+
+		// The protective MBR and the primary table
+		extents.add(new Extent(0, header.first_usable_lba() * sectorSize));
+
+		for (var partition : partitions) {
+			extents.add(extent(partition));
+		}
+
+		// The backup table
+		long end = Math.max(header.primary_lba(), header.backup_lba()) + 1;
+		extents.add(new Extent((header.last_usable_lba() + 1) * sectorSize,
+				(end - header.last_usable_lba() - 1) * sectorSize));
+
+		extents.sort(Comparator.comparingLong(Extent::offset));
+
+		var merged = new ArrayList<Extent>();
+		for (var extent : extents) {
+			if (extent.length() <= 0) {
+				continue;
+			}
+
+			if (!merged.isEmpty() && merged.get(merged.size() - 1).end() >= extent.offset()) {
+				var last = merged.remove(merged.size() - 1);
+				merged.add(new Extent(last.offset(), Math.max(last.end(), extent.end()) - last.offset()));
+			} else {
+				merged.add(extent);
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Get a view of a partition so it can be read like a disk of its own.
+	 *
+	 * @param disk      The disk that contains the table
+	 * @param partition The partition
+	 * @return A source whose offsets are relative to the start of the partition
+	 */
+	public Source source(Source disk, GptPartition partition) {
+		var extent = extent(partition);
+		return (buffer, offset) -> {
+			if (offset >= extent.length()) {
+				return -1;
+			}
+
+			int limit = buffer.limit();
+			buffer.limit((int) Math.min(limit, buffer.position() + extent.length() - offset));
+			try {
+				return disk.read(buffer, extent.offset() + offset);
+			} finally {
+				buffer.limit(limit);
+			}
+		};
+	}
+}
@@ -0,0 +1,163 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.integration.uefi;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GptTableTest {
+
+	private static final int SECTOR_SIZE = 512;
+
+	/**
+	 * The on-disk form of the EFI system partition type GUID.
+	 */
+	private static final byte[] ESP_TYPE = HexFormat.of().parseHex("28732AC11FF8D211BA4B00A0C93EC93B");
+
+	private static final byte[] DATA_TYPE = HexFormat.of().parseHex("A2A0D0EBE5B9334487C068B6B72699C7");
+
+	private static GptTable.Source source(byte[] data) {
+		return (buffer, offset) -> {
+			if (offset >= data.length) {
+				return -1;
+			}
+			int length = (int) Math.min(buffer.remaining(), data.length - offset);
+			buffer.put(data, (int) offset, length);
+			return length;
+		};
+	}
+
+	/**
+	 * Create a disk image with a primary and backup table.
+	 *
+	 * @param sectors    The size of the disk in sectors
+	 * @param partitions The first and last LBA of each partition
+	 */
+	private static byte[] disk(int sectors, long[]... partitions) {
+		var disk = ByteBuffer.allocate(sectors * SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+		var entries = ByteBuffer.allocate(128 * 128).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < partitions.length; i++) {
+			entries.position(i * 128);
+			entries.put(i == 0 ? ESP_TYPE : DATA_TYPE);
+			for (int j = 0; j < 16; j++) {
+				entries.put((byte) (i * 16 + j));
+			}
+			entries.putLong(partitions[i][0]).putLong(partitions[i][1]).putLong(0);
+			entries.put(("part" + i).getBytes(StandardCharsets.UTF_16LE));
+		}
+		var crc = new CRC32();
+		crc.update(entries.array());
+		int entriesCrc = (int) crc.getValue();
+
+		long last = sectors - 1;
+		header(disk, 1, last, 2, entriesCrc, sectors);
+		header(disk, last, 1, last - 32, entriesCrc, sectors);
+		disk.put(2 * SECTOR_SIZE, entries.array());
+		disk.put((int) (last - 32) * SECTOR_SIZE, entries.array());
+
+		// The protective MBR's signature
+		disk.putShort(510, (short) 0xAA55);
+		return disk.array();
+	}
+
+	private static void header(ByteBuffer disk, long lba, long alternate, long entries, int entriesCrc,
+			int sectors) {
+		var header = ByteBuffer.allocate(92).order(ByteOrder.LITTLE_ENDIAN);
+		header.put("EFI PART".getBytes(StandardCharsets.US_ASCII));
+		header.putInt(0x00010000).putInt(92).putInt(0).putInt(0);
+		header.putLong(lba).putLong(alternate).putLong(34).putLong(sectors - 34);
+		header.put(new byte[16]);
+		header.putLong(entries).putInt(128).putInt(128).putInt(entriesCrc);
+
+		var crc = new CRC32();
+		crc.update(header.array());
+		header.putInt(16, (int) crc.getValue());
+
+		disk.put((int) lba * SECTOR_SIZE, header.array());
+	}
+
+	@Test
+	@DisplayName("Check that partitions are read from a disk image")
+	void read_1(@TempDir Path temp) throws IOException {
+		var image = temp.resolve("disk.img");
+		Files.write(image, disk(4096, new long[] { 2048, 2559 }, new long[] { 2560, 4000 }));
+
+		var table = GptTable.read(image);
+		assertTrue(table.isPrimary());
+		assertEquals(SECTOR_SIZE, table.sectorSize());
+		assertEquals(2, table.partitions().size());
+
+		var esp = table.partitions().get(0);
+		assertEquals("c12a7328-f81f-11d2-ba4b-00a0c93ec93b", esp.type_guid());
+		assertEquals("03020100-0504-0706-0809-0a0b0c0d0e0f", esp.unique_guid());
+		assertEquals("part0", esp.partition_name());
+		assertEquals(2048 * SECTOR_SIZE, esp.offset(SECTOR_SIZE));
+		assertEquals(512 * SECTOR_SIZE, esp.size(SECTOR_SIZE));
+
+		assertEquals(table.partitions().get(1), table.find("13121110-1514-1716-1819-1A1B1C1D1E1F").get());
+	}
+
+	@Test
+	@DisplayName("Check that the backup table is used when the primary is corrupt")
+	void read_2(@TempDir Path temp) throws IOException {
+		byte[] data = disk(4096, new long[] { 2048, 4000 });
+
+		// Corrupt the primary entry array
+		data[2 * SECTOR_SIZE + 40]++;
+
+		var table = GptTable.read(source(data), data.length);
+		assertFalse(table.isPrimary());
+		assertEquals(2048, table.partitions().get(0).first_lba());
+
+		// Without the backup, the table can't be read
+		Arrays.fill(data, (4096 - 1) * SECTOR_SIZE, 4096 * SECTOR_SIZE, (byte) 0);
+		var image = temp.resolve("disk.img");
+		Files.write(image, data);
+		assertThrows(IOException.class, () -> GptTable.read(image));
+	}
+
+	@Test
+	@DisplayName("Check that extents cover the partitions and tables")
+	void extents_1() throws IOException {
+		byte[] data = disk(4096, new long[] { 2048, 2559 }, new long[] { 2560, 3000 }, new long[] { 3500, 3999 });
+		var table = GptTable.read(source(data), data.length);
+		assertEquals(List.of( //
+				new GptTable.Extent(0, 34 * SECTOR_SIZE), //
+				new GptTable.Extent(2048 * SECTOR_SIZE, (3001 - 2048) * SECTOR_SIZE), //
+				new GptTable.Extent(3500 * SECTOR_SIZE, 500 * SECTOR_SIZE), //
+				new GptTable.Extent(4063 * SECTOR_SIZE, 33 * SECTOR_SIZE)), table.extents());
+
+		// A partition can be read on its own
+		var partition = table.source(source(data), table.partitions().get(1));
+		var buffer = ByteBuffer.allocate(1024 * SECTOR_SIZE);
+		assertEquals(441 * SECTOR_SIZE, partition.read(buffer, 0));
+		assertEquals(-1, partition.read(buffer.clear(), 441 * SECTOR_SIZE));
+		assertArrayEquals(Arrays.copyOfRange(data, 2560 * SECTOR_SIZE, 2560 * SECTOR_SIZE + 100),
+				Arrays.copyOf(buffer.array(), 100));
+	}
+}
@@ -0,0 +1,80 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A bounded pool of equally sized direct {@link ByteBuffer}s. Direct buffers
+ * are expensive to allocate and aren't promptly reclaimed by the garbage
+ * collector, so I/O paths that need many of them should borrow from a pool
+ * instead.
+ *
+ * <p>
+ * Buffers are allocated lazily up to the pool's capacity. Once every buffer is
+ * in use, {@link #acquire()} blocks until one is released, which bounds the
+ * memory used by the pool's consumers.
+ */
+public final class S7SBufferPool {
+
+	private final int bufferSize;
+
+	private final BlockingQueue<ByteBuffer> available;
+
+	private final Semaphore permits;
+
+	public S7SBufferPool(int bufferSize, int capacity) {
+		checkArgument(bufferSize > 0);
+		checkArgument(capacity > 0);
+
+		this.bufferSize = bufferSize;
+		this.available = new ArrayBlockingQueue<>(capacity);
+		this.permits = new Semaphore(capacity);
+	}
+
+	/**
+	 * Borrow a cleared buffer from the pool, blocking if none are available.
+	 *
+	 * @return A buffer which must be returned with {@link #release(ByteBuffer)}
+	 * @throws InterruptedException
+	 */
+	public ByteBuffer acquire() throws InterruptedException {
+		permits.acquire();
+
+		var buffer = available.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+		}
+		return buffer.clear();
+	}
+
+	/**
+	 * Return a buffer to the pool.
+	 *
+	 * @param buffer A buffer previously obtained from {@link #acquire()}
+	 */
+	public void release(ByteBuffer buffer) {
+		checkArgument(buffer.isDirect() && buffer.capacity() == bufferSize);
+
+		available.offer(buffer);
+		permits.release();
+	}
+
+	/**
+	 * @return The size of each buffer in bytes
+	 */
+	public int bufferSize() {
+		return bufferSize;
+	}
+}
@@ -80,6 +80,42 @@ public record S7SIPAddress(byte[] asBytes, String asString, int asInt) {
 		return asBytes.length == 16;
 	}
 
+	/**
+	 * Determine whether the address is publicly routable. Private, shared,
+	 * loopback, link-local, multicast, documentation, and reserved addresses are
+	 * not.
+	 *
+	 * @return Whether the address is public
+	 */
+	public boolean isPublic() {
+		InetAddress address;
+		try {
+			address = InetAddress.getByAddress(asBytes);
+		} catch (UnknownHostException e) {
+			return false;
+		}
+
+		if (address.isAnyLocalAddress() || address.isLoopbackAddress() || address.isLinkLocalAddress()
+				|| address.isSiteLocalAddress() || address.isMulticastAddress()) {
+			return false;
+		}
+
+		int first = Byte.toUnsignedInt(asBytes[0]);
+		int second = Byte.toUnsignedInt(asBytes[1]);
+		if (isIPv4()) {
+			return first != 0 // This network
+					&& !(first == 100 && (second & 0xC0) == 64) // Shared address space
+					&& !(first == 192 && second == 0 && asBytes[2] == 2) // Documentation
+					&& !(first == 198 && (second & 0xFE) == 18) // Benchmarking
+					&& !(first == 198 && second == 51 && asBytes[2] == 100) // Documentation
+					&& !(first == 203 && second == 0 && asBytes[2] == 113) // Documentation
+					&& first < 240; // Reserved
+		} else {
+			return (first & 0xFE) != 0xFC // Unique local
+					&& !(first == 0x20 && second == 0x01 && asBytes[2] == 0x0D && asBytes[3] == (byte) 0xB8); // Documentation
+		}
+	}
+
 	public boolean isPrivateIPv4() {
 		if (!isIPv4()) {
 			throw new UnsupportedOperationException("Only supported on IPv4 addresses");
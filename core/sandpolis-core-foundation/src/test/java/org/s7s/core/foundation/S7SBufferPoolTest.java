@@ -0,0 +1,61 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.foundation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class S7SBufferPoolTest {
+
+	@Test
+	@DisplayName("Check that released buffers are reused")
+	void testReuse() throws Exception {
+		var pool = new S7SBufferPool(4096, 2);
+
+		var buffer = pool.acquire();
+		assertTrue(buffer.isDirect());
+		assertEquals(4096, buffer.remaining());
+
+		buffer.putInt(5);
+		pool.release(buffer);
+
+		var reused = pool.acquire();
+		assertSame(buffer, reused);
+		assertEquals(0, reused.position());
+	}
+
+	@Test
+	@DisplayName("Check that acquire blocks when the pool is exhausted")
+	void testBounded() throws Exception {
+		var pool = new S7SBufferPool(16, 1);
+
+		var buffer = pool.acquire();
+		var blocked = CompletableFuture.supplyAsync(() -> {
+			try {
+				return pool.acquire();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		});
+
+		Thread.sleep(200);
+		assertFalse(blocked.isDone());
+
+		pool.release(buffer);
+		assertSame(buffer, blocked.get(5, TimeUnit.SECONDS));
+	}
+}
@@ -10,7 +10,9 @@ package org.s7s.core.foundation;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
@@ -41,6 +43,29 @@ class S7SIPAddressTest {
 		assertEquals("0.0.0.12", S7SIPAddress.of(12).asString());
 	}
 
+	@Test
+	@DisplayName("Check whether addresses are public")
+	void checkPublicAddresses() {
+		assertTrue(S7SIPAddress.of("74.192.155.168").isPublic());
+		assertTrue(S7SIPAddress.of("100.128.0.1").isPublic());
+		assertTrue(S7SIPAddress.of("2606:4700::1111").isPublic());
+
+		assertFalse(S7SIPAddress.of("0.0.0.0").isPublic());
+		assertFalse(S7SIPAddress.of("10.1.2.3").isPublic());
+		assertFalse(S7SIPAddress.of("100.64.0.1").isPublic());
+		assertFalse(S7SIPAddress.of("127.0.0.1").isPublic());
+		assertFalse(S7SIPAddress.of("169.254.1.1").isPublic());
+		assertFalse(S7SIPAddress.of("172.16.0.1").isPublic());
+		assertFalse(S7SIPAddress.of("192.168.1.1").isPublic());
+		assertFalse(S7SIPAddress.of("198.19.0.1").isPublic());
+		assertFalse(S7SIPAddress.of("224.0.0.1").isPublic());
+		assertFalse(S7SIPAddress.of("255.255.255.255").isPublic());
+		assertFalse(S7SIPAddress.of("::1").isPublic());
+		assertFalse(S7SIPAddress.of("fe80::1").isPublic());
+		assertFalse(S7SIPAddress.of("fd00::1").isPublic());
+		assertFalse(S7SIPAddress.of("2001:db8::1").isPublic());
+	}
+
 	@Test
 	@DisplayName("Compute network boundary addresses")
 	void computeNetworkBoundaries() {
@@ -38,6 +38,10 @@ dependencies {
 	api("io.netty:netty-handler:4.1.70.Final")
 	api("io.netty:netty-resolver-dns:4.1.70.Final")
 
+	// Native transports are discovered at runtime by ChannelUtil
+	runtimeOnly("io.netty:netty-transport-native-epoll:4.1.70.Final:linux-x86_64")
+	runtimeOnly("io.netty:netty-transport-native-epoll:4.1.70.Final:linux-aarch_64")
+
 	// https://github.com/FasterXML/jackson-databind
 	api("com.fasterxml.jackson.core:jackson-databind:2.12.4")
 
@@ -49,3 +53,21 @@ dependencies {
 		api(project(":core:protocol"))
 	}
 }
+
+// Throughput benchmarks are kept out of the unit tests
+val benchmark by sourceSets.creating {
+	compileClasspath += sourceSets.main.get().output + sourceSets.test.get().output
+	runtimeClasspath += sourceSets.main.get().output + sourceSets.test.get().output
+}
+
+configurations["benchmarkImplementation"].extendsFrom(configurations.testImplementation.get())
+configurations["benchmarkRuntimeOnly"].extendsFrom(configurations.testRuntimeOnly.get())
+
+tasks.register<Test>("benchmark") {
+	description = "Runs the throughput benchmarks."
+	group = "verification"
+
+	testClassesDirs = benchmark.output.classesDirs
+	classpath = benchmark.runtimeClasspath
+	useJUnitPlatform()
+}
@@ -0,0 +1,83 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.instance.channel;
+
+import static org.s7s.core.instance.channel.SessionResumptionTest.handshake;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import org.s7s.core.instance.channel.SessionResumptionTest.CountingTrustManagerFactory;
+import org.s7s.core.instance.channel.SessionResumptionTest.Echo;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+
+class SessionResumptionBenchmark {
+
+	private static final int HANDSHAKES = 200;
+
+	private static long handshakes(EventLoopGroup group, SslContext context, InetSocketAddress server,
+			boolean resumable) throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < HANDSHAKES; i++) {
+			handshake(group, context, server, resumable);
+		}
+		return System.nanoTime() - start;
+	}
+
+	@Test
+	@DisplayName("Measure the time of full and resumed handshakes")
+	void resume_1() throws Exception {
+		EventLoopGroup group = new NioEventLoopGroup(2);
+
+		var serverContext = new ChannelStruct(config -> {
+			config.serverTlsSelfSigned();
+		}).sslBuilder.build();
+
+		var trust = new CountingTrustManagerFactory();
+		var clientContext = new ChannelStruct(config -> {
+			config.sslBuilder = SslContextBuilder.forClient().trustManager(trust).protocols("TLSv1.3");
+		}).sslBuilder.build();
+
+		var server = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class)
+				.childHandler(new ChannelInitializer<Channel>() {
+					@Override
+					protected void initChannel(Channel ch) {
+						ch.pipeline().addLast(serverContext.newHandler(ch.alloc()), new Echo());
+					}
+				}).bind("127.0.0.1", 0).sync().channel();
+		var address = (InetSocketAddress) server.localAddress();
+
+		// Warm up both paths
+		handshakes(group, clientContext, address, false);
+		handshakes(group, clientContext, address, true);
+
+		long full = handshakes(group, clientContext, address, false);
+
+		trust.verifications.set(0);
+		long resumed = handshakes(group, clientContext, address, true);
+
+		System.out.printf("%d full handshakes in %d ms, %d resumed handshakes in %d ms (%d full)%n", HANDSHAKES,
+				TimeUnit.NANOSECONDS.toMillis(full), HANDSHAKES, TimeUnit.NANOSECONDS.toMillis(resumed),
+				trust.verifications.get());
+
+		server.close().sync();
+		group.shutdownGracefully();
+	}
+}
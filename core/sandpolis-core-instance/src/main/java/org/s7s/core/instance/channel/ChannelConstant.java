@@ -11,6 +11,8 @@ package org.s7s.core.instance.channel;
 import org.s7s.core.foundation.Instance.InstanceType;
 import org.s7s.core.instance.connection.Connection;
 
+import java.net.InetSocketAddress;
+
 import io.netty.channel.Channel;
 import io.netty.util.AttributeKey;
 import io.netty.util.concurrent.Promise;
@@ -41,6 +43,12 @@ public final class ChannelConstant {
 	 */
 	public static final AttributeKey<Connection> SOCK = AttributeKey.valueOf("sock");
 
+	/**
+	 * The server that an outgoing connection is for. TLS sessions are cached and
+	 * resumed by this identity.
+	 */
+	public static final AttributeKey<InetSocketAddress> TLS_PEER = AttributeKey.valueOf("tls_peer");
+
 	private ChannelConstant() {
 	}
 }
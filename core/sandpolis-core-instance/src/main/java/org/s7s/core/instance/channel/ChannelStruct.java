@@ -34,6 +34,23 @@ public final class ChannelStruct {
 
 	public SslContextBuilder sslBuilder;
 
+	/**
+	 * Identifies the client TLS configuration that was selected by one of the
+	 * {@code clientTls} methods. Connections to the same server that have the
+	 * same configuration can share a TLS context and its session cache.
+	 */
+	public String clientTls;
+
+	/**
+	 * The maximum number of TLS sessions that are cached for resumption.
+	 */
+	public long sessionCacheSize = 4096;
+
+	/**
+	 * The number of seconds that a cached TLS session may be resumed.
+	 */
+	public long sessionTimeout = 7200;
+
 	public void serverTlsSelfSigned() {
 		sslBuilder = SslContextBuilder
 				.forServer(S7SCertificate.getDefaultKey(), S7SCertificate.getDefaultCert().certificate())
@@ -49,12 +66,14 @@ public final class ChannelStruct {
 	}
 
 	public void clientTlsInsecure() {
+		clientTls = "insecure";
 		sslBuilder = SslContextBuilder.forClient() //
 				.trustManager(InsecureTrustManagerFactory.INSTANCE) //
 				.protocols("TLSv1.3");
 	}
 
 	public void clientTlsVerifyCert() {
+		clientTls = "verify";
 		try {
 			sslBuilder = SslContextBuilder.forClient() //
 					.trustManager(S7SCertificate.getServerRoot().certificate()) //
@@ -66,5 +85,9 @@ public final class ChannelStruct {
 
 	public ChannelStruct(Consumer<ChannelStruct> configurator) {
 		configurator.accept(this);
+
+		if (sslBuilder != null) {
+			sslBuilder.sessionCacheSize(sessionCacheSize).sessionTimeout(sessionTimeout);
+		}
 	}
 }
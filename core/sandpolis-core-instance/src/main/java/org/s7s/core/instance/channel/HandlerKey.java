@@ -12,6 +12,7 @@ import org.s7s.core.instance.session.AbstractSessionHandler;
 import org.s7s.core.instance.exelet.ExeletHandler;
 import org.s7s.core.instance.handler.ManagementHandler;
 import org.s7s.core.instance.handler.ResponseHandler;
+import org.s7s.core.instance.handler.RetryAfterHandler;
 import org.s7s.core.instance.handler.ShortcutFrameEncoder;
 import org.s7s.core.instance.stream.InboundStreamAdapter;
 
@@ -36,6 +37,7 @@ public final class HandlerKey<E extends ChannelHandler> {
 	public static final HandlerKey<ProtobufDecoder> PROTO_DECODER = new HandlerKey<>("ProtoDecoder");
 	public static final HandlerKey<ProtobufEncoder> PROTO_ENCODER = new HandlerKey<>("ProtoEncoder");
 	public static final HandlerKey<ResponseHandler> RESPONSE = new HandlerKey<>("ResponseHandler");
+	public static final HandlerKey<RetryAfterHandler> RETRY_AFTER = new HandlerKey<>("RetryAfterHandler");
 	public static final HandlerKey<InboundStreamAdapter> STREAM = new HandlerKey<>("StreamAdapter");
 	public static final HandlerKey<SslHandler> TLS = new HandlerKey<>("TlsHandler");
 	public static final HandlerKey<ChannelTrafficShapingHandler> TRAFFIC = new HandlerKey<>("TrafficHandler");
@@ -17,6 +17,7 @@ import static org.s7s.core.instance.channel.HandlerKey.MANAGEMENT;
 import static org.s7s.core.instance.channel.HandlerKey.PROTO_DECODER;
 import static org.s7s.core.instance.channel.HandlerKey.PROTO_ENCODER;
 import static org.s7s.core.instance.channel.HandlerKey.RESPONSE;
+import static org.s7s.core.instance.channel.HandlerKey.RETRY_AFTER;
 import static org.s7s.core.instance.channel.HandlerKey.SESSION;
 import static org.s7s.core.instance.channel.HandlerKey.TLS;
 import static org.s7s.core.instance.channel.HandlerKey.TRAFFIC;
@@ -35,6 +36,7 @@ import org.s7s.core.instance.connection.Connection;
 import org.s7s.core.instance.exelet.ExeletHandler;
 import org.s7s.core.instance.handler.ManagementHandler;
 import org.s7s.core.instance.handler.ResponseHandler;
+import org.s7s.core.instance.handler.RetryAfterHandler;
 import org.s7s.core.instance.session.SessionRequestHandler;
 
 import io.netty.channel.Channel;
@@ -52,6 +54,10 @@ import io.netty.handler.traffic.ChannelTrafficShapingHandler;
  * {@link ClientChannelInitializer} configures a {@link Channel} for use in a
  * connection to a server.
  *
+ * <p>
+ * The initializer's TLS context caches sessions by server, so reusing an
+ * initializer for reconnections allows them to skip the full handshake.
+ *
  * @since 5.0.0
  */
 public class ClientChannelInitializer extends ChannelInitializer<Channel> {
@@ -65,8 +71,10 @@ public class ClientChannelInitializer extends ChannelInitializer<Channel> {
 	private final SslContext sslCtx;
 
 	public ClientChannelInitializer(Consumer<ChannelStruct> configurator) {
-		var config = new ChannelStruct(configurator);
+		this(new ChannelStruct(configurator));
+	}
 
+	public ClientChannelInitializer(ChannelStruct config) {
 		if (config.sslBuilder != null) {
 			try {
 				sslCtx = config.sslBuilder.build();
@@ -87,8 +95,17 @@ public class ClientChannelInitializer extends ChannelInitializer<Channel> {
 
 		p.addLast(TRAFFIC.next(p), new ChannelTrafficShapingHandler(InstanceContext.TRAFFIC_INTERVAL.get()));
 
-		if (sslCtx != null)
-			p.addLast(TLS.next(p), sslCtx.newHandler(ch.alloc()));
+		// A busy server may answer with a plaintext hint instead of a handshake
+		p.addLast(RETRY_AFTER.next(p), new RetryAfterHandler());
+
+		if (sslCtx != null) {
+			// Sessions can only be resumed when the engine knows which server it's for
+			var peer = ch.attr(ChannelConstant.TLS_PEER).get();
+			if (peer != null)
+				p.addLast(TLS.next(p), sslCtx.newHandler(ch.alloc(), peer.getHostString(), peer.getPort()));
+			else
+				p.addLast(TLS.next(p), sslCtx.newHandler(ch.alloc()));
+		}
 
 		if (InstanceContext.LOG_TRAFFIC_RAW.get())
 			p.addLast(LOG_RAW.next(p), new LoggingHandler(Connection.class));
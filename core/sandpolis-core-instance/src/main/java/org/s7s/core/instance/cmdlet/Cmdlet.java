@@ -33,7 +33,7 @@ public abstract class Cmdlet<E extends Cmdlet<E>> {
 	/**
 	 * The target SID. Defaults to the default server SID.
 	 */
-	private Integer sid = NetworkStore.getPreferredServer().orElse(0);
+	protected Integer sid = NetworkStore.getPreferredServer().orElse(0);
 
 	/**
 	 * The target sock which will be used to send and receive messages. Defaults to
@@ -10,9 +10,11 @@ package org.s7s.core.instance.connection;
 
 import static org.s7s.core.instance.thread.ThreadStore.ThreadStore;
 
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -20,6 +22,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.s7s.core.protocol.Channel.ChannelTransportProtocol;
+import org.s7s.core.instance.channel.ChannelConstant;
+import org.s7s.core.instance.handler.RetryAfterHandler.RetryAfterException;
 import org.s7s.core.instance.util.ChannelUtil;
 
 import io.netty.bootstrap.Bootstrap;
@@ -33,6 +37,12 @@ import io.netty.util.concurrent.EventExecutor;
  * ease up on a host that is consistently refusing connections (exponential
  * cooldown).
  *
+ * <p>
+ * Each cooldown is extended by a random fraction of itself so that instances
+ * which lose their connections at the same time don't all reconnect at the
+ * same time. A busy server may also ask for a minimum cooldown with a
+ * retry-after hint.
+ *
  * @since 0.1.0
  */
 public final class ConnectionLoop implements Runnable {
@@ -67,6 +77,12 @@ public final class ConnectionLoop implements Runnable {
 		 */
 		public int iterationLimit = 0;
 
+		/**
+		 * The maximum fraction of the cooldown that is randomly added to it. A value
+		 * of 0 disables jitter.
+		 */
+		public double jitter = 0.5;
+
 		/**
 		 * A set of targets that will be tried sequentially.
 		 */
@@ -101,6 +117,10 @@ public final class ConnectionLoop implements Runnable {
 				throw new RuntimeException("Invalid cooldown: " + cooldown);
 			}
 
+			if (jitter < 0 || jitter > 1) {
+				throw new RuntimeException("Invalid jitter: " + jitter);
+			}
+
 			if (iterationLimit < 0) {
 				throw new RuntimeException("Invalid iterationLimit: " + iterationLimit);
 			}
@@ -142,6 +162,13 @@ public final class ConnectionLoop implements Runnable {
 
 	private final int iterationLimit;
 
+	private final double jitter;
+
+	/**
+	 * The largest retry-after hint that was received since the last cooldown.
+	 */
+	private int retryAfter;
+
 	private final List<Target> targets;
 
 	public ConnectionLoop(Consumer<ConfigStruct> configurator) {
@@ -153,6 +180,7 @@ public final class ConnectionLoop implements Runnable {
 		this.cooldownConstant = config.cooldownConstant;
 		this.cooldownLimit = config.cooldownLimit;
 		this.iterationLimit = config.iterationLimit;
+		this.jitter = config.jitter;
 
 		// Set channel options
 		bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, config.timeout);
@@ -161,9 +189,9 @@ public final class ConnectionLoop implements Runnable {
 			bootstrap.group(ThreadStore.get("net.connection.outgoing"));
 		}
 
-		// Set default channel factory
+		// Set default channel factory which must match the group's transport
 		if (bootstrap.config().channelFactory() == null) {
-			bootstrap.channel(ChannelUtil.getChannelType(ChannelTransportProtocol.TCP));
+			bootstrap.channel(ChannelUtil.getChannelType(ChannelTransportProtocol.TCP, bootstrap.config().group()));
 		}
 
 		// Build a SockFuture without a ChannelFuture
@@ -200,20 +228,27 @@ public final class ConnectionLoop implements Runnable {
 			while (iteration < iterationLimit || iterationLimit == 0) {
 
 				if (iteration > 0) {
-					log.trace("Waiting {} ms before next connection attempt", cooldown);
-					Thread.sleep(cooldown);
+					int delay = nextDelay();
+					log.trace("Waiting {} ms before next connection attempt", delay);
+					Thread.sleep(delay);
 				}
 
 				for (var target : targets) {
 
 					log.debug("Attempting connection to {} on port {}", target.address(), target.port());
-					var connect = new ConnectionFuture(
-							bootstrap.remoteAddress(target.address(), target.port()).connect()).await();
+					var connect = new ConnectionFuture(bootstrap.remoteAddress(target.address(), target.port())
+							// Resume the TLS session from a previous connection to the target
+							.attr(ChannelConstant.TLS_PEER,
+									InetSocketAddress.createUnresolved(target.address(), target.port()))
+							.connect()).await();
 
 					if (connect.isSuccess()) {
 						log.debug("Connection attempt succeeded");
 						future.setSuccess(connect.get());
 						return;
+					} else if (connect.cause() instanceof RetryAfterException hint) {
+						log.debug("Connection attempt deferred by server for {} ms", hint.delay());
+						retryAfter = Math.max(retryAfter, hint.delay());
 					} else {
 						log.debug("Connection attempt failed");
 					}
@@ -232,6 +267,18 @@ public final class ConnectionLoop implements Runnable {
 		}
 	}
 
+	/**
+	 * Compute the time to wait before the next round of connection attempts.
+	 *
+	 * @return The delay in milliseconds
+	 */
+	private int nextDelay() {
+		int delay = Math.max(cooldown, retryAfter);
+		retryAfter = 0;
+
+		return delay + (int) (ThreadLocalRandom.current().nextDouble() * jitter * delay);
+	}
+
 	/**
 	 * Begin the connection process.
 	 *
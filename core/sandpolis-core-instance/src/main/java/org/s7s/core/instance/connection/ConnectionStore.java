@@ -10,7 +10,10 @@ package org.s7s.core.instance.connection;
 
 import static org.s7s.core.instance.thread.ThreadStore.ThreadStore;
 
+import java.net.InetSocketAddress;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 import org.slf4j.Logger;
@@ -20,14 +23,17 @@ import org.s7s.core.instance.state.InstanceOids.ProfileOid.ConnectionOid;
 import org.s7s.core.instance.state.st.STDocument;
 import org.s7s.core.instance.store.ConfigurableStore;
 import org.s7s.core.instance.store.STCollectionStore;
+import org.s7s.core.instance.channel.ChannelConstant;
 import org.s7s.core.instance.channel.ChannelStruct;
 import org.s7s.core.instance.channel.client.ClientChannelInitializer;
 import org.s7s.core.instance.connection.ConnectionStore.ConnectionStoreConfig;
 import org.s7s.core.instance.network.NetworkStore;
 import org.s7s.core.instance.util.ChannelUtil;
+import org.s7s.core.protocol.Channel.ChannelTransportProtocol;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
 
 /**
  * {@link ConnectionStore} manages connections between the local instance and a
@@ -54,6 +60,20 @@ public final class ConnectionStore extends STCollectionStore<Connection>
 
 	public static final Logger log = LoggerFactory.getLogger(ConnectionStore.class);
 
+	/**
+	 * A server and the client TLS configuration that's used to connect to it.
+	 */
+	private static final record ServerIdentity(String address, int port, ChannelTransportProtocol transport,
+			String tls) {
+	}
+
+	/**
+	 * Initializers that are reused for every connection to the same server. Each
+	 * one owns a TLS context whose session cache allows reconnections to resume
+	 * the previous session instead of performing a full handshake.
+	 */
+	private final Map<ServerIdentity, ClientChannelInitializer> initializers = new ConcurrentHashMap<>();
+
 	public ConnectionStore() {
 		super(log, Connection::new);
 	}
@@ -70,6 +90,10 @@ public final class ConnectionStore extends STCollectionStore<Connection>
 		if (bootstrap.config().group() == null)
 			bootstrap.group(ThreadStore.get("net.connection.outgoing"));
 
+		// The channel must belong to the same transport as the group
+		if (bootstrap.config().channelFactory() == null)
+			bootstrap.channel(ChannelUtil.getChannelType(ChannelTransportProtocol.TCP, bootstrap.config().group()));
+
 		return new ConnectionFuture(bootstrap.connect());
 	}
 
@@ -107,11 +131,23 @@ public final class ConnectionStore extends STCollectionStore<Connection>
 	public ConnectionFuture connect(String address, int port, Consumer<ChannelStruct> configurator) {
 		var config = new ChannelStruct(configurator);
 
+		ClientChannelInitializer initializer;
+		if (config.sslBuilder != null && config.clientTls == null) {
+			// A custom TLS configuration can't be compared with a cached one
+			initializer = new ClientChannelInitializer(config);
+		} else {
+			initializer = initializers.computeIfAbsent(
+					new ServerIdentity(address, port, config.transport, config.clientTls),
+					identity -> new ClientChannelInitializer(config));
+		}
+
+		EventLoopGroup group = ThreadStore.get("net.connection.outgoing");
 		return connect(new Bootstrap() //
 				.remoteAddress(address, port) //
-				.channel(ChannelUtil.getChannelType(config.transport)) //
-				// TODO Pass struct instead of configurator
-				.handler(new ClientChannelInitializer(configurator)));
+				.attr(ChannelConstant.TLS_PEER, InetSocketAddress.createUnresolved(address, port)) //
+				.group(group) //
+				.channel(ChannelUtil.getChannelType(config.transport, group)) //
+				.handler(initializer));
 	}
 
 	public Connection create(Channel channel) {
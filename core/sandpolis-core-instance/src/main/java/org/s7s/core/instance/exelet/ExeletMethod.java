@@ -12,6 +12,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
+import java.util.concurrent.CompletionStage;
 import java.util.function.Consumer;
 
 import org.slf4j.Logger;
@@ -161,6 +162,52 @@ public class ExeletMethod {
 			};
 		}
 
+		// TYPE 5
+		else if (CompletionStage.class.isAssignableFrom(method.getReturnType()) && method.getParameterCount() == 2
+				&& method.getParameterTypes()[0] == ExeletContext.class
+				&& MessageLite.class.isAssignableFrom(method.getParameterTypes()[1])) {
+
+			handler = context -> {
+				// Access control
+				if (!context.connector.get(ConnectionOid.AUTHENTICATED).asBoolean() && metadata.auth()) {
+					return;
+				}
+
+				CompletionStage<?> stage;
+				try {
+					stage = (CompletionStage<?>) handle.invoke(context,
+							S7SMsg.of(context.request).unpack(method.getParameterTypes()[1]));
+				} catch (Throwable e) {
+					log.error("Failed to handle message", e);
+					// TODO error outcome
+					return;
+				}
+
+				// The response is sent from whichever thread completes the stage
+				stage.whenComplete((rs, e) -> {
+					if (e != null) {
+						log.error("Failed to handle message", e);
+						// TODO error outcome
+						return;
+					}
+
+					if (rs instanceof MessageLiteOrBuilder m) {
+						context.connector.send(S7SMsg.of(context.request).pack(m));
+					} else if (rs instanceof Enum<?> m) {
+						context.connector.send(S7SMsg.of(context.request).pack(m));
+					}
+
+					if (context.deferAction != null) {
+						try {
+							context.deferAction.run();
+						} catch (Exception x) {
+							log.error("Failed to run deferred action", x);
+						}
+					}
+				});
+			};
+		}
+
 		// Unknown format
 		else
 			throw new IllegalArgumentException("Unknown handler format for method: " + method.getName());
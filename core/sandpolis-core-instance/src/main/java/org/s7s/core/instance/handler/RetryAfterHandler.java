@@ -0,0 +1,106 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.instance.handler;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.instance.channel.ChannelConstant;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+/**
+ * A handler that recognizes a retry-after hint which a busy server sends in
+ * place of its handshake. The hint fails the channel's handshake future with a
+ * {@link RetryAfterException}. Otherwise, the handler removes itself as soon as
+ * the first bytes rule out a hint.<br>
+ * <br>
+ * Note: This handler must precede the TLS handler because hints are never
+ * encrypted.
+ */
+public class RetryAfterHandler extends ByteToMessageDecoder {
+
+	private static final Logger log = LoggerFactory.getLogger(RetryAfterHandler.class);
+
+	/**
+	 * The hint's prefix. It can't be confused with a TLS record or a protobuf
+	 * frame because the second byte would be an invalid wire type.
+	 */
+	private static final byte[] MAGIC = { 'S', '7', 'S', 'R' };
+
+	/**
+	 * The length of a hint: the prefix followed by the delay in milliseconds.
+	 */
+	private static final int LENGTH = MAGIC.length + Integer.BYTES;
+
+	/**
+	 * Indicates that the server refused a connection because it's too busy.
+	 */
+	public static final class RetryAfterException extends Exception {
+
+		private static final long serialVersionUID = -4426019366317473542L;
+
+		private final int delay;
+
+		public RetryAfterException(int delay) {
+			super("Server requested a delay of " + delay + " ms");
+			this.delay = delay;
+		}
+
+		/**
+		 * @return The minimum amount of time to wait before reconnecting in
+		 *         milliseconds
+		 */
+		public int delay() {
+			return delay;
+		}
+	}
+
+	/**
+	 * Encode a retry-after hint.
+	 *
+	 * @param alloc The allocator
+	 * @param delay The delay in milliseconds
+	 * @return The hint
+	 */
+	public static ByteBuf encode(ByteBufAllocator alloc, int delay) {
+		return alloc.buffer(LENGTH).writeBytes(MAGIC).writeInt(delay);
+	}
+
+	@Override
+	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+		int available = Math.min(in.readableBytes(), MAGIC.length);
+		for (int i = 0; i < available; i++) {
+			if (in.getByte(in.readerIndex() + i) != MAGIC[i]) {
+				// Any buffered bytes are passed along when the handler is removed
+				ctx.pipeline().remove(this);
+				return;
+			}
+		}
+
+		if (in.readableBytes() < LENGTH) {
+			return;
+		}
+
+		in.skipBytes(MAGIC.length);
+		var cause = new RetryAfterException(Math.max(0, in.readInt()));
+		log.debug("Received retry-after hint from: {} ({} ms)", ctx.channel().remoteAddress(), cause.delay());
+
+		var handshake_future = ctx.channel().attr(ChannelConstant.HANDSHAKE_FUTURE).get();
+		if (handshake_future != null) {
+			handshake_future.tryFailure(cause);
+		}
+		ctx.close();
+	}
+}
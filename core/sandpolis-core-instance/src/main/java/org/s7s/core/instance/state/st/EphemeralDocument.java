@@ -123,11 +123,15 @@ public class EphemeralDocument extends AbstractSTObject implements STDocument {
 
 	@Override
 	public STDocument getDocument(String id) {
-		return documents.get(id);
+		synchronized (documents) {
+			return documents.get(id);
+		}
 	}
 
 	@Override
 	public STAttribute getAttribute(String id) {
-		return attributes.get(id);
+		synchronized (attributes) {
+			return attributes.get(id);
+		}
 	}
 }
@@ -9,40 +9,169 @@
 package org.s7s.core.instance.store;
 
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
+import org.s7s.core.instance.state.oid.Oid;
+import org.s7s.core.instance.state.st.STAttribute;
 import org.s7s.core.instance.state.st.STDocument;
 import org.s7s.core.instance.state.vst.AbstractSTDomainObject;
 import org.slf4j.Logger;
 
-import com.google.common.cache.Cache;
+import com.google.common.eventbus.Subscribe;
 
 /**
  * {@link STCollectionStore} is a store backed by an {@link STDocument} which
  * may exist exclusively in memory (ephemeral collection), in a database, or on
  * another instance across the network (entangled collection).
  *
+ * <p>
+ * Subclasses may declare secondary indexes on attributes with
+ * {@link #index(Oid, Function)}. Indexes are kept up to date by listening to
+ * the collection's change events.
+ *
  * @param <V>
  */
 public abstract class STCollectionStore<V extends AbstractSTDomainObject> extends StoreBase {
 
-	private Cache<String, V> cache;
-
 	protected STDocument collection;
 
+	/**
+	 * The collection's domain objects by ID.
+	 */
+	private final Map<String, V> documents = new ConcurrentHashMap<>();
+
+	private final List<STIndex<?, V>> indexes = new CopyOnWriteArrayList<>();
+
 	private final Function<STDocument, V> constructor;
 
-	protected STCollectionStore(Logger log, Function<STDocument, V> constructor, STDocument collection) {
+	protected STCollectionStore(Logger log, Function<STDocument, V> constructor) {
 		super(log);
 		this.constructor = constructor;
-		this.documents = new HashMap<>();
+	}
+
+	protected STCollectionStore(Logger log, Function<STDocument, V> constructor, STDocument collection) {
+		this(log, constructor);
+		setDocument(collection);
+	}
+
+	/**
+	 * Set the collection that backs the store.
+	 *
+	 * @param collection The new collection
+	 */
+	protected synchronized void setDocument(STDocument collection) {
+		if (this.collection != null) {
+			this.collection.removeListener(this);
+		}
 
-		collection.forEachDocument(document -> {
-			documents.put(document.getId(), constructor.apply(document));
+		documents.clear();
+		indexes.forEach(STIndex::clear);
+
+		this.collection = collection;
+		collection.addListener(this);
+		collection.forEachDocument(this::track);
+	}
+
+	/**
+	 * Declare a secondary index on an attribute of the collection's documents. The
+	 * attribute must be a direct child of each document.
+	 *
+	 * @param <K>       The type of the index's keys
+	 * @param attribute The attribute to index
+	 * @param keys      Extracts the keys from the attribute when it's present
+	 * @return The index
+	 */
+	protected <K> STIndex<K, V> index(Oid attribute, Function<STAttribute, Collection<K>> keys) {
+		var index = new STIndex<K, V>(attribute, keys);
+		indexes.add(index);
+		documents.values().forEach(index::update);
+		return index;
+	}
+
+	/**
+	 * Add a document to the store and its indexes. Index updates for a document
+	 * are made inside the map's atomic operations so that they can't race with
+	 * its removal.
+	 */
+	private V track(STDocument document) {
+		return documents.compute(document.getId(), (id, value) -> {
+
+			// The document may have been removed before its event was delivered
+			if (collection.getDocument(id) == null) {
+				return null;
+			}
+
+			if (value == null) {
+				value = constructor.apply(document);
+			}
+			for (var index : indexes) {
+				index.update(value);
+			}
+			return value;
+		});
+	}
+
+	private void untrack(String id) {
+		documents.computeIfPresent(id, (i, value) -> {
+			for (var index : indexes) {
+				index.remove(value);
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Update the indexes of an object after a local change to an indexed
+	 * attribute. The change's event updates them too, but it's delivered
+	 * asynchronously, so a lookup that immediately follows the change could miss.
+	 *
+	 * @param value The changed object
+	 */
+	protected void reindex(V value) {
+		documents.computeIfPresent(value.getId(), (id, current) -> {
+			for (var index : indexes) {
+				index.update(current);
+			}
+			return current;
+		});
+	}
+
+	@Subscribe
+	void handle(STDocument.DocumentAddedEvent event) {
+		if (event.document() == collection) {
+			track(event.newDocument());
+		}
+	}
+
+	@Subscribe
+	void handle(STDocument.DocumentRemovedEvent event) {
+		if (event.document() == collection) {
+			untrack(event.oldDocument().getId());
+		}
+	}
+
+	@Subscribe
+	void handle(STAttribute.ChangeEvent event) {
+		var document = event.attribute().parent();
+		if (document == null || document.parent() != collection) {
+			return;
+		}
+
+		String id = event.attribute().oid().last();
+		documents.computeIfPresent(document.getId(), (i, value) -> {
+			for (var index : indexes) {
+				if (index.indexes(id)) {
+					index.update(value);
+				}
+			}
+			return value;
 		});
 	}
 
@@ -56,50 +185,37 @@ public abstract class STCollectionStore<V extends AbstractSTDomainObject> extend
 	}
 
 	public Optional<V> get(String id) {
-		return Optional.ofNullable(cache.get(id, () -> {
-			var d = collection.getDocument(id);
-			if (d != null) {
-				return constructor.apply(d);
+		var value = documents.get(id);
+		if (value == null) {
+			var document = collection.getDocument(id);
+			if (document != null) {
+				value = track(document);
 			}
-			return null;
-		}));
+		}
+		return Optional.ofNullable(value);
 	}
 
 	public Optional<V> remove(String id) {
-		var item = cache.getIfPresent(id);
-		cache.invalidate(id);
-		if (item == null) {
-			var d = collection.getDocument(id);
-			if (d != null) {
-				item = constructor.apply(d);
-			}
-		}
+		var item = get(id);
 		collection.remove(id);
-		return Optional.ofNullable(item);
+		untrack(id);
+		return item;
 	}
 
 	public void removeValue(V value) {
-		cache.asMap().values().remove(value);
-		// TODO remove from collection
+		remove(value.getId());
 	}
 
 	public Collection<V> values() {
 		return documents.values();
 	}
 
-	public void add(V value) {
-		String id = value.getId();
-		if (id == null) {
-			id = UUID.randomUUID().toString();
-		}
-		cache.put(id, value);
-	}
-
 	public V create(Consumer<AbstractSTDomainObject> configurator) {
 		String id = UUID.randomUUID().toString();
-		V object = constructor.apply(collection.document(id));
-		configurator.accept(object);
-		documents.put(id, object);
-		return object;
+		var document = collection.document(id);
+		configurator.accept(documents.computeIfAbsent(id, i -> constructor.apply(document)));
+
+		// Index the new object now rather than when its events arrive
+		return track(document);
 	}
 }
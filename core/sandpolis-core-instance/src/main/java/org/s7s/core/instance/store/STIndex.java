@@ -0,0 +1,129 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.instance.store;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.s7s.core.instance.state.oid.Oid;
+import org.s7s.core.instance.state.st.STAttribute;
+import org.s7s.core.instance.state.vst.AbstractSTDomainObject;
+
+/**
+ * A secondary index that maps the values of an attribute to the objects of an
+ * {@link STCollectionStore}.
+ *
+ * <p>
+ * Indexes are created with {@link STCollectionStore#index} and maintained by
+ * the store as the collection changes. Keys are expected to be unique among the
+ * objects of the collection.
+ *
+ * @param <K> The type of the index's keys
+ * @param <V> The type of the store's objects
+ */
+public final class STIndex<K, V extends AbstractSTDomainObject> {
+
+	/**
+	 * The indexed attribute.
+	 */
+	private final Oid attribute;
+
+	/**
+	 * Extracts the keys from a present attribute.
+	 */
+	private final Function<STAttribute, Collection<K>> keys;
+
+	/**
+	 * The objects by key.
+	 */
+	private final Map<K, V> forward = new ConcurrentHashMap<>();
+
+	/**
+	 * The keys of each object by ID.
+	 */
+	private final Map<String, Collection<K>> reverse = new ConcurrentHashMap<>();
+
+	STIndex(Oid attribute, Function<STAttribute, Collection<K>> keys) {
+		this.attribute = attribute;
+		this.keys = keys;
+	}
+
+	/**
+	 * Find the object with the given key.
+	 *
+	 * @param key The key
+	 * @return The object
+	 */
+	public Optional<V> get(K key) {
+		return Optional.ofNullable(forward.get(key));
+	}
+
+	/**
+	 * @return The number of indexed keys
+	 */
+	public int size() {
+		return forward.size();
+	}
+
+	/**
+	 * Determine whether an attribute belongs to the index.
+	 *
+	 * @param id The attribute's ID within its document
+	 */
+	boolean indexes(String id) {
+		return attribute.last().equals(id);
+	}
+
+	/**
+	 * Index an object by the current value of its attribute. The value is read
+	 * from the object rather than taken from the change event, so that events
+	 * that arrive out of order still leave the index consistent.
+	 *
+	 * @param value The object
+	 */
+	synchronized void update(V value) {
+		var current = value.get(attribute);
+		Collection<K> updated = current.isPresent() ? List.copyOf(keys.apply(current)) : List.of();
+
+		var previous = reverse.put(value.getId(), updated);
+		if (previous != null) {
+			for (var key : previous) {
+				if (!updated.contains(key)) {
+					forward.remove(key, value);
+				}
+			}
+		}
+		for (var key : updated) {
+			forward.put(key, value);
+		}
+	}
+
+	/**
+	 * Remove an object from the index.
+	 *
+	 * @param value The object
+	 */
+	synchronized void remove(V value) {
+		var previous = reverse.remove(value.getId());
+		if (previous != null) {
+			for (var key : previous) {
+				forward.remove(key, value);
+			}
+		}
+	}
+
+	synchronized void clear() {
+		forward.clear();
+		reverse.clear();
+	}
+}
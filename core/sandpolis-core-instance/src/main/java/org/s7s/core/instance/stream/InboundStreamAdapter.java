@@ -52,6 +52,9 @@ public class InboundStreamAdapter<E extends MessageLite> extends SubmissionPubli
 
 	@Override
 	public void close() {
+		if (isClosed())
+			return;
+
 		super.close();
 
 		log.debug("Disengaging stream: {}", id);
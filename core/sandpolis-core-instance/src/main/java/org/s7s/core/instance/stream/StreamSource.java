@@ -8,6 +8,7 @@
 //============================================================================//
 package org.s7s.core.instance.stream;
 
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.SubmissionPublisher;
 import java.util.random.RandomGenerator;
 
@@ -29,6 +30,18 @@ public abstract class StreamSource<E extends MessageLiteOrBuilder> extends Submi
 		id = RandomGenerator.getDefault().nextInt();
 	}
 
+	/**
+	 * Create a source whose per-subscriber buffer is limited to the given number
+	 * of events. Once a subscriber's buffer is full, {@link #submit(Object)}
+	 * blocks the producer until the subscriber catches up.
+	 *
+	 * @param maxBufferCapacity The maximum number of buffered events
+	 */
+	protected StreamSource(int maxBufferCapacity) {
+		super(ForkJoinPool.commonPool(), maxBufferCapacity);
+		id = RandomGenerator.getDefault().nextInt();
+	}
+
 	@Override
 	public int getStreamID() {
 		return id;
@@ -12,6 +12,7 @@ import org.s7s.core.protocol.Channel.ChannelTransportImplementation;
 import org.s7s.core.protocol.Channel.ChannelTransportProtocol;
 
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.ServerChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
@@ -24,16 +25,22 @@ public final class ChannelUtil {
 	public static final ChannelTransportImplementation CURRENT_IMPL = discoverImplementation();
 
 	private static ChannelTransportImplementation discoverImplementation() {
-		try {
-			Class.forName("io.netty.channel.epoll.EpollServerSocketChannel");
+
+		// The classes may be present without a native library for the platform
+		if (isAvailable("io.netty.channel.epoll.Epoll")) {
 			return ChannelTransportImplementation.EPOLL;
-		} catch (ClassNotFoundException e1) {
-			try {
-				Class.forName("io.netty.channel.epoll.EpollServerSocketChannel");
-				return ChannelTransportImplementation.KQUEUE;
-			} catch (ClassNotFoundException e2) {
-				return ChannelTransportImplementation.NIO;
-			}
+		}
+		if (isAvailable("io.netty.channel.kqueue.KQueue")) {
+			return ChannelTransportImplementation.KQUEUE;
+		}
+		return ChannelTransportImplementation.NIO;
+	}
+
+	private static boolean isAvailable(String transport) {
+		try {
+			return (boolean) Class.forName(transport).getMethod("isAvailable").invoke(null);
+		} catch (Exception | LinkageError e) {
+			return false;
 		}
 	}
 
@@ -43,19 +50,73 @@ public final class ChannelUtil {
 	 * @return A new {@link EventLoopGroup}
 	 */
 	public static EventLoopGroup newEventLoopGroup() {
+		return newEventLoopGroup(CURRENT_IMPL, 0);
+	}
+
+	/**
+	 * Build a new {@link EventLoopGroup} for the given transport.
+	 *
+	 * @param impl    The transport implementation
+	 * @param threads The number of threads or 0 for the default
+	 * @return A new {@link EventLoopGroup}
+	 */
+	public static EventLoopGroup newEventLoopGroup(ChannelTransportImplementation impl, int threads) {
 		try {
-			switch (CURRENT_IMPL) {
+			switch (impl) {
 			case EPOLL:
-				return (EventLoopGroup) Class.forName("io.netty.channel.epoll.EpollEventLoopGroup").getConstructor()
-						.newInstance();
+				return (EventLoopGroup) Class.forName("io.netty.channel.epoll.EpollEventLoopGroup")
+						.getConstructor(int.class).newInstance(threads);
 			case KQUEUE:
-				return (EventLoopGroup) Class.forName("io.netty.channel.epoll.KQueueEventLoopGroup").getConstructor()
-						.newInstance();
+				return (EventLoopGroup) Class.forName("io.netty.channel.kqueue.KQueueEventLoopGroup")
+						.getConstructor(int.class).newInstance(threads);
 			default:
-				return new NioEventLoopGroup();
+				return new NioEventLoopGroup(threads);
 			}
 		} catch (Exception ignore) {
-			return new NioEventLoopGroup();
+			return new NioEventLoopGroup(threads);
+		}
+	}
+
+	/**
+	 * Determine the transport that an {@link EventLoopGroup} belongs to. Channels
+	 * can only be registered with a group of the same transport.
+	 *
+	 * @param group The event loop group
+	 * @return The group's transport implementation
+	 */
+	public static ChannelTransportImplementation getImplementation(EventLoopGroup group) {
+		var type = group.getClass().getName();
+		if (type.startsWith("io.netty.channel.epoll.")) {
+			return ChannelTransportImplementation.EPOLL;
+		}
+		if (type.startsWith("io.netty.channel.kqueue.")) {
+			return ChannelTransportImplementation.KQUEUE;
+		}
+		return ChannelTransportImplementation.NIO;
+	}
+
+	/**
+	 * Get an option that's specific to the native transport.
+	 *
+	 * @param impl The transport implementation
+	 * @param name The name of the option's constant
+	 * @return The option or {@code null} if the transport doesn't support it
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> ChannelOption<T> getNativeOption(ChannelTransportImplementation impl, String name) {
+		try {
+			switch (impl) {
+			case EPOLL:
+				return (ChannelOption<T>) Class.forName("io.netty.channel.epoll.EpollChannelOption").getField(name)
+						.get(null);
+			case KQUEUE:
+				return (ChannelOption<T>) Class.forName("io.netty.channel.kqueue.KQueueChannelOption").getField(name)
+						.get(null);
+			default:
+				return null;
+			}
+		} catch (Exception ignore) {
+			return null;
 		}
 	}
 
@@ -64,10 +125,20 @@ public final class ChannelUtil {
 	 *
 	 * @return A {@link ServerChannel} class
 	 */
-	@SuppressWarnings("unchecked")
 	public static Class<? extends ServerChannel> getServerChannelType() {
+		return getServerChannelType(CURRENT_IMPL);
+	}
+
+	/**
+	 * Get the {@link ServerChannel} type for the given transport.
+	 *
+	 * @param impl The transport implementation
+	 * @return A {@link ServerChannel} class
+	 */
+	@SuppressWarnings("unchecked")
+	public static Class<? extends ServerChannel> getServerChannelType(ChannelTransportImplementation impl) {
 		try {
-			switch (CURRENT_IMPL) {
+			switch (impl) {
 			case EPOLL:
 				return (Class<? extends ServerChannel>) Class
 						.forName("io.netty.channel.epoll.EpollServerSocketChannel");
@@ -82,12 +153,35 @@ public final class ChannelUtil {
 		}
 	}
 
-	@SuppressWarnings("unchecked")
 	public static Class<? extends Channel> getChannelType(ChannelTransportProtocol protocol) {
+		return getChannelType(protocol, CURRENT_IMPL);
+	}
+
+	/**
+	 * Get the {@link Channel} type that can be registered with the given group.
+	 *
+	 * @param protocol The transport protocol
+	 * @param group    The event loop group
+	 * @return A {@link Channel} class
+	 */
+	public static Class<? extends Channel> getChannelType(ChannelTransportProtocol protocol, EventLoopGroup group) {
+		return getChannelType(protocol, getImplementation(group));
+	}
+
+	/**
+	 * Get the {@link Channel} type for the given transport.
+	 *
+	 * @param protocol The transport protocol
+	 * @param impl     The transport implementation
+	 * @return A {@link Channel} class
+	 */
+	@SuppressWarnings("unchecked")
+	public static Class<? extends Channel> getChannelType(ChannelTransportProtocol protocol,
+			ChannelTransportImplementation impl) {
 		switch (protocol) {
 		case UDP:
 			try {
-				switch (CURRENT_IMPL) {
+				switch (impl) {
 				case EPOLL:
 					return (Class<? extends Channel>) Class.forName("io.netty.channel.epoll.EpollDatagramChannel");
 				case KQUEUE:
@@ -101,7 +195,7 @@ public final class ChannelUtil {
 		case TCP:
 		default:
 			try {
-				switch (CURRENT_IMPL) {
+				switch (impl) {
 				case EPOLL:
 					return (Class<? extends Channel>) Class.forName("io.netty.channel.epoll.EpollSocketChannel");
 				case KQUEUE:
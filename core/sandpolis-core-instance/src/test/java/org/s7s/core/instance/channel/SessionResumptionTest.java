@@ -0,0 +1,190 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.instance.channel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.ManagerFactoryParameters;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.util.SimpleTrustManagerFactory;
+import io.netty.util.ReferenceCountUtil;
+
+class SessionResumptionTest {
+
+	private static final int HANDSHAKES = 50;
+
+	/**
+	 * Accepts any server certificate and counts the verifications, which only
+	 * happen during full handshakes.
+	 */
+	static final class CountingTrustManagerFactory extends SimpleTrustManagerFactory {
+
+		final AtomicInteger verifications = new AtomicInteger();
+
+		private final TrustManager manager = new X509ExtendedTrustManager() {
+
+			@Override
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			@Override
+			public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+			}
+
+			@Override
+			public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+			}
+
+			@Override
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {
+				verifications.incrementAndGet();
+			}
+
+			@Override
+			public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+				verifications.incrementAndGet();
+			}
+
+			@Override
+			public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+				verifications.incrementAndGet();
+			}
+
+			@Override
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		};
+
+		@Override
+		protected void engineInit(KeyStore keyStore) {
+		}
+
+		@Override
+		protected void engineInit(ManagerFactoryParameters params) {
+		}
+
+		@Override
+		protected TrustManager[] engineGetTrustManagers() {
+			return new TrustManager[] { manager };
+		}
+	}
+
+	/**
+	 * Echoes the first message back to the client.
+	 */
+	static final class Echo extends ChannelInboundHandlerAdapter {
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			ctx.writeAndFlush(msg);
+		}
+	}
+
+	/**
+	 * Perform a handshake and exchange a message so that the session ticket, which
+	 * follows the handshake in TLS 1.3, is received before the connection closes.
+	 */
+	static void handshake(EventLoopGroup group, SslContext context, InetSocketAddress server,
+			boolean resumable) throws Exception {
+
+		var echoed = group.next().<Void>newPromise();
+		var channel = new Bootstrap().group(group).channel(NioSocketChannel.class)
+				.handler(new ChannelInitializer<Channel>() {
+					@Override
+					protected void initChannel(Channel ch) {
+						ch.pipeline().addLast(resumable
+								? context.newHandler(ch.alloc(), server.getHostString(), server.getPort())
+								: context.newHandler(ch.alloc()), new ChannelInboundHandlerAdapter() {
+									@Override
+									public void channelRead(ChannelHandlerContext ctx, Object msg) {
+										ReferenceCountUtil.release(msg);
+										echoed.trySuccess(null);
+									}
+								});
+					}
+				}).connect(server).sync().channel();
+
+		channel.pipeline().get(SslHandler.class).handshakeFuture().sync();
+		channel.writeAndFlush(channel.alloc().buffer(1).writeByte(1));
+		assertTrue(echoed.await(10, TimeUnit.SECONDS));
+		channel.close().sync();
+	}
+
+	private static void handshakes(EventLoopGroup group, SslContext context, InetSocketAddress server,
+			boolean resumable) throws Exception {
+		for (int i = 0; i < HANDSHAKES; i++) {
+			handshake(group, context, server, resumable);
+		}
+	}
+
+	@Test
+	@DisplayName("Check that reconnections to the same server resume their TLS session")
+	void resume_1() throws Exception {
+		EventLoopGroup group = new NioEventLoopGroup(2);
+
+		var serverContext = new ChannelStruct(config -> {
+			config.serverTlsSelfSigned();
+		}).sslBuilder.build();
+
+		var trust = new CountingTrustManagerFactory();
+		var clientContext = new ChannelStruct(config -> {
+			config.sslBuilder = SslContextBuilder.forClient().trustManager(trust).protocols("TLSv1.3");
+		}).sslBuilder.build();
+
+		var server = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class)
+				.childHandler(new ChannelInitializer<Channel>() {
+					@Override
+					protected void initChannel(Channel ch) {
+						ch.pipeline().addLast(serverContext.newHandler(ch.alloc()), new Echo());
+					}
+				}).bind("127.0.0.1", 0).sync().channel();
+		var address = (InetSocketAddress) server.localAddress();
+
+		// Connections without a peer host can't be resumed
+		handshakes(group, clientContext, address, false);
+		assertEquals(HANDSHAKES, trust.verifications.get());
+
+		// Only the first connection to the server or a handshake whose ticket was
+		// rejected would verify the certificate
+		trust.verifications.set(0);
+		handshakes(group, clientContext, address, true);
+		int verified = trust.verifications.get();
+		assertTrue(verified < HANDSHAKES / 10, verified + " resumed handshakes verified the certificate");
+
+		server.close().sync();
+		group.shutdownGracefully();
+	}
+}
@@ -0,0 +1,105 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.instance.connection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.s7s.core.instance.connection.ConnectionStore.ConnectionStore;
+import static org.s7s.core.instance.thread.ThreadStore.ThreadStore;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import org.s7s.core.instance.channel.ChannelConstant;
+import org.s7s.core.instance.util.ChannelUtil;
+import org.s7s.core.protocol.Channel.ChannelTransportProtocol;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.logging.LoggingHandler;
+
+class ConnectionStoreTest {
+
+	@BeforeAll
+	static void setup() {
+		ThreadStore.init(config -> {
+			config.defaults.put("net.connection.outgoing", ChannelUtil.newEventLoopGroup(ChannelUtil.CURRENT_IMPL, 2));
+		});
+		ConnectionStore.init(config -> {
+		});
+	}
+
+	/**
+	 * An initializer that completes the handshake as soon as the channel is
+	 * active.
+	 */
+	private static ChannelInitializer<Channel> handshake() {
+		return new ChannelInitializer<>() {
+			@Override
+			protected void initChannel(Channel ch) {
+				ch.attr(ChannelConstant.SOCK).set(ConnectionStore.create(ch));
+				ch.attr(ChannelConstant.HANDSHAKE_FUTURE).set(ch.eventLoop().newPromise());
+				ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+					@Override
+					public void channelActive(ChannelHandlerContext ctx) {
+						ctx.channel().attr(ChannelConstant.HANDSHAKE_FUTURE).get().setSuccess(null);
+						ctx.fireChannelActive();
+					}
+				});
+			}
+		};
+	}
+
+	private static Channel listen() throws InterruptedException {
+		return new ServerBootstrap().group(ChannelUtil.newEventLoopGroup(ChannelUtil.CURRENT_IMPL, 1))
+				.channel(ChannelUtil.getServerChannelType()).childHandler(new LoggingHandler())
+				.bind("127.0.0.1", 0).sync().channel();
+	}
+
+	@Test
+	@DisplayName("Check that a client connects on the default transport")
+	void connect_1() throws Exception {
+		var server = listen();
+
+		var future = ConnectionStore.connect(new Bootstrap().remoteAddress(server.localAddress()).handler(handshake()));
+		assertTrue(future.await(10, TimeUnit.SECONDS));
+		assertTrue(future.isSuccess(), () -> String.valueOf(future.cause()));
+		assertEquals(ChannelUtil.getChannelType(ChannelTransportProtocol.TCP),
+				future.getNow().channel().getClass());
+
+		future.getNow().channel().close().sync();
+		server.close().sync();
+	}
+
+	@Test
+	@DisplayName("Check that the channel type follows the bootstrap's event loop group")
+	void connect_2() throws Exception {
+		var server = listen();
+		var address = (InetSocketAddress) server.localAddress();
+
+		var future = ConnectionStore
+				.connect(new Bootstrap().group(new NioEventLoopGroup(1)).remoteAddress(address).handler(handshake()));
+		assertTrue(future.await(10, TimeUnit.SECONDS));
+		assertTrue(future.isSuccess(), () -> String.valueOf(future.cause()));
+		assertEquals(NioSocketChannel.class, future.getNow().channel().getClass());
+
+		future.getNow().channel().close().sync();
+		server.close().sync();
+	}
+}
@@ -0,0 +1,188 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.instance.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.s7s.core.instance.state.STStore.STStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.instance.state.oid.Oid;
+import org.s7s.core.instance.state.st.EphemeralDocument;
+import org.s7s.core.instance.state.st.STDocument;
+import org.s7s.core.instance.state.vst.AbstractSTDomainObject;
+
+class STCollectionStoreTest {
+
+	private static final Logger log = LoggerFactory.getLogger(STCollectionStoreTest.class);
+
+	private static final Oid NAME = Oid.of("/item()/name");
+
+	private static final Oid TAGS = Oid.of("/item()/tags");
+
+	static class Item extends AbstractSTDomainObject {
+		Item(STDocument document) {
+			super(document);
+		}
+	}
+
+	static class ItemStore extends STCollectionStore<Item> {
+
+		final STIndex<String, Item> byName;
+
+		final STIndex<Integer, Item> byTag;
+
+		ItemStore(STDocument collection) {
+			super(log, Item::new);
+
+			byName = index(NAME, attribute -> List.of(attribute.asString()));
+			byTag = index(TAGS, attribute -> IntStream.of(attribute.asIntArray()).boxed().toList());
+			setDocument(collection);
+		}
+
+		void rename(Item item, String name) {
+			item.set(NAME, name);
+			reindex(item);
+		}
+	}
+
+	private STDocument collection;
+
+	@BeforeEach
+	void setup() {
+		STStore.init(config -> {
+			config.concurrency = 4;
+			config.root = new EphemeralDocument(null, null);
+		});
+
+		collection = STStore.root().document("item");
+	}
+
+	/**
+	 * Wait for every queued change event to be delivered.
+	 */
+	private static void drain() throws Exception {
+		STStore.close();
+		assertTrue(STStore.pool().awaitTermination(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	@DisplayName("Check that indexes follow inserts, updates, and removals")
+	void index_1() throws Exception {
+		var store = new ItemStore(collection);
+
+		var item = store.create(i -> {
+			i.set(NAME, "first");
+			i.set(TAGS, new int[] { 1, 2 });
+		});
+
+		// Created objects are indexed immediately
+		assertEquals(item, store.byName.get("first").get());
+		assertEquals(item, store.byTag.get(2).get());
+
+		item.set(NAME, "second");
+		item.set(TAGS, new int[] { 2, 3 });
+		drain();
+
+		assertFalse(store.byName.get("first").isPresent());
+		assertEquals(item, store.byName.get("second").get());
+		assertFalse(store.byTag.get(1).isPresent());
+		assertEquals(item, store.byTag.get(3).get());
+
+		store.removeValue(item);
+		assertFalse(store.byName.get("second").isPresent());
+		assertEquals(0, store.byTag.size());
+	}
+
+	@Test
+	@DisplayName("Check that reindexed changes are visible before their events")
+	void index_4() throws Exception {
+		var store = new ItemStore(collection);
+		var item = store.create(i -> i.set(NAME, "first"));
+
+		store.rename(item, "second");
+		assertFalse(store.byName.get("first").isPresent());
+		assertEquals(item, store.byName.get("second").get());
+
+		drain();
+		assertEquals(item, store.byName.get("second").get());
+		assertEquals(1, store.byName.size());
+	}
+
+	@Test
+	@DisplayName("Check that existing documents are indexed")
+	void index_2() throws Exception {
+		collection.document("a").attribute("name").set("a");
+		collection.document("b").attribute("name").set("b");
+		drain();
+
+		var store = new ItemStore(collection);
+		assertEquals("a", store.byName.get("a").get().getId());
+		assertEquals("b", store.byName.get("b").get().getId());
+	}
+
+	@Test
+	@DisplayName("Check that indexes stay consistent under concurrent mutation")
+	void index_3() throws Exception {
+		var store = new ItemStore(collection);
+		var executor = Executors.newFixedThreadPool(8);
+
+		var futures = new ArrayList<Future<?>>();
+		for (int t = 0; t < 8; t++) {
+			int thread = t;
+			futures.add(executor.submit(() -> {
+				var items = new ArrayList<Item>();
+				for (int i = 0; i < 100; i++) {
+					int n = i;
+					items.add(store.create(item -> item.set(NAME, thread + "-" + n)));
+				}
+
+				// Rename every item several times and remove some of them
+				for (int round = 0; round < 10; round++) {
+					for (int i = 0; i < items.size(); i++) {
+						items.get(i).set(NAME, thread + "-" + i + "-" + round);
+						items.get(i).set(TAGS, new int[] { thread * 1000 + i });
+					}
+				}
+				for (int i = 0; i < items.size(); i += 3) {
+					store.removeValue(items.get(i));
+				}
+			}));
+		}
+		for (var future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		drain();
+
+		assertEquals(8 * 66, store.values().size());
+		assertEquals(store.values().size(), store.byName.size());
+		assertEquals(store.values().size(), store.byTag.size());
+
+		for (var item : store.values()) {
+			String name = item.get(NAME).asString();
+			assertTrue(name.endsWith("-9"), name);
+			assertEquals(item, store.byName.get(name).get());
+			assertEquals(item, store.byTag.get(item.get(TAGS).asIntArray()[0]).get());
+		}
+	}
+}
@@ -25,8 +25,8 @@ import org.s7s.core.instance.Entrypoint;
 import org.s7s.core.instance.InitTask;
 import org.s7s.core.instance.state.oid.Oid;
 import org.s7s.core.instance.state.st.EphemeralDocument;
+import org.s7s.core.instance.util.ChannelUtil;
 
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.util.concurrent.UnorderedThreadPoolEventExecutor;
 import javafx.application.Platform;
 
@@ -47,8 +47,8 @@ public class LifegemLoadStores extends InitTask {
 		});
 
 		ThreadStore.init(config -> {
-			config.defaults.put("net.exelet", new NioEventLoopGroup(2));
-			config.defaults.put("net.connection.outgoing", new NioEventLoopGroup(2));
+			config.defaults.put("net.exelet", ChannelUtil.newEventLoopGroup(ChannelUtil.CURRENT_IMPL, 2));
+			config.defaults.put("net.connection.outgoing", ChannelUtil.newEventLoopGroup(ChannelUtil.CURRENT_IMPL, 2));
 			config.defaults.put("net.message.incoming", new UnorderedThreadPoolEventExecutor(2));
 			config.defaults.put("store.event_bus", Executors.newSingleThreadExecutor());
 		});
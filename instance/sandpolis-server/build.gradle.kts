@@ -30,6 +30,10 @@ dependencies {
 	testImplementation("org.junit.jupiter:junit-jupiter-api:5.+")
 	testRuntimeOnly("org.junit.jupiter:junit-jupiter-engine:5.+")
 
+	// Selects the OpenSSL provider whose session ticket keys can be rotated
+	// https://github.com/netty/netty-tcnative
+	runtimeOnly("io.netty:netty-tcnative-boringssl-static:2.0.46.Final")
+
 	if (project.getParent() == null) {
 		api("org.s7s:core.instance:+")
 	} else {
@@ -37,6 +41,24 @@ dependencies {
 	}
 }
 
+// Throughput benchmarks are kept out of the unit tests
+val benchmark by sourceSets.creating {
+	compileClasspath += sourceSets.main.get().output
+	runtimeClasspath += sourceSets.main.get().output
+}
+
+configurations["benchmarkImplementation"].extendsFrom(configurations.testImplementation.get())
+configurations["benchmarkRuntimeOnly"].extendsFrom(configurations.testRuntimeOnly.get())
+
+tasks.register<Test>("benchmark") {
+	description = "Runs the throughput benchmarks."
+	group = "verification"
+
+	testClassesDirs = benchmark.output.classesDirs
+	classpath = benchmark.runtimeClasspath
+	useJUnitPlatform()
+}
+
 // Also build plugins unless this is the root project
 if (project.getParent() != null) {
 	val syncPlugins by tasks.creating(Copy::class) {
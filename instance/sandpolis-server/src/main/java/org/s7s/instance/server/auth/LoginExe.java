@@ -10,11 +10,15 @@ package org.s7s.core.server.auth;
 
 import static org.s7s.core.foundation.Instance.InstanceType.CLIENT;
 import static org.s7s.core.instance.profile.ProfileStore.ProfileStore;
+import static org.s7s.core.instance.thread.ThreadStore.ThreadStore;
 import static org.s7s.core.server.user.UserStore.UserStore;
 
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.regex.Pattern;
 
 import javax.crypto.spec.SecretKeySpec;
@@ -27,9 +31,10 @@ import com.eatthepath.otp.TimeBasedOneTimePasswordGenerator;
 import org.s7s.core.protocol.Session.RQ_Login;
 import org.s7s.core.protocol.Session.RQ_Logout;
 import org.s7s.core.protocol.Session.RS_Login;
+import org.s7s.core.protocol.Session.RQ_SessionToken;
 import org.s7s.core.protocol.Session.RS_Logout;
+import org.s7s.core.protocol.Session.RS_SessionToken;
 import org.s7s.core.foundation.S7SPassword;
-import org.s7s.core.foundation.S7SRandom;
 import org.s7s.core.instance.state.InstanceOids.ProfileOid.ConnectionOid;
 import org.s7s.core.instance.state.InstanceOids.ProfileOid;
 import org.s7s.core.instance.state.InstanceOids.ProfileOid.ClientOid;
@@ -52,6 +57,12 @@ public final class LoginExe extends Exelet {
 
 	private static final TimeBasedOneTimePasswordGenerator TOTP;
 
+	/**
+	 * Limits login attempts for each user and remote address.
+	 */
+	private static final LoginThrottle THROTTLE = new LoginThrottle(5, Duration.ofSeconds(5), 20, Duration.ofSeconds(1),
+			Duration.ofSeconds(10));
+
 	static {
 		try {
 			TOTP = new TimeBasedOneTimePasswordGenerator();
@@ -63,22 +74,68 @@ public final class LoginExe extends Exelet {
 	@Handler(auth = true, instances = CLIENT)
 	public static RS_Logout rq_logout(ExeletContext context, RQ_Logout rq) {
 		log.debug("Processing logout request from: {}", context.connector.get(ConnectionOid.REMOTE_ADDRESS).asString());
+		UserStore.revokeTokens(context.connector.get(ConnectionOid.REMOTE_SID).asInt());
 		context.connector.close();
 
 		return RS_Logout.LOGOUT_OK;
 	}
 
 	@Handler(auth = false, instances = CLIENT)
-	public static RS_Login rq_login(ExeletContext context, RQ_Login rq) throws InterruptedException {
-		log.debug("Processing login request from: {}", context.connector.get(ConnectionOid.REMOTE_ADDRESS).asString());
+	public static CompletionStage<RS_Login> rq_login(ExeletContext context, RQ_Login rq) {
+		String address = context.connector.get(ConnectionOid.REMOTE_ADDRESS).asString();
+		log.debug("Processing login request from: {}", address);
 
 		// Validate username
 		String username = rq.getUsername();
 		if (!USERNAME_VALIDATOR.matcher(username).matches()) {
 			log.debug("The username ({}) is invalid", username);
-			return RS_Login.LOGIN_INVALID_USERNAME;
+			return CompletableFuture.completedFuture(RS_Login.LOGIN_INVALID_USERNAME);
+		}
+
+		// Session tokens are cheap enough to verify on the event loop
+		if (!rq.getSessionToken().isEmpty()) {
+			return CompletableFuture.completedFuture(resume(context, rq));
+		}
+
+		// Verify the credentials off of the exelet event loop
+		return THROTTLE.submit(ThreadStore.get("server.auth"), username, address, () -> login(context, rq),
+				rs -> rs == RS_Login.LOGIN_OK, RS_Login.LOGIN_THROTTLED);
+	}
+
+	@Handler(auth = true, instances = CLIENT)
+	public static RS_SessionToken rq_session_token(ExeletContext context, RQ_SessionToken rq) {
+		int sid = context.connector.get(ConnectionOid.REMOTE_SID).asInt();
+
+		var rs = RS_SessionToken.newBuilder();
+		UserStore.getBySid(sid).ifPresent(user -> {
+			rs.setToken(UserStore.issueToken(user, sid));
+		});
+		return rs.build();
+	}
+
+	private static RS_Login resume(ExeletContext context, RQ_Login rq) {
+		String username = rq.getUsername();
+
+		User user = UserStore
+				.getByToken(username, rq.getSessionToken(), context.connector.get(ConnectionOid.REMOTE_SID).asInt())
+				.orElse(null);
+		if (user == null) {
+			log.debug("Session token validation failed for user: {}", username);
+			return RS_Login.LOGIN_INVALID_SESSION_TOKEN;
 		}
 
+		if (user.isExpired()) {
+			log.debug("The user ({}) is expired", username);
+			return RS_Login.LOGIN_FAILED_EXPIRED_USER;
+		}
+
+		log.debug("Accepting session token for user: {}", username);
+		return accept(context, user);
+	}
+
+	private static RS_Login login(ExeletContext context, RQ_Login rq) {
+		String username = rq.getUsername();
+
 		User user = UserStore.getByUsername(username).orElse(null);
 		if (user == null) {
 			log.debug("The user ({}) does not exist", username);
@@ -97,9 +154,6 @@ public final class LoginExe extends Exelet {
 			try {
 				if (rq.getToken() != TOTP.generateOneTimePassword(key, Instant.now())) {
 					log.debug("OTP validation failed", username);
-
-					// Sleep a random amount of time on failure
-					Thread.sleep(S7SRandom.secure.nextLong(100, 500));
 					return RS_Login.LOGIN_FAILED;
 				}
 			} catch (InvalidKeyException e) {
@@ -118,13 +172,15 @@ public final class LoginExe extends Exelet {
 		// Check password
 		if (!S7SPassword.of(rq.getPassword()).checkPBKDF2(user.get(UserOid.HASH).asString())) {
 			log.debug("Password validation failed", username);
-
-			// Sleep a random amount of time on failure
-			Thread.sleep(S7SRandom.secure.nextLong(100, 500));
 			return RS_Login.LOGIN_FAILED;
 		}
 
 		log.debug("Accepting login request for user: {}", username);
+		return accept(context, user);
+	}
+
+	private static RS_Login accept(ExeletContext context, User user) {
+		String username = user.get(UserOid.USERNAME).asString();
 
 		// Mark connection as authenticated
 		context.connector.authenticate();
@@ -144,8 +200,7 @@ public final class LoginExe extends Exelet {
 			});
 		});
 
-		// TODO append instead of replace
-		user.set(UserOid.CURRENT_SID, new int[] { context.connector.get(ConnectionOid.REMOTE_SID).asInt() });
+		UserStore.setCurrentSid(user, context.connector.get(ConnectionOid.REMOTE_SID).asInt());
 
 		return RS_Login.LOGIN_OK;
 	}
@@ -0,0 +1,189 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.server.auth;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.foundation.S7SRandom;
+
+/**
+ * Schedules login attempts on an authentication executor so that password
+ * hashing never runs on the exelet event loop.
+ *
+ * <p>
+ * Attempts are limited by a token bucket for each username at each remote
+ * address and another for each remote address, so attempts from one address
+ * can't lock a user out everywhere. When a bucket is empty, the attempt is
+ * delayed until the bucket refills rather than rejected, unless the delay would
+ * be too long. Attempts are also rejected when the executor can't accept them.
+ * Failed attempts are also answered after a random delay. All delays are
+ * scheduled completions, so no thread waits for them.
+ */
+public final class LoginThrottle {
+
+	private static final Logger log = LoggerFactory.getLogger(LoginThrottle.class);
+
+	/**
+	 * The number of tracked keys above which full buckets are discarded.
+	 */
+	private static final int PRUNE_THRESHOLD = 4096;
+
+	/**
+	 * A set of token buckets that share a capacity and refill rate.
+	 */
+	static final class Buckets {
+
+		/**
+		 * The time at which each key's bucket will be full in nanoseconds.
+		 */
+		private final Map<String, Long> full = new HashMap<>();
+
+		/**
+		 * The time to refill one token in nanoseconds.
+		 */
+		private final long interval;
+
+		/**
+		 * The time to refill all but one token in nanoseconds.
+		 */
+		private final long tolerance;
+
+		/**
+		 * @param capacity The maximum number of tokens in a bucket
+		 * @param refill   The time to refill one token
+		 */
+		Buckets(int capacity, Duration refill) {
+			this.interval = refill.toNanos();
+			this.tolerance = (capacity - 1) * interval;
+		}
+
+		/**
+		 * @return The delay in nanoseconds until the key's bucket has a token
+		 */
+		synchronized long delay(String key, long now) {
+			return Math.max(0, Math.max(full.getOrDefault(key, now), now) - tolerance - now);
+		}
+
+		/**
+		 * Take a token from the key's bucket, which may not be available until
+		 * after {@link #delay(String, long)}.
+		 */
+		synchronized void take(String key, long now) {
+			full.put(key, Math.max(full.getOrDefault(key, now), now) + interval);
+
+			if (full.size() > PRUNE_THRESHOLD) {
+				full.values().removeIf(time -> time <= now);
+			}
+		}
+	}
+
+	private final Buckets users;
+
+	private final Buckets addresses;
+
+	private final long maxDelay;
+
+	/**
+	 * @param userCapacity    The number of attempts per username and address that
+	 *                        don't need to wait
+	 * @param userRefill      The time after which a username may attempt again
+	 *                        from the same address
+	 * @param addressCapacity The number of attempts per address that don't need
+	 *                        to wait
+	 * @param addressRefill   The time after which an address may attempt again
+	 * @param maxDelay        The longest that an attempt may wait before it's
+	 *                        rejected instead
+	 */
+	public LoginThrottle(int userCapacity, Duration userRefill, int addressCapacity, Duration addressRefill,
+			Duration maxDelay) {
+		this.users = new Buckets(userCapacity, userRefill);
+		this.addresses = new Buckets(addressCapacity, addressRefill);
+		this.maxDelay = maxDelay.toNanos();
+	}
+
+	/**
+	 * Reserve a token for an attempt.
+	 *
+	 * @return The delay in nanoseconds before the attempt may proceed or -1 if
+	 *         it's rejected
+	 */
+	synchronized long acquire(String username, String address, long now) {
+		String user = username + "@" + address;
+
+		long delay = Math.max(users.delay(user, now), addresses.delay(address, now));
+		if (delay > maxDelay) {
+			return -1;
+		}
+
+		users.take(user, now);
+		addresses.take(address, now);
+		return delay;
+	}
+
+	/**
+	 * Schedule a login attempt.
+	 *
+	 * @param executor  The executor that runs the attempt
+	 * @param username  The username being logged into
+	 * @param address   The remote address of the attempt
+	 * @param attempt   Checks the credentials and returns the result
+	 * @param succeeded Whether a result is successful
+	 * @param rejected  The result when the attempt is throttled or can't be run
+	 * @return The result which completes on another thread
+	 */
+	public <T> CompletableFuture<T> submit(Executor executor, String username, String address, Supplier<T> attempt,
+			Predicate<T> succeeded, T rejected) {
+
+		long delay = acquire(username, address, System.nanoTime());
+		if (delay < 0) {
+			log.debug("Rejecting throttled login attempt for user: {}", username);
+			return fail(rejected);
+		}
+
+		var ready = delay == 0 ? CompletableFuture.<Void>completedFuture(null)
+				: CompletableFuture.runAsync(() -> {
+				}, CompletableFuture.delayedExecutor(delay, NANOSECONDS));
+
+		return ready.thenCompose(v -> {
+			try {
+				return CompletableFuture.supplyAsync(attempt, executor);
+			} catch (RejectedExecutionException e) {
+				log.debug("Rejecting login attempt because the executor is full");
+				return CompletableFuture.completedFuture(rejected);
+			}
+		}).handle((result, e) -> {
+			if (e != null) {
+				log.debug("Failed to run login attempt", e);
+				return rejected;
+			}
+			return result;
+		}).thenCompose(result -> succeeded.test(result) ? CompletableFuture.completedFuture(result) : fail(result));
+	}
+
+	/**
+	 * Complete with a failed result after a random delay.
+	 */
+	private static <T> CompletableFuture<T> fail(T result) {
+		return CompletableFuture.supplyAsync(() -> result,
+				CompletableFuture.delayedExecutor(S7SRandom.secure.nextLong(100, 500), MILLISECONDS));
+	}
+}
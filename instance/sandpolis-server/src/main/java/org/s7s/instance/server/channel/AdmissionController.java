@@ -0,0 +1,260 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.server.channel;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.instance.channel.ChannelConstant;
+import org.s7s.core.instance.handler.RetryAfterHandler;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
+
+/**
+ * A handler that limits the number of connections that may be handshaking at
+ * once. It should be shared by every listener and come first in the pipeline.
+ *
+ * <p>
+ * A connection holds a handshake slot from the time it's accepted until its
+ * handshake future completes or it closes. Connections that arrive while every
+ * slot is taken wait in a FIFO queue without reading from their sockets. When
+ * the queue is full, or a connection has waited too long, the connection is
+ * sent a retry-after hint and closed. The hint's delay is estimated from the
+ * recent handshake time and the number of connections ahead of it.
+ *
+ * <p>
+ * The rest of the pipeline only sees {@code channelActive} once a connection
+ * is admitted, so handshake timeouts that start there don't include the time
+ * spent waiting. Rejected connections are never activated.
+ */
+@Sharable
+public class AdmissionController extends ChannelInboundHandlerAdapter {
+
+	private static final Logger log = LoggerFactory.getLogger(AdmissionController.class);
+
+	/**
+	 * The time at which a channel was given its handshake slot.
+	 */
+	private static final AttributeKey<Long> ADMITTED = AttributeKey.valueOf("admission.admitted");
+
+	/**
+	 * The bounds of the retry-after hint in milliseconds.
+	 */
+	private static final int MIN_DELAY = 1000;
+	private static final int MAX_DELAY = 60000;
+
+	/**
+	 * The maximum number of connections that may be handshaking at once.
+	 */
+	private final int handshakes;
+
+	/**
+	 * The maximum number of connections that may wait for a slot.
+	 */
+	private final int queueLimit;
+
+	/**
+	 * The maximum time that a connection may spend waiting or handshaking in
+	 * milliseconds.
+	 */
+	private final long timeout;
+
+	/**
+	 * Connections that are waiting for a slot in arrival order.
+	 */
+	private final ArrayDeque<ChannelHandlerContext> queue = new ArrayDeque<>();
+
+	/**
+	 * The number of taken slots.
+	 */
+	private int active;
+
+	private int peakActive;
+
+	private int peakQueued;
+
+	/**
+	 * A moving average of the handshake time in milliseconds.
+	 */
+	private double handshakeTime = 100;
+
+	public AdmissionController(int handshakes, int queueLimit, long timeout) {
+		if (handshakes <= 0)
+			throw new IllegalArgumentException("Invalid handshake limit: " + handshakes);
+		if (queueLimit < 0)
+			throw new IllegalArgumentException("Invalid queue limit: " + queueLimit);
+
+		this.handshakes = handshakes;
+		this.queueLimit = queueLimit;
+		this.timeout = timeout;
+	}
+
+	@Override
+	public void channelActive(ChannelHandlerContext ctx) throws Exception {
+		var channel = ctx.channel();
+
+		boolean admit = false;
+		boolean wait = false;
+		synchronized (this) {
+			if (active < handshakes) {
+				active++;
+				peakActive = Math.max(peakActive, active);
+				admit = true;
+			} else if (queue.size() < queueLimit) {
+				queue.addLast(ctx);
+				peakQueued = Math.max(peakQueued, queue.size());
+				wait = true;
+			}
+		}
+
+		if (admit) {
+			start(ctx);
+		} else if (wait) {
+			// Stop the first read which happens after this event
+			channel.config().setAutoRead(false);
+			channel.closeFuture().addListener(future -> dequeue(ctx));
+			channel.eventLoop().schedule(() -> {
+				if (dequeue(ctx)) {
+					reject(ctx);
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		} else {
+			reject(ctx);
+		}
+	}
+
+	/**
+	 * Give a channel a handshake slot, activate the rest of its pipeline, and
+	 * begin reading from it.
+	 */
+	private void start(ChannelHandlerContext ctx) {
+		var channel = ctx.channel();
+		if (!channel.isActive()) {
+			// It closed while the slot was being passed to it
+			pass();
+			return;
+		}
+		channel.attr(ADMITTED).set(System.nanoTime());
+
+		var handshake_future = channel.attr(ChannelConstant.HANDSHAKE_FUTURE).get();
+		if (handshake_future != null) {
+			handshake_future.addListener(future -> release(channel, future.isSuccess()));
+		}
+		channel.closeFuture().addListener(future -> release(channel, false));
+
+		channel.eventLoop().schedule(() -> {
+			if (channel.attr(ADMITTED).get() != null) {
+				log.debug("Closing channel that exceeded the handshake timeout: {}", channel.id());
+				channel.close();
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+
+		ctx.fireChannelActive();
+		channel.config().setAutoRead(true);
+	}
+
+	/**
+	 * Return a channel's slot, passing it directly to the next waiting channel if
+	 * there is one.
+	 */
+	private void release(Channel channel, boolean success) {
+		Long admitted = channel.attr(ADMITTED).getAndSet(null);
+		if (admitted == null) {
+			return;
+		}
+
+		if (success) {
+			synchronized (this) {
+				long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - admitted);
+				handshakeTime += (elapsed - handshakeTime) / 8;
+			}
+		}
+		pass();
+	}
+
+	/**
+	 * Pass a slot to the next waiting channel or return it if there is none.
+	 */
+	private void pass() {
+		ChannelHandlerContext next;
+		synchronized (this) {
+			next = queue.pollFirst();
+			if (next == null) {
+				active--;
+				return;
+			}
+		}
+
+		next.executor().execute(() -> start(next));
+	}
+
+	/**
+	 * Remove a channel from the queue.
+	 *
+	 * @return Whether the channel was waiting
+	 */
+	private synchronized boolean dequeue(ChannelHandlerContext ctx) {
+		return queue.remove(ctx);
+	}
+
+	/**
+	 * Send a retry-after hint directly to the socket and close the channel.
+	 */
+	private void reject(ChannelHandlerContext ctx) {
+		int delay = retryAfter();
+		log.debug("Deferring channel: {} ({} ms)", ctx.channel().id(), delay);
+
+		// Write from this context so the hint bypasses the TLS handler
+		ctx.writeAndFlush(RetryAfterHandler.encode(ctx.alloc(), delay)).addListener(ChannelFutureListener.CLOSE);
+	}
+
+	/**
+	 * Estimate how long it will take for the current backlog to clear.
+	 */
+	private synchronized int retryAfter() {
+		double backlog = handshakeTime * (active + queue.size()) / handshakes;
+		return (int) Math.max(MIN_DELAY, Math.min(MAX_DELAY, backlog));
+	}
+
+	/**
+	 * @return The number of connections that are handshaking
+	 */
+	public synchronized int active() {
+		return active;
+	}
+
+	/**
+	 * @return The number of connections that are waiting for a slot
+	 */
+	public synchronized int queued() {
+		return queue.size();
+	}
+
+	/**
+	 * @return The maximum number of connections that were handshaking at once
+	 */
+	public synchronized int peakActive() {
+		return peakActive;
+	}
+
+	/**
+	 * @return The maximum number of connections that were waiting at once
+	 */
+	public synchronized int peakQueued() {
+		return peakQueued;
+	}
+}
@@ -22,6 +22,7 @@ import static org.s7s.core.instance.channel.HandlerKey.RESPONSE;
 import static org.s7s.core.instance.channel.HandlerKey.TLS;
 import static org.s7s.core.instance.channel.HandlerKey.TRAFFIC;
 import static org.s7s.core.instance.connection.ConnectionStore.ConnectionStore;
+import static org.s7s.core.server.listener.ListenerStore.ListenerStore;
 
 import java.util.function.Consumer;
 
@@ -43,6 +44,8 @@ import org.s7s.core.instance.handler.ResponseHandler;
 import org.s7s.core.server.proxy.ProxyHandler;
 
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.protobuf.ProtobufDecoder;
@@ -50,6 +53,7 @@ import io.netty.handler.codec.protobuf.ProtobufEncoder;
 import io.netty.handler.codec.protobuf.ProtobufVarint32FrameDecoder;
 import io.netty.handler.codec.protobuf.ProtobufVarint32LengthFieldPrepender;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.handler.ssl.OpenSslSessionContext;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.traffic.ChannelTrafficShapingHandler;
 
@@ -63,6 +67,7 @@ public class ServerChannelInitializer extends ChannelInitializer<Channel> {
 
 	private static final Logger log = LoggerFactory.getLogger(ServerChannelInitializer.class);
 
+	public static final HandlerKey<AdmissionController> ADMISSION = new HandlerKey<>("AdmissionController");
 	public static final HandlerKey<ProxyHandler> PROXY = new HandlerKey<>("ProxyHandler");
 
 	private static final SessionResponseHandler HANDLER_SESSION = new SessionResponseHandler();
@@ -73,6 +78,11 @@ public class ServerChannelInitializer extends ChannelInitializer<Channel> {
 
 	private final SslContext sslCtx;
 
+	/**
+	 * The session ticket keys if they aren't managed by the TLS provider.
+	 */
+	private final SessionTicketKeys ticketKeys;
+
 	/**
 	 * The server's SID.
 	 */
@@ -91,6 +101,13 @@ public class ServerChannelInitializer extends ChannelInitializer<Channel> {
 		} else {
 			sslCtx = null;
 		}
+
+		// Rotating at half the session timeout keeps each key valid for a full timeout
+		if (sslCtx != null && sslCtx.sessionContext() instanceof OpenSslSessionContext context) {
+			ticketKeys = new SessionTicketKeys(context, Math.max(1, config.sessionTimeout / 2));
+		} else {
+			ticketKeys = null;
+		}
 	}
 
 	@Override
@@ -100,10 +117,22 @@ public class ServerChannelInitializer extends ChannelInitializer<Channel> {
 
 		ChannelPipeline p = ch.pipeline();
 
+		// Limit concurrent handshakes before any other work is done
+		var admission = ListenerStore.admission();
+		if (admission != null)
+			p.addLast(ADMISSION.next(p), admission);
+
 		p.addLast(TRAFFIC.next(p), new ChannelTrafficShapingHandler(InstanceContext.TRAFFIC_INTERVAL.get()));
 
-		if (InstanceContext.TLS_ENABLED.get())
-			p.addLast(TLS.next(p), sslCtx.newHandler(ch.alloc()));
+		if (InstanceContext.TLS_ENABLED.get()) {
+			if (ticketKeys != null)
+				ticketKeys.check();
+
+			if (admission != null)
+				p.addLast(TLS.next(p), new AdmittedTlsHandler(sslCtx));
+			else
+				p.addLast(TLS.next(p), sslCtx.newHandler(ch.alloc()));
+		}
 
 		if (InstanceContext.LOG_TRAFFIC_RAW.get())
 			p.addLast(LOG_RAW.next(p), new LoggingHandler(Connection.class));
@@ -127,4 +156,26 @@ public class ServerChannelInitializer extends ChannelInitializer<Channel> {
 		p.addLast(MANAGEMENT.next(p), HANDLER_MANAGEMENT);
 	}
 
+	/**
+	 * Adds the TLS handler once the {@link AdmissionController} activates the
+	 * channel. An accepted channel is already active, so a TLS handler that's
+	 * added immediately would start its handshake timeout while the channel is
+	 * still waiting for admission.
+	 */
+	private static final class AdmittedTlsHandler extends ChannelInboundHandlerAdapter {
+
+		private final SslContext sslCtx;
+
+		AdmittedTlsHandler(SslContext sslCtx) {
+			this.sslCtx = sslCtx;
+		}
+
+		@Override
+		public void channelActive(ChannelHandlerContext ctx) throws Exception {
+			ctx.pipeline().replace(this, ctx.name(), sslCtx.newHandler(ctx.alloc()));
+
+			// Events fired from a replaced context are passed to its replacement
+			ctx.fireChannelActive();
+		}
+	}
 }
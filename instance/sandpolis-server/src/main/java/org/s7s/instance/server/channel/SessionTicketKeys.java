@@ -0,0 +1,92 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.server.channel;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+
+/**
+ * Rotates the keys that protect a server's TLS session tickets. New tickets are
+ * always encrypted with the newest key, but tickets encrypted with the
+ * previous key remain valid for one more period so that rotation doesn't
+ * invalidate every outstanding session at once.
+ *
+ * <p>
+ * The JDK provider rotates its own ticket keys, so rotation is only needed
+ * with the OpenSSL provider.
+ */
+final class SessionTicketKeys {
+
+	private static final Logger log = LoggerFactory.getLogger(SessionTicketKeys.class);
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final OpenSslSessionContext context;
+
+	/**
+	 * The rotation period in nanoseconds.
+	 */
+	private final long period;
+
+	private OpenSslSessionTicketKey current;
+
+	/**
+	 * The time of the last rotation.
+	 */
+	private long rotated;
+
+	/**
+	 * @param context The session context
+	 * @param period  The rotation period in seconds
+	 */
+	SessionTicketKeys(OpenSslSessionContext context, long period) {
+		this.context = context;
+		this.period = TimeUnit.SECONDS.toNanos(period);
+
+		rotate(System.nanoTime());
+	}
+
+	/**
+	 * Rotate the keys if the current key is older than the rotation period.
+	 * Tickets are only issued by new connections, so it's sufficient to call this
+	 * as connections are accepted.
+	 */
+	synchronized void check() {
+		long now = System.nanoTime();
+		if (now - rotated >= period) {
+			rotate(now);
+		}
+	}
+
+	private void rotate(long now) {
+		var previous = current;
+		current = new OpenSslSessionTicketKey(random(OpenSslSessionTicketKey.NAME_SIZE),
+				random(OpenSslSessionTicketKey.HMAC_KEY_SIZE), random(OpenSslSessionTicketKey.AES_KEY_SIZE));
+		rotated = now;
+
+		if (previous == null) {
+			context.setTicketKeys(current);
+		} else {
+			context.setTicketKeys(current, previous);
+		}
+		log.debug("Rotated session ticket keys");
+	}
+
+	private static byte[] random(int size) {
+		byte[] bytes = new byte[size];
+		RANDOM.nextBytes(bytes);
+		return bytes;
+	}
+}
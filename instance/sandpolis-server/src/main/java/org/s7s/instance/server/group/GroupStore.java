@@ -10,6 +10,7 @@ package org.s7s.core.server.group;
 
 import static org.s7s.core.server.user.UserStore.UserStore;
 
+import java.util.List;
 import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
@@ -22,6 +23,7 @@ import org.s7s.core.instance.state.InstanceOids.GroupOid;
 import org.s7s.core.instance.state.st.STDocument;
 import org.s7s.core.instance.store.ConfigurableStore;
 import org.s7s.core.instance.store.STCollectionStore;
+import org.s7s.core.instance.store.STIndex;
 import org.s7s.core.server.group.GroupStore.GroupStoreConfig;
 import org.s7s.core.server.user.User;
 
@@ -34,8 +36,12 @@ public final class GroupStore extends STCollectionStore<Group> implements Config
 
 	private static final Logger log = LoggerFactory.getLogger(GroupStore.class);
 
+	private final STIndex<String, Group> byName;
+
 	public GroupStore() {
 		super(log, Group::new);
+
+		byName = index(GroupOid.NAME, attribute -> List.of(attribute.asString()));
 	}
 
 	/**
@@ -78,7 +84,7 @@ public final class GroupStore extends STCollectionStore<Group> implements Config
 	}
 
 	public Optional<Group> getByName(String name) {
-		return values().stream().filter(group -> name.equals(group.get(GroupOid.NAME).asString())).findAny();
+		return byName.get(name);
 	}
 
 	@Override
@@ -26,13 +26,18 @@ import static org.s7s.core.server.user.UserStore.UserStore;
 
 import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.s7s.core.instance.Entrypoint;
 import org.s7s.core.instance.InitTask;
+import org.s7s.core.instance.InstanceContext;
 import org.s7s.core.foundation.Instance.InstanceType;
 import org.s7s.core.instance.state.oid.Oid;
 import org.s7s.core.instance.state.st.EphemeralDocument;
+import org.s7s.core.instance.util.ChannelUtil;
 import org.s7s.core.instance.util.S7SSessionID;
 import org.s7s.core.server.ServerContext;
 import org.s7s.core.server.auth.AuthExe;
@@ -45,7 +50,6 @@ import org.s7s.core.server.state.STExe;
 import org.s7s.core.server.stream.StreamExe;
 import org.s7s.core.server.user.UserExe;
 
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.util.concurrent.UnorderedThreadPoolEventExecutor;
 
 public class ServerLoadStores extends InitTask {
@@ -77,10 +81,15 @@ public class ServerLoadStores extends InitTask {
 		});
 
 		ThreadStore.init(config -> {
-			config.defaults.put("net.exelet", new NioEventLoopGroup(2));
-			config.defaults.put("net.connection.outgoing", new NioEventLoopGroup(2));
+			config.defaults.put("net.exelet", ChannelUtil.newEventLoopGroup(ChannelUtil.CURRENT_IMPL, 2));
+			config.defaults.put("net.connection.outgoing", ChannelUtil.newEventLoopGroup(ChannelUtil.CURRENT_IMPL, 2));
 			config.defaults.put("net.message.incoming", new UnorderedThreadPoolEventExecutor(2));
 			config.defaults.put("server.generator", Executors.newCachedThreadPool());
+
+			// Password hashing is bounded so a burst of logins can't exhaust the server
+			int auth = Runtime.getRuntime().availableProcessors();
+			config.defaults.put("server.auth",
+					new ThreadPoolExecutor(auth, auth, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1024)));
 			config.defaults.put("store.event_bus", Executors.newSingleThreadExecutor());
 		});
 
@@ -133,6 +142,7 @@ public class ServerLoadStores extends InitTask {
 		LocationStore.init(config -> {
 			config.service = ServerContext.GEOLOCATION_SERVICE.get();
 			config.key = ServerContext.GEOLOCATION_SERVICE_KEY.get();
+			config.database = InstanceContext.PATH_DATA.get().resolve("geoip.db");
 			config.cacheExpiration = Duration.ofDays(10);
 		});
 
@@ -9,6 +9,9 @@
 package org.s7s.core.server.listener;
 
 import static org.s7s.core.instance.network.NetworkStore.NetworkStore;
+import static org.s7s.core.server.listener.ListenerStore.ListenerStore;
+
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,14 +20,9 @@ import org.s7s.core.foundation.S7STcpService;
 import org.s7s.core.instance.state.InstanceOids.ProfileOid.ServerOid.ListenerOid;
 import org.s7s.core.instance.state.st.STDocument;
 import org.s7s.core.instance.state.vst.AbstractSTDomainObject;
-import org.s7s.core.instance.util.ChannelUtil;
 import org.s7s.core.server.channel.ServerChannelInitializer;
 
-import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
-import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.ServerChannel;
 
 /**
  * A network listener that binds to a port and handles new connections.
@@ -36,27 +34,17 @@ public class Listener extends AbstractSTDomainObject {
 	public static final Logger log = LoggerFactory.getLogger(Listener.class);
 
 	/**
-	 * The listening {@link Channel} that is bound to the listening network
+	 * The listening {@link Channel}s that are bound to the listening network
 	 * interface.
 	 */
-	private ServerChannel acceptor;
-
-	/**
-	 * The {@link EventLoopGroup} that handles the {@link ServerChannel}.
-	 */
-	private EventLoopGroup parentLoopGroup;
-
-	/**
-	 * The {@link EventLoopGroup} that handles all spawned {@link Channel}s.
-	 */
-	private EventLoopGroup childLoopGroup;
+	private List<Channel> acceptors;
 
 	Listener(STDocument document) {
 		super(document);
 	}
 
 	public void start() {
-		if (acceptor != null)
+		if (acceptors != null)
 			throw new IllegalStateException("The listener is already running");
 
 		S7STcpService.of(get(ListenerOid.PORT).asInt()).serviceName().ifPresentOrElse(name -> {
@@ -65,21 +53,7 @@ public class Listener extends AbstractSTDomainObject {
 			log.debug("Starting listener on port: {}", get(ListenerOid.PORT));
 		});
 
-		// Build new loop groups to handle socket events
-		parentLoopGroup = ChannelUtil.newEventLoopGroup();
-		childLoopGroup = ChannelUtil.newEventLoopGroup();
-
-		ServerBootstrap b = new ServerBootstrap()
-				// Set the event loop groups
-				.group(parentLoopGroup, childLoopGroup)
-				// Set the channel class
-				.channel(ChannelUtil.getServerChannelType())
-				// Set the number of sockets in the backlog
-				.option(ChannelOption.SO_BACKLOG, 128)
-				// Set the keep-alive option
-				.childOption(ChannelOption.SO_KEEPALIVE, true);
-
-		b.childHandler(new ServerChannelInitializer(config -> {
+		var childHandler = new ServerChannelInitializer(config -> {
 			config.sid = NetworkStore.sid();
 
 			if (get(ListenerOid.CERTIFICATE).isPresent() && get(ListenerOid.PRIVATE_KEY).isPresent()) {
@@ -88,15 +62,16 @@ public class Listener extends AbstractSTDomainObject {
 			} else {
 				config.serverTlsSelfSigned();
 			}
-		}));
+		});
 
 		try {
-			acceptor = (ServerChannel) b.bind(get(ListenerOid.ADDRESS).asString(), get(ListenerOid.PORT).asInt())
-					.await().channel();
-		} catch (InterruptedException e) {
+			acceptors = ListenerStore.bind(get(ListenerOid.ADDRESS).asString(), get(ListenerOid.PORT).asInt(),
+					childHandler);
+		} catch (Exception e) {
 			log.error("Failed to start the listener", e);
-			acceptor = null;
+			acceptors = null;
 			set(ListenerOid.ACTIVE, false);
+			return;
 		}
 		set(ListenerOid.ACTIVE, true);
 	}
@@ -105,18 +80,19 @@ public class Listener extends AbstractSTDomainObject {
 	 * Stop the listener, leaving all spawned {@link Channel}s alive.
 	 */
 	public void stop() {
-		if (acceptor == null)
+		if (acceptors == null)
 			throw new IllegalStateException("The listener is not running");
 
 		log.debug("Stopping listener on port: {}", get(ListenerOid.PORT).asInt());
 
 		try {
-			acceptor.close().sync();
+			for (var acceptor : acceptors) {
+				acceptor.close().sync();
+			}
 		} catch (InterruptedException e) {
 			// Ignore
 		} finally {
-			parentLoopGroup.shutdownGracefully();
-			acceptor = null;
+			acceptors = null;
 			set(ListenerOid.ACTIVE, false);
 		}
 	}
@@ -8,6 +8,9 @@
 //============================================================================//
 package org.s7s.core.server.listener;
 
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.function.Consumer;
@@ -20,8 +23,17 @@ import org.s7s.core.instance.state.InstanceOids.ProfileOid.ServerOid.ListenerOid
 import org.s7s.core.instance.state.st.STDocument;
 import org.s7s.core.instance.store.ConfigurableStore;
 import org.s7s.core.instance.store.STCollectionStore;
+import org.s7s.core.instance.util.ChannelUtil;
+import org.s7s.core.protocol.Channel.ChannelTransportImplementation;
+import org.s7s.core.server.channel.AdmissionController;
 import org.s7s.core.server.listener.ListenerStore.ListenerStoreConfig;
 
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+
 /**
  * {@link ListenerStore} manages network listeners.
  *
@@ -33,6 +45,58 @@ public final class ListenerStore extends STCollectionStore<Listener> implements
 
 		public STDocument collection;
 
+		/**
+		 * The transport that listeners use.
+		 */
+		public ChannelTransportImplementation transport = ChannelUtil.CURRENT_IMPL;
+
+		/**
+		 * The number of sockets that each listener binds to its port. Values greater
+		 * than one require {@code SO_REUSEPORT} and only apply to the epoll
+		 * transport.
+		 */
+		public int acceptors = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+		/**
+		 * The number of threads that handle accepted connections for all listeners
+		 * or 0 for the default.
+		 */
+		public int workers = 0;
+
+		/**
+		 * The maximum length of each socket's queue of pending connections.
+		 */
+		public int backlog = 1024;
+
+		/**
+		 * The number of seconds that an accepted connection may wait for its first
+		 * data before it's handed to a worker or 0 to disable.
+		 */
+		public int deferAccept = 5;
+
+		/**
+		 * The maximum number of pending TCP fast open requests or 0 to disable.
+		 */
+		public int fastOpen = 256;
+
+		/**
+		 * The maximum number of connections that may be handshaking at once across
+		 * all listeners.
+		 */
+		public int handshakes = 4 * Runtime.getRuntime().availableProcessors();
+
+		/**
+		 * The maximum number of connections that may wait for a handshake slot
+		 * before new connections are told to retry later.
+		 */
+		public int handshakeQueue = 1024;
+
+		/**
+		 * The maximum time in milliseconds that a connection may spend waiting for a
+		 * handshake slot or handshaking.
+		 */
+		public int handshakeTimeout = 10000;
+
 		private ListenerStoreConfig(Consumer<ListenerStoreConfig> configurator) {
 			configurator.accept(this);
 		}
@@ -45,10 +109,90 @@ public final class ListenerStore extends STCollectionStore<Listener> implements
 
 	private static final Logger log = LoggerFactory.getLogger(ListenerStore.class);
 
+	private ListenerStoreConfig config;
+
+	/**
+	 * The {@link EventLoopGroup} that accepts connections for all listeners.
+	 */
+	private EventLoopGroup acceptorGroup;
+
+	/**
+	 * The {@link EventLoopGroup} that handles accepted connections for all
+	 * listeners.
+	 */
+	private EventLoopGroup workerGroup;
+
+	/**
+	 * The {@link AdmissionController} that is shared by all listeners.
+	 */
+	private AdmissionController admission;
+
 	public ListenerStore() {
 		super(log, Listener::new);
 	}
 
+	/**
+	 * Bind the acceptor sockets for a listener.
+	 *
+	 * @param address      The local address
+	 * @param port         The local port or 0 for any port
+	 * @param childHandler The handler for accepted connections
+	 * @return The bound acceptor channels
+	 * @throws InterruptedException
+	 */
+	List<Channel> bind(String address, int port, ChannelHandler childHandler) throws InterruptedException {
+		boolean epoll = config.transport == ChannelTransportImplementation.EPOLL;
+
+		var bootstrap = new ServerBootstrap()
+				// Set the event loop groups
+				.group(acceptorGroup, workerGroup)
+				// Set the channel class
+				.channel(ChannelUtil.getServerChannelType(config.transport))
+				// Set the number of sockets in the backlog
+				.option(ChannelOption.SO_BACKLOG, config.backlog)
+				// Set the keep-alive option
+				.childOption(ChannelOption.SO_KEEPALIVE, true)
+				.childHandler(childHandler);
+
+		if (epoll) {
+			bootstrap.option(ChannelUtil.getNativeOption(config.transport, "SO_REUSEPORT"), config.acceptors > 1);
+			if (config.deferAccept > 0) {
+				bootstrap.option(ChannelUtil.getNativeOption(config.transport, "TCP_DEFER_ACCEPT"), config.deferAccept);
+			}
+			if (config.fastOpen > 0) {
+				bootstrap.option(ChannelOption.TCP_FASTOPEN, config.fastOpen);
+			}
+		}
+
+		var acceptors = new ArrayList<Channel>();
+		try {
+			// Each acceptor is registered on the next loop of the group
+			for (int i = 0; i < (epoll ? config.acceptors : 1); i++) {
+				var future = bootstrap.bind(address, port).sync();
+				acceptors.add(future.channel());
+
+				// Bind the other acceptors to the port that was actually chosen
+				port = ((InetSocketAddress) future.channel().localAddress()).getPort();
+			}
+		} catch (Exception e) {
+			// Includes bind failures which are thrown without being declared
+			acceptors.forEach(Channel::close);
+			throw e;
+		}
+		return acceptors;
+	}
+
+	/**
+	 * Get the {@link AdmissionController} that limits concurrent handshakes for all
+	 * listeners.
+	 *
+	 * @return The admission controller or {@code null} if the store isn't
+	 *         initialized
+	 */
+	public AdmissionController admission() {
+		return admission;
+	}
+
 	public Listener create(ListenerConfig config) {
 		Objects.requireNonNull(config);
 
@@ -67,11 +211,24 @@ public final class ListenerStore extends STCollectionStore<Listener> implements
 
 	@Override
 	public void init(Consumer<ListenerStoreConfig> configurator) {
-		var config = new ListenerStoreConfig(configurator);
+		config = new ListenerStoreConfig(configurator);
+
+		acceptorGroup = ChannelUtil.newEventLoopGroup(config.transport,
+				config.transport == ChannelTransportImplementation.EPOLL ? config.acceptors : 1);
+		workerGroup = ChannelUtil.newEventLoopGroup(config.transport, config.workers);
+		admission = new AdmissionController(config.handshakes, config.handshakeQueue, config.handshakeTimeout);
 
 		setDocument(config.collection);
 	}
 
+	@Override
+	public void close() throws Exception {
+		stop();
+
+		acceptorGroup.shutdownGracefully();
+		workerGroup.shutdownGracefully();
+	}
+
 	/**
 	 * Start all enabled, unstarted listeners in the store.
 	 */
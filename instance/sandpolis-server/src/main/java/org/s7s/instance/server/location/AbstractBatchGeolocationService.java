@@ -0,0 +1,87 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.server.location;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.instance.state.oid.Oid;
+
+/**
+ * An {@link AbstractGeolocationService} which can also resolve a batch of IP
+ * addresses in a single request.
+ *
+ * @since 5.1.1
+ */
+public abstract class AbstractBatchGeolocationService extends AbstractGeolocationService {
+
+	private static final Logger log = LoggerFactory.getLogger(AbstractBatchGeolocationService.class);
+
+	protected AbstractBatchGeolocationService(String protocol) {
+		super(protocol);
+	}
+
+	/**
+	 * Build a geolocation query for a batch of IP addresses.
+	 *
+	 * @param fields The desired attributes from {@link IpLocation}
+	 * @return The query
+	 */
+	protected abstract String buildBatchQuery(Oid... fields);
+
+	/**
+	 * Build the request body for a batch of IP addresses.
+	 *
+	 * @param ips The IP addresses
+	 * @return The request body
+	 * @throws Exception
+	 */
+	protected abstract String buildBatchBody(Collection<String> ips) throws Exception;
+
+	/**
+	 * Convert the result of a batch query into {@link IpLocation} objects.
+	 *
+	 * @param result The query result
+	 * @return The locations by IP address
+	 * @throws Exception
+	 */
+	protected abstract Map<String, IpLocation> parseLocations(String result) throws Exception;
+
+	@Override
+	public abstract int batchLimit();
+
+	@Override
+	public CompletableFuture<Map<String, IpLocation>> query(Collection<String> ips, Oid... fields) {
+		HttpRequest.Builder request;
+		try {
+			var url = URI.create(buildBatchQuery(fields));
+			log.debug("Batch query URL: {} ({} addresses)", url, ips.size());
+
+			request = HttpRequest.newBuilder().uri(url).POST(HttpRequest.BodyPublishers.ofString(buildBatchBody(ips)));
+		} catch (Exception e) {
+			return CompletableFuture.failedFuture(e);
+		}
+
+		return send(request).thenApplyAsync(body -> {
+			try {
+				return parseLocations(body);
+			} catch (Exception e) {
+				log.debug("Batch query failed", e);
+				throw new CompletionException(e);
+			}
+		});
+	}
+}
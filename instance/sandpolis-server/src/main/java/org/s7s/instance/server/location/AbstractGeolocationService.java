@@ -25,19 +25,18 @@ import org.s7s.core.server.ServerContext;
 
 /**
  * An {@link AbstractGeolocationService} resolves a set of location attributes
- * for an IP address. The service may use HTTP, HTTPS, or a local file for
- * resolution.
+ * for an IP address over HTTP or HTTPS.
  *
  * @since 5.1.1
  */
-public abstract class AbstractGeolocationService {
+public abstract class AbstractGeolocationService implements GeolocationService {
 
 	private static final Logger log = LoggerFactory.getLogger(AbstractGeolocationService.class);
 
 	private HttpClient client;
 
 	/**
-	 * The application protocol which may be 'http', 'https', or 'file'.
+	 * The application protocol which may be 'http' or 'https'.
 	 */
 	protected final String protocol;
 
@@ -54,8 +53,6 @@ public abstract class AbstractGeolocationService {
 		case "https":
 			client = HttpClient.newHttpClient();
 			break;
-		case "file":
-			break;
 		default:
 			throw new IllegalArgumentException("Unknown protocol");
 		}
@@ -79,19 +76,29 @@ public abstract class AbstractGeolocationService {
 	 */
 	protected abstract IpLocation parseLocation(String result) throws Exception;
 
+	@Override
 	public CompletableFuture<IpLocation> query(String ip, Oid... fields) {
 		var url = URI.create(buildQuery(ip, fields));
 		log.debug("Query URL: {}", url);
 
-		HttpRequest request = HttpRequest.newBuilder().uri(url).timeout(timeout).GET().build();
-
-		return client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).thenApplyAsync(rs -> {
+		return send(HttpRequest.newBuilder().uri(url).GET()).thenApplyAsync(body -> {
 			try {
-				return parseLocation(rs.body());
+				return parseLocation(body);
 			} catch (Exception e) {
 				log.debug("Query failed", e);
 				throw new CompletionException(e);
 			}
 		});
 	}
+
+	/**
+	 * Send a request to the service.
+	 *
+	 * @param request The request which is completed with the timeout
+	 * @return The response body
+	 */
+	protected CompletableFuture<String> send(HttpRequest.Builder request) {
+		return client.sendAsync(request.timeout(timeout).build(), HttpResponse.BodyHandlers.ofString())
+				.thenApply(HttpResponse::body);
+	}
 }
@@ -0,0 +1,64 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.server.location;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.s7s.core.instance.state.oid.Oid;
+
+/**
+ * A {@link GeolocationService} resolves a set of location attributes for an IP
+ * address.
+ *
+ * @since 5.1.1
+ */
+public interface GeolocationService {
+
+	/**
+	 * Resolve the location of an IP address.
+	 *
+	 * @param ip     The IP address
+	 * @param fields The desired attributes from {@link IpLocation}
+	 * @return The location or {@code null} if it's unknown
+	 */
+	public CompletableFuture<IpLocation> query(String ip, Oid... fields);
+
+	/**
+	 * Resolve the locations of a batch of IP addresses. Services that don't
+	 * support batches resolve each address individually.
+	 *
+	 * @param ips    The IP addresses which should number no more than
+	 *               {@link #batchLimit()}
+	 * @param fields The desired attributes from {@link IpLocation}
+	 * @return The locations by IP address which omit unknown locations
+	 */
+	public default CompletableFuture<Map<String, IpLocation>> query(Collection<String> ips, Oid... fields) {
+		var results = new HashMap<String, IpLocation>();
+		return CompletableFuture.allOf(ips.stream().map(ip -> query(ip, fields).thenAccept(location -> {
+			if (location != null) {
+				synchronized (results) {
+					results.put(ip, location);
+				}
+			}
+		})).toArray(CompletableFuture[]::new)).thenApply(v -> results);
+	}
+
+	/**
+	 * Get the maximum number of IP addresses that the service can resolve in a
+	 * single request. Services that don't support batches return 1.
+	 *
+	 * @return The batch size limit
+	 */
+	public default int batchLimit() {
+		return 1;
+	}
+}
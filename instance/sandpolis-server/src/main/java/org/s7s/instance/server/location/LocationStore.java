@@ -8,9 +8,14 @@
 //============================================================================//
 package org.s7s.core.server.location;
 
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
@@ -20,47 +25,95 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import org.s7s.core.foundation.S7SString;
+import org.s7s.core.foundation.S7SIPAddress;
 import org.s7s.core.instance.state.oid.Oid;
 import org.s7s.core.instance.store.ConfigurableStore;
 import org.s7s.core.instance.store.StoreBase;
 import org.s7s.core.server.location.LocationStore.LocationStoreConfig;
+import org.s7s.core.server.location.services.GeoIpFile;
 import org.s7s.core.server.location.services.IpApi;
 import org.s7s.core.server.location.services.KeyCdn;
 
+/**
+ * Resolves and caches the locations of IP addresses.
+ *
+ * <p>
+ * Concurrent queries for the same address share a single request to the
+ * location service. Queries for distinct addresses are held for a short delay
+ * and sent together if the service supports batches. Addresses that aren't
+ * public or that the service couldn't resolve are remembered so they aren't
+ * queried again.
+ */
 public class LocationStore extends StoreBase implements ConfigurableStore<LocationStoreConfig> {
 
 	private static final Logger log = LoggerFactory.getLogger(LocationStore.class);
 
+	/**
+	 * An outstanding query for an address and a set of attributes.
+	 */
+	private record Request(String ip, List<Oid> fields) {
+	}
+
 	private Cache<String, IpLocation> cache;
 
-	private AbstractGeolocationService service;
+	/**
+	 * Addresses which the location service couldn't resolve.
+	 */
+	private Cache<String, Boolean> unresolved;
+
+	/**
+	 * Queries which haven't completed yet.
+	 */
+	private final Map<Request, CompletableFuture<IpLocation>> inflight = new ConcurrentHashMap<>();
+
+	/**
+	 * Queries which haven't been sent yet by attribute set.
+	 */
+	private final Map<List<Oid>, Map<String, CompletableFuture<IpLocation>>> batches = new HashMap<>();
+
+	private GeolocationService service;
+
+	private Duration batchDelay;
 
 	public LocationStore() {
 		super(log);
 	}
 
-	public Future<IpLocation> queryAsync(String ip, Oid... fields) {
-		// Private IPs should not be resolved
-		if (S7SString.of(ip).isPrivateIPv4()) {
+	public CompletableFuture<IpLocation> queryAsync(String ip, Oid... fields) {
+		// Private and reserved IPs should not be resolved
+		try {
+			if (!S7SIPAddress.of(ip).isPublic()) {
+				return CompletableFuture.completedFuture(null);
+			}
+		} catch (IllegalArgumentException e) {
 			return CompletableFuture.completedFuture(null);
 		}
 
-		// Check cache
-		synchronized (cache) {
-			var location = cache.getIfPresent(ip);
-			if (location != null)
-				return CompletableFuture.completedFuture(location);
+		// Check caches
+		var location = cache.getIfPresent(ip);
+		if (location != null)
+			return CompletableFuture.completedFuture(location);
+		if (unresolved.getIfPresent(ip) != null)
+			return CompletableFuture.completedFuture(null);
+
+		// Join an outstanding query if there is one
+		var request = new Request(ip, List.of(fields));
+		var future = new CompletableFuture<IpLocation>();
+		var existing = inflight.putIfAbsent(request, future);
+		if (existing != null)
+			return existing;
+
+		future.whenComplete((result, e) -> inflight.remove(request, future));
+
+		// The previous query may have completed since the cache was checked
+		location = cache.getIfPresent(ip);
+		if (location != null) {
+			future.complete(location);
+			return future;
 		}
 
-		return service.query(ip, fields).thenApply(location -> {
-			if (location != null) {
-				synchronized (cache) {
-					cache.put(ip, location);
-				}
-			}
-			return location;
-		});
+		submit(request, future);
+		return future;
 	}
 
 	public IpLocation query(String ip, long timeout) {
@@ -75,14 +128,91 @@ public class LocationStore extends StoreBase implements ConfigurableStore<Locati
 		}
 	}
 
+	/**
+	 * Add a query to the batch for its attributes and send the batch if it's full.
+	 */
+	private void submit(Request request, CompletableFuture<IpLocation> future) {
+		if (service.batchLimit() == 1) {
+			send(request.fields(), Map.of(request.ip(), future));
+			return;
+		}
+
+		Map<String, CompletableFuture<IpLocation>> full = null;
+		synchronized (batches) {
+			var batch = batches.get(request.fields());
+			if (batch == null) {
+				var created = new HashMap<String, CompletableFuture<IpLocation>>();
+				batches.put(request.fields(), created);
+
+				CompletableFuture.delayedExecutor(batchDelay.toMillis(), TimeUnit.MILLISECONDS).execute(() -> {
+					synchronized (batches) {
+						if (!batches.remove(request.fields(), created))
+							return;
+					}
+					send(request.fields(), created);
+				});
+				batch = created;
+			}
+
+			batch.put(request.ip(), future);
+			if (batch.size() >= service.batchLimit()) {
+				batches.remove(request.fields());
+				full = batch;
+			}
+		}
+
+		if (full != null) {
+			send(request.fields(), full);
+		}
+	}
+
+	private void send(List<Oid> fields, Map<String, CompletableFuture<IpLocation>> batch) {
+		var attributes = fields.toArray(Oid[]::new);
+
+		if (batch.size() == 1) {
+			var entry = batch.entrySet().iterator().next();
+			service.query(entry.getKey(), attributes).whenComplete((location, e) -> {
+				complete(entry.getKey(), entry.getValue(), location, e);
+			});
+		} else {
+			log.debug("Querying location service for {} addresses", batch.size());
+			service.query(new ArrayList<>(batch.keySet()), attributes).whenComplete((locations, e) -> {
+				batch.forEach((ip, future) -> {
+					complete(ip, future, e == null ? locations.get(ip) : null, e);
+				});
+			});
+		}
+	}
+
+	private void complete(String ip, CompletableFuture<IpLocation> future, IpLocation location, Throwable e) {
+		if (e != null) {
+			// Failed queries may succeed later, so they aren't remembered
+			future.completeExceptionally(e);
+			return;
+		}
+
+		if (location != null) {
+			cache.put(ip, location);
+		} else {
+			unresolved.put(ip, Boolean.TRUE);
+		}
+		future.complete(location);
+	}
+
 	@Override
 	public void init(Consumer<LocationStoreConfig> configurator) {
 		var config = new LocationStoreConfig(configurator);
 
 		// Initialize cache
 		cache = CacheBuilder.newBuilder().expireAfterWrite(config.cacheExpiration).build();
+		unresolved = CacheBuilder.newBuilder().expireAfterWrite(config.negativeExpiration).build();
+		batchDelay = config.batchDelay;
 
 		// Initialize location service
+		if (config.provider != null) {
+			service = config.provider;
+			return;
+		}
 		switch (config.service) {
 		case "ip-api.com":
 			if (config.key == null) {
@@ -94,6 +224,9 @@ public class LocationStore extends StoreBase implements ConfigurableStore<Locati
 		case "tools.keycdn.com":
 			service = new KeyCdn();
 			break;
+		case "file":
+			service = new GeoIpFile(config.database);
+			break;
 		}
 	}
 
@@ -109,11 +242,32 @@ public class LocationStore extends StoreBase implements ConfigurableStore<Locati
 		 */
 		public String key;
 
+		/**
+		 * The database file for the 'file' service.
+		 */
+		public Path database;
+
 		/**
 		 * The amount of time location queries are cached.
 		 */
 		public Duration cacheExpiration = Duration.ofHours(6);
 
+		/**
+		 * The amount of time addresses that couldn't be resolved are remembered.
+		 */
+		public Duration negativeExpiration = Duration.ofHours(1);
+
+		/**
+		 * The amount of time queries are held for a batch if the location service
+		 * supports batches.
+		 */
+		public Duration batchDelay = Duration.ofMillis(20);
+
+		/**
+		 * A location service to use instead of {@link #service}.
+		 */
+		public GeolocationService provider;
+
 		private LocationStoreConfig(Consumer<LocationStoreConfig> configurator) {
 			configurator.accept(this);
 		}
@@ -0,0 +1,417 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.server.location.services;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A read-only geolocation database of IPv4 and IPv6 address ranges which is
+ * memory-mapped and searched without locking.
+ *
+ * <p>
+ * The file begins with a header which is followed by a table of IPv4 ranges, a
+ * table of IPv6 ranges, a table of locations, and the locations' strings. Each
+ * range table is sorted by the range's first address and the ranges don't
+ * overlap. Every value is big-endian.
+ *
+ * <pre>
+ * header:   magic (8), IPv4 count (4), IPv6 count (4), location count (4), reserved (4)
+ * IPv4:     first (4), last (4), location (4)
+ * IPv6:     first (16), last (16), location (4)
+ * location: string offsets (4 each), latitude (8), longitude (8), AS code (4)
+ * string:   length (2), UTF-8 bytes
+ * </pre>
+ *
+ * Databases are created from CSV files with {@link #convert}.
+ */
+public final class GeoIpDatabase {
+
+	/**
+	 * A location from the database. Absent strings are {@code null} and absent
+	 * coordinates are {@code NaN}.
+	 */
+	public static record Location(String countryCode, String country, String regionCode, String region, String city,
+			String postalCode, String timezone, String isp, double latitude, double longitude, int asCode) {
+	}
+
+	private static final byte[] MAGIC = "S7SGEO01".getBytes(StandardCharsets.US_ASCII);
+
+	private static final int HEADER_SIZE = 24;
+
+	private static final int IPV4_SIZE = 12;
+
+	private static final int IPV6_SIZE = 36;
+
+	private static final int STRINGS = 8;
+
+	private static final int LOCATION_SIZE = STRINGS * 4 + 8 + 8 + 4;
+
+	private final MappedByteBuffer buffer;
+
+	private final int ipv4Count;
+
+	private final int ipv6Count;
+
+	private final int ipv6Offset;
+
+	private final int locationOffset;
+
+	private final int locationCount;
+
+	private final int stringOffset;
+
+	private GeoIpDatabase(MappedByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+
+		byte[] magic = new byte[MAGIC.length];
+		buffer.get(0, magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new IOException("Unknown database format");
+		}
+
+		ipv4Count = buffer.getInt(8);
+		ipv6Count = buffer.getInt(12);
+		locationCount = buffer.getInt(16);
+
+		ipv6Offset = HEADER_SIZE + ipv4Count * IPV4_SIZE;
+		locationOffset = ipv6Offset + ipv6Count * IPV6_SIZE;
+		stringOffset = locationOffset + locationCount * LOCATION_SIZE;
+
+		if (ipv4Count < 0 || ipv6Count < 0 || locationCount < 0 || stringOffset > buffer.capacity()) {
+			throw new IOException("Truncated database");
+		}
+	}
+
+	/**
+	 * Map a database file into memory.
+	 *
+	 * @param file The database file
+	 * @return The database
+	 * @throws IOException
+	 */
+	public static GeoIpDatabase open(Path file) throws IOException {
+		try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return new GeoIpDatabase(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * @return The number of ranges in the database
+	 */
+	public int size() {
+		return ipv4Count + ipv6Count;
+	}
+
+	/**
+	 * Find the location of an address.
+	 *
+	 * @param address The address
+	 * @return The address's location if it's in the database
+	 * @throws IOException If the location refers to data outside of the database
+	 */
+	public Optional<Location> lookup(InetAddress address) throws IOException {
+		byte[] bytes = address.getAddress();
+
+		int location;
+		if (address instanceof Inet4Address) {
+			location = searchIPv4(ByteBuffer.wrap(bytes).getInt());
+		} else {
+			var wrapped = ByteBuffer.wrap(bytes);
+			location = searchIPv6(wrapped.getLong(), wrapped.getLong());
+		}
+
+		if (location < 0 || location >= locationCount) {
+			return Optional.empty();
+		}
+		return Optional.of(readLocation(location));
+	}
+
+	/**
+	 * Find the location index of the IPv4 range containing an address.
+	 */
+	private int searchIPv4(int address) {
+		int low = 0;
+		int high = ipv4Count - 1;
+
+		// Find the last range that begins at or before the address
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (Integer.compareUnsigned(buffer.getInt(HEADER_SIZE + mid * IPV4_SIZE), address) <= 0) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		if (high < 0) {
+			return -1;
+		}
+
+		int entry = HEADER_SIZE + high * IPV4_SIZE;
+		if (Integer.compareUnsigned(address, buffer.getInt(entry + 4)) > 0) {
+			return -1;
+		}
+		return buffer.getInt(entry + 8);
+	}
+
+	/**
+	 * Find the location index of the IPv6 range containing an address.
+	 */
+	private int searchIPv6(long upper, long lower) {
+		int low = 0;
+		int high = ipv6Count - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int entry = ipv6Offset + mid * IPV6_SIZE;
+			if (compare(buffer.getLong(entry), buffer.getLong(entry + 8), upper, lower) <= 0) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		if (high < 0) {
+			return -1;
+		}
+
+		int entry = ipv6Offset + high * IPV6_SIZE;
+		if (compare(upper, lower, buffer.getLong(entry + 16), buffer.getLong(entry + 24)) > 0) {
+			return -1;
+		}
+		return buffer.getInt(entry + 32);
+	}
+
+	private static int compare(long upper1, long lower1, long upper2, long lower2) {
+		int c = Long.compareUnsigned(upper1, upper2);
+		return c != 0 ? c : Long.compareUnsigned(lower1, lower2);
+	}
+
+	private Location readLocation(int index) throws IOException {
+		int entry = locationOffset + index * LOCATION_SIZE;
+
+		var strings = new String[STRINGS];
+		for (int i = 0; i < STRINGS; i++) {
+			strings[i] = readString(buffer.getInt(entry + i * 4));
+		}
+
+		int numbers = entry + STRINGS * 4;
+		return new Location(strings[0], strings[1], strings[2], strings[3], strings[4], strings[5], strings[6],
+				strings[7], buffer.getDouble(numbers), buffer.getDouble(numbers + 8), buffer.getInt(numbers + 16));
+	}
+
+	private String readString(int offset) throws IOException {
+		if (offset < 0) {
+			return null;
+		}
+		if ((long) stringOffset + offset + 2 > buffer.capacity()) {
+			throw new IOException("Invalid string offset: " + offset);
+		}
+
+		int length = Short.toUnsignedInt(buffer.getShort(stringOffset + offset));
+		if ((long) stringOffset + offset + 2 + length > buffer.capacity()) {
+			throw new IOException("Invalid string length: " + length);
+		}
+
+		byte[] bytes = new byte[length];
+		buffer.get(stringOffset + offset + 2, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static record Range(byte[] first, byte[] last, int location) {
+	}
+
+	/**
+	 * Convert a CSV file of address ranges into a database. Each line has the
+	 * columns:
+	 *
+	 * <pre>
+	 * first,last,country_code,country,region_code,region,city,postal_code,timezone,isp,latitude,longitude,as_code
+	 * </pre>
+	 *
+	 * Empty columns are absent. Blank lines, lines that begin with '#', and a
+	 * header line that begins with "first" are ignored.
+	 *
+	 * @param csv    The input file
+	 * @param output The output database file
+	 * @throws IOException
+	 */
+	public static void convert(Path csv, Path output) throws IOException {
+		var locations = new LinkedHashMap<Location, Integer>();
+		var ipv4 = new ArrayList<Range>();
+		var ipv6 = new ArrayList<Range>();
+
+		int number = 0;
+		for (var line : Files.readAllLines(csv, StandardCharsets.UTF_8)) {
+			number++;
+			if (line.isBlank() || line.startsWith("#") || line.startsWith("first")) {
+				continue;
+			}
+
+			var columns = split(line);
+			if (columns.size() != 13) {
+				throw new IOException("Expected 13 columns on line " + number);
+			}
+
+			byte[] first = parseAddress(columns.get(0), number);
+			byte[] last = parseAddress(columns.get(1), number);
+			if (first.length != last.length || Arrays.compareUnsigned(first, last) > 0) {
+				throw new IOException("Invalid range on line " + number);
+			}
+
+			var location = new Location(string(columns.get(2)), string(columns.get(3)), string(columns.get(4)),
+					string(columns.get(5)), string(columns.get(6)), string(columns.get(7)), string(columns.get(8)),
+					string(columns.get(9)), number(columns.get(10)), number(columns.get(11)),
+					columns.get(12).isBlank() ? 0 : Integer.parseInt(columns.get(12).strip()));
+
+			var range = new Range(first, last, locations.computeIfAbsent(location, l -> locations.size()));
+			(first.length == 4 ? ipv4 : ipv6).add(range);
+		}
+
+		sort(ipv4);
+		sort(ipv6);
+
+		// Build the string area, sharing repeated strings
+		var strings = new ByteArrayOutputStream();
+		var offsets = new HashMap<String, Integer>();
+
+		try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(output)))) {
+			out.write(MAGIC);
+			out.writeInt(ipv4.size());
+			out.writeInt(ipv6.size());
+			out.writeInt(locations.size());
+			out.writeInt(0);
+
+			for (var range : ipv4) {
+				out.write(range.first());
+				out.write(range.last());
+				out.writeInt(range.location());
+			}
+			for (var range : ipv6) {
+				out.write(range.first());
+				out.write(range.last());
+				out.writeInt(range.location());
+			}
+
+			for (var location : locations.keySet()) {
+				for (var string : new String[] { location.countryCode(), location.country(), location.regionCode(),
+						location.region(), location.city(), location.postalCode(), location.timezone(),
+						location.isp() }) {
+					out.writeInt(string == null ? -1 : offsets.computeIfAbsent(string, k -> writeString(strings, k)));
+				}
+				out.writeDouble(location.latitude());
+				out.writeDouble(location.longitude());
+				out.writeInt(location.asCode());
+			}
+
+			strings.writeTo(out);
+		}
+	}
+
+	private static int writeString(ByteArrayOutputStream strings, String string) {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("String too long");
+		}
+
+		int offset = strings.size();
+		strings.write(bytes.length >> 8);
+		strings.write(bytes.length);
+		strings.writeBytes(bytes);
+		return offset;
+	}
+
+	/**
+	 * Sort ranges by their first address and check that none overlap.
+	 */
+	private static void sort(List<Range> ranges) throws IOException {
+		ranges.sort(Comparator.comparing(Range::first, Arrays::compareUnsigned));
+
+		for (int i = 1; i < ranges.size(); i++) {
+			if (Arrays.compareUnsigned(ranges.get(i - 1).last(), ranges.get(i).first()) >= 0) {
+				throw new IOException("Overlapping ranges: " + InetAddress.getByAddress(ranges.get(i).first()));
+			}
+		}
+	}
+
+	private static byte[] parseAddress(String address, int line) throws IOException {
+		address = address.strip();
+
+		// Only accept literals so that nothing is resolved by DNS
+		if (address.isEmpty() || !(address.contains(":") || address.matches("[0-9.]+"))) {
+			throw new IOException("Invalid address on line " + line);
+		}
+		try {
+			return InetAddress.getByName(address).getAddress();
+		} catch (UnknownHostException e) {
+			throw new IOException("Invalid address on line " + line, e);
+		}
+	}
+
+	private static String string(String column) {
+		return column.isEmpty() ? null : column;
+	}
+
+	private static double number(String column) {
+		return column.isBlank() ? Double.NaN : Double.parseDouble(column.strip());
+	}
+
+	/**
+	 * Split a CSV line into columns, allowing quoted columns to contain commas and
+	 * escaped quotes.
+	 */
+	private static List<String> split(String line) {
+		var columns = new ArrayList<String>();
+		var column = new StringBuilder();
+		boolean quoted = false;
+
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					column.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					column.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				columns.add(column.toString());
+				column.setLength(0);
+			} else {
+				column.append(c);
+			}
+		}
+		columns.add(column.toString());
+		return columns;
+	}
+}
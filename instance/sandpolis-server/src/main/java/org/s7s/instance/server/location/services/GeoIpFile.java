@@ -0,0 +1,83 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.server.location.services;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import org.s7s.core.instance.state.InstanceOids.ProfileOid.AgentOid.IpLocationOid;
+import org.s7s.core.instance.state.oid.Oid;
+import org.s7s.core.server.location.GeolocationService;
+import org.s7s.core.server.location.IpLocation;
+
+/**
+ * This {@link GeolocationService} implementation resolves locations from a
+ * local {@link GeoIpDatabase} without network access.
+ */
+public final class GeoIpFile implements GeolocationService {
+
+	private final GeoIpDatabase database;
+
+	public GeoIpFile(Path file) {
+		try {
+			this.database = GeoIpDatabase.open(file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public CompletableFuture<IpLocation> query(String ip, Oid... fields) {
+		try {
+			return CompletableFuture.completedFuture(lookup(ip, fields));
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	private IpLocation lookup(String ip, Oid... fields) throws IOException {
+		var result = database.lookup(InetAddress.getByName(ip));
+		if (result.isEmpty()) {
+			return null;
+		}
+
+		Set<Oid> requested = Arrays.stream(fields).collect(Collectors.toSet());
+		var location = new IpLocation(null);
+		var entry = result.get();
+
+		set(location, requested, IpLocationOid.COUNTRY_CODE, entry.countryCode());
+		set(location, requested, IpLocationOid.COUNTRY, entry.country());
+		set(location, requested, IpLocationOid.REGION_CODE, entry.regionCode());
+		set(location, requested, IpLocationOid.REGION, entry.region());
+		set(location, requested, IpLocationOid.CITY, entry.city());
+		set(location, requested, IpLocationOid.POSTAL_CODE, entry.postalCode());
+		set(location, requested, IpLocationOid.TIMEZONE, entry.timezone());
+		set(location, requested, IpLocationOid.ISP, entry.isp());
+		if (!Double.isNaN(entry.latitude()))
+			set(location, requested, IpLocationOid.LATITUDE, entry.latitude());
+		if (!Double.isNaN(entry.longitude()))
+			set(location, requested, IpLocationOid.LONGITUDE, entry.longitude());
+		if (entry.asCode() != 0)
+			set(location, requested, IpLocationOid.AS_CODE, entry.asCode());
+
+		return location;
+	}
+
+	private static void set(IpLocation location, Set<Oid> requested, Oid oid, Object value) {
+		if (value != null && (requested.isEmpty() || requested.contains(oid))) {
+			location.set(oid, value);
+		}
+	}
+}
@@ -9,21 +9,25 @@
 package org.s7s.core.server.location.services;
 
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
 import java.util.stream.Collectors;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableBiMap;
 import org.s7s.core.instance.state.InstanceOids.ProfileOid.AgentOid.IpLocationOid;
 import org.s7s.core.instance.state.oid.Oid;
-import org.s7s.core.server.location.AbstractGeolocationService;
+import org.s7s.core.server.location.AbstractBatchGeolocationService;
 import org.s7s.core.server.location.IpLocation;
 
 /**
- * This {@link AbstractGeolocationService} implementation interacts with
+ * This {@link AbstractBatchGeolocationService} implementation interacts with
  * <a href="https://ip-api.com/">https://ip-api.com</a>.
  */
-public final class IpApi extends AbstractGeolocationService {
+public final class IpApi extends AbstractBatchGeolocationService {
 
 	/**
 	 * The fields provided by the location service associated with {@link Oid}s.
@@ -47,6 +51,13 @@ public final class IpApi extends AbstractGeolocationService {
 			.put(IpLocationOid.TIMEZONE, "timezone") //
 			.build();
 
+	/**
+	 * The maximum number of addresses in a batch query.
+	 */
+	private static final int BATCH_LIMIT = 100;
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
 	private String key;
 
 	public IpApi() {
@@ -63,15 +74,56 @@ public final class IpApi extends AbstractGeolocationService {
 		if (fields.length == 0) {
 			return String.format("%s://ip-api.com/json/%s", protocol, ip);
 		} else {
-			return String.format("%s://ip-api.com/json/%s?fields=%s", protocol, ip, Arrays.stream(fields)
+			return String.format("%s://ip-api.com/json/%s?fields=status,%s", protocol, ip, Arrays.stream(fields)
 					.filter(JSON_FIELDS::containsKey).map(JSON_FIELDS::get).collect(Collectors.joining(",")));
 		}
 	}
 
+	@Override
+	protected String buildBatchQuery(Oid... fields) {
+		if (fields.length == 0) {
+			return String.format("%s://ip-api.com/batch", protocol);
+		} else {
+			return String.format("%s://ip-api.com/batch?fields=status,query,%s", protocol, Arrays.stream(fields)
+					.filter(JSON_FIELDS::containsKey).map(JSON_FIELDS::get).collect(Collectors.joining(",")));
+		}
+	}
+
+	@Override
+	protected String buildBatchBody(Collection<String> ips) throws Exception {
+		return MAPPER.writeValueAsString(ips);
+	}
+
+	@Override
+	public int batchLimit() {
+		return BATCH_LIMIT;
+	}
+
 	@Override
 	protected IpLocation parseLocation(String result) throws Exception {
+		return parseLocation(MAPPER.readTree(result));
+	}
+
+	@Override
+	protected Map<String, IpLocation> parseLocations(String result) throws Exception {
+		var locations = new HashMap<String, IpLocation>();
+		for (var node : MAPPER.readTree(result)) {
+			var location = parseLocation(node);
+			if (location != null && node.has("query")) {
+				locations.put(node.get("query").asText(), location);
+			}
+		}
+		return locations;
+	}
+
+	private IpLocation parseLocation(JsonNode result) {
+		// Reserved and unknown addresses are reported with a failed status
+		if ("fail".equals(result.path("status").asText())) {
+			return null;
+		}
+
 		IpLocation location = new IpLocation(null);
-		new ObjectMapper().readTree(result).fields().forEachRemaining(entry -> {
+		result.fields().forEachRemaining(entry -> {
 			switch (entry.getKey()) {
 			case "as":
 				location.set(IpLocationOid.AS_CODE, entry.getValue().asInt());
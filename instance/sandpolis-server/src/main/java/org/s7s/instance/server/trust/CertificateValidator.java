@@ -0,0 +1,165 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.server.trust;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Validates certificates against a fixed set of trust anchors and caches the
+ * results by certificate fingerprint. A new validator should be created
+ * whenever the trust anchors change.
+ *
+ * <p>
+ * Successful validations are cached until the certificate expires. Failed
+ * validations are cached for a short time, or until the certificate becomes
+ * valid if it isn't yet.
+ */
+final class CertificateValidator {
+
+	/**
+	 * How long a failed validation is cached in milliseconds.
+	 */
+	private static final long NEGATIVE_EXPIRATION = TimeUnit.MINUTES.toMillis(10);
+
+	/**
+	 * The maximum number of cached results.
+	 */
+	private static final int CACHE_LIMIT = 1024;
+
+	private static record Result(boolean valid, long expiration) {
+	}
+
+	/**
+	 * The validation parameters which are never modified after construction, or
+	 * {@code null} if there are no trust anchors.
+	 */
+	private final PKIXParameters params;
+
+	private final Map<String, Result> results = new ConcurrentHashMap<>();
+
+	private final LongSupplier clock;
+
+	/**
+	 * The number of validations that weren't answered by the cache.
+	 */
+	private final LongAdder validations = new LongAdder();
+
+	CertificateValidator(Collection<X509Certificate> anchors) {
+		this(anchors, System::currentTimeMillis);
+	}
+
+	CertificateValidator(Collection<X509Certificate> anchors, LongSupplier clock) {
+		this.clock = clock;
+
+		if (anchors.isEmpty()) {
+			params = null;
+			return;
+		}
+
+		try {
+			params = new PKIXParameters(
+					anchors.stream().map(cert -> new TrustAnchor(cert, null)).collect(Collectors.toSet()));
+			params.setRevocationEnabled(false);
+		} catch (InvalidAlgorithmParameterException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Validate a certificate against the trust anchors.
+	 *
+	 * @param cert The certificate
+	 * @return Whether the certificate could be validated
+	 */
+	boolean verify(X509Certificate cert) {
+		String fingerprint = fingerprint(cert);
+		long now = clock.getAsLong();
+
+		var result = results.get(fingerprint);
+		if (result != null && now < result.expiration()) {
+			return result.valid();
+		}
+
+		result = validate(cert, now);
+		if (results.size() >= CACHE_LIMIT) {
+			results.values().removeIf(r -> now >= r.expiration());
+			if (results.size() >= CACHE_LIMIT) {
+				results.clear();
+			}
+		}
+		results.put(fingerprint, result);
+		return result.valid();
+	}
+
+	/**
+	 * @return The number of cached results
+	 */
+	int size() {
+		return results.size();
+	}
+
+	/**
+	 * @return The number of validations that weren't answered by the cache
+	 */
+	long validations() {
+		return validations.sum();
+	}
+
+	private Result validate(X509Certificate cert, long now) {
+		validations.increment();
+
+		if (params != null) {
+			try {
+				CertPathValidator.getInstance("PKIX")
+						.validate(CertificateFactory.getInstance("X.509").generateCertPath(List.of(cert)), params);
+				return new Result(true, cert.getNotAfter().getTime());
+			} catch (CertPathValidatorException | CertificateException e) {
+				// Fall through
+			} catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		long expiration = now + NEGATIVE_EXPIRATION;
+
+		// The certificate may be rejected only because it isn't valid yet
+		long notBefore = cert.getNotBefore().getTime();
+		if (notBefore > now) {
+			expiration = Math.min(expiration, notBefore);
+		}
+		return new Result(false, expiration);
+	}
+
+	private static String fingerprint(X509Certificate cert) {
+		try {
+			return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(cert.getEncoded()));
+		} catch (NoSuchAlgorithmException | CertificateEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
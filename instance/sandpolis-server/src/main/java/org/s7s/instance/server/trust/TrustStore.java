@@ -8,30 +8,24 @@
 //============================================================================//
 package org.s7s.core.server.trust;
 
-import java.security.InvalidAlgorithmParameterException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertPathValidator;
-import java.security.cert.CertPathValidatorException;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.PKIXParameters;
 import java.security.cert.X509Certificate;
-import java.util.List;
+import java.util.ArrayList;
 import java.util.Objects;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.s7s.core.foundation.S7SCertificate;
 import org.s7s.core.instance.state.InstanceOids.TrustAnchorOid;
+import org.s7s.core.instance.state.st.STAttribute;
 import org.s7s.core.instance.state.st.STDocument;
 import org.s7s.core.instance.store.ConfigurableStore;
 import org.s7s.core.instance.store.STCollectionStore;
 import org.s7s.core.server.trust.TrustStore.TrustStoreConfig;
 
+import com.google.common.eventbus.Subscribe;
+
 /**
  * The {@link TrustStore} contains trust anchors for plugin certificate
  * authorities.
@@ -57,6 +51,12 @@ public final class TrustStore extends STCollectionStore<TrustAnchor> implements
 	 */
 	public static final TrustStore TrustStore = new TrustStore();
 
+	/**
+	 * Validates certificates against the current trust anchors. It's replaced
+	 * whenever the trust anchors change.
+	 */
+	private CertificateValidator validator;
+
 	public TrustStore() {
 		super(log, TrustAnchor::new);
 	}
@@ -85,27 +85,51 @@ public final class TrustStore extends STCollectionStore<TrustAnchor> implements
 	public boolean verifyPluginCertificate(X509Certificate cert) {
 		Objects.requireNonNull(cert);
 
-		PKIXParameters params;
-		try (Stream<TrustAnchor> stream = values().stream()) {
-			params = new PKIXParameters(stream
-					.map(t -> new java.security.cert.TrustAnchor(t.get(TrustAnchorOid.CERTIFICATE).asX590Certificate(),
-							null))
-					.collect(Collectors.toSet()));
-			params.setRevocationEnabled(false);
-		} catch (InvalidAlgorithmParameterException e) {
-			throw new RuntimeException(e);
+		if (validator().verify(cert)) {
+			log.debug("Successfully verified certificate: {}", cert.getSerialNumber());
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get the validator for the current trust anchors. The anchors are read from
+	 * the collection rather than the store's objects which may not have been
+	 * updated yet.
+	 */
+	private synchronized CertificateValidator validator() {
+		if (validator == null) {
+			var anchors = new ArrayList<X509Certificate>();
+			collection.forEachDocument(document -> {
+				var certificate = new TrustAnchor(document).get(TrustAnchorOid.CERTIFICATE);
+				if (certificate.isPresent()) {
+					anchors.add(certificate.asX590Certificate());
+				}
+			});
+			validator = new CertificateValidator(anchors);
+		}
+		return validator;
+	}
+
+	@Subscribe
+	synchronized void invalidate(STDocument.DocumentAddedEvent event) {
+		if (event.document() == collection) {
+			validator = null;
 		}
+	}
 
-		try {
-			CertPathValidator.getInstance("PKIX")
-					.validate(CertificateFactory.getInstance("X.509").generateCertPath(List.of(cert)), params);
-		} catch (CertPathValidatorException | CertificateException e) {
-			return false;
-		} catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
-			throw new RuntimeException(e);
+	@Subscribe
+	synchronized void invalidate(STDocument.DocumentRemovedEvent event) {
+		if (event.document() == collection) {
+			validator = null;
 		}
+	}
 
-		log.debug("Successfully verified certificate: {}", cert.getSerialNumber());
-		return true;
+	@Subscribe
+	synchronized void invalidate(STAttribute.ChangeEvent event) {
+		var document = event.attribute().parent();
+		if (document != null && document.parent() == collection) {
+			validator = null;
+		}
 	}
 }
@@ -0,0 +1,215 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.server.user;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.s7s.core.foundation.S7SRandom;
+import org.s7s.core.instance.state.st.STDocument;
+
+/**
+ * Issues signed, expiring tokens that allow a user to log in again without
+ * their password.
+ *
+ * <p>
+ * A token has the form {@code <id>.<expiration>.<signature>} where the
+ * signature is an HMAC of the ID and expiration. Verifying a token is a single
+ * HMAC and document lookup rather than a PBKDF2 derivation.
+ *
+ * <p>
+ * The signing key and the active sessions are stored in the user's document,
+ * so tokens survive a restart of the server and can't be used by a different
+ * user that later takes the same name. Only the binding of a token to the
+ * connection that last presented it is held in memory.
+ */
+public final class SessionTokens {
+
+	private static final String ALGORITHM = "HmacSHA256";
+
+	/**
+	 * The user attribute that holds the signing key.
+	 */
+	private static final String KEY = "token_key";
+
+	/**
+	 * The user document that holds a document for each active session.
+	 */
+	private static final String SESSIONS = "session";
+
+	private static final String EXPIRATION = "expiration";
+
+	private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+	private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+	private static record Binding(STDocument sessions, int sid) {
+	}
+
+	/**
+	 * The connection that each token was issued to or last presented by.
+	 */
+	private final Map<String, Binding> bindings = new HashMap<>();
+
+	private final long lifetime;
+
+	/**
+	 * @param lifetime The time after which a token expires
+	 */
+	public SessionTokens(Duration lifetime) {
+		this.lifetime = lifetime.toMillis();
+	}
+
+	private static byte[] sign(byte[] key, String id, long expiration) {
+		try {
+			var mac = Mac.getInstance(ALGORITHM);
+			mac.init(new SecretKeySpec(key, ALGORITHM));
+			mac.update(id.getBytes(US_ASCII));
+			return mac.doFinal(ByteBuffer.allocate(Long.BYTES).putLong(expiration).array());
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void remove(STDocument sessions, String id) {
+		sessions.remove(id);
+		bindings.remove(id);
+	}
+
+	/**
+	 * Issue a new token.
+	 *
+	 * @param user The document of the user that the token is issued to
+	 * @param sid  The SID of the connection that the token is issued to
+	 * @param now  The current time in milliseconds
+	 * @return The token
+	 */
+	public synchronized String issue(STDocument user, int sid, long now) {
+		var key = user.attribute(KEY);
+		if (!key.isPresent()) {
+			byte[] secret = new byte[32];
+			S7SRandom.secure.nextBytes(secret);
+			key.set(secret);
+		}
+
+		// Discard the user's expired sessions
+		var sessions = user.document(SESSIONS);
+		List<String> expired = new ArrayList<>();
+		sessions.forEachDocument(session -> {
+			var expiration = session.getAttribute(EXPIRATION);
+			if (expiration == null || !expiration.isPresent() || expiration.asLong() <= now) {
+				expired.add(session.getId());
+			}
+		});
+		expired.forEach(id -> remove(sessions, id));
+
+		byte[] random = new byte[16];
+		S7SRandom.secure.nextBytes(random);
+		// Session IDs are also document IDs, which must be lowercase
+		String id = HexFormat.of().formatHex(random);
+
+		long expiration = now + lifetime;
+		sessions.document(id).attribute(EXPIRATION).set(expiration);
+		bindings.put(id, new Binding(sessions, sid));
+		return id + "." + expiration + "." + ENCODER.encodeToString(sign(key.asBytes(), id, expiration));
+	}
+
+	/**
+	 * Verify a user's token and bind it to a new connection.
+	 *
+	 * @param token The token
+	 * @param user  The document of the user that presented the token
+	 * @param sid   The SID of the connection that presented the token
+	 * @param now   The current time in milliseconds
+	 * @return Whether the token is valid
+	 */
+	public synchronized boolean verify(String token, STDocument user, int sid, long now) {
+		String[] parts = token.split("\\.");
+		if (parts.length != 3) {
+			return false;
+		}
+
+		long expiration;
+		byte[] signature;
+		try {
+			expiration = Long.parseLong(parts[1]);
+			signature = DECODER.decode(parts[2]);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+
+		var key = user.getAttribute(KEY);
+		if (expiration <= now || key == null || !key.isPresent()
+				|| !MessageDigest.isEqual(signature, sign(key.asBytes(), parts[0], expiration))) {
+			return false;
+		}
+
+		var sessions = user.getDocument(SESSIONS);
+		var session = sessions == null ? null : sessions.getDocument(parts[0]);
+		if (session == null) {
+			return false;
+		}
+
+		var stored = session.getAttribute(EXPIRATION);
+		if (stored == null || !stored.isPresent() || stored.asLong() != expiration) {
+			return false;
+		}
+
+		bindings.put(parts[0], new Binding(sessions, sid));
+		return true;
+	}
+
+	/**
+	 * Revoke the tokens that were issued to or presented by a connection.
+	 *
+	 * @param sid The connection's SID
+	 */
+	public synchronized void revoke(int sid) {
+		List<String> revoked = new ArrayList<>();
+		bindings.forEach((id, binding) -> {
+			if (binding.sid() == sid) {
+				revoked.add(id);
+			}
+		});
+		revoked.forEach(id -> remove(bindings.get(id).sessions(), id));
+	}
+
+	/**
+	 * Revoke all of a user's tokens, including any that were issued before the
+	 * server was restarted.
+	 *
+	 * @param user The user's document
+	 */
+	public synchronized void revokeAll(STDocument user) {
+		var sessions = user.getDocument(SESSIONS);
+		if (sessions != null) {
+			sessions.forEachDocument(session -> bindings.remove(session.getId()));
+			user.remove(SESSIONS);
+		}
+
+		// A new key is generated for the next token
+		var key = user.getAttribute(KEY);
+		if (key != null) {
+			user.remove(key);
+		}
+	}
+}
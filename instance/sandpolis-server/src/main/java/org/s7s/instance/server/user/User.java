@@ -36,4 +36,11 @@ public class User extends AbstractSTDomainObject {
 		return expiration.asLong() > 0 && expiration.asLong() < System.currentTimeMillis();
 	}
 
+	/**
+	 * @return The document that holds the user's state
+	 */
+	STDocument document() {
+		return document;
+	}
+
 }
@@ -8,9 +8,12 @@
 //============================================================================//
 package org.s7s.core.server.user;
 
+import java.time.Duration;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,6 +26,7 @@ import org.s7s.core.instance.state.InstanceOids.UserOid;
 import org.s7s.core.instance.state.st.STDocument;
 import org.s7s.core.instance.store.ConfigurableStore;
 import org.s7s.core.instance.store.STCollectionStore;
+import org.s7s.core.instance.store.STIndex;
 import org.s7s.core.server.user.UserStore.UserStoreConfig;
 
 public final class UserStore extends STCollectionStore<User> implements ConfigurableStore<UserStoreConfig> {
@@ -43,8 +47,20 @@ public final class UserStore extends STCollectionStore<User> implements Configur
 	 */
 	public static final UserStore UserStore = new UserStore();
 
+	/**
+	 * Session tokens that allow users to log in again without their password.
+	 */
+	private final SessionTokens tokens = new SessionTokens(Duration.ofDays(1));
+
+	private final STIndex<String, User> byUsername;
+
+	private final STIndex<Integer, User> bySid;
+
 	public UserStore() {
 		super(log, User::new);
+
+		byUsername = index(UserOid.USERNAME, attribute -> List.of(attribute.asString()));
+		bySid = index(UserOid.CURRENT_SID, attribute -> IntStream.of(attribute.asIntArray()).boxed().toList());
 	}
 
 	/**
@@ -59,25 +75,78 @@ public final class UserStore extends STCollectionStore<User> implements Configur
 			user.set(UserOid.USERNAME, config.getUsername());
 			user.set(UserOid.EMAIL, config.getEmail());
 			user.set(UserOid.EXPIRATION, config.getExpiration());
-			user.set(UserOid.HASH, S7SPassword.of(
-					// Compute a preliminary hash before PBKDF2 is applied
-					Hashing.sha512().hashString(config.getPassword(), Charsets.UTF_8).toString()).hashPBKDF2());
+			user.set(UserOid.HASH, hash(config.getPassword()));
 		});
 	}
 
+	private static String hash(String password) {
+		return S7SPassword.of(
+				// Compute a preliminary hash before PBKDF2 is applied
+				Hashing.sha512().hashString(password, Charsets.UTF_8).toString()).hashPBKDF2();
+	}
+
+	/**
+	 * Issue a session token to a user that has logged in.
+	 *
+	 * @param user The user
+	 * @param sid  The SID of the user's connection
+	 * @return The token
+	 */
+	public String issueToken(User user, int sid) {
+		return tokens.issue(user.document(), sid, System.currentTimeMillis());
+	}
+
+	/**
+	 * Find a user by one of its session tokens.
+	 *
+	 * @param username The user's username
+	 * @param token    The token
+	 * @param sid      The SID of the connection that presented the token
+	 * @return The user if the token is valid
+	 */
+	public Optional<User> getByToken(String username, String token, int sid) {
+		return getByUsername(username)
+				.filter(user -> tokens.verify(token, user.document(), sid, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Revoke the session tokens that belong to a connection.
+	 *
+	 * @param sid The SID of the connection
+	 */
+	public void revokeTokens(int sid) {
+		tokens.revoke(sid);
+	}
+
+	/**
+	 * Associate a user with the connection that it logged in on.
+	 *
+	 * @param user The user
+	 * @param sid  The SID of the user's connection
+	 */
+	public void setCurrentSid(User user, int sid) {
+		// TODO append instead of replace
+		user.set(UserOid.CURRENT_SID, new int[] { sid });
+
+		// Requests on the new connection may look the user up immediately
+		reindex(user);
+	}
+
 	public Optional<User> getBySid(int sid) {
-		return values().stream().filter(user -> {
-			for (int c : user.get(UserOid.CURRENT_SID).asIntArray()) {
-				if (c == sid) {
-					return true;
-				}
-			}
-			return false;
-		}).findAny();
+		return bySid.get(sid);
 	}
 
 	public Optional<User> getByUsername(String username) {
-		return values().stream().filter(user -> username.equals(user.get(UserOid.USERNAME).asString())).findAny();
+		return byUsername.get(username);
+	}
+
+	/**
+	 * Remove a user and revoke all of its session tokens.
+	 */
+	@Override
+	public Optional<User> remove(String id) {
+		get(id).ifPresent(user -> tokens.revokeAll(user.document()));
+		return super.remove(id);
 	}
 
 	@Override
@@ -0,0 +1,139 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.server.auth;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class LoginThrottleTest {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * Derive a key with the same cost as a password check.
+	 */
+	private static byte[] pbkdf2(String password) {
+		var spec = new PBEKeySpec(password.toCharArray(), new byte[16], 4284, 48 * 8);
+		try {
+			return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+		} catch (InvalidKeySpecException | NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Test
+	@DisplayName("Check that attempts beyond a user's capacity are delayed and then rejected")
+	void acquire_1() {
+		var throttle = new LoginThrottle(3, Duration.ofSeconds(1), 100, Duration.ofMillis(1), Duration.ofSeconds(5));
+
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, throttle.acquire("user", "address", 0));
+		}
+		for (int i = 1; i <= 5; i++) {
+			assertEquals(i * SECOND, throttle.acquire("user", "address", 0));
+		}
+		assertEquals(-1, throttle.acquire("user", "address", 0));
+
+		// Other users and the same user at other addresses are unaffected
+		assertEquals(0, throttle.acquire("other", "address", 0));
+		assertEquals(0, throttle.acquire("user", "other", 0));
+
+		// The bucket refills over time
+		assertEquals(0, throttle.acquire("user", "address", 20 * SECOND));
+	}
+
+	@Test
+	@DisplayName("Check that an address is limited across users")
+	void acquire_2() {
+		var throttle = new LoginThrottle(100, Duration.ofMillis(1), 2, Duration.ofSeconds(1), Duration.ofSeconds(1));
+
+		assertEquals(0, throttle.acquire("user1", "address", 0));
+		assertEquals(0, throttle.acquire("user2", "address", 0));
+		assertEquals(SECOND, throttle.acquire("user3", "address", 0));
+		assertEquals(-1, throttle.acquire("user4", "address", 0));
+		assertEquals(0, throttle.acquire("user4", "other", 0));
+	}
+
+	@Test
+	@DisplayName("Check that attempts are rejected when the executor is full")
+	void submit_2() throws Exception {
+		var throttle = new LoginThrottle(1, Duration.ofMillis(100), 100, Duration.ofMillis(1), Duration.ofSeconds(5));
+		Executor full = command -> {
+			throw new RejectedExecutionException();
+		};
+
+		// The second attempt is delayed, so it's submitted after the call returns
+		var immediate = throttle.submit(full, "user", "address", () -> true, result -> result, false);
+		var delayed = throttle.submit(full, "user", "address", () -> true, result -> result, false);
+
+		assertFalse(immediate.get(5, TimeUnit.SECONDS));
+		assertFalse(delayed.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	@DisplayName("Check that concurrent logins don't stall the exelet loop")
+	void submit_1() throws Exception {
+		var throttle = new LoginThrottle(100, Duration.ofMillis(1), 100, Duration.ofMillis(1), Duration.ofSeconds(5));
+
+		var loop = Executors.newSingleThreadExecutor();
+		var loopThread = loop.submit(Thread::currentThread).get();
+		int threads = Runtime.getRuntime().availableProcessors();
+		var auth = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1024));
+
+		byte[] hash = pbkdf2("password");
+
+		// Submit every login from the loop like the exelet handler does
+		var onLoop = new AtomicInteger();
+		var results = new ArrayList<CompletableFuture<Boolean>>();
+		for (int i = 0; i < 200; i++) {
+			int n = i;
+			results.add(CompletableFuture.supplyAsync(() -> throttle.submit(auth, "user" + (n % 100),
+					"10.0.0." + (n % 50), () -> {
+						if (Thread.currentThread() == loopThread) {
+							onLoop.incrementAndGet();
+						}
+						return Arrays.equals(hash, pbkdf2(n % 10 == 0 ? "wrong" : "password"));
+					}, result -> result, false), loop).thenCompose(result -> result));
+		}
+
+		// The loop remains free for unrelated requests
+		loop.submit(() -> {
+		}).get(10, TimeUnit.SECONDS);
+
+		for (int i = 0; i < 200; i++) {
+			assertEquals(i % 10 != 0, results.get(i).get(30, TimeUnit.SECONDS));
+		}
+
+		// No password was hashed on the loop
+		assertEquals(0, onLoop.get());
+
+		loop.shutdown();
+		auth.shutdown();
+	}
+}
@@ -0,0 +1,289 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.server.channel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import org.s7s.core.instance.channel.ChannelConstant;
+import org.s7s.core.instance.handler.RetryAfterHandler;
+import org.s7s.core.instance.handler.RetryAfterHandler.RetryAfterException;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+
+class AdmissionControllerTest {
+
+	private static final int AGENTS = 10000;
+
+	private static final int HANDSHAKES = 16;
+
+	private static final int QUEUE = 256;
+
+	/**
+	 * The heap that may remain in use after a storm, which is far less than the
+	 * state of every agent's connection.
+	 */
+	private static final long HEAP_SLACK = 64L * 1024 * 1024;
+
+	/**
+	 * Simulates a server handshake that takes a few milliseconds.
+	 */
+	private static final class ServerHandshake extends ChannelInboundHandlerAdapter {
+
+		private final AtomicInteger handshaking;
+
+		private final AtomicInteger peak;
+
+		private boolean started;
+
+		ServerHandshake(AtomicInteger handshaking, AtomicInteger peak) {
+			this.handshaking = handshaking;
+			this.peak = peak;
+		}
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			ReferenceCountUtil.release(msg);
+			if (started) {
+				return;
+			}
+			started = true;
+
+			peak.accumulateAndGet(handshaking.incrementAndGet(), Math::max);
+			ctx.executor().schedule(() -> {
+				handshaking.decrementAndGet();
+				ctx.channel().attr(ChannelConstant.HANDSHAKE_FUTURE).get().trySuccess(null);
+				ctx.writeAndFlush(ctx.alloc().buffer(1).writeByte(1)).addListener(ChannelFutureListener.CLOSE);
+			}, 2, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Simulates the agent's side of the handshake.
+	 */
+	private static final class ClientHandshake extends ChannelInboundHandlerAdapter {
+
+		@Override
+		public void channelActive(ChannelHandlerContext ctx) {
+			ctx.writeAndFlush(ctx.alloc().buffer(1).writeByte(1));
+		}
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			ReferenceCountUtil.release(msg);
+			ctx.channel().attr(ChannelConstant.HANDSHAKE_FUTURE).get().trySuccess(null);
+		}
+
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx) {
+			ctx.channel().attr(ChannelConstant.HANDSHAKE_FUTURE).get().tryFailure(new ClosedChannelException());
+		}
+	}
+
+	/**
+	 * Get the soft limit on open files if the platform reports it.
+	 */
+	private static long descriptorLimit() throws IOException {
+		var limits = Path.of("/proc/self/limits");
+		if (Files.exists(limits)) {
+			for (var line : Files.readAllLines(limits)) {
+				if (line.startsWith("Max open files")) {
+					String value = line.split("\\s+")[3];
+					return value.equals("unlimited") ? Long.MAX_VALUE : Long.parseLong(value);
+				}
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	private static void connect(Bootstrap bootstrap, InetSocketAddress address, CountDownLatch done,
+			AtomicInteger deferred) {
+		bootstrap.connect(address).addListener((ChannelFuture future) -> {
+			if (!future.isSuccess()) {
+				retry(bootstrap, address, done, deferred, 100);
+				return;
+			}
+
+			future.channel().attr(ChannelConstant.HANDSHAKE_FUTURE).get().addListener(handshake -> {
+				if (handshake.isSuccess()) {
+					done.countDown();
+				} else if (handshake.cause() instanceof RetryAfterException hint) {
+					deferred.incrementAndGet();
+					retry(bootstrap, address, done, deferred, hint.delay());
+				} else {
+					retry(bootstrap, address, done, deferred, 100);
+				}
+			});
+		});
+	}
+
+	private static void retry(Bootstrap bootstrap, InetSocketAddress address, CountDownLatch done,
+			AtomicInteger deferred, int delay) {
+		bootstrap.config().group().schedule(() -> connect(bootstrap, address, done, deferred),
+				delay + ThreadLocalRandom.current().nextInt(delay / 2 + 1), TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	@DisplayName("Check that a reconnect storm is admitted within the handshake and queue limits")
+	void admit_1() throws Exception {
+
+		// Each agent needs a socket on both ends
+		int agents = (int) Math.min(AGENTS, (descriptorLimit() - 1024) / 2);
+		assumeTrue(agents >= 1000, "Not enough file descriptors");
+
+		var controller = new AdmissionController(HANDSHAKES, QUEUE, 10000);
+		var handshaking = new AtomicInteger();
+		var peak = new AtomicInteger();
+		var open = new AtomicInteger();
+
+		EventLoopGroup serverGroup = new NioEventLoopGroup(4);
+		EventLoopGroup clientGroup = new NioEventLoopGroup(4);
+
+		var server = new ServerBootstrap().group(serverGroup).channel(NioServerSocketChannel.class)
+				.option(ChannelOption.SO_BACKLOG, 4096).childHandler(new ChannelInitializer<Channel>() {
+					@Override
+					protected void initChannel(Channel ch) {
+						ch.attr(ChannelConstant.HANDSHAKE_FUTURE).set(ch.eventLoop().newPromise());
+						ch.pipeline().addLast(controller, new ServerHandshake(handshaking, peak));
+
+						open.incrementAndGet();
+						ch.closeFuture().addListener(future -> open.decrementAndGet());
+					}
+				}).bind("127.0.0.1", 0).sync().channel();
+
+		var bootstrap = new Bootstrap().group(clientGroup).channel(NioSocketChannel.class)
+				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000).handler(new ChannelInitializer<Channel>() {
+					@Override
+					protected void initChannel(Channel ch) {
+						ch.attr(ChannelConstant.HANDSHAKE_FUTURE).set(ch.eventLoop().newPromise());
+						ch.pipeline().addLast(new RetryAfterHandler(), new ClientHandshake());
+					}
+				});
+
+		var address = (InetSocketAddress) server.localAddress();
+		var done = new CountDownLatch(agents);
+		var deferred = new AtomicInteger();
+
+		var memory = ManagementFactory.getMemoryMXBean();
+		memory.gc();
+		long baseline = memory.getHeapMemoryUsage().getUsed();
+
+		// Every agent reconnects at the same time
+		for (int i = 0; i < agents; i++) {
+			connect(bootstrap, address, done, deferred);
+		}
+		assertTrue(done.await(120, TimeUnit.SECONDS));
+
+		// Handshakes never exceeded the limit
+		assertTrue(peak.get() <= HANDSHAKES);
+		assertTrue(controller.peakActive() <= HANDSHAKES);
+
+		// The only per-connection state held for waiting agents is bounded by the
+		// queue, and waiting sockets are never read
+		assertTrue(controller.peakQueued() <= QUEUE);
+		assertTrue(deferred.get() > 0);
+
+		assertEquals(0, controller.active());
+		assertEquals(0, controller.queued());
+
+		// No channel or its state is retained after the storm
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (open.get() != 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, open.get());
+
+		memory.gc();
+		long growth = memory.getHeapMemoryUsage().getUsed() - baseline;
+		assertTrue(growth < HEAP_SLACK, "Heap grew by " + growth / 1024 + " KiB");
+
+		server.close().sync();
+		clientGroup.shutdownGracefully();
+		serverGroup.shutdownGracefully();
+	}
+
+	@Test
+	@DisplayName("Check that waiting channels are only activated once they're admitted")
+	void admit_2() throws Exception {
+		var controller = new AdmissionController(1, 1, 10000);
+		var activated = new LinkedBlockingQueue<Channel>();
+
+		EventLoopGroup group = new NioEventLoopGroup(2);
+		var server = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class)
+				.childHandler(new ChannelInitializer<Channel>() {
+					@Override
+					protected void initChannel(Channel ch) {
+						ch.attr(ChannelConstant.HANDSHAKE_FUTURE).set(ch.eventLoop().newPromise());
+						ch.pipeline().addLast(controller, new ChannelInboundHandlerAdapter() {
+							@Override
+							public void channelActive(ChannelHandlerContext ctx) {
+								activated.add(ctx.channel());
+								ctx.fireChannelActive();
+							}
+						});
+					}
+				}).bind("127.0.0.1", 0).sync().channel();
+
+		var address = (InetSocketAddress) server.localAddress();
+		try (var first = new Socket(); var second = new Socket()) {
+			first.connect(address);
+			var admitted = activated.poll(10, TimeUnit.SECONDS);
+			assertNotNull(admitted);
+
+			second.connect(address);
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (controller.queued() == 0 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(1, controller.queued());
+			assertNull(activated.poll(500, TimeUnit.MILLISECONDS));
+
+			// Completing the first handshake passes the slot to the waiting channel
+			admitted.attr(ChannelConstant.HANDSHAKE_FUTURE).get().trySuccess(null);
+			assertNotNull(activated.poll(10, TimeUnit.SECONDS));
+			assertEquals(1, controller.active());
+			assertEquals(0, controller.queued());
+		} finally {
+			server.close().sync();
+			group.shutdownGracefully();
+		}
+	}
+}
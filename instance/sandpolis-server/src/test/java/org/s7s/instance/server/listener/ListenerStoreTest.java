@@ -0,0 +1,135 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.server.listener;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import org.s7s.core.instance.state.st.EphemeralDocument;
+import org.s7s.core.instance.util.ChannelUtil;
+import org.s7s.core.protocol.Channel.ChannelTransportImplementation;
+
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+class ListenerStoreTest {
+
+	private static final int CLIENTS = 8;
+
+	private static final int CONNECTIONS = 50;
+
+	@Sharable
+	private static final class CountingHandler extends ChannelInboundHandlerAdapter {
+
+		private final CountDownLatch accepted;
+
+		CountingHandler(CountDownLatch accepted) {
+			this.accepted = accepted;
+		}
+
+		@Override
+		public void channelActive(ChannelHandlerContext ctx) {
+			accepted.countDown();
+			ctx.close();
+		}
+	}
+
+	@Test
+	@DisplayName("Check that the native transport is used on Linux")
+	void bind_2() throws Exception {
+		// The native libraries are only included for these platforms
+		assumeTrue(System.getProperty("os.name").toLowerCase().contains("linux"));
+		assumeTrue(List.of("amd64", "aarch64").contains(System.getProperty("os.arch")));
+		assertEquals(ChannelTransportImplementation.EPOLL, ChannelUtil.CURRENT_IMPL);
+
+		var store = new ListenerStore();
+		store.init(config -> {
+			config.collection = new EphemeralDocument(null, "listener");
+			config.acceptors = 2;
+		});
+
+		var acceptors = store.bind("127.0.0.1", 0, new CountingHandler(new CountDownLatch(1)));
+		try {
+			// Multiple acceptors are only bound with SO_REUSEPORT
+			assertEquals(2, acceptors.size());
+			for (var acceptor : acceptors) {
+				assertEquals("EpollServerSocketChannel", acceptor.getClass().getSimpleName());
+			}
+		} finally {
+			acceptors.forEach(acceptor -> acceptor.close().syncUninterruptibly());
+			store.close();
+		}
+	}
+
+	@Test
+	@DisplayName("Check that each transport accepts every connection on loopback")
+	void bind_1() throws Exception {
+		var transports = new LinkedHashSet<ChannelTransportImplementation>();
+		transports.add(ChannelTransportImplementation.NIO);
+		transports.add(ChannelUtil.CURRENT_IMPL);
+
+		for (var transport : transports) {
+			var store = new ListenerStore();
+			store.init(config -> {
+				config.collection = new EphemeralDocument(null, "listener");
+				config.transport = transport;
+			});
+
+			var accepted = new CountDownLatch(CLIENTS * CONNECTIONS);
+			var acceptors = store.bind("127.0.0.1", 0, new CountingHandler(accepted));
+			int port = ((InetSocketAddress) acceptors.get(0).localAddress()).getPort();
+
+			// Every acceptor shares the same port
+			for (var acceptor : acceptors) {
+				assertEquals(port, ((InetSocketAddress) acceptor.localAddress()).getPort());
+			}
+
+			var clients = Executors.newFixedThreadPool(CLIENTS);
+
+			var futures = new ArrayList<Future<?>>();
+			for (int i = 0; i < CLIENTS; i++) {
+				futures.add(clients.submit(() -> {
+					for (int j = 0; j < CONNECTIONS; j++) {
+						try (var socket = new Socket("127.0.0.1", port)) {
+							// Deferred accepts wait for the first data
+							socket.getOutputStream().write(0);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}
+				}));
+			}
+			for (var future : futures) {
+				future.get();
+			}
+			assertTrue(accepted.await(30, TimeUnit.SECONDS), accepted.getCount() + " connections weren't accepted");
+
+			clients.shutdown();
+			acceptors.forEach(acceptor -> acceptor.close().syncUninterruptibly());
+			store.close();
+		}
+	}
+}
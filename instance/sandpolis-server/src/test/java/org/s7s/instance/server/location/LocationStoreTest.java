@@ -0,0 +1,159 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.server.location;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import org.s7s.core.instance.state.InstanceOids.ProfileOid.AgentOid.IpLocationOid;
+import org.s7s.core.instance.state.oid.Oid;
+
+class LocationStoreTest {
+
+	/**
+	 * A location service that answers after a delay and counts its requests.
+	 * Addresses in 8.8.4.0/24 can't be resolved.
+	 */
+	private static final class StubService implements GeolocationService {
+
+		final AtomicInteger singles = new AtomicInteger();
+
+		final AtomicInteger batches = new AtomicInteger();
+
+		private final int batchLimit;
+
+		StubService(int batchLimit) {
+			this.batchLimit = batchLimit;
+		}
+
+		@Override
+		public int batchLimit() {
+			return batchLimit;
+		}
+
+		@Override
+		public CompletableFuture<IpLocation> query(String ip, Oid... fields) {
+			singles.incrementAndGet();
+			return CompletableFuture.supplyAsync(() -> resolve(ip),
+					CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS));
+		}
+
+		@Override
+		public CompletableFuture<Map<String, IpLocation>> query(Collection<String> ips, Oid... fields) {
+			batches.incrementAndGet();
+			return CompletableFuture.supplyAsync(() -> {
+				var locations = new HashMap<String, IpLocation>();
+				for (var ip : ips) {
+					var location = resolve(ip);
+					if (location != null)
+						locations.put(ip, location);
+				}
+				return locations;
+			}, CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS));
+		}
+
+		private static IpLocation resolve(String ip) {
+			if (ip.startsWith("8.8.4.")) {
+				return null;
+			}
+
+			var location = new IpLocation(null);
+			location.set(IpLocationOid.CITY, ip);
+			return location;
+		}
+	}
+
+	private static LocationStore store(GeolocationService service) {
+		var store = new LocationStore();
+		store.init(config -> {
+			config.provider = service;
+			config.batchDelay = Duration.ofMillis(200);
+		});
+		return store;
+	}
+
+	@Test
+	@DisplayName("Check that concurrent queries for an address are coalesced")
+	void query_1() throws Exception {
+		var service = new StubService(1);
+		var store = store(service);
+
+		var futures = new ArrayList<CompletableFuture<IpLocation>>();
+		for (int i = 0; i < 100; i++) {
+			futures.add(store.queryAsync("1.1.1.1"));
+		}
+
+		var location = futures.get(0).get(10, TimeUnit.SECONDS);
+		for (var future : futures) {
+			assertSame(location, future.get(10, TimeUnit.SECONDS));
+		}
+		assertEquals(1, service.singles.get());
+
+		// Later queries are answered by the cache
+		assertSame(location, store.queryAsync("1.1.1.1").get());
+		assertEquals(1, service.singles.get());
+	}
+
+	@Test
+	@DisplayName("Check that queries for distinct addresses are batched")
+	void query_2() throws Exception {
+		var service = new StubService(100);
+		var store = store(service);
+
+		var futures = new HashMap<String, CompletableFuture<IpLocation>>();
+		for (int i = 0; i < 250; i++) {
+			String ip = "1.1." + (i / 100) + "." + (i % 100);
+			futures.put(ip, store.queryAsync(ip));
+
+			// Duplicates join the pending batch
+			store.queryAsync(ip);
+		}
+
+		for (var entry : futures.entrySet()) {
+			assertEquals(entry.getKey(), entry.getValue().get(10, TimeUnit.SECONDS).get(IpLocationOid.CITY).asString());
+		}
+		assertEquals(3, service.batches.get());
+		assertEquals(0, service.singles.get());
+	}
+
+	@Test
+	@DisplayName("Check that private and unresolvable addresses are not queried again")
+	void query_3() throws Exception {
+		var service = new StubService(1);
+		var store = store(service);
+
+		assertNull(store.queryAsync("10.0.0.1").get());
+		assertNull(store.queryAsync("192.168.1.1").get());
+		assertNull(store.queryAsync("100.64.0.1").get());
+		assertNull(store.queryAsync("::1").get());
+		assertNull(store.queryAsync("fd00::1").get());
+		assertEquals(0, service.singles.get());
+
+		assertNull(store.queryAsync("8.8.4.4").get(10, TimeUnit.SECONDS));
+		assertNull(store.queryAsync("8.8.4.4").get());
+		assertEquals(1, service.singles.get());
+
+		assertNotNull(store.queryAsync("8.8.8.8").get(10, TimeUnit.SECONDS));
+		assertEquals(2, service.singles.get());
+	}
+}
@@ -0,0 +1,146 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.server.location.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GeoIpDatabaseTest {
+
+	private static GeoIpDatabase convert(Path directory, String... lines) throws IOException {
+		var csv = directory.resolve("ranges.csv");
+		var db = directory.resolve("ranges.db");
+		Files.write(csv, List.of(lines));
+		GeoIpDatabase.convert(csv, db);
+		return GeoIpDatabase.open(db);
+	}
+
+	private static InetAddress ip(String address) throws IOException {
+		return InetAddress.getByName(address);
+	}
+
+	@Test
+	@DisplayName("Look up IPv4 and IPv6 addresses in a small database")
+	void lookup_1(@TempDir Path temp) throws Exception {
+		var db = convert(temp, //
+				"first,last,country_code,country,region_code,region,city,postal_code,timezone,isp,latitude,longitude,as_code",
+				"1.0.0.0,1.0.0.255,AU,Australia,QLD,Queensland,Brisbane,4000,Australia/Brisbane,\"Example, Inc.\",-27.47,153.02,13335",
+				"# Comment",
+				"200.0.0.0,255.255.255.255,US,United States,,,,,,,,,",
+				"2001:db8::,2001:db8::ffff,DE,Germany,BE,Berlin,Berlin,10115,Europe/Berlin,ISP,52.52,13.40,3320");
+
+		assertEquals(3, db.size());
+
+		var location = db.lookup(ip("1.0.0.128")).get();
+		assertEquals("AU", location.countryCode());
+		assertEquals("Brisbane", location.city());
+		assertEquals("Example, Inc.", location.isp());
+		assertEquals(-27.47, location.latitude());
+		assertEquals(13335, location.asCode());
+
+		assertTrue(db.lookup(ip("1.0.0.0")).isPresent());
+		assertTrue(db.lookup(ip("1.0.0.255")).isPresent());
+		assertFalse(db.lookup(ip("1.0.1.0")).isPresent());
+		assertFalse(db.lookup(ip("0.255.255.255")).isPresent());
+
+		// Unsigned comparison of high addresses
+		location = db.lookup(ip("255.0.0.1")).get();
+		assertEquals("United States", location.country());
+		assertEquals(null, location.region());
+		assertTrue(Double.isNaN(location.latitude()));
+
+		assertEquals("Germany", db.lookup(ip("2001:db8::1")).get().country());
+		assertFalse(db.lookup(ip("2001:db8::1:0")).isPresent());
+		assertFalse(db.lookup(ip("::1")).isPresent());
+	}
+
+	@Test
+	@DisplayName("Compare lookups in a generated database against a reference")
+	void lookup_2(@TempDir Path temp) throws Exception {
+		var random = new Random(8768);
+		var reference = new TreeMap<Long, long[]>();
+		var lines = new ArrayList<String>();
+
+		long next = 0;
+		for (int i = 0; i < 10000; i++) {
+			long first = next + random.nextInt(100000);
+			long last = first + random.nextInt(100000);
+			if (last > 0xFFFFFFFFL) {
+				break;
+			}
+			reference.put(first, new long[] { last, i });
+			lines.add(String.format("%s,%s,C%d,,,,,,,,,,%d", format(first), format(last), i, i));
+			next = last + 1;
+		}
+
+		var db = convert(temp, lines.toArray(String[]::new));
+		assertEquals(reference.size(), db.size());
+
+		for (int i = 0; i < 100000; i++) {
+			long address = random.nextLong(next + 1000);
+			var entry = reference.floorEntry(address);
+			var location = db.lookup(InetAddress.getByAddress(ByteBuffer.allocate(4).putInt((int) address).array()));
+
+			if (entry != null && address <= entry.getValue()[0]) {
+				assertEquals((int) entry.getValue()[1], location.get().asCode());
+			} else {
+				assertFalse(location.isPresent());
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Check that invalid ranges are rejected")
+	void convert_1(@TempDir Path temp) throws Exception {
+		assertThrows(IOException.class, () -> convert(temp, //
+				"1.0.0.0,1.0.0.255,,,,,,,,,,,", //
+				"1.0.0.255,1.0.1.255,,,,,,,,,,,"));
+
+		assertThrows(IOException.class, () -> convert(temp, "1.0.0.255,1.0.0.0,,,,,,,,,,,"));
+		assertThrows(IOException.class, () -> convert(temp, "1.0.0.0,::1,,,,,,,,,,,"));
+		assertThrows(IOException.class, () -> convert(temp, "example.com,1.0.0.0,,,,,,,,,,,"));
+		assertThrows(IOException.class, () -> convert(temp, "1.0.0.0,1.0.0.1,,"));
+	}
+
+	@Test
+	@DisplayName("Check that strings outside of the database are rejected")
+	void lookup_3(@TempDir Path temp) throws Exception {
+		convert(temp, "1.0.0.0,1.0.0.255,AU,Australia,,,,,,,,,");
+
+		// Point the first string of the only location past the end of the file
+		var file = temp.resolve("ranges.db");
+		var bytes = Files.readAllBytes(file);
+		ByteBuffer.wrap(bytes).putInt(24 + 12, bytes.length);
+		Files.write(file, bytes);
+
+		var db = GeoIpDatabase.open(file);
+		assertThrows(IOException.class, () -> db.lookup(ip("1.0.0.1")));
+	}
+
+	private static String format(long address) {
+		return String.format("%d.%d.%d.%d", address >> 24 & 0xFF, address >> 16 & 0xFF, address >> 8 & 0xFF,
+				address & 0xFF);
+	}
+}
@@ -0,0 +1,77 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.server.trust;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class CertificateValidatorTest {
+
+	private static X509Certificate load(String name) throws IOException, CertificateException {
+		try (var in = CertificateValidatorTest.class.getResourceAsStream("/cert/" + name)) {
+			return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+		}
+	}
+
+	@Test
+	@DisplayName("Check that certificates are validated against the trust anchors")
+	void verify_1() throws Exception {
+		var validator = new CertificateValidator(List.of(load("ca.cert")));
+
+		assertTrue(validator.verify(load("plugin.cert")));
+		assertFalse(validator.verify(load("other.cert")));
+
+		// Both results are cached
+		assertTrue(validator.verify(load("plugin.cert")));
+		assertFalse(validator.verify(load("other.cert")));
+		assertEquals(2, validator.size());
+		assertEquals(2, validator.validations());
+
+		assertFalse(new CertificateValidator(List.of(load("other.cert"))).verify(load("plugin.cert")));
+		assertFalse(new CertificateValidator(List.of()).verify(load("plugin.cert")));
+	}
+
+	@Test
+	@DisplayName("Check that cached results expire")
+	void verify_2() throws Exception {
+		var plugin = load("plugin.cert");
+		var clock = new AtomicLong(System.currentTimeMillis());
+		var validator = new CertificateValidator(List.of(load("ca.cert")), clock::get);
+
+		assertTrue(validator.verify(plugin));
+		assertFalse(validator.verify(load("other.cert")));
+		assertEquals(2, validator.validations());
+
+		// Failures are retried after a while
+		clock.addAndGet(TimeUnit.HOURS.toMillis(1));
+		assertTrue(validator.verify(plugin));
+		assertFalse(validator.verify(load("other.cert")));
+		assertEquals(3, validator.validations());
+
+		// Successes are cached until the certificate expires
+		clock.set(plugin.getNotAfter().getTime() - 1);
+		validator.verify(plugin);
+		assertEquals(3, validator.validations());
+		clock.set(plugin.getNotAfter().getTime());
+		validator.verify(plugin);
+		assertEquals(4, validator.validations());
+	}
+}
@@ -0,0 +1,103 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.core.server.user;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import org.s7s.core.instance.state.st.EphemeralDocument;
+
+class SessionTokensTest {
+
+	private static final long HOUR = Duration.ofHours(1).toMillis();
+
+	@Test
+	@DisplayName("Check that issued tokens are accepted until they expire")
+	void verify_1() {
+		var user = new EphemeralDocument(null, "user");
+		var other = new EphemeralDocument(null, "other");
+		var tokens = new SessionTokens(Duration.ofDays(1));
+		String token = tokens.issue(user, 1, 0);
+
+		assertTrue(tokens.verify(token, user, 2, HOUR));
+		assertFalse(tokens.verify(token, other, 2, HOUR));
+		assertFalse(tokens.verify(token, user, 2, 25 * HOUR));
+	}
+
+	@Test
+	@DisplayName("Check that tampered tokens are rejected")
+	void verify_2() {
+		var user = new EphemeralDocument(null, "user");
+		var tokens = new SessionTokens(Duration.ofDays(1));
+		String token = tokens.issue(user, 1, 0);
+		String[] parts = token.split("\\.");
+
+		// Extend the expiration
+		assertFalse(tokens.verify(parts[0] + "." + 100 * HOUR + "." + parts[2], user, 1, 0));
+
+		// Tokens signed with another user's key
+		var other = new EphemeralDocument(null, "other");
+		tokens.issue(other, 1, 0);
+		other.document("session").document(parts[0]).attribute("expiration").set(Long.parseLong(parts[1]));
+		assertFalse(tokens.verify(token, other, 1, 0));
+
+		assertFalse(tokens.verify("", user, 1, 0));
+		assertFalse(tokens.verify("a.b.c", user, 1, 0));
+		assertFalse(tokens.verify(parts[0] + "." + parts[1] + ".!", user, 1, 0));
+	}
+
+	@Test
+	@DisplayName("Check that tokens are revoked by logout and password changes")
+	void revoke_1() {
+		var user = new EphemeralDocument(null, "user");
+		var other = new EphemeralDocument(null, "other");
+		var tokens = new SessionTokens(Duration.ofDays(1));
+		String first = tokens.issue(user, 1, 0);
+		String second = tokens.issue(user, 2, 0);
+		String third = tokens.issue(other, 3, 0);
+
+		// The token follows the connection that presented it
+		assertTrue(tokens.verify(first, user, 4, 0));
+		tokens.revoke(1);
+		assertTrue(tokens.verify(first, user, 4, 0));
+		tokens.revoke(4);
+		assertFalse(tokens.verify(first, user, 4, 0));
+		assertTrue(tokens.verify(second, user, 2, 0));
+
+		tokens.revokeAll(user);
+		assertFalse(tokens.verify(second, user, 2, 0));
+		assertTrue(tokens.verify(third, other, 3, 0));
+
+		// Tokens issued after a revocation are signed with a new key
+		String fourth = tokens.issue(user, 5, 0);
+		assertTrue(tokens.verify(fourth, user, 5, 0));
+		assertFalse(tokens.verify(second, user, 2, 0));
+	}
+
+	@Test
+	@DisplayName("Check that tokens are accepted after the server restarts")
+	void restart_1() {
+		var user = new EphemeralDocument(null, "user");
+		String token = new SessionTokens(Duration.ofDays(1)).issue(user, 1, 0);
+
+		// Only the user's document is kept across the restart
+		var tokens = new SessionTokens(Duration.ofDays(1));
+		assertTrue(tokens.verify(token, user, 2, HOUR));
+		assertFalse(tokens.verify(token, user, 2, 25 * HOUR));
+
+		// Tokens revoked after the restart stay revoked
+		tokens.revoke(2);
+		assertFalse(new SessionTokens(Duration.ofDays(1)).verify(token, user, 3, HOUR));
+	}
+}
@@ -9,6 +9,10 @@
 module org.s7s.plugin.device.agent.java {
 	exports org.s7s.plugin.device.agent.java.snmp.library;
 	exports org.s7s.plugin.device.agent.java.arp;
+	exports org.s7s.plugin.device.agent.java.discovery;
+	exports org.s7s.plugin.device.agent.java.exe;
+	exports org.s7s.plugin.device.agent.java.snmp;
+	exports org.s7s.plugin.device.agent.java;
 
 	requires com.google.protobuf;
 	requires org.s7s.core.instance;
@@ -19,4 +23,6 @@ module org.s7s.plugin.device.agent.java {
 	requires jdk.incubator.foreign;
 	requires org.s7s.core.foundation;
 	requires org.s7s.core.integration.linux;
+
+	provides org.s7s.core.instance.plugin.SandpolisPlugin with org.s7s.plugin.device.agent.java.DevicePlugin;
 }
@@ -0,0 +1,35 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.device.agent.java;
+
+import static org.s7s.core.instance.state.STStore.STStore;
+import static org.s7s.plugin.device.DeviceStore.DeviceStore;
+
+import org.s7s.core.instance.Entrypoint;
+import org.s7s.core.instance.exelet.Exelet;
+import org.s7s.core.instance.plugin.ExeletProvider;
+import org.s7s.core.instance.plugin.SandpolisPlugin;
+import org.s7s.core.instance.state.oid.Oid;
+import org.s7s.plugin.device.agent.java.exe.DeviceExe;
+
+public final class DevicePlugin extends SandpolisPlugin implements ExeletProvider {
+
+	@Override
+	public void loaded() {
+		DeviceStore.init(config -> {
+			config.collection = STStore.get(Oid.of("/profile/*/device", Entrypoint.data().uuid()));
+		});
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Class<? extends Exelet>[] getExelets() {
+		return new Class[] { DeviceExe.class };
+	}
+}
@@ -8,10 +8,16 @@
 //============================================================================//
 package org.s7s.plugin.device.agent.java.arp;
 
+import java.io.IOException;
+import java.net.Inet4Address;
 import java.net.NetworkInterface;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.s7s.core.foundation.S7SSystem;
+import org.s7s.plugin.device.agent.java.discovery.AdaptiveTimeout;
+import org.s7s.plugin.device.agent.java.discovery.RateLimiter;
 
 public final class ArpScan {
 
@@ -19,20 +25,41 @@ public final class ArpScan {
 	}
 
 	public static Set<ArpDevice> scanNetwork(NetworkInterface networkInterface) throws Exception {
+		return scanner(networkInterface).run();
+	}
+
+	/**
+	 * Scan the IPv4 network of an interface, delivering each device as soon as it
+	 * replies.
+	 *
+	 * @param networkInterface The interface to scan
+	 * @param rate             The maximum number of requests per second
+	 * @param results          Receives each device once
+	 * @throws Exception
+	 */
+	public static void scanNetwork(NetworkInterface networkInterface, int rate, Consumer<ArpDevice> results)
+			throws Exception {
+		scanner(networkInterface).run(new RateLimiter(rate),
+				new AdaptiveTimeout(1000, 100, 3000, TimeUnit.MILLISECONDS), results);
+	}
+
+	private static ArpScannerLinux scanner(NetworkInterface networkInterface) throws IOException {
+
+		// ARP only applies to IPv4 networks
+		var address = networkInterface.getInterfaceAddresses().stream()
+				.filter(a -> a.getAddress() instanceof Inet4Address).findFirst()
+				.orElseThrow(() -> new IllegalArgumentException("No IPv4 address on: " + networkInterface.getName()));
 
 		// Check the network size first
-		for (var address : networkInterface.getInterfaceAddresses()) {
-			if (address.getNetworkPrefixLength() < 20) {
-				throw new RuntimeException();
-			}
+		if (address.getNetworkPrefixLength() < 16) {
+			throw new IllegalArgumentException("Network too large: /" + address.getNetworkPrefixLength());
 		}
 
 		switch (S7SSystem.OS_TYPE) {
 		case LINUX:
-			return new ArpScannerLinux(networkInterface, networkInterface.getInterfaceAddresses().get(1)).run();
-		case WINDOWS:
+			return new ArpScannerLinux(networkInterface, address);
 		default:
-			throw new RuntimeException();
+			throw new IOException("ARP scanning is not supported on: " + S7SSystem.OS_TYPE);
 		}
 	}
 }
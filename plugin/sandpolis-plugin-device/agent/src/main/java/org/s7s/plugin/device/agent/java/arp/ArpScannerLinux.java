@@ -23,9 +23,12 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Arrays;
 import java.util.HashSet;
+import java.util.HexFormat;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +40,8 @@ import org.s7s.core.integration.linux.inet.inet_h;
 import org.s7s.core.integration.linux.socket.socket_h;
 import org.s7s.core.foundation.S7SIPAddress;
 import org.s7s.plugin.device.agent.java.arp.ArpScan.ArpDevice;
+import org.s7s.plugin.device.agent.java.discovery.AdaptiveTimeout;
+import org.s7s.plugin.device.agent.java.discovery.RateLimiter;
 
 import jdk.incubator.foreign.MemoryAddress;
 import jdk.incubator.foreign.MemorySegment;
@@ -58,7 +63,10 @@ public final class ArpScannerLinux {
 
 	private final InterfaceAddress interfaceAddress;
 
-	private int addresses;
+	/**
+	 * Whether the receive loop should continue.
+	 */
+	private volatile boolean receiving;
 
 	public ArpScannerLinux(NetworkInterface networkInterface, InterfaceAddress interfaceAddress) {
 		this.networkInterface = networkInterface;
@@ -182,47 +190,83 @@ public final class ArpScannerLinux {
 			var sender_protocol_address = new byte[4];
 			arp_header.get(sender_protocol_address);
 
-			return new ArpDevice(InetAddress.getByAddress(sender_protocol_address).getHostAddress(), null);
+			return new ArpDevice(InetAddress.getByAddress(sender_protocol_address).getHostAddress(),
+					HexFormat.ofDelimiter(":").formatHex(sender_hardware_address));
 		}
 	}
 
 	public Set<ArpDevice> run() throws Exception {
+		Set<ArpDevice> results = ConcurrentHashMap.newKeySet();
+		run(new RateLimiter(1000), new AdaptiveTimeout(1000, 100, 3000, TimeUnit.MILLISECONDS), results::add);
+		return new HashSet<>(results);
+	}
+
+	/**
+	 * Send an ARP request to every address in the network at the given rate.
+	 * Replies are received concurrently and delivered as they arrive. After the
+	 * last request, replies are awaited for the adaptive timeout which follows the
+	 * round-trip times of earlier replies.
+	 *
+	 * @param limiter The send rate
+	 * @param timeout The reply timeout
+	 * @param results Receives each device once
+	 * @throws Exception
+	 */
+	public void run(RateLimiter limiter, AdaptiveTimeout timeout, Consumer<ArpDevice> results) throws Exception {
 
 		var address = S7SIPAddress.of(interfaceAddress.getAddress());
 
-		Set<ArpDevice> results = new HashSet<>();
+		int firstAddress = address.getFirstAddressInNetwork(interfaceAddress.getNetworkPrefixLength()).asInt();
+		int lastAddress = address.getLastAddressInNetwork(interfaceAddress.getNetworkPrefixLength()).asInt();
+		log.debug("Preparing to scan network of size: {}", lastAddress - firstAddress);
+
+		// The time each request was sent by offset from the first address
+		long[] sent = new long[lastAddress - firstAddress + 1];
+		Set<String> found = ConcurrentHashMap.newKeySet();
 
 		int fd = bind_arp();
 
 		// Start read loop
+		receiving = true;
 		var recvThread = new Thread(() -> {
-			while (!Thread.interrupted()) {
+			while (receiving) {
 				try {
-					results.add(read_arp(fd));
+					var device = read_arp(fd);
+					long now = System.nanoTime();
+
+					int offset = S7SIPAddress.of(device.ip()).asInt() - firstAddress;
+					if (offset < 0 || offset >= sent.length || sent[offset] == 0) {
+						continue;
+					}
+					if (receiving && found.add(device.ip())) {
+						timeout.sample(now - sent[offset]);
+						results.accept(device);
+					}
 				} catch (Exception e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+					log.debug("Failed to read ARP reply", e);
 				}
 			}
-		});
-		recvThread.start();
+		}, "arp-" + networkInterface.getName());
 
-		int firstAddress = address.getFirstAddressInNetwork(interfaceAddress.getNetworkPrefixLength()).asInt();
-		int lastAddress = address.getLastAddressInNetwork(interfaceAddress.getNetworkPrefixLength()).asInt();
-		log.debug("Preparing to scan network of size: {}", lastAddress - firstAddress);
+		// The read blocks until the next packet, so don't let it hold up the JVM
+		recvThread.setDaemon(true);
+		recvThread.start();
 
 		// Start sending
-		for (int i = firstAddress; i <= lastAddress; i++) {
-			var a = S7SIPAddress.of(i);
-			if (!a.equals(address)) {
-				send_arp(fd, a.asBytes());
+		try {
+			for (int i = firstAddress; i <= lastAddress; i++) {
+				var a = S7SIPAddress.of(i);
+				if (!a.equals(address)) {
+					limiter.acquire();
+					sent[i - firstAddress] = System.nanoTime();
+					send_arp(fd, a.asBytes());
+				}
 			}
-		}
-
-		// Wait some time before stopping the receive thread
-		Thread.sleep(1000);
-		recvThread.interrupt();
 
-		return results;
+			// Wait for replies to the last requests
+			TimeUnit.NANOSECONDS.sleep(timeout.timeout());
+		} finally {
+			receiving = false;
+		}
 	}
 }
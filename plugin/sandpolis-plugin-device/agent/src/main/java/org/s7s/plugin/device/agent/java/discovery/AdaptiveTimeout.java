@@ -0,0 +1,75 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.device.agent.java.discovery;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates how long to wait for a probe's response from the round-trip times
+ * of previous responses. The estimate follows the smoothed round-trip time and
+ * its variance as described in RFC 6298, so that probes on a fast local network
+ * give up quickly while probes over slower links get more time.
+ */
+public final class AdaptiveTimeout {
+
+	private final long minimum;
+
+	private final long maximum;
+
+	/**
+	 * The smoothed round-trip time or -1 if there are no samples yet.
+	 */
+	private long srtt = -1;
+
+	/**
+	 * The round-trip time variation.
+	 */
+	private long rttvar;
+
+	private long timeout;
+
+	/**
+	 * @param initial The timeout before any responses are received
+	 * @param minimum The lower bound of the timeout
+	 * @param maximum The upper bound of the timeout
+	 * @param unit    The unit of the given times
+	 */
+	public AdaptiveTimeout(long initial, long minimum, long maximum, TimeUnit unit) {
+		this.minimum = unit.toNanos(minimum);
+		this.maximum = unit.toNanos(maximum);
+		this.timeout = clamp(unit.toNanos(initial));
+	}
+
+	/**
+	 * Record the round-trip time of a response.
+	 *
+	 * @param rtt The round-trip time in nanoseconds
+	 */
+	public synchronized void sample(long rtt) {
+		if (srtt < 0) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+		} else {
+			rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+			srtt = (7 * srtt + rtt) / 8;
+		}
+		timeout = clamp(srtt + 4 * rttvar);
+	}
+
+	/**
+	 * @return The current timeout in nanoseconds
+	 */
+	public synchronized long timeout() {
+		return timeout;
+	}
+
+	private long clamp(long value) {
+		return Math.max(minimum, Math.min(maximum, value));
+	}
+}
@@ -0,0 +1,73 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.device.agent.java.discovery;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces outgoing probes to a fixed number of packets per second. Probes are
+ * spread evenly over each second rather than sent in bursts, so that switches
+ * and the targets' ARP tables aren't flooded.
+ */
+public final class RateLimiter {
+
+	/**
+	 * The interval between permits in nanoseconds.
+	 */
+	private final long interval;
+
+	/**
+	 * The time at which the next permit becomes available.
+	 */
+	private long next;
+
+	/**
+	 * @param rate The number of permits per second
+	 */
+	public RateLimiter(int rate) {
+		if (rate <= 0)
+			throw new IllegalArgumentException("Invalid rate: " + rate);
+
+		this.interval = TimeUnit.SECONDS.toNanos(1) / rate;
+		this.next = System.nanoTime();
+	}
+
+	/**
+	 * Take a permit if one is available now.
+	 *
+	 * @return 0 if a permit was taken, otherwise the number of nanoseconds until
+	 *         the next permit is available
+	 */
+	public synchronized long tryAcquire() {
+		long now = System.nanoTime();
+
+		// Unused permits don't accumulate
+		if (next < now - interval) {
+			next = now - interval;
+		}
+
+		if (next > now) {
+			return next - now;
+		}
+		next += interval;
+		return 0;
+	}
+
+	/**
+	 * Take a permit, waiting until one is available.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void acquire() throws InterruptedException {
+		long wait;
+		while ((wait = tryAcquire()) != 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+}
@@ -0,0 +1,415 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.device.agent.java.discovery;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Probes hosts with TCP connection attempts over non-blocking sockets. Probes
+ * are pipelined: up to {@link TcpScannerConfig#concurrency} connection attempts
+ * are outstanding at once while new ones are started at the configured rate.
+ *
+ * <p>
+ * A host is considered alive if it accepts the connection or refuses it with a
+ * reset. Attempts that get no response before the adaptive timeout are
+ * dropped. Results are delivered on the scanning thread as soon as they're
+ * known.
+ */
+public final class TcpScanner {
+
+	private static final Logger log = LoggerFactory.getLogger(TcpScanner.class);
+
+	public static enum State {
+
+		/**
+		 * The host accepted the connection.
+		 */
+		OPEN,
+
+		/**
+		 * The host refused the connection.
+		 */
+		CLOSED;
+	}
+
+	/**
+	 * The result of a probe that received a response.
+	 *
+	 * @param address The host's address
+	 * @param port    The probed port
+	 * @param state   The port's state
+	 * @param banner  The first line the host sent or {@code null}
+	 * @param rtt     The time until the host responded in nanoseconds
+	 */
+	public static record Probe(InetAddress address, int port, State state, String banner, long rtt) {
+	}
+
+	/**
+	 * An outstanding connection attempt.
+	 */
+	private static final class Attempt {
+
+		final InetAddress address;
+
+		final int port;
+
+		final long start;
+
+		long deadline;
+
+		/**
+		 * The banner received so far if the connection is open.
+		 */
+		ByteBuffer banner;
+
+		Attempt(InetAddress address, int port, long start, long deadline) {
+			this.address = address;
+			this.port = port;
+			this.start = start;
+			this.deadline = deadline;
+		}
+	}
+
+	private final TcpScannerConfig config;
+
+	private final RateLimiter limiter;
+
+	private final AdaptiveTimeout timeout;
+
+	/**
+	 * The number of outstanding attempts.
+	 */
+	private int outstanding;
+
+	public TcpScanner(Consumer<TcpScannerConfig> configurator) {
+		this.config = new TcpScannerConfig(configurator);
+		this.limiter = new RateLimiter(config.rate);
+		this.timeout = new AdaptiveTimeout(config.initialTimeout, config.minimumTimeout, config.maximumTimeout,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Probe the given ports on each target.
+	 *
+	 * @param targets The hosts to probe
+	 * @param ports   The ports to probe on each host
+	 * @param results Receives each probe that gets a response
+	 * @throws IOException
+	 * @throws InterruptedException If the scan was interrupted
+	 */
+	public void scan(Iterable<InetAddress> targets, int[] ports, Consumer<Probe> results)
+			throws IOException, InterruptedException {
+
+		var hosts = targets.iterator();
+		InetAddress host = null;
+		int next = ports.length;
+
+		try (var selector = Selector.open()) {
+			try {
+				while (true) {
+					if (Thread.interrupted()) {
+						throw new InterruptedException();
+					}
+
+					// Start new attempts until the rate or concurrency limit is reached
+					long wait = Long.MAX_VALUE;
+					while (outstanding < config.concurrency) {
+						if (next == ports.length) {
+							if (!hosts.hasNext())
+								break;
+							host = hosts.next();
+							next = 0;
+						}
+
+						long delay = limiter.tryAcquire();
+						if (delay != 0) {
+							wait = delay;
+							break;
+						}
+						connect(selector, host, ports[next++], results);
+					}
+
+					if (outstanding == 0 && next == ports.length && !hosts.hasNext()) {
+						break;
+					}
+
+					// Wake up for the next permit or the nearest deadline
+					long now = System.nanoTime();
+					for (var key : selector.keys()) {
+						if (key.isValid()) {
+							wait = Math.min(wait, ((Attempt) key.attachment()).deadline - now);
+						}
+					}
+					selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+
+					for (var key : selector.selectedKeys()) {
+						if (key.isValid()) {
+							if (key.isConnectable()) {
+								finishConnect(key, results);
+							} else if (key.isReadable()) {
+								read(key, results);
+							}
+						}
+					}
+					selector.selectedKeys().clear();
+
+					// Expire attempts that passed their deadline
+					now = System.nanoTime();
+					for (var key : selector.keys()) {
+						if (key.isValid()) {
+							var attempt = (Attempt) key.attachment();
+							if (attempt.deadline - now <= 0) {
+								if (attempt.banner != null) {
+									report(attempt, State.OPEN, results);
+								}
+								close(key);
+							}
+						}
+					}
+				}
+			} finally {
+
+				// Closing the selector only deregisters the channels
+				for (var key : selector.keys()) {
+					try {
+						key.channel().close();
+					} catch (IOException e) {
+						// Ignore
+					}
+				}
+				outstanding = 0;
+			}
+		}
+	}
+
+	private void connect(Selector selector, InetAddress address, int port, Consumer<Probe> results) {
+		long start = System.nanoTime();
+		var attempt = new Attempt(address, port, start, start + timeout.timeout());
+
+		SocketChannel channel = null;
+		outstanding++;
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+
+			// Reset connections when they're closed so no local ports are left waiting
+			channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+
+			if (channel.connect(new InetSocketAddress(address, port))) {
+				connected(channel.register(selector, 0, attempt), results);
+			} else {
+				channel.register(selector, SelectionKey.OP_CONNECT, attempt);
+			}
+		} catch (ConnectException e) {
+			report(attempt, State.CLOSED, results);
+			close(channel);
+		} catch (IOException e) {
+			log.trace("Failed to probe {}:{}", address, port, e);
+			close(channel);
+		}
+	}
+
+	private void finishConnect(SelectionKey key, Consumer<Probe> results) {
+		var attempt = (Attempt) key.attachment();
+		try {
+			((SocketChannel) key.channel()).finishConnect();
+			connected(key, results);
+		} catch (ConnectException e) {
+			timeout.sample(System.nanoTime() - attempt.start);
+			report(attempt, State.CLOSED, results);
+			close(key);
+		} catch (IOException e) {
+			// The host or network is unreachable
+			close(key);
+		}
+	}
+
+	private void connected(SelectionKey key, Consumer<Probe> results) {
+		var attempt = (Attempt) key.attachment();
+		timeout.sample(System.nanoTime() - attempt.start);
+
+		if (config.bannerPorts.contains(attempt.port)) {
+			attempt.banner = ByteBuffer.allocate(256);
+			attempt.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.bannerTimeout);
+			key.interestOps(SelectionKey.OP_READ);
+		} else {
+			report(attempt, State.OPEN, results);
+			close(key);
+		}
+	}
+
+	private void read(SelectionKey key, Consumer<Probe> results) {
+		var attempt = (Attempt) key.attachment();
+		try {
+			int read = ((SocketChannel) key.channel()).read(attempt.banner);
+			if (read >= 0 && attempt.banner.hasRemaining() && !containsLine(attempt.banner)) {
+				return;
+			}
+		} catch (IOException e) {
+			// Report what was received before the error
+		}
+
+		report(attempt, State.OPEN, results);
+		close(key);
+	}
+
+	private static boolean containsLine(ByteBuffer buffer) {
+		for (int i = 0; i < buffer.position(); i++) {
+			if (buffer.get(i) == '\n')
+				return true;
+		}
+		return false;
+	}
+
+	private static void report(Attempt attempt, State state, Consumer<Probe> results) {
+		String banner = null;
+		if (attempt.banner != null && attempt.banner.position() > 0) {
+			banner = new String(attempt.banner.array(), 0, attempt.banner.position(), StandardCharsets.US_ASCII)
+					.lines().findFirst().orElse(null);
+		}
+
+		results.accept(new Probe(attempt.address, attempt.port, state, banner, System.nanoTime() - attempt.start));
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		close((SocketChannel) key.channel());
+	}
+
+	private void close(SocketChannel channel) {
+		outstanding--;
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	/**
+	 * Get the host addresses of an IPv4 network in CIDR notation. The network and
+	 * broadcast addresses are excluded from networks that have them.
+	 *
+	 * @param cidr The network such as "192.168.1.0/24"
+	 * @return The host addresses in ascending order
+	 */
+	public static Iterable<InetAddress> hosts(String cidr) {
+		var components = cidr.split("/");
+		if (components.length != 2)
+			throw new IllegalArgumentException("Invalid network: " + cidr);
+
+		int prefix = Integer.parseInt(components[1]);
+		if (prefix < 0 || prefix > 32)
+			throw new IllegalArgumentException("Invalid prefix: " + prefix);
+
+		int address;
+		try {
+			var base = InetAddress.getByName(components[0]);
+			if (!(base instanceof Inet4Address))
+				throw new IllegalArgumentException("Not an IPv4 network: " + cidr);
+
+			address = ByteBuffer.wrap(base.getAddress()).getInt();
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException(e);
+		}
+
+		long size = 1L << (32 - prefix);
+		long first = Integer.toUnsignedLong(address) & ~(size - 1);
+		long last = first + size - 1;
+		if (size > 2) {
+			first++;
+			last--;
+		}
+
+		long start = first;
+		long end = last;
+		return () -> new Iterator<>() {
+
+			private long current = start;
+
+			@Override
+			public boolean hasNext() {
+				return current <= end;
+			}
+
+			@Override
+			public InetAddress next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				try {
+					return InetAddress.getByAddress(ByteBuffer.allocate(4).putInt((int) current++).array());
+				} catch (UnknownHostException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+	}
+
+	public static final class TcpScannerConfig {
+
+		/**
+		 * The maximum number of connection attempts started per second.
+		 */
+		public int rate = 1000;
+
+		/**
+		 * The maximum number of outstanding connection attempts.
+		 */
+		public int concurrency = 512;
+
+		/**
+		 * The connection timeout in milliseconds before any hosts have responded.
+		 */
+		public long initialTimeout = 1000;
+
+		/**
+		 * The lower bound of the adaptive connection timeout in milliseconds.
+		 */
+		public long minimumTimeout = 100;
+
+		/**
+		 * The upper bound of the adaptive connection timeout in milliseconds.
+		 */
+		public long maximumTimeout = 3000;
+
+		/**
+		 * Ports on which hosts are expected to send a banner after connecting.
+		 */
+		public Set<Integer> bannerPorts = Set.of(22);
+
+		/**
+		 * The amount of time to wait for a banner in milliseconds.
+		 */
+		public long bannerTimeout = 2000;
+
+		private TcpScannerConfig(Consumer<TcpScannerConfig> configurator) {
+			configurator.accept(this);
+		}
+	}
+}
@@ -8,16 +8,27 @@
 //============================================================================//
 package org.s7s.plugin.device.agent.java.exe;
 
+import static org.s7s.plugin.device.DeviceStore.DeviceStore;
+
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.protobuf.MessageLiteOrBuilder;
 import org.s7s.core.instance.exelet.Exelet;
 import org.s7s.plugin.device.agent.java.arp.ArpScan;
+import org.s7s.plugin.device.agent.java.discovery.TcpScanner;
 import org.s7s.plugin.device.agent.java.ipmi.IpmiScan;
+import org.s7s.plugin.device.agent.java.snmp.SnmpClient;
+import org.s7s.plugin.device.agent.java.snmp.SnmpCredentials;
 import org.s7s.plugin.device.agent.java.snmp.SnmpScan;
 import org.s7s.plugin.device.agent.java.ssh.SshScan;
 import org.s7s.plugin.device.Messages.RQ_FindSubagents;
@@ -26,6 +37,25 @@ import org.s7s.plugin.device.Messages.RS_FindSubagents;
 
 public final class DeviceExe extends Exelet {
 
+	private static final Logger log = LoggerFactory.getLogger(DeviceExe.class);
+
+	/**
+	 * The maximum number of probes sent per second.
+	 */
+	private static final int RATE = 1000;
+
+	/**
+	 * Ports probed to find hosts on networks that aren't directly attached.
+	 */
+	private static final int[] SWEEP_PORTS = { 22, 80, 443, 445, 3389 };
+
+	private static final int SNMP_PORT = 161;
+
+	/**
+	 * The community tried on hosts without configured SNMP credentials.
+	 */
+	private static final String SNMP_COMMUNITY = "public";
+
 //	@Handler(auth = true)
 //	public static MessageLiteOrBuilder rq_register_device(RQ_RegisterDevice rq) throws Exception {
 //		// TODO
@@ -38,39 +68,94 @@ public final class DeviceExe extends Exelet {
 		var rs = RS_FindSubagents.newBuilder();
 
 		// Determine networks to scan
-		List<NetworkInterface> networks = new ArrayList<>();
+		List<NetworkInterface> interfaces = new ArrayList<>();
+		List<String> networks = new ArrayList<>();
 		if (rq.getNetworkCount() == 0) {
-			networks = NetworkInterface.networkInterfaces().collect(Collectors.toList());
+			for (var netIf : NetworkInterface.networkInterfaces().toList()) {
+				if (netIf.isUp() && !netIf.isLoopback() && netIf.getInterfaceAddresses().stream()
+						.anyMatch(address -> address.getAddress() instanceof Inet4Address)) {
+					interfaces.add(netIf);
+				}
+			}
 		} else {
 			for (String name : rq.getNetworkList()) {
-				var netIf = NetworkInterface.getByName(name);
-				if (netIf != null) {
-					networks.add(netIf);
+				if (name.contains("/")) {
+					networks.add(name);
+				} else {
+					var netIf = NetworkInterface.getByName(name);
+					if (netIf != null) {
+						interfaces.add(netIf);
+					}
 				}
 			}
 		}
 
-		// Find hosts with ARP scan
-		for (var networkInterface : networks) {
-			for (var host : ArpScan.scanNetwork(networkInterface)) {
-				if (rq.getCommunicatorList().contains(CommunicatorType.SSH)) {
-					SshScan.scanHost(host.ip()).ifPresent(info -> {
-						rs.addSshDevice(RS_FindSubagents.SshDevice.newBuilder().setIpAddress(host.ip())
-								.setFingerprint(info.ssh_banner()).setFingerprint(info.fingerprint()));
-					});
-				}
+		// Hosts are recorded in the device collection as soon as they respond
+		Set<String> hosts = new ConcurrentSkipListSet<>();
+		var scanner = new TcpScanner(config -> {
+			config.rate = RATE;
+		});
+
+		// Find hosts on attached networks with ARP
+		for (var networkInterface : interfaces) {
+			try {
+				ArpScan.scanNetwork(networkInterface, RATE, device -> {
+					DeviceStore.register(device.ip(), device.mac());
+					hosts.add(device.ip());
+				});
+			} catch (Exception e) {
+				log.warn("Failed to scan interface: {}", networkInterface.getName(), e);
+			}
+		}
 
-				if (rq.getCommunicatorList().contains(CommunicatorType.SNMP)) {
-					SnmpScan.scanHost(host.ip()).ifPresent(info -> {
-						rs.addSnmpDevice(RS_FindSubagents.SnmpDevice.newBuilder().setIpAddress(host.ip()));
-					});
+		// Find hosts on other networks with TCP probes
+		for (var network : networks) {
+			scanner.scan(TcpScanner.hosts(network), SWEEP_PORTS, probe -> {
+				String ip = probe.address().getHostAddress();
+				if (hosts.add(ip)) {
+					DeviceStore.register(ip, null);
 				}
+			});
+		}
 
-				if (rq.getCommunicatorList().contains(CommunicatorType.IPMI)) {
-					IpmiScan.scanHost(host.ip()).ifPresent(info -> {
-						rs.addIpmiDevice(RS_FindSubagents.IpmiDevice.newBuilder().setIpAddress(host.ip()));
-					});
+		if (rq.getCommunicatorList().contains(CommunicatorType.SSH)) {
+			var addresses = new ArrayList<InetAddress>();
+			for (var host : hosts) {
+				addresses.add(InetAddress.getByName(host));
+			}
+
+			SshScan.scanHosts(scanner, addresses, info -> {
+				rs.addSshDevice(RS_FindSubagents.SshDevice.newBuilder().setIpAddress(info.ip_address()));
+			});
+		}
+
+		if (rq.getCommunicatorList().contains(CommunicatorType.SNMP)) {
+			try (var client = new SnmpClient(config -> {
+			})) {
+				var credentials = SnmpCredentials.v2c(SNMP_COMMUNITY);
+
+				var scans = new ArrayList<CompletableFuture<?>>();
+				for (var host : hosts) {
+					scans.add(SnmpScan.scanHost(client, InetAddress.getByName(host), SNMP_PORT, credentials)
+							.thenAccept(result -> {
+								SnmpScan.record(result);
+								synchronized (rs) {
+									rs.addSnmpDevice(RS_FindSubagents.SnmpDevice.newBuilder().setIpAddress(host));
+								}
+							}).exceptionally(e -> {
+								log.debug("SNMP scan failed: {}", host, e);
+								return null;
+							}));
 				}
+				CompletableFuture.allOf(scans.toArray(CompletableFuture[]::new)).join();
+			}
+		}
+
+		for (var host : hosts) {
+			if (rq.getCommunicatorList().contains(CommunicatorType.IPMI)) {
+				IpmiScan.scanHost(host).ifPresent(info -> {
+					rs.addIpmiDevice(RS_FindSubagents.IpmiDevice.newBuilder().setIpAddress(host));
+				});
 			}
 		}
 
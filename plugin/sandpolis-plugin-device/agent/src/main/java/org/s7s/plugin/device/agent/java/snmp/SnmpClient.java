@@ -0,0 +1,421 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.device.agent.java.snmp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import org.snmp4j.AbstractTarget;
+import org.snmp4j.CommunityTarget;
+import org.snmp4j.PDU;
+import org.snmp4j.ScopedPDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.UserTarget;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.mp.MPv3;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.security.AuthHMAC192SHA256;
+import org.snmp4j.security.AuthMD5;
+import org.snmp4j.security.AuthSHA;
+import org.snmp4j.security.PrivAES128;
+import org.snmp4j.security.PrivAES192;
+import org.snmp4j.security.PrivAES256;
+import org.snmp4j.security.PrivDES;
+import org.snmp4j.security.SecurityLevel;
+import org.snmp4j.security.SecurityProtocols;
+import org.snmp4j.security.USM;
+import org.snmp4j.security.UsmUser;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.Variable;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+/**
+ * An SNMP client that walks subtrees with GETBULK requests. Every request goes
+ * through a single UDP socket and is sent asynchronously, so walks of many
+ * subtrees on many hosts proceed at the same time. The number of outstanding
+ * requests to each host is limited so that small devices aren't overwhelmed.
+ *
+ * <p>
+ * Requests that get no response are retransmitted by the session according to
+ * {@link SnmpClientConfig#retries} and {@link SnmpClientConfig#timeout}.
+ *
+ * <p>
+ * USM users are scoped to the engine ID of each agent, so agents that have
+ * users with the same name but different secrets can be walked by the same
+ * client.
+ */
+public final class SnmpClient implements AutoCloseable {
+
+	/**
+	 * The requests waiting for each host.
+	 */
+	private static final class Host {
+
+		int active;
+
+		final Deque<Runnable> waiting = new ArrayDeque<>();
+	}
+
+	private final SnmpClientConfig config;
+
+	private final Snmp snmp;
+
+	private final USM usm;
+
+	/**
+	 * A USM user on a particular agent.
+	 */
+	private static record UserKey(OctetString engine, String username) {
+	}
+
+	/**
+	 * The credentials of the USM users that have been registered with the session.
+	 */
+	private final Map<UserKey, SnmpCredentials> users = new HashMap<>();
+
+	/**
+	 * The engine IDs of agents that have been discovered.
+	 */
+	private final Map<UdpAddress, OctetString> engines = new ConcurrentHashMap<>();
+
+	private final Map<InetAddress, Host> hosts = new HashMap<>();
+
+	public SnmpClient(Consumer<SnmpClientConfig> configurator) throws IOException {
+		this.config = new SnmpClientConfig(configurator);
+
+		snmp = new Snmp(new DefaultUdpTransportMapping());
+
+		// Give the session its own USM rather than sharing the global one
+		SecurityProtocols.getInstance().addDefaultProtocols();
+		usm = new USM(SecurityProtocols.getInstance(), new OctetString(MPv3.createLocalEngineID()), 0);
+		snmp.getMessageDispatcher().addMessageProcessingModel(new MPv3(usm));
+
+		snmp.listen();
+	}
+
+	/**
+	 * Walk the subtree under the given OID.
+	 *
+	 * @param host        The agent's address
+	 * @param port        The agent's port
+	 * @param credentials The agent's credentials
+	 * @param root        The root of the subtree
+	 * @return The subtree's variables in lexicographic order
+	 */
+	public CompletableFuture<SortedMap<OID, Variable>> walk(InetAddress host, int port, SnmpCredentials credentials,
+			OID root) {
+
+		AbstractTarget<UdpAddress> target;
+		try {
+			target = target(host, port, credentials);
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+
+		var walk = new Walk(host, target, "3".equals(credentials.version()), root);
+		walk.next(root);
+		return walk.future;
+	}
+
+	/**
+	 * Walk several subtrees on the same host. The walks are pipelined up to the
+	 * host's concurrency limit. Subtrees that fail to be walked are left out of
+	 * the result, so the walk only fails if every subtree fails.
+	 *
+	 * @param host        The agent's address
+	 * @param port        The agent's port
+	 * @param credentials The agent's credentials
+	 * @param roots       The roots of the subtrees
+	 * @return The variables of every subtree in lexicographic order
+	 */
+	public CompletableFuture<SortedMap<OID, Variable>> walk(InetAddress host, int port, SnmpCredentials credentials,
+			OID... roots) {
+
+		SortedMap<OID, Variable> variables = new TreeMap<>();
+		List<Throwable> errors = new ArrayList<>();
+		var futures = new CompletableFuture<?>[roots.length];
+		for (int i = 0; i < roots.length; i++) {
+			futures[i] = walk(host, port, credentials, roots[i]).whenComplete((subtree, error) -> {
+				synchronized (variables) {
+					if (error == null) {
+						variables.putAll(subtree);
+					} else {
+						errors.add(error);
+					}
+				}
+			}).exceptionally(error -> null);
+		}
+		return CompletableFuture.allOf(futures).thenCompose(v -> {
+			synchronized (variables) {
+				if (roots.length > 0 && errors.size() == roots.length) {
+					return CompletableFuture.failedFuture(errors.get(0));
+				}
+				return CompletableFuture.completedFuture(variables);
+			}
+		});
+	}
+
+	/**
+	 * A walk of a single subtree which sends its next request when the previous
+	 * response arrives.
+	 */
+	private final class Walk implements ResponseListener {
+
+		final CompletableFuture<SortedMap<OID, Variable>> future = new CompletableFuture<>();
+
+		final SortedMap<OID, Variable> variables = new TreeMap<>();
+
+		final InetAddress host;
+
+		final AbstractTarget<UdpAddress> target;
+
+		final boolean scoped;
+
+		final OID root;
+
+		Walk(InetAddress host, AbstractTarget<UdpAddress> target, boolean scoped, OID root) {
+			this.host = host;
+			this.target = target;
+			this.scoped = scoped;
+			this.root = root;
+		}
+
+		void next(OID from) {
+			PDU pdu = scoped ? new ScopedPDU() : new PDU();
+			pdu.setType(PDU.GETBULK);
+			pdu.setNonRepeaters(0);
+			pdu.setMaxRepetitions(config.maxRepetitions);
+			pdu.add(new VariableBinding(from));
+
+			submit(host, () -> {
+				try {
+					snmp.send(pdu, target, null, this);
+				} catch (IOException e) {
+					release(host);
+					future.completeExceptionally(e);
+				}
+			});
+		}
+
+		@Override
+		public <A extends Address> void onResponse(ResponseEvent<A> event) {
+			// Stop the session from retransmitting the request
+			((Snmp) event.getSource()).cancel(event.getRequest(), this);
+			release(host);
+
+			var response = event.getResponse();
+			if (response == null) {
+				if (event.getError() != null) {
+					future.completeExceptionally(event.getError());
+				} else {
+					future.completeExceptionally(new TimeoutException("No response from: " + host));
+				}
+				return;
+			}
+			if (response.getErrorStatus() != PDU.noError) {
+				future.completeExceptionally(new IOException("SNMP error: " + response.getErrorStatusText()));
+				return;
+			}
+
+			OID last = null;
+			for (var binding : response.getVariableBindings()) {
+				if (binding.isException() || !binding.getOid().startsWith(root)) {
+					future.complete(variables);
+					return;
+				}
+
+				// Agents that don't return increasing OIDs would never finish
+				if (!variables.isEmpty() && binding.getOid().compareTo(variables.lastKey()) <= 0) {
+					future.completeExceptionally(new IOException("OID not increasing: " + binding.getOid()));
+					return;
+				}
+				variables.put(binding.getOid(), binding.getVariable());
+				last = binding.getOid();
+			}
+
+			if (last == null) {
+				future.complete(variables);
+			} else {
+				next(last);
+			}
+		}
+	}
+
+	/**
+	 * Send a request now if the host is below its concurrency limit, otherwise
+	 * when one of its outstanding requests completes.
+	 */
+	private void submit(InetAddress address, Runnable request) {
+		synchronized (hosts) {
+			var host = hosts.computeIfAbsent(address, a -> new Host());
+			if (host.active >= config.hostConcurrency) {
+				host.waiting.add(request);
+				return;
+			}
+			host.active++;
+		}
+		request.run();
+	}
+
+	private void release(InetAddress address) {
+		Runnable next;
+		synchronized (hosts) {
+			var host = hosts.get(address);
+			next = host.waiting.poll();
+			if (next == null) {
+				if (--host.active == 0) {
+					hosts.remove(address);
+				}
+				return;
+			}
+		}
+
+		// The released slot passes directly to the next request
+		next.run();
+	}
+
+	private AbstractTarget<UdpAddress> target(InetAddress host, int port, SnmpCredentials credentials)
+			throws IOException {
+		var address = new UdpAddress(host, port);
+
+		AbstractTarget<UdpAddress> target;
+		switch (credentials.version()) {
+		case "3":
+			var engine = engine(address);
+			register(engine, credentials);
+
+			var user = new UserTarget<UdpAddress>();
+			user.setAddress(address);
+			user.setAuthoritativeEngineID(engine.getValue());
+			user.setVersion(SnmpConstants.version3);
+			user.setSecurityName(new OctetString(credentials.username()));
+			user.setSecurityLevel(switch (credentials.securityLevel()) {
+			case "noAuthNoPriv" -> SecurityLevel.NOAUTH_NOPRIV;
+			case "authNoPriv" -> SecurityLevel.AUTH_NOPRIV;
+			case "authPriv" -> SecurityLevel.AUTH_PRIV;
+			default -> throw new IllegalArgumentException("Unknown security level: " + credentials.securityLevel());
+			});
+			target = user;
+			break;
+		default:
+			target = new CommunityTarget<>(address, new OctetString(credentials.community()));
+			target.setVersion(SnmpConstants.version2c);
+			break;
+		}
+
+		target.setRetries(config.retries);
+		target.setTimeout(config.timeout);
+		return target;
+	}
+
+	/**
+	 * Get an agent's engine ID, discovering it on the first request.
+	 */
+	private OctetString engine(UdpAddress address) throws IOException {
+		var engine = engines.get(address);
+		if (engine == null) {
+			var id = snmp.discoverAuthoritativeEngineID(address, config.timeout * (config.retries + 1));
+			if (id == null) {
+				throw new IOException("Failed to discover engine ID of: " + address);
+			}
+			engine = new OctetString(id);
+			engines.put(address, engine);
+		}
+		return engine;
+	}
+
+	/**
+	 * Add the USM user for the given credentials to the session. The user
+	 * replaces any user of the same name that was registered for the agent.
+	 */
+	private void register(OctetString engine, SnmpCredentials credentials) {
+		OID authentication = null;
+		if (credentials.authenticationType() != null) {
+			authentication = switch (credentials.authenticationType()) {
+			case "MD5" -> AuthMD5.ID;
+			case "SHA" -> AuthSHA.ID;
+			case "SHA256" -> AuthHMAC192SHA256.ID;
+			default -> throw new IllegalArgumentException(
+					"Unknown authentication type: " + credentials.authenticationType());
+			};
+		}
+
+		OID encryption = null;
+		if (credentials.encryptionType() != null) {
+			encryption = switch (credentials.encryptionType()) {
+			case "DES" -> PrivDES.ID;
+			case "AES" -> PrivAES128.ID;
+			case "AES192" -> PrivAES192.ID;
+			case "AES256" -> PrivAES256.ID;
+			default -> throw new IllegalArgumentException("Unknown encryption type: " + credentials.encryptionType());
+			};
+		}
+
+		var name = new OctetString(credentials.username());
+		var user = new UsmUser(name, authentication,
+				credentials.authenticationSecret() == null ? null : new OctetString(credentials.authenticationSecret()),
+				encryption,
+				credentials.encryptionSecret() == null ? null : new OctetString(credentials.encryptionSecret()));
+
+		synchronized (users) {
+			if (!credentials.equals(users.put(new UserKey(engine, credentials.username()), credentials))) {
+				usm.addUser(name, engine, user);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		snmp.close();
+	}
+
+	public static final class SnmpClientConfig {
+
+		/**
+		 * The number of variables requested in each GETBULK.
+		 */
+		public int maxRepetitions = 25;
+
+		/**
+		 * The maximum number of outstanding requests to each host.
+		 */
+		public int hostConcurrency = 4;
+
+		/**
+		 * The number of times a request is retransmitted.
+		 */
+		public int retries = 2;
+
+		/**
+		 * The time to wait for each response in milliseconds.
+		 */
+		public long timeout = 1000;
+
+		private SnmpClientConfig(Consumer<SnmpClientConfig> configurator) {
+			configurator.accept(this);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.device.agent.java.snmp;
+
+import java.util.Objects;
+
+/**
+ * The credentials for an SNMP agent. The fields correspond to the attributes
+ * of a device's SNMP document.
+ *
+ * @param version              Either "2c" or "3"
+ * @param community            The community for version 2c
+ * @param securityLevel        One of "noAuthNoPriv", "authNoPriv", or
+ *                             "authPriv" for version 3
+ * @param username             The USM user for version 3
+ * @param authenticationType   One of "MD5", "SHA", or "SHA256"
+ * @param authenticationSecret The authentication passphrase
+ * @param encryptionType       One of "DES", "AES", "AES192", or "AES256"
+ * @param encryptionSecret     The encryption passphrase
+ */
+public record SnmpCredentials(String version, String community, String securityLevel, String username,
+		String authenticationType, String authenticationSecret, String encryptionType, String encryptionSecret) {
+
+	public SnmpCredentials {
+		Objects.requireNonNull(version);
+		switch (version) {
+		case "2c":
+			Objects.requireNonNull(community);
+			break;
+		case "3":
+			Objects.requireNonNull(securityLevel);
+			Objects.requireNonNull(username);
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported version: " + version);
+		}
+	}
+
+	/**
+	 * @param community The community
+	 * @return Version 2c credentials
+	 */
+	public static SnmpCredentials v2c(String community) {
+		return new SnmpCredentials("2c", community, null, null, null, null, null, null);
+	}
+
+	/**
+	 * @return Version 3 credentials with authentication and encryption
+	 */
+	public static SnmpCredentials v3(String username, String authenticationType, String authenticationSecret,
+			String encryptionType, String encryptionSecret) {
+		return new SnmpCredentials("3", null, "authPriv", username, authenticationType, authenticationSecret,
+				encryptionType, encryptionSecret);
+	}
+}
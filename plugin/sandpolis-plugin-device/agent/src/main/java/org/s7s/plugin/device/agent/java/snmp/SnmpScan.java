@@ -8,17 +8,184 @@
 //============================================================================//
 package org.s7s.plugin.device.agent.java.snmp;
 
-import java.util.Optional;
+import static org.s7s.plugin.device.DeviceStore.DeviceStore;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.Variable;
+
+import org.s7s.plugin.device.Device;
 
 public final class SnmpScan {
 
-	public static record SnmpScanResult(String snmp_version) {
+	/**
+	 * The system group from SNMPv2-MIB.
+	 */
+	public static final OID SYSTEM = new OID("1.3.6.1.2.1.1");
+
+	private static final OID SYS_DESCR = new OID("1.3.6.1.2.1.1.1.0");
+
+	private static final OID SYS_UP_TIME = new OID("1.3.6.1.2.1.1.3.0");
+
+	private static final OID SYS_CONTACT = new OID("1.3.6.1.2.1.1.4.0");
+
+	private static final OID SYS_NAME = new OID("1.3.6.1.2.1.1.5.0");
+
+	private static final OID SYS_LOCATION = new OID("1.3.6.1.2.1.1.6.0");
+
+	/**
+	 * The interface table from IF-MIB.
+	 */
+	public static final OID IF_TABLE = new OID("1.3.6.1.2.1.2.2.1");
+
+	/**
+	 * The ARP table from IP-MIB.
+	 */
+	public static final OID IP_NET_TO_MEDIA_TABLE = new OID("1.3.6.1.2.1.4.22.1");
+
+	public static record SnmpInterface(int index, String description, int type, int mtu, long speed, String mac,
+			int admin_status, int oper_status) {
+	}
+
+	public static record SnmpNeighbor(int interface_index, String ip_address, String mac) {
+	}
+
+	public static record SnmpScanResult(String ip_address, String name, String description, String location,
+			String contact, long uptime, List<SnmpInterface> interfaces, List<SnmpNeighbor> neighbors) {
+	}
+
+	/**
+	 * Walk the system, interface, and ARP tables of an SNMP agent.
+	 *
+	 * @param client      The client
+	 * @param host        The agent's address
+	 * @param port        The agent's port
+	 * @param credentials The agent's credentials
+	 * @return The agent's inventory
+	 */
+	public static CompletableFuture<SnmpScanResult> scanHost(SnmpClient client, InetAddress host, int port,
+			SnmpCredentials credentials) {
+
+		return client.walk(host, port, credentials, SYSTEM, IF_TABLE, IP_NET_TO_MEDIA_TABLE)
+				.thenApply(variables -> parse(host.getHostAddress(), variables));
+	}
+
+	static SnmpScanResult parse(String ip_address, SortedMap<OID, Variable> variables) {
+
+		// Table cells by row index and column
+		Map<OID, Map<Integer, Variable>> interfaces = new TreeMap<>();
+		Map<OID, Map<Integer, Variable>> neighbors = new TreeMap<>();
+
+		for (var entry : variables.entrySet()) {
+			var oid = entry.getKey();
+			if (oid.startsWith(IF_TABLE)) {
+				cell(interfaces, IF_TABLE, oid, entry.getValue());
+			} else if (oid.startsWith(IP_NET_TO_MEDIA_TABLE)) {
+				cell(neighbors, IP_NET_TO_MEDIA_TABLE, oid, entry.getValue());
+			}
+		}
+
+		var interfaceList = new ArrayList<SnmpInterface>();
+		for (var row : interfaces.values()) {
+			interfaceList.add(new SnmpInterface(toInt(row.get(1)), toString(row.get(2)), toInt(row.get(3)),
+					toInt(row.get(4)), toLong(row.get(5)), toMac(row.get(6)), toInt(row.get(7)), toInt(row.get(8))));
+		}
+
+		var neighborList = new ArrayList<SnmpNeighbor>();
+		for (var row : neighbors.values()) {
+			if (row.get(3) != null) {
+				neighborList.add(new SnmpNeighbor(toInt(row.get(1)), row.get(3).toString(), toMac(row.get(2))));
+			}
+		}
+
+		return new SnmpScanResult(ip_address, //
+				toString(variables.get(SYS_NAME)), //
+				toString(variables.get(SYS_DESCR)), //
+				toString(variables.get(SYS_LOCATION)), //
+				toString(variables.get(SYS_CONTACT)), //
+
+				// Hundredths of a second
+				toLong(variables.get(SYS_UP_TIME)) * 10, //
+				interfaceList, neighborList);
+	}
+
+	/**
+	 * Record an agent's inventory in the device collection. Neighbors from the
+	 * agent's ARP table are recorded as devices too.
+	 *
+	 * @param result The inventory
+	 * @return The agent's device
+	 */
+	public static Device record(SnmpScanResult result) {
+		var device = DeviceStore.register(result.ip_address(), null);
+		if (result.name() != null)
+			device.set(Device.NAME, result.name());
+		if (result.description() != null)
+			device.set(Device.DESCRIPTION, result.description());
+		if (result.location() != null)
+			device.set(Device.LOCATION, result.location());
+
+		for (var i : result.interfaces()) {
+			var document = device.networkInterface(String.valueOf(i.index()));
+			if (i.description() != null)
+				document.attribute("name").set(i.description());
+			if (i.mac() != null)
+				document.attribute("mac_address").set(i.mac());
+			document.attribute("type").set(i.type());
+			document.attribute("mtu").set(i.mtu());
+			document.attribute("speed").set(i.speed());
+			document.attribute("admin_status").set(i.admin_status());
+			document.attribute("oper_status").set(i.oper_status());
+		}
+
+		for (var neighbor : result.neighbors()) {
+			DeviceStore.register(neighbor.ip_address(), neighbor.mac());
+		}
+
+		return device;
+	}
+
+	/**
+	 * Add a table cell to its row. The OID of a cell is the table's entry OID
+	 * followed by the column and then the row index.
+	 */
+	private static void cell(Map<OID, Map<Integer, Variable>> rows, OID table, OID oid, Variable value) {
+		if (oid.size() < table.size() + 2)
+			return;
+
+		int column = oid.get(table.size());
+		var index = new OID(oid.getValue(), table.size() + 1, oid.size() - table.size() - 1);
+		rows.computeIfAbsent(index, k -> new HashMap<>()).put(column, value);
+	}
+
+	private static String toString(Variable variable) {
+		return variable == null ? null : variable.toString();
 	}
 
-	public static Optional<SnmpScanResult> scanHost(String ip_address) {
+	private static int toInt(Variable variable) {
+		return variable == null ? 0 : variable.toInt();
+	}
 
-		// Use SNMP4j?
-		return Optional.empty();
+	private static long toLong(Variable variable) {
+		return variable == null ? 0 : variable.toLong();
 	}
 
+	private static String toMac(Variable variable) {
+		if (variable instanceof OctetString address && address.length() == 6) {
+			return address.toHexString(':');
+		}
+		return null;
+	}
+
+	private SnmpScan() {
+	}
 }
@@ -8,22 +8,53 @@
 //============================================================================//
 package org.s7s.plugin.device.agent.java.ssh;
 
-import java.net.Socket;
+import java.net.InetAddress;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.s7s.plugin.device.agent.java.discovery.TcpScanner;
+import org.s7s.plugin.device.agent.java.discovery.TcpScanner.State;
 
 public final class SshScan {
 
-	public static record SshScanResult(String ssh_banner, String fingerprint) {
+	public static record SshScanResult(String ip_address, String ssh_banner, String fingerprint) {
 	}
 
+	private static final int[] PORTS = { 22 };
+
 	public static Optional<SshScanResult> scanHost(String ip_address) {
 
-		try (var socket = new Socket(ip_address, 22); var in = socket.getInputStream()) {
-			String banner = new String(in.readAllBytes());
-			return Optional.of(new SshScanResult(banner, null));
+		var result = new AtomicReference<SshScanResult>();
+		try {
+			scanHosts(new TcpScanner(config -> {
+			}), List.of(InetAddress.getByName(ip_address)), result::set);
 		} catch (Exception e) {
 			return Optional.empty();
 		}
+		return Optional.ofNullable(result.get());
+	}
+
+	/**
+	 * Find SSH servers among the given hosts. The hosts are probed concurrently
+	 * and only servers that send an SSH identification string are reported.
+	 *
+	 * @param scanner The scanner
+	 * @param hosts   The hosts to probe
+	 * @param results Receives each SSH server as it's found
+	 * @throws Exception
+	 */
+	public static void scanHosts(TcpScanner scanner, Iterable<InetAddress> hosts, Consumer<SshScanResult> results)
+			throws Exception {
+
+		scanner.scan(hosts, PORTS, probe -> {
+			if (probe.state() == State.OPEN && probe.banner() != null && probe.banner().startsWith("SSH-")) {
+				results.accept(new SshScanResult(probe.address().getHostAddress(), probe.banner(), null));
+			}
+		});
 	}
 
+	private SshScan() {
+	}
 }
@@ -0,0 +1,92 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.device.agent.java.discovery;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.net.NetworkInterface;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import org.s7s.plugin.device.agent.java.arp.ArpScan;
+
+/**
+ * Scans a veth pair whose peer lives in a separate network namespace. The
+ * fixture requires root and iproute2, so the tests are skipped elsewhere.
+ */
+class NetnsDiscoveryTest {
+
+	private static final String NAMESPACE = "s7s-discovery";
+
+	private static boolean available;
+
+	private static boolean run(String... command) throws Exception {
+		try {
+			var process = new ProcessBuilder(command).inheritIO().start();
+			return process.waitFor(10, TimeUnit.SECONDS) && process.exitValue() == 0;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	@BeforeAll
+	static void setup() throws Exception {
+		available = run("ip", "netns", "add", NAMESPACE) //
+				&& run("ip", "link", "add", "s7s-veth0", "type", "veth", "peer", "name", "s7s-veth1") //
+				&& run("ip", "link", "set", "s7s-veth1", "netns", NAMESPACE) //
+				&& run("ip", "addr", "add", "10.201.0.1/24", "dev", "s7s-veth0") //
+				&& run("ip", "link", "set", "s7s-veth0", "up") //
+				&& run("ip", "-n", NAMESPACE, "addr", "add", "10.201.0.2/24", "dev", "s7s-veth1") //
+				&& run("ip", "-n", NAMESPACE, "link", "set", "s7s-veth1", "up");
+	}
+
+	@AfterAll
+	static void cleanup() throws Exception {
+		run("ip", "link", "del", "s7s-veth0");
+		run("ip", "netns", "del", NAMESPACE);
+	}
+
+	@Test
+	@DisplayName("Find the namespace's host with TCP probes")
+	void tcp_1() throws Exception {
+		assumeTrue(available, "Network namespaces are unavailable");
+
+		var scanner = new TcpScanner(config -> {
+			config.rate = 5000;
+		});
+
+		// Nothing listens in the namespace, so the host is found by its resets
+		Set<String> hosts = ConcurrentHashMap.newKeySet();
+		scanner.scan(TcpScanner.hosts("10.201.0.0/24"), new int[] { 22 }, probe -> {
+			hosts.add(probe.address().getHostAddress());
+		});
+
+		assertEquals(Set.of("10.201.0.1", "10.201.0.2"), hosts);
+	}
+
+	@Test
+	@DisplayName("Find the namespace's host with ARP")
+	void arp_1() throws Exception {
+		assumeTrue(available, "Network namespaces are unavailable");
+
+		Set<String> hosts = ConcurrentHashMap.newKeySet();
+		ArpScan.scanNetwork(NetworkInterface.getByName("s7s-veth0"), 5000, device -> {
+			hosts.add(device.ip());
+		});
+
+		assertEquals(Set.of("10.201.0.2"), hosts);
+	}
+}
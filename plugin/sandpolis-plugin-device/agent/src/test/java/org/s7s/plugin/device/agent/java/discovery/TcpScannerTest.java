@@ -0,0 +1,212 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.device.agent.java.discovery;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import org.s7s.plugin.device.agent.java.discovery.TcpScanner.Probe;
+import org.s7s.plugin.device.agent.java.discovery.TcpScanner.State;
+
+class TcpScannerTest {
+
+	/**
+	 * Accept connections on loopback and optionally send a banner.
+	 */
+	private static ServerSocket listen(String banner) throws IOException {
+		var server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		var connections = new ArrayList<Socket>();
+
+		var thread = new Thread(() -> {
+			while (!server.isClosed()) {
+				try {
+					var socket = server.accept();
+					if (banner != null) {
+						socket.getOutputStream().write(banner.getBytes(StandardCharsets.US_ASCII));
+					}
+					connections.add(socket);
+				} catch (IOException e) {
+					// The server was closed
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		return server;
+	}
+
+	private static int unusedPort() throws IOException {
+		try (var server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+			return server.getLocalPort();
+		}
+	}
+
+	@Test
+	@DisplayName("Check that open, closed, and banner ports are reported on loopback")
+	void scan_1() throws Exception {
+		try (var plain = listen(null); var ssh = listen("SSH-2.0-OpenSSH_8.9\r\n")) {
+			int closed = unusedPort();
+
+			var scanner = new TcpScanner(config -> {
+				config.bannerPorts = Set.of(ssh.getLocalPort());
+			});
+
+			Map<Integer, Probe> results = new ConcurrentHashMap<>();
+			scanner.scan(List.of(InetAddress.getLoopbackAddress()),
+					new int[] { plain.getLocalPort(), ssh.getLocalPort(), closed },
+					probe -> results.put(probe.port(), probe));
+
+			assertEquals(3, results.size());
+			assertEquals(State.OPEN, results.get(plain.getLocalPort()).state());
+			assertNull(results.get(plain.getLocalPort()).banner());
+			assertEquals(State.OPEN, results.get(ssh.getLocalPort()).state());
+			assertEquals("SSH-2.0-OpenSSH_8.9", results.get(ssh.getLocalPort()).banner());
+			assertEquals(State.CLOSED, results.get(closed).state());
+		}
+	}
+
+	@Test
+	@DisplayName("Check that probes are pipelined at the configured rate")
+	void scan_2() throws Exception {
+		int closed = unusedPort();
+		var scanner = new TcpScanner(config -> {
+			config.rate = 1000;
+		});
+
+		// Every address in 127.0.0.0/8 belongs to the loopback interface
+		var results = ConcurrentHashMap.<InetAddress>newKeySet();
+		long start = System.nanoTime();
+		scanner.scan(TcpScanner.hosts("127.0.0.0/22"), new int[] { closed }, probe -> {
+			if (probe.state() == State.CLOSED)
+				results.add(probe.address());
+		});
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		assertEquals(1022, results.size());
+
+		// The rate limit spreads 1022 probes over about a second
+		assertTrue(elapsed >= 900, "Finished in " + elapsed + " ms");
+		assertTrue(elapsed < 10000, "Finished in " + elapsed + " ms");
+	}
+
+	@Test
+	@DisplayName("Check that unresponsive hosts time out")
+	void scan_3() throws Exception {
+		try (var server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+
+			// Fill the accept queue so that further connection attempts are dropped
+			var clients = new ArrayList<Socket>();
+			try {
+				while (true) {
+					var client = new Socket();
+					clients.add(client);
+					client.connect(server.getLocalSocketAddress(), 200);
+				}
+			} catch (IOException e) {
+				// The queue is full
+			}
+
+			var scanner = new TcpScanner(config -> {
+				config.initialTimeout = 200;
+				config.maximumTimeout = 200;
+			});
+
+			var results = new ArrayList<Probe>();
+			long start = System.nanoTime();
+			scanner.scan(List.of(InetAddress.getLoopbackAddress()), new int[] { server.getLocalPort() }, results::add);
+
+			assertTrue(results.isEmpty());
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+
+			for (var client : clients) {
+				client.close();
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Check that outstanding connections are closed when a scan fails")
+	void scan_4() throws Exception {
+		try (var silent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+			int closed = unusedPort();
+			silent.setSoTimeout(5000);
+
+			var scanner = new TcpScanner(config -> {
+				config.bannerPorts = Set.of(silent.getLocalPort());
+				config.bannerTimeout = 60000;
+			});
+
+			assertThrows(IllegalStateException.class, () -> {
+				scanner.scan(List.of(InetAddress.getLoopbackAddress()),
+						new int[] { silent.getLocalPort(), closed }, probe -> {
+							throw new IllegalStateException();
+						});
+			});
+
+			// The connection that was waiting for a banner must have been reset
+			try (var socket = silent.accept()) {
+				socket.setSoTimeout(5000);
+				assertThrows(SocketException.class, () -> socket.getInputStream().read());
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Enumerate the hosts of IPv4 networks")
+	void hosts_1() {
+		var hosts = new ArrayList<String>();
+		TcpScanner.hosts("10.0.0.77/30").forEach(address -> hosts.add(address.getHostAddress()));
+		assertEquals(List.of("10.0.0.77", "10.0.0.78"), hosts);
+
+		hosts.clear();
+		TcpScanner.hosts("10.0.0.1/32").forEach(address -> hosts.add(address.getHostAddress()));
+		assertEquals(List.of("10.0.0.1"), hosts);
+
+		int count = 0;
+		for (var address : TcpScanner.hosts("172.16.0.0/16")) {
+			count++;
+		}
+		assertEquals(65534, count);
+	}
+
+	@Test
+	@DisplayName("Check that the adaptive timeout follows round-trip times")
+	void timeout_1() {
+		var timeout = new AdaptiveTimeout(1000, 10, 3000, TimeUnit.MILLISECONDS);
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), timeout.timeout());
+
+		for (int i = 0; i < 50; i++) {
+			timeout.sample(TimeUnit.MILLISECONDS.toNanos(5));
+		}
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(10), timeout.timeout());
+
+		for (int i = 0; i < 50; i++) {
+			timeout.sample(TimeUnit.SECONDS.toNanos(10));
+		}
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(3000), timeout.timeout());
+	}
+}
@@ -0,0 +1,303 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.device.agent.java.snmp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.snmp4j.CommandResponder;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.MessageException;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.mp.StatusInformation;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.Gauge32;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.IpAddress;
+import org.snmp4j.smi.Null;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.TimeTicks;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.Variable;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+class SnmpClientTest {
+
+	/**
+	 * An in-process SNMP agent that answers GETBULK requests from a fixed MIB
+	 * after a short delay.
+	 */
+	private static final class Responder implements CommandResponder {
+
+		final TreeMap<OID, Variable> mib = new TreeMap<>();
+
+		final AtomicInteger requests = new AtomicInteger();
+
+		final AtomicInteger active = new AtomicInteger();
+
+		final AtomicInteger peak = new AtomicInteger();
+
+		/**
+		 * The number of requests to ignore before responding.
+		 */
+		final AtomicInteger drop = new AtomicInteger();
+
+		/**
+		 * The subtrees that respond with an error.
+		 */
+		final Set<OID> failing = ConcurrentHashMap.newKeySet();
+
+		final ScheduledExecutorService executor = Executors.newScheduledThreadPool(4);
+
+		final DefaultUdpTransportMapping transport;
+
+		final Snmp snmp;
+
+		Responder() throws IOException {
+			transport = new DefaultUdpTransportMapping(new UdpAddress(InetAddress.getLoopbackAddress(), 0));
+			snmp = new Snmp(transport);
+			snmp.addCommandResponder(this);
+			snmp.listen();
+		}
+
+		int port() {
+			return transport.getListenAddress().getPort();
+		}
+
+		@Override
+		public <A extends Address> void processPdu(CommandResponderEvent<A> event) {
+			var request = event.getPDU();
+			if (request == null || request.getType() != PDU.GETBULK) {
+				return;
+			}
+			event.setProcessed(true);
+			requests.incrementAndGet();
+
+			if (drop.getAndDecrement() > 0) {
+				return;
+			}
+
+			peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+			executor.schedule(() -> {
+				active.decrementAndGet();
+				respond(event);
+			}, 20, TimeUnit.MILLISECONDS);
+		}
+
+		private <A extends Address> void respond(CommandResponderEvent<A> event) {
+			var request = event.getPDU();
+			var response = new PDU();
+			response.setType(PDU.RESPONSE);
+			response.setRequestID(request.getRequestID());
+
+			var next = request.get(0).getOid();
+			if (failing.stream().anyMatch(next::startsWith)) {
+				response.setErrorStatus(PDU.genErr);
+				response.setErrorIndex(1);
+				response.add(new VariableBinding(next));
+			}
+			for (int i = 0; i < request.getMaxRepetitions() && response.getErrorStatus() == PDU.noError; i++) {
+				var entry = mib.higherEntry(next);
+				if (entry == null) {
+					response.add(new VariableBinding(next, Null.endOfMibView));
+					break;
+				}
+				response.add(new VariableBinding(entry.getKey(), entry.getValue()));
+				next = entry.getKey();
+			}
+
+			try {
+				event.getMessageDispatcher().returnResponsePdu(event.getMessageProcessingModel(),
+						event.getSecurityModel(), event.getSecurityName(), event.getSecurityLevel(), response,
+						event.getMaxSizeResponsePDU(), event.getStateReference(), new StatusInformation());
+			} catch (MessageException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		void close() throws IOException {
+			executor.shutdownNow();
+			snmp.close();
+		}
+	}
+
+	private Responder responder;
+
+	@BeforeEach
+	void setup() throws Exception {
+		responder = new Responder();
+		var mib = responder.mib;
+
+		mib.put(new OID("1.3.6.1.2.1.1.1.0"), new OctetString("Test switch"));
+		mib.put(new OID("1.3.6.1.2.1.1.2.0"), new OID("1.3.6.1.4.1.8072.3.2.10"));
+		mib.put(new OID("1.3.6.1.2.1.1.3.0"), new TimeTicks(12345));
+		mib.put(new OID("1.3.6.1.2.1.1.4.0"), new OctetString("admin@example.com"));
+		mib.put(new OID("1.3.6.1.2.1.1.5.0"), new OctetString("switch-1"));
+		mib.put(new OID("1.3.6.1.2.1.1.6.0"), new OctetString("Rack 4"));
+		mib.put(new OID("1.3.6.1.2.1.2.1.0"), new Integer32(3));
+
+		for (int i = 1; i <= 3; i++) {
+			mib.put(new OID("1.3.6.1.2.1.2.2.1.1." + i), new Integer32(i));
+			mib.put(new OID("1.3.6.1.2.1.2.2.1.2." + i), new OctetString("eth" + i));
+			mib.put(new OID("1.3.6.1.2.1.2.2.1.3." + i), new Integer32(6));
+			mib.put(new OID("1.3.6.1.2.1.2.2.1.4." + i), new Integer32(1500));
+			mib.put(new OID("1.3.6.1.2.1.2.2.1.5." + i), new Gauge32(1000000000));
+			mib.put(new OID("1.3.6.1.2.1.2.2.1.6." + i), OctetString.fromHexString("00:11:22:33:44:0" + i, ':'));
+			mib.put(new OID("1.3.6.1.2.1.2.2.1.7." + i), new Integer32(1));
+			mib.put(new OID("1.3.6.1.2.1.2.2.1.8." + i), new Integer32(i == 3 ? 2 : 1));
+		}
+
+		mib.put(new OID("1.3.6.1.2.1.4.1.0"), new Integer32(1));
+		for (int i = 1; i <= 40; i++) {
+			String index = "1.10.0.0." + i;
+			mib.put(new OID("1.3.6.1.2.1.4.22.1.1." + index), new Integer32(1));
+			mib.put(new OID("1.3.6.1.2.1.4.22.1.2." + index),
+					OctetString.fromHexString(String.format("02:00:00:00:00:%02x", i), ':'));
+			mib.put(new OID("1.3.6.1.2.1.4.22.1.3." + index), new IpAddress("10.0.0." + i));
+			mib.put(new OID("1.3.6.1.2.1.4.22.1.4." + index), new Integer32(3));
+		}
+		mib.put(new OID("1.3.6.1.2.1.5.1.0"), new Integer32(0));
+	}
+
+	@AfterEach
+	void cleanup() throws Exception {
+		responder.close();
+	}
+
+	@Test
+	@DisplayName("Walk a subtree with GETBULK")
+	void walk_1() throws Exception {
+		try (var client = new SnmpClient(config -> {
+			config.maxRepetitions = 5;
+		})) {
+			var variables = client.walk(InetAddress.getLoopbackAddress(), responder.port(), SnmpCredentials.v2c("public"),
+					SnmpScan.IF_TABLE).get(10, TimeUnit.SECONDS);
+
+			assertEquals(responder.mib.subMap(new OID("1.3.6.1.2.1.2.2.1"), new OID("1.3.6.1.2.1.2.2.2")), variables);
+
+			// 24 variables and the end of the subtree in batches of 5
+			assertEquals(5, responder.requests.get());
+		}
+	}
+
+	@Test
+	@DisplayName("Check that walks are pipelined up to the host's limit")
+	void walk_2() throws Exception {
+		try (var client = new SnmpClient(config -> {
+			config.maxRepetitions = 5;
+			config.hostConcurrency = 2;
+		})) {
+			var variables = client.walk(InetAddress.getLoopbackAddress(), responder.port(), SnmpCredentials.v2c("public"),
+					SnmpScan.SYSTEM, SnmpScan.IF_TABLE, SnmpScan.IP_NET_TO_MEDIA_TABLE).get(10, TimeUnit.SECONDS);
+
+			assertEquals(6 + 24 + 160, variables.size());
+			assertEquals(2, responder.peak.get());
+		}
+	}
+
+	@Test
+	@DisplayName("Check that lost requests are retransmitted")
+	void walk_3() throws Exception {
+		responder.drop.set(2);
+
+		try (var client = new SnmpClient(config -> {
+			config.retries = 2;
+			config.timeout = 200;
+		})) {
+			var variables = client.walk(InetAddress.getLoopbackAddress(), responder.port(), SnmpCredentials.v2c("public"),
+					SnmpScan.SYSTEM).get(10, TimeUnit.SECONDS);
+
+			assertEquals(6, variables.size());
+			assertEquals(3, responder.requests.get());
+		}
+
+		// Agents that never respond time out after the retries
+		responder.drop.set(Integer.MAX_VALUE);
+		try (var client = new SnmpClient(config -> {
+			config.retries = 1;
+			config.timeout = 100;
+		})) {
+			var walk = client.walk(InetAddress.getLoopbackAddress(), responder.port(), SnmpCredentials.v2c("public"),
+					SnmpScan.SYSTEM);
+
+			var e = assertThrows(ExecutionException.class, () -> walk.get(10, TimeUnit.SECONDS));
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+	}
+
+	@Test
+	@DisplayName("Check that a failed subtree doesn't fail the other subtrees")
+	void walk_4() throws Exception {
+		responder.failing.add(SnmpScan.IF_TABLE);
+
+		try (var client = new SnmpClient(config -> {
+		})) {
+			var variables = client.walk(InetAddress.getLoopbackAddress(), responder.port(), SnmpCredentials.v2c("public"),
+					SnmpScan.SYSTEM, SnmpScan.IF_TABLE).get(10, TimeUnit.SECONDS);
+
+			assertEquals(6, variables.size());
+			assertEquals(new OctetString("switch-1"), variables.get(new OID("1.3.6.1.2.1.1.5.0")));
+
+			// The walk fails when no subtree succeeds
+			responder.failing.add(SnmpScan.IP_NET_TO_MEDIA_TABLE);
+			var walk = client.walk(InetAddress.getLoopbackAddress(), responder.port(), SnmpCredentials.v2c("public"),
+					SnmpScan.IF_TABLE, SnmpScan.IP_NET_TO_MEDIA_TABLE);
+			var e = assertThrows(ExecutionException.class, () -> walk.get(10, TimeUnit.SECONDS));
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	@Test
+	@DisplayName("Map the system, interface, and ARP tables")
+	void scan_1() throws Exception {
+		try (var client = new SnmpClient(config -> {
+		})) {
+			var result = SnmpScan.scanHost(client, InetAddress.getLoopbackAddress(), responder.port(),
+					SnmpCredentials.v2c("public")).get(10, TimeUnit.SECONDS);
+
+			assertEquals("switch-1", result.name());
+			assertEquals("Test switch", result.description());
+			assertEquals("Rack 4", result.location());
+			assertEquals(123450, result.uptime());
+
+			assertEquals(3, result.interfaces().size());
+			var eth3 = result.interfaces().get(2);
+			assertEquals(3, eth3.index());
+			assertEquals("eth3", eth3.description());
+			assertEquals(1500, eth3.mtu());
+			assertEquals(1000000000, eth3.speed());
+			assertEquals("00:11:22:33:44:03", eth3.mac());
+			assertEquals(2, eth3.oper_status());
+
+			assertEquals(40, result.neighbors().size());
+			assertTrue(result.neighbors().stream()
+					.anyMatch(n -> n.ip_address().equals("10.0.0.10") && n.mac().equalsIgnoreCase("02:00:00:00:00:0a")));
+		}
+	}
+}
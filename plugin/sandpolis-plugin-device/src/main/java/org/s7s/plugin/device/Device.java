@@ -8,16 +8,48 @@
 //============================================================================//
 package org.s7s.plugin.device;
 
+import org.s7s.core.instance.state.oid.Oid;
 import org.s7s.core.instance.state.st.STDocument;
 import org.s7s.core.instance.state.vst.AbstractSTDomainObject;
 
 public class Device extends AbstractSTDomainObject {
 
+	/**
+	 * The device's IP address.
+	 */
+	public static final Oid IP_ADDRESS = Oid.of("/profile()/device()/ip_address");
+
+	/**
+	 * The device's MAC address.
+	 */
+	public static final Oid MAC_ADDRESS = Oid.of("/profile()/device()/mac_address");
+
+	/**
+	 * The device's hostname.
+	 */
+	public static final Oid NAME = Oid.of("/profile()/device()/name");
+
+	/**
+	 * A description of the device's hardware and software.
+	 */
+	public static final Oid DESCRIPTION = Oid.of("/profile()/device()/description");
+
+	/**
+	 * The device's physical location.
+	 */
+	public static final Oid LOCATION = Oid.of("/profile()/device()/location");
+
 	Device(STDocument document) {
 		super(document);
 	}
 
-	public String getId() {
-		return "";
+	/**
+	 * Get the document of one of the device's network interfaces.
+	 *
+	 * @param id The interface's ID
+	 * @return The interface's document
+	 */
+	public STDocument networkInterface(String id) {
+		return document.document("interface").document(id);
 	}
 }
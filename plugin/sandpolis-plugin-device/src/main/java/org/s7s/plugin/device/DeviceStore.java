@@ -8,6 +8,7 @@
 //============================================================================//
 package org.s7s.plugin.device;
 
+import java.util.List;
 import java.util.function.Consumer;
 
 import org.slf4j.Logger;
@@ -16,14 +17,35 @@ import org.slf4j.LoggerFactory;
 import org.s7s.core.instance.state.st.STDocument;
 import org.s7s.core.instance.store.ConfigurableStore;
 import org.s7s.core.instance.store.STCollectionStore;
+import org.s7s.core.instance.store.STIndex;
 import org.s7s.plugin.device.DeviceStore.DeviceStoreConfig;
 
 public class DeviceStore extends STCollectionStore<Device> implements ConfigurableStore<DeviceStoreConfig> {
 
 	private static final Logger log = LoggerFactory.getLogger(DeviceStore.class);
 
+	private final STIndex<String, Device> byIpAddress;
+
 	public DeviceStore() {
 		super(log, Device::new);
+
+		byIpAddress = index(Device.IP_ADDRESS, attribute -> List.of(attribute.asString()));
+	}
+
+	/**
+	 * Record a device that was found on the network. A device that was already
+	 * found at the same IP address is updated instead of duplicated.
+	 *
+	 * @param ip  The device's IP address
+	 * @param mac The device's MAC address if known
+	 * @return The device
+	 */
+	public synchronized Device register(String ip, String mac) {
+		var device = byIpAddress.get(ip).orElseGet(() -> create(d -> d.set(Device.IP_ADDRESS, ip)));
+		if (mac != null) {
+			device.set(Device.MAC_ADDRESS, mac);
+		}
+		return device;
 	}
 
 	@Override
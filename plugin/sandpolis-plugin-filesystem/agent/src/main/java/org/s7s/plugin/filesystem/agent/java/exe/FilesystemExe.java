@@ -10,23 +10,57 @@ package org.s7s.plugin.filesystem.agent.java.exe;
 
 import static org.s7s.core.instance.stream.StreamStore.StreamStore;
 
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 
 import com.google.common.io.MoreFiles;
 import com.google.common.io.RecursiveDeleteOption;
+import com.google.protobuf.MessageLiteOrBuilder;
 import org.s7s.core.foundation.S7SSystem;
 import org.s7s.core.instance.exelet.Exelet;
 import org.s7s.core.instance.exelet.ExeletContext;
+import org.s7s.core.instance.stream.InboundStreamAdapter;
 import org.s7s.core.instance.stream.OutboundStreamAdapter;
 import org.s7s.plugin.filesystem.DirectoryStreamSource;
+import org.s7s.plugin.filesystem.FileStreamSink;
+import org.s7s.plugin.filesystem.FileStreamSource;
 import org.s7s.plugin.filesystem.Messages.RQ_DirectoryStream;
 import org.s7s.plugin.filesystem.Messages.RS_DirectoryStream;
 import org.s7s.plugin.filesystem.Messages.EV_DirectoryStream;
 import org.s7s.plugin.filesystem.Messages.RQ_DeleteFile;
 import org.s7s.plugin.filesystem.Messages.RS_DeleteFile;
+import org.s7s.plugin.filesystem.Messages.EV_FileChunk;
+import org.s7s.plugin.filesystem.Messages.RQ_DownloadStream;
+import org.s7s.plugin.filesystem.Messages.RS_DownloadStream;
+import org.s7s.plugin.filesystem.Messages.RQ_UploadStream;
+import org.s7s.plugin.filesystem.Messages.RS_UploadStream;
+import org.s7s.plugin.filesystem.Messages.EV_SyncDelta;
+import org.s7s.plugin.filesystem.Messages.RQ_SyncDelta;
+import org.s7s.plugin.filesystem.Messages.RS_SyncDelta;
+import org.s7s.plugin.filesystem.Messages.RQ_SyncSignatures;
+import org.s7s.plugin.filesystem.Messages.RS_SyncSignatures;
+import org.s7s.plugin.filesystem.Messages.EV_MountStreamFuse;
+import org.s7s.plugin.filesystem.Messages.RQ_MountGetattr;
+import org.s7s.plugin.filesystem.Messages.RQ_MountRead;
+import org.s7s.plugin.filesystem.Messages.RQ_MountReaddir;
+import org.s7s.plugin.filesystem.Messages.RQ_MountStreamFuse;
+import org.s7s.plugin.filesystem.Messages.RS_MountGetattr;
+import org.s7s.plugin.filesystem.Messages.RS_MountRead;
+import org.s7s.plugin.filesystem.Messages.RS_MountReaddir;
+import org.s7s.plugin.filesystem.Messages.RS_MountStreamFuse;
+import org.s7s.plugin.filesystem.mount.MountService;
+import org.s7s.plugin.filesystem.mount.MountStreamSource;
+import org.s7s.plugin.filesystem.sync.DeltaStreamSink;
+import org.s7s.plugin.filesystem.sync.SignatureCache;
 
 public final class FilesystemExe extends Exelet {
 
+	/**
+	 * Signatures of recently synchronized files.
+	 */
+	private static final SignatureCache signatures = new SignatureCache(64 * 1024 * 1024);
+
 	@Handler(auth = true)
 	public static RS_DirectoryStream rq_directory_stream(ExeletContext context, RQ_DirectoryStream rq)
 			throws Exception {
@@ -71,6 +105,114 @@ public final class FilesystemExe extends Exelet {
 		return RS_DeleteFile.DELETE_FILE_OK;
 	}
 
+	@Handler(auth = true)
+	public static RS_DownloadStream rq_download_stream(ExeletContext context, RQ_DownloadStream rq)
+			throws Exception {
+		var path = Paths.get(rq.getPath());
+		if (!Files.isRegularFile(path))
+			return RS_DownloadStream.DOWNLOAD_STREAM_FAILED_NOT_FOUND;
+
+		FileStreamSource source;
+		try {
+			source = new FileStreamSource(path, rq.getOffset(),
+					rq.getChunkSize() > 0 ? rq.getChunkSize() : FileStreamSource.DEFAULT_CHUNK_SIZE,
+					rq.getParallelism() > 0 ? Math.min(rq.getParallelism(), FileStreamSource.MAX_PARALLELISM) : 1,
+					rq.getCompress());
+		} catch (IllegalArgumentException e) {
+			return RS_DownloadStream.DOWNLOAD_STREAM_FAILED_INVALID_OFFSET;
+		}
+
+		var outbound = new OutboundStreamAdapter<EV_FileChunk>(rq.getStreamId(), context.connector,
+				context.request.getFrom());
+		StreamStore.add(source, outbound);
+
+		context.defer(() -> {
+			source.start();
+		});
+
+		return RS_DownloadStream.DOWNLOAD_STREAM_OK;
+	}
+
+	@Handler(auth = true)
+	public static MessageLiteOrBuilder rq_upload_stream(ExeletContext context, RQ_UploadStream rq) throws Exception {
+		var sink = new FileStreamSink(rq.getStreamId(), Paths.get(rq.getPath()), rq.getSize(),
+				rq.getChunkSize() > 0 ? Math.min(rq.getChunkSize(), FileStreamSource.MAX_CHUNK_SIZE)
+						: FileStreamSource.DEFAULT_CHUNK_SIZE,
+				rq.getResume());
+		var inbound = new InboundStreamAdapter<EV_FileChunk>(rq.getStreamId(), context.connector,
+				EV_FileChunk.class);
+		StreamStore.add(inbound, sink);
+
+		return RS_UploadStream.newBuilder().setOffset(sink.offset());
+	}
+
+	@Handler(auth = true)
+	public static MessageLiteOrBuilder rq_sync_signatures(RQ_SyncSignatures rq) throws Exception {
+		var root = Paths.get(rq.getPath());
+		if (!Files.isDirectory(root))
+			return RS_SyncSignatures.newBuilder().setNotFound(true);
+
+		return RS_SyncSignatures.newBuilder().addAllSignature(signatures.compare(root, rq.getEntryList()));
+	}
+
+	@Handler(auth = true)
+	public static RS_SyncDelta rq_sync_delta(ExeletContext context, RQ_SyncDelta rq) throws Exception {
+		var root = Paths.get(rq.getPath());
+		try {
+			Files.createDirectories(root);
+		} catch (FileAlreadyExistsException e) {
+			return RS_SyncDelta.SYNC_DELTA_FAILED_NOT_FOUND;
+		}
+
+		var sink = new DeltaStreamSink(rq.getStreamId(), root);
+		var inbound = new InboundStreamAdapter<EV_SyncDelta>(rq.getStreamId(), context.connector,
+				EV_SyncDelta.class);
+		StreamStore.add(inbound, sink);
+
+		return RS_SyncDelta.SYNC_DELTA_OK;
+	}
+
+	@Handler(auth = true)
+	public static RS_MountStreamFuse rq_mount_stream_fuse(ExeletContext context, RQ_MountStreamFuse rq)
+			throws Exception {
+		var root = Paths.get(rq.getPath());
+		if (!Files.isDirectory(root))
+			return RS_MountStreamFuse.MOUNT_STREAM_FAILED_NOT_FOUND;
+
+		var source = new MountStreamSource(rq.getStreamId(), root, context.connector,
+				context.request.getFrom());
+		var outbound = new OutboundStreamAdapter<EV_MountStreamFuse>(rq.getStreamId(), context.connector,
+				context.request.getFrom());
+		StreamStore.add(source, outbound);
+
+		context.defer(() -> {
+			source.start();
+		});
+
+		return RS_MountStreamFuse.MOUNT_STREAM_OK;
+	}
+
+	@Handler(auth = true)
+	public static MessageLiteOrBuilder rq_mount_getattr(ExeletContext context, RQ_MountGetattr rq) throws Exception {
+		return MountStreamSource.get(rq.getMountId(), context.connector, context.request.getFrom())
+				.map(service -> service.getattr(rq))
+				.orElse(RS_MountGetattr.newBuilder().setError(MountService.EIO).build());
+	}
+
+	@Handler(auth = true)
+	public static MessageLiteOrBuilder rq_mount_readdir(ExeletContext context, RQ_MountReaddir rq) throws Exception {
+		return MountStreamSource.get(rq.getMountId(), context.connector, context.request.getFrom())
+				.map(service -> service.readdir(rq))
+				.orElse(RS_MountReaddir.newBuilder().setError(MountService.EIO).build());
+	}
+
+	@Handler(auth = true)
+	public static MessageLiteOrBuilder rq_mount_read(ExeletContext context, RQ_MountRead rq) throws Exception {
+		return MountStreamSource.get(rq.getMountId(), context.connector, context.request.getFrom())
+				.map(service -> service.read(rq))
+				.orElse(RS_MountRead.newBuilder().setError(MountService.EIO).build());
+	}
+
 	private FilesystemExe() {
 	}
 }
@@ -23,9 +23,11 @@ dependencies {
 
 	if (project.getParent() == null) {
 		compileOnly("org.s7s:core.instance:+")
+		testImplementation("org.s7s:core.instance:+")
 		implementation("org.s7s.core.ext.fuse:+")
 	} else {
 		compileOnly(project(":core:instance"))
+		testImplementation(project(":core:instance"))
 		implementation(project(":core:ext:fuse"))
 	}
 }
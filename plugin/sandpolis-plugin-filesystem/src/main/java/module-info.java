@@ -9,6 +9,8 @@
 module org.s7s.plugin.filesystem {
 	exports org.s7s.plugin.filesystem.cmd;
 	exports org.s7s.plugin.filesystem;
+	exports org.s7s.plugin.filesystem.mount;
+	exports org.s7s.plugin.filesystem.sync;
 
 	requires com.google.common;
 	requires com.google.protobuf;
@@ -11,37 +11,50 @@ package org.s7s.plugin.filesystem;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
 import java.io.IOException;
-import java.nio.file.AccessDeniedException;
-import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
-import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.TimeUnit;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.MoreExecutors;
 import org.s7s.core.instance.stream.StreamSource;
 import org.s7s.plugin.filesystem.Messages.EV_DirectoryStream;
 import org.s7s.plugin.filesystem.Messages.EV_DirectoryStream.DirectoryEntry;
 import org.s7s.plugin.filesystem.Messages.EV_DirectoryStream.DirectoryEntry.Type;
 import org.s7s.plugin.filesystem.Messages.EV_DirectoryStream.DirectoryEntry.UpdateType;
 import org.s7s.plugin.filesystem.Messages.RQ_DirectoryStream;
+import org.s7s.plugin.filesystem.WatchDispatcher.Registration;
 
 /**
  * This class provides a convenient handle on the local filesystem.
+ *
+ * <p>
+ * Listings are read lazily in pages of {@link #PAGE_SIZE} entries, so the first
+ * page of a very large directory is sent before the rest of the directory has
+ * been read. Attributes are read with a single bulk call per entry and large
+ * pages are processed in parallel. The number of elements in each child
+ * directory is computed after the listing has been sent. Only the first
+ * {@link #MAX_COUNTED_DIRECTORIES} child directories are counted and the count
+ * is omitted for any with more than {@link #MAX_COUNTED_ENTRIES} elements, so a
+ * listing reads a bounded number of entries from its children.
  */
 public class DirectoryStreamSource extends StreamSource<EV_DirectoryStream> {
 
@@ -52,6 +65,27 @@ public class DirectoryStreamSource extends StreamSource<EV_DirectoryStream> {
 	 */
 	private static final int MAX_EVENT_ENTRIES = 45;
 
+	/**
+	 * The number of directory entries read before a page is sent.
+	 */
+	private static final int PAGE_SIZE = 1000;
+
+	/**
+	 * The page size above which attributes are read in parallel.
+	 */
+	private static final int PARALLEL_THRESHOLD = 64;
+
+	/**
+	 * The maximum number of child directories whose elements are counted in a
+	 * listing.
+	 */
+	private static final int MAX_COUNTED_DIRECTORIES = 256;
+
+	/**
+	 * The number of elements above which a directory isn't counted.
+	 */
+	private static final int MAX_COUNTED_ENTRIES = 1000;
+
 	/**
 	 * Whether modification timestamps should be included in file listings.
 	 */
@@ -78,56 +112,49 @@ public class DirectoryStreamSource extends StreamSource<EV_DirectoryStream> {
 	private final boolean list_mimes;
 
 	/**
-	 * The current reference directory. Also known as the PWD or working directory.
+	 * Whether file owners should be included in file listings.
 	 */
-	private Path ref;
+	private final boolean list_owners;
 
-	private final Path initial;
+	/**
+	 * Whether file groups should be included in file listings.
+	 */
+	private final boolean list_groups;
 
 	/**
-	 * A {@link WatchKey} for the reference directory.
+	 * Whether the filesystem supports POSIX attributes.
 	 */
-	private WatchKey refWatchKey;
+	private final boolean posix;
 
 	/**
-	 * A watch service for the reference directory.
+	 * The current reference directory. Also known as the PWD or working directory.
 	 */
-	private WatchService refService;
+	private volatile Path ref;
+
+	private final Path initial;
 
 	/**
-	 * The resident filesystem.
+	 * The watch registration for the reference directory.
 	 */
-	private final FileSystem filesystem;
+	private Registration refWatch;
 
 	/**
-	 * A thread that waits for events from the watch service.
+	 * The shared watch dispatcher for the resident filesystem.
 	 */
-	private final Thread processEvents = new Thread(() -> {
-		try {
-			while (!Thread.interrupted()) {
-				WatchKey watchKey = refService.poll();
-				if (watchKey != null) {
+	private final WatchDispatcher dispatcher;
 
-					var events = watchKey.pollEvents();
-					for (int i = 0; i < events.size();) {
-						var ev = EV_DirectoryStream.newBuilder();
-						for (int j = 0; j < MAX_EVENT_ENTRIES && i < events.size(); j++, i++) {
-							ev.addEntry(buildEntryFromEvent(events.get(i)));
-						}
+	/**
+	 * Runs listings and watch event processing in order without blocking the
+	 * caller or the watch dispatcher.
+	 */
+	private final Executor executor = MoreExecutors.newSequentialExecutor(ForkJoinPool.commonPool());
 
-						submit(ev.build());
-					}
+	/**
+	 * The resident filesystem.
+	 */
+	private final FileSystem filesystem;
 
-					watchKey.reset();
-				}
-			}
-		} catch (IOException e) {
-			return;
-		} catch (ClosedWatchServiceException e) {
-			// TODO ensure the entire handle is closing
-			return;
-		}
-	});
+	private volatile boolean closed;
 
 	public DirectoryStreamSource(RQ_DirectoryStream rq) {
 		this(FileSystems.getDefault(), rq);
@@ -141,8 +168,10 @@ public class DirectoryStreamSource extends StreamSource<EV_DirectoryStream> {
 	 */
 	public DirectoryStreamSource(FileSystem fs, RQ_DirectoryStream rq) {
 		this.filesystem = Objects.requireNonNull(fs);
+		this.dispatcher = WatchDispatcher.of(fs);
+		this.posix = fs.supportedFileAttributeViews().contains("posix");
 
-		initial = Paths.get(rq.getPath());
+		initial = fs.getPath(rq.getPath());
 		if (!Files.isDirectory(initial))
 			throw new IllegalArgumentException();
 
@@ -151,23 +180,15 @@ public class DirectoryStreamSource extends StreamSource<EV_DirectoryStream> {
 		this.list_ctimes = rq.getIncludeCreateTimestamps();
 		this.list_sizes = rq.getIncludeSizes();
 		this.list_mimes = rq.getIncludeMimeTypes();
+		this.list_owners = rq.getIncludeOwners();
+		this.list_groups = rq.getIncludeGroups();
 
+		ref = initial;
 	}
 
 	@Override
 	public void start() {
-		try {
-			refService = filesystem.newWatchService();
-			processEvents.start();
-		} catch (IOException e) {
-			log.warn("Failed to create watch service", e);
-		}
-
-		try {
-			movePath(initial);
-		} catch (IOException e) {
-			log.warn("Failed to list directory", e);
-		}
+		moveAsync(initial);
 	}
 
 	/**
@@ -187,7 +208,7 @@ public class DirectoryStreamSource extends StreamSource<EV_DirectoryStream> {
 	public boolean up() throws IOException {
 		Path potential = ref.getParent();
 		if (potential != null) {
-			movePath(potential);
+			moveAsync(potential);
 			return true;
 		}
 		return false;
@@ -205,8 +226,8 @@ public class DirectoryStreamSource extends StreamSource<EV_DirectoryStream> {
 			throw new IllegalArgumentException();
 
 		Path potential = ref.resolve(directory);
-		if (Files.isDirectory(potential) && Files.exists(potential)) {
-			movePath(potential);
+		if (Files.isDirectory(potential)) {
+			moveAsync(potential);
 			return true;
 		}
 		return false;
@@ -222,9 +243,9 @@ public class DirectoryStreamSource extends StreamSource<EV_DirectoryStream> {
 		if (path == null)
 			throw new IllegalArgumentException();
 
-		Path potential = Paths.get(path);
-		if (Files.isDirectory(potential) && Files.exists(potential)) {
-			movePath(potential);
+		Path potential = filesystem.getPath(path);
+		if (Files.isDirectory(potential)) {
+			moveAsync(potential);
 			return true;
 		}
 		return false;
@@ -232,106 +253,260 @@ public class DirectoryStreamSource extends StreamSource<EV_DirectoryStream> {
 
 	@Override
 	public void close() {
+		closed = true;
 
-		processEvents.interrupt();
+		executor.execute(() -> {
+			if (refWatch != null) {
+				refWatch.cancel();
+				refWatch = null;
+			}
+		});
 
+		super.close();
+	}
+
+	/**
+	 * Change the reference path and send the new listing in the background.
+	 *
+	 * @param potential The new reference path
+	 */
+	private void moveAsync(Path potential) {
+		ref = potential;
+		executor.execute(() -> {
+			try {
+				movePath(potential);
+			} catch (IOException e) {
+				log.warn("Failed to list directory", e);
+			}
+		});
+	}
+
+	/**
+	 * Change the current reference path to the given path. This method must only
+	 * be called from the {@link #executor}.
+	 *
+	 * @param potential The new reference path
+	 */
+	private void movePath(Path potential) throws IOException {
+
+		if (refWatch != null) {
+			refWatch.cancel();
+			refWatch = null;
+		}
+
+		if (closed)
+			return;
+
+		// Register before listing so no changes are missed
 		try {
-			refService.close();
-		} catch (Exception ignore) {
-		} finally {
-			refService = null;
+			refWatch = dispatcher.register(potential, (directory, events) -> {
+				executor.execute(() -> processEvents(directory, events));
+			});
+		} catch (IOException e) {
+			log.error("Failed to register present working directory", e);
+		}
+
+		var directories = new ArrayList<Path>();
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(potential)) {
+			var page = new ArrayList<Path>(PAGE_SIZE);
+			for (Path path : stream) {
+				page.add(path);
+				if (page.size() == PAGE_SIZE) {
+					sendPage(potential, page, directories, false);
+					page.clear();
+				}
+
+				if (closed || !potential.equals(ref))
+					return;
+			}
+			sendPage(potential, page, directories, true);
+		}
+
+		// Now count the elements in the child directories
+		if (list_sizes) {
+			var entries = new ArrayList<DirectoryEntry>(MAX_EVENT_ENTRIES);
+			for (var directory : directories) {
+				if (closed || !potential.equals(ref))
+					return;
+
+				countEntries(directory).ifPresent(count -> {
+					entries.add(DirectoryEntry.newBuilder().setName(directory.getFileName().toString())
+							.setType(Type.DIRECTORY).setUpdateType(UpdateType.ENTRY_MODIFY).setSize(count).build());
+				});
+
+				if (entries.size() == MAX_EVENT_ENTRIES) {
+					submit(EV_DirectoryStream.newBuilder().setPath(potential.toString()).addAllEntry(entries).build());
+					entries.clear();
+				}
+			}
+			if (!entries.isEmpty()) {
+				submit(EV_DirectoryStream.newBuilder().setPath(potential.toString()).addAllEntry(entries).build());
+			}
 		}
 	}
 
 	/**
-	 * Change the current reference path to the given path.
+	 * Read the attributes of a page of directory entries and submit them.
 	 *
-	 * @param potential The new reference path
+	 * @param directory   The listed directory
+	 * @param page        The page of entries
+	 * @param directories Receives the child directories that should be counted
+	 * @param last        Whether this is the last page of the listing
 	 */
-	private synchronized void movePath(Path potential) throws IOException {
+	private void sendPage(Path directory, List<Path> page, List<Path> directories, boolean last) {
+		var stream = page.size() > PARALLEL_THRESHOLD ? page.parallelStream() : page.stream();
 
-		if (refWatchKey != null) {
-			refWatchKey.cancel();
-			refWatchKey = null;
+		// Entries that vanish while the page is being read are skipped
+		List<DirectoryEntry> entries = stream.map(this::buildNewEntry).flatMap(Optional::stream)
+				.collect(Collectors.toList());
+
+		for (var entry : entries) {
+			if (entry.getType() == Type.DIRECTORY && directories.size() < MAX_COUNTED_DIRECTORIES) {
+				directories.add(directory.resolve(entry.getName()));
+			}
 		}
 
-		var files = Files.list(potential).collect(Collectors.toList());
-		for (int i = 0; i < files.size();) {
-			var ev = EV_DirectoryStream.newBuilder().setPath(potential.toString());
-			for (int j = 0; j < MAX_EVENT_ENTRIES && i < files.size(); j++, i++) {
-				ev.addEntry(buildNewEntry(files.get(i)));
+		for (int i = 0; i < entries.size() || (last && i == 0);) {
+			var ev = EV_DirectoryStream.newBuilder().setPath(directory.toString());
+			for (int j = 0; j < MAX_EVENT_ENTRIES && i < entries.size(); j++, i++) {
+				ev.addEntry(entries.get(i));
 			}
 
+			if (last && i >= entries.size()) {
+				submit(ev.setComplete(true).build());
+				break;
+			}
 			submit(ev.build());
 		}
+	}
 
-		ref = potential;
-		try {
-			refWatchKey = ref.register(refService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-		} catch (IOException e) {
-			log.error("Failed to register present working directory", e);
+	/**
+	 * Handle a batch of events from the watch dispatcher.
+	 *
+	 * @param directory The watched directory
+	 * @param events    The events
+	 */
+	private void processEvents(Path directory, List<WatchEvent<?>> events) {
+		if (closed || !directory.equals(ref))
+			return;
+
+		for (int i = 0; i < events.size();) {
+			var ev = EV_DirectoryStream.newBuilder().setPath(directory.toString());
+			for (int j = 0; j < MAX_EVENT_ENTRIES && i < events.size(); j++, i++) {
+				buildEntryFromEvent(directory, events.get(i)).ifPresent(ev::addEntry);
+			}
+
+			if (ev.getEntryCount() > 0) {
+				submit(ev.build());
+			}
 		}
 	}
 
 	/**
-	 * Build a new {@link FileListlet} out of a {@link WatchEvent}.
+	 * Build a new {@link DirectoryEntry} out of a {@link WatchEvent}.
 	 *
-	 * @param event The watch event
-	 * @return A new {@link FileListlet} update
+	 * @param directory The watched directory
+	 * @param event     The watch event
+	 * @return A new {@link DirectoryEntry} update
 	 */
-	private DirectoryEntry buildEntryFromEvent(@SuppressWarnings("rawtypes") WatchEvent event) throws IOException {
-		Path path = (Path) event.context();
+	private Optional<DirectoryEntry> buildEntryFromEvent(Path directory, WatchEvent<?> event) {
 		Object kind = event.kind();
 
+		if (kind == OVERFLOW)
+			return Optional.of(DirectoryEntry.newBuilder().setUpdateType(UpdateType.OVERFLOW).build());
+
+		Path path = directory.resolve((Path) event.context());
+
 		if (kind == ENTRY_CREATE)
 			return buildNewEntry(path);
 		else if (kind == ENTRY_MODIFY)
 			return buildModifiedEntry(path);
 		else if (kind == ENTRY_DELETE)
-			return buildDeletedEntry(path);
+			return Optional.of(buildDeletedEntry(path));
 		else
-			return DirectoryEntry.newBuilder().setUpdateType(UpdateType.OVERFLOW).build();
+			return Optional.of(DirectoryEntry.newBuilder().setUpdateType(UpdateType.OVERFLOW).build());
+	}
 
+	/**
+	 * Read all attributes of the given path in one call.
+	 *
+	 * @param path The path
+	 * @return The path's attributes which are {@link PosixFileAttributes} if
+	 *         supported
+	 */
+	private BasicFileAttributes readAttributes(Path path) throws IOException {
+		var type = posix ? PosixFileAttributes.class : BasicFileAttributes.class;
+		try {
+			return Files.readAttributes(path, type);
+		} catch (IOException e) {
+			// Fall back to the link itself if it's broken
+			return Files.readAttributes(path, type, LinkOption.NOFOLLOW_LINKS);
+		}
 	}
 
 	/**
 	 * Build a new {@link DirectoryEntry} out of a {@link Path}.
 	 *
 	 * @param path The path
-	 * @return A new {@link DirectoryEntry}
+	 * @return A new {@link DirectoryEntry} or nothing if the path vanished
 	 */
-	private DirectoryEntry buildNewEntry(Path path) throws IOException {
+	private Optional<DirectoryEntry> buildNewEntry(Path path) {
 		DirectoryEntry.Builder entry = DirectoryEntry.newBuilder();
 		entry.setName(path.getFileName().toString());
 		entry.setUpdateType(UpdateType.ENTRY_CREATE);
 
-		if (Files.isRegularFile(path)) {
+		BasicFileAttributes attributes;
+		try {
+			attributes = readAttributes(path);
+		} catch (IOException e) {
+			return Optional.empty();
+		}
+
+		if (attributes.isRegularFile()) {
 			entry.setType(Type.REGULAR_FILE);
-		} else if (Files.isDirectory(path)) {
+		} else if (attributes.isDirectory()) {
 			entry.setType(Type.DIRECTORY);
-		} else if (Files.isSymbolicLink(path)) {
+		} else if (attributes.isSymbolicLink()) {
 			entry.setType(Type.SYMLINK);
 		}
 
 		if (list_mtimes) {
-			entry.setModifyTimestamp(Files.getLastModifiedTime(path).toMillis());
+			entry.setModifyTimestamp(attributes.lastModifiedTime().toMillis());
 		}
 		if (list_atimes) {
-			entry.setAccessTimestamp(((FileTime) Files.getAttribute(path, "lastAccessTime")).toMillis());
+			entry.setAccessTimestamp(attributes.lastAccessTime().toMillis());
 		}
 		if (list_ctimes) {
-			entry.setCreateTimestamp(((FileTime) Files.getAttribute(path, "creationTime")).toMillis());
+			entry.setCreateTimestamp(attributes.creationTime().toMillis());
 		}
 
-		if (list_sizes) {
-			entry.setSize(entry.getType() == Type.DIRECTORY ? Files.list(path).count() : Files.size(path));
+		// Directory sizes are computed after the listing
+		if (list_sizes && !attributes.isDirectory()) {
+			entry.setSize(attributes.size());
+		}
+
+		if (attributes instanceof PosixFileAttributes posixAttributes) {
+			if (list_owners) {
+				entry.setOwner(posixAttributes.owner().getName());
+			}
+			if (list_groups) {
+				entry.setGroup(posixAttributes.group().getName());
+			}
 		}
 
 		if (list_mimes) {
-			entry.setMimeType(Files.probeContentType(path));
+			try {
+				var mime = Files.probeContentType(path);
+				if (mime != null) {
+					entry.setMimeType(mime);
+				}
+			} catch (IOException e) {
+				// Omit the MIME type
+			}
 		}
 
-		return entry.build();
+		return Optional.of(entry.build());
 	}
 
 	/**
@@ -352,20 +527,56 @@ public class DirectoryStreamSource extends StreamSource<EV_DirectoryStream> {
 	 * Build a new {@link DirectoryEntry} out of a modified {@link Path}.
 	 *
 	 * @param path The path
-	 * @return A new {@link DirectoryEntry}
+	 * @return A new {@link DirectoryEntry} or nothing if the path vanished
 	 */
-	private DirectoryEntry buildModifiedEntry(Path path) throws IOException {
+	private Optional<DirectoryEntry> buildModifiedEntry(Path path) {
 		DirectoryEntry.Builder entry = DirectoryEntry.newBuilder();
 		entry.setName(path.getFileName().toString());
 		entry.setUpdateType(UpdateType.ENTRY_MODIFY);
 
-		if (list_mtimes) {
-			entry.setModifyTimestamp(Files.getLastModifiedTime(path).toMillis());
-		}
-		if (list_sizes) {
-			entry.setSize(entry.getType() == Type.DIRECTORY ? path.toFile().list().length : Files.size(path));
+		if (list_mtimes || list_sizes) {
+			BasicFileAttributes attributes;
+			try {
+				attributes = readAttributes(path);
+			} catch (IOException e) {
+				return Optional.empty();
+			}
+
+			if (attributes.isDirectory()) {
+				entry.setType(Type.DIRECTORY);
+			}
+			if (list_mtimes) {
+				entry.setModifyTimestamp(attributes.lastModifiedTime().toMillis());
+			}
+			if (list_sizes) {
+				if (attributes.isDirectory()) {
+					countEntries(path).ifPresent(entry::setSize);
+				} else {
+					entry.setSize(attributes.size());
+				}
+			}
 		}
 
-		return entry.build();
+		return Optional.of(entry.build());
+	}
+
+	/**
+	 * Count the number of elements in the given directory.
+	 *
+	 * @param directory The directory
+	 * @return The number of elements or nothing if the directory couldn't be read
+	 *         or has more than {@link #MAX_COUNTED_ENTRIES} elements
+	 */
+	private static Optional<Long> countEntries(Path directory) {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			long count = 0;
+			for (var it = stream.iterator(); it.hasNext(); it.next()) {
+				if (++count > MAX_COUNTED_ENTRIES)
+					return Optional.empty();
+			}
+			return Optional.of(count);
+		} catch (IOException | RuntimeException e) {
+			return Optional.empty();
+		}
 	}
 }
@@ -0,0 +1,334 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.s7s.core.instance.stream.StreamStore.StreamStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.primitives.Longs;
+import org.s7s.core.instance.stream.StreamSink;
+import org.s7s.plugin.filesystem.Messages.EV_FileChunk;
+
+/**
+ * A {@link StreamSink} that writes {@link EV_FileChunk} events produced by a
+ * {@link FileStreamSource} into a file.
+ *
+ * <p>
+ * Chunks are written with positional writes into a {@code .part} file next to
+ * the target, so they may arrive in any order. The highest offset below which
+ * every chunk has been received is periodically forced to disk and recorded in
+ * a {@code .part.offset} file, which is replaced atomically. An interrupted
+ * transfer can be resumed from that offset. Once the file is complete, the part
+ * file is moved over the target.
+ */
+public class FileStreamSink extends StreamSink<EV_FileChunk> {
+
+	private static final Logger log = LoggerFactory.getLogger(FileStreamSink.class);
+
+	/**
+	 * The number of bytes received between checkpoints.
+	 */
+	private static final long CHECKPOINT_INTERVAL = 32 * 1024 * 1024;
+
+	private final int streamId;
+
+	private final Path target;
+
+	private final Path part;
+
+	private final Path checkpoint;
+
+	private final long size;
+
+	/**
+	 * The negotiated chunk size which bounds the length of every chunk.
+	 */
+	private final int chunkSize;
+
+	private final FileChannel channel;
+
+	/**
+	 * The offset at which the transfer was started.
+	 */
+	private final long offset;
+
+	/**
+	 * Every byte below this offset has been written.
+	 */
+	private long watermark;
+
+	/**
+	 * The watermark at the last checkpoint.
+	 */
+	private long checkpointed;
+
+	/**
+	 * Chunks above the watermark that have been written, keyed by offset.
+	 */
+	private final TreeMap<Long, Long> received = new TreeMap<>();
+
+	/**
+	 * Holds decompressed chunks. It's allocated with the first compressed chunk.
+	 */
+	private ByteBuffer inflated;
+
+	private final CompletableFuture<Path> future = new CompletableFuture<>();
+
+	/**
+	 * @param streamId The stream's ID
+	 * @param target   The destination file
+	 * @param size      The file's total size in bytes
+	 * @param chunkSize The maximum length of each chunk in bytes
+	 * @param resume    Whether a previous transfer of the same file should be
+	 *                  resumed
+	 * @throws IOException If the part file could not be opened
+	 */
+	public FileStreamSink(int streamId, Path target, long size, int chunkSize, boolean resume) throws IOException {
+		checkArgument(chunkSize > 0 && chunkSize <= FileStreamSource.MAX_CHUNK_SIZE);
+
+		this.streamId = streamId;
+		this.target = target;
+		this.size = size;
+		this.chunkSize = chunkSize;
+		this.part = target.resolveSibling(target.getFileName() + ".part");
+		this.checkpoint = target.resolveSibling(target.getFileName() + ".part.offset");
+
+		long start = 0;
+		if (resume && Files.exists(part) && Files.exists(checkpoint)) {
+			try {
+				start = Longs.fromByteArray(Files.readAllBytes(checkpoint));
+			} catch (IllegalArgumentException e) {
+				log.debug("Ignoring invalid checkpoint: {}", checkpoint);
+			}
+			start = Math.max(0, Math.min(start, Math.min(size, Files.size(part))));
+		} else {
+			Files.deleteIfExists(part);
+			Files.deleteIfExists(checkpoint);
+		}
+
+		this.channel = FileChannel.open(part, CREATE, WRITE);
+
+		// Anything past the checkpoint might not have been forced to disk
+		channel.truncate(start);
+
+		this.offset = start;
+		this.watermark = start;
+		this.checkpointed = start;
+	}
+
+	@Override
+	public int getStreamID() {
+		return streamId;
+	}
+
+	/**
+	 * @return The offset at which the sender must begin
+	 */
+	public long offset() {
+		return offset;
+	}
+
+	/**
+	 * @return A future that completes with the target path once the file has been
+	 *         received
+	 */
+	public CompletableFuture<Path> future() {
+		return future;
+	}
+
+	@Override
+	public synchronized void onNext(EV_FileChunk item) {
+		if (future.isDone())
+			return;
+
+		try {
+			if (item.getSize() != size) {
+				throw new IOException("The file's size changed during the transfer");
+			}
+
+			write(item);
+			advance(item.getOffset(), item.getOffset() + item.getLength());
+
+			if (watermark >= size) {
+				complete();
+			} else if (watermark - checkpointed >= CHECKPOINT_INTERVAL) {
+				checkpoint();
+			}
+		} catch (IOException | DataFormatException e) {
+			fail(e);
+		}
+	}
+
+	@Override
+	public synchronized void onComplete() {
+		if (!future.isDone()) {
+			fail(new IOException("The stream ended before the file was received"));
+		}
+	}
+
+	@Override
+	public synchronized void onError(Throwable throwable) {
+		if (!future.isDone()) {
+			fail(throwable);
+		}
+	}
+
+	/**
+	 * Verify and write a single chunk.
+	 *
+	 * @param item The chunk
+	 */
+	private void write(EV_FileChunk item) throws IOException, DataFormatException {
+		if (item.getOffset() < 0 || item.getLength() < 0 || item.getLength() > chunkSize
+				|| item.getOffset() + item.getLength() > size) {
+			throw new IOException("Invalid chunk at offset: " + item.getOffset());
+		}
+
+		// Zero chunks are left as holes in the part file
+		if (item.getZero() || item.getLength() == 0)
+			return;
+
+		ByteBuffer data;
+		if (item.getCompressed()) {
+			if (inflated == null) {
+				inflated = ByteBuffer.allocateDirect(chunkSize);
+			}
+			inflated.clear().limit(item.getLength());
+
+			var inflater = new Inflater();
+			try {
+				inflater.setInput(item.getData().asReadOnlyByteBuffer());
+				while (inflated.hasRemaining() && !inflater.finished()) {
+					if (inflater.inflate(inflated) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+				}
+			} finally {
+				inflater.end();
+			}
+			data = inflated.flip();
+		} else {
+			data = item.getData().asReadOnlyByteBuffer();
+		}
+
+		if (data.remaining() != item.getLength()) {
+			throw new IOException("Invalid chunk length at offset: " + item.getOffset());
+		}
+
+		var crc = new CRC32C();
+		crc.update(data.duplicate());
+		if ((int) crc.getValue() != item.getChecksum()) {
+			throw new IOException("Checksum mismatch at offset: " + item.getOffset());
+		}
+
+		long position = item.getOffset();
+		while (data.hasRemaining()) {
+			position += channel.write(data, position);
+		}
+	}
+
+	/**
+	 * Record a received range and advance the watermark past every contiguous
+	 * range.
+	 *
+	 * @param start The range's start offset
+	 * @param end   The range's end offset
+	 */
+	private void advance(long start, long end) {
+		if (end <= watermark)
+			return;
+
+		received.put(start, end);
+
+		Map.Entry<Long, Long> next;
+		while ((next = received.firstEntry()) != null && next.getKey() <= watermark) {
+			watermark = Math.max(watermark, next.getValue());
+			received.pollFirstEntry();
+		}
+	}
+
+	/**
+	 * Force received data to disk and then record the watermark.
+	 */
+	private void checkpoint() throws IOException {
+		channel.force(false);
+
+		// Replace the previous checkpoint atomically so a crash can't corrupt it
+		var temporary = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+		Files.write(temporary, Longs.toByteArray(watermark));
+		Files.move(temporary, checkpoint, ATOMIC_MOVE, REPLACE_EXISTING);
+		checkpointed = watermark;
+	}
+
+	/**
+	 * Finish the part file and move it over the target.
+	 */
+	private void complete() throws IOException {
+
+		// Trailing zero chunks weren't written
+		if (channel.size() < size) {
+			channel.write(ByteBuffer.allocate(1), size - 1);
+		}
+
+		channel.force(true);
+		channel.close();
+
+		try {
+			Files.move(part, target, REPLACE_EXISTING, ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(part, target, REPLACE_EXISTING);
+		}
+		Files.deleteIfExists(checkpoint);
+
+		future.complete(target);
+		StreamStore.stop(streamId);
+	}
+
+	/**
+	 * Abort the transfer, leaving the part file and its last checkpoint in place
+	 * so the transfer can be resumed.
+	 *
+	 * @param cause The reason for the failure
+	 */
+	private void fail(Throwable cause) {
+		log.debug("File transfer failed: {}", target, cause);
+
+		try {
+			if (channel.isOpen()) {
+				checkpoint();
+				channel.close();
+			}
+		} catch (IOException e) {
+			log.debug("Failed to checkpoint part file", e);
+		}
+
+		future.completeExceptionally(cause);
+		StreamStore.stop(streamId);
+	}
+}
@@ -0,0 +1,308 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+import org.s7s.core.foundation.S7SBufferPool;
+import org.s7s.core.instance.stream.StreamSource;
+import org.s7s.plugin.filesystem.Messages.EV_FileChunk;
+
+/**
+ * A {@link StreamSource} that reads a file in fixed size chunks and produces
+ * {@link EV_FileChunk} events for a {@link FileStreamSink}.
+ *
+ * <p>
+ * Chunks are read with positional {@link FileChannel} reads into pooled direct
+ * buffers, so several chunks can be read, checksummed and compressed in
+ * parallel. Chunks are submitted as soon as they're ready and may therefore
+ * arrive out of order. Chunks that contain only zeros are sent without data,
+ * which makes sparse files cheap to transfer.
+ */
+public class FileStreamSource extends StreamSource<EV_FileChunk> {
+
+	private static final Logger log = LoggerFactory.getLogger(FileStreamSource.class);
+
+	/**
+	 * The default chunk size in bytes.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+	/**
+	 * The maximum chunk size in bytes.
+	 */
+	public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * The maximum number of chunks that are encoded concurrently.
+	 */
+	public static final int MAX_PARALLELISM = 16;
+
+	/**
+	 * The maximum number of encoded chunks buffered for each subscriber.
+	 */
+	private static final int MAX_BUFFERED_EVENTS = 16;
+
+	/**
+	 * A compressed chunk is only sent if it's smaller than this fraction of the
+	 * original.
+	 */
+	private static final double COMPRESSION_THRESHOLD = 0.9;
+
+	/**
+	 * Compression is abandoned after this many consecutive chunks failed to
+	 * compress.
+	 */
+	private static final int INCOMPRESSIBLE_LIMIT = 8;
+
+	private final Path file;
+
+	private final FileChannel channel;
+
+	private final long offset;
+
+	private final long size;
+
+	private final int chunkSize;
+
+	private final int parallelism;
+
+	private final S7SBufferPool buffers;
+
+	private final ExecutorService executor;
+
+	/**
+	 * The number of consecutive chunks that didn't compress or -1 if compression
+	 * is disabled.
+	 */
+	private final AtomicInteger incompressible;
+
+	private final Object submitLock = new Object();
+
+	private final Thread thread = new Thread(this::run, "file-stream-source");
+
+	/**
+	 * @param file        The file to read
+	 * @param offset      The offset at which to begin reading
+	 * @param chunkSize   The size of each chunk in bytes
+	 * @param parallelism The maximum number of chunks to encode concurrently
+	 * @param compress    Whether compressible chunks should be compressed
+	 * @throws IOException If the file could not be opened
+	 */
+	public FileStreamSource(Path file, long offset, int chunkSize, int parallelism, boolean compress)
+			throws IOException {
+		super(MAX_BUFFERED_EVENTS);
+		checkArgument(chunkSize > 0 && chunkSize <= MAX_CHUNK_SIZE);
+		checkArgument(parallelism > 0 && parallelism <= MAX_PARALLELISM);
+
+		this.file = file;
+		this.channel = FileChannel.open(file, READ);
+		this.size = channel.size();
+		if (offset < 0 || offset > size) {
+			channel.close();
+			throw new IllegalArgumentException("Invalid offset: " + offset);
+		}
+
+		this.offset = offset;
+		this.chunkSize = chunkSize;
+		this.parallelism = parallelism;
+		this.incompressible = new AtomicInteger(compress ? 0 : -1);
+
+		// Each worker needs a read buffer and a compression buffer
+		this.buffers = new S7SBufferPool(chunkSize + 64, parallelism * 2);
+		this.executor = Executors.newFixedThreadPool(parallelism,
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("file-stream-source-%d").build());
+	}
+
+	/**
+	 * @return The file's total size in bytes
+	 */
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public void start() {
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void close() {
+		thread.interrupt();
+		executor.shutdownNow();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.debug("Failed to close file", e);
+		}
+		super.close();
+	}
+
+	private void run() {
+		var permits = new Semaphore(parallelism);
+
+		try {
+			// Always send at least one chunk so the sink learns the file's size
+			if (offset == size) {
+				emit(EV_FileChunk.newBuilder().setOffset(offset).setSize(size).setZero(true).build());
+			}
+
+			for (long position = offset; position < size; position += chunkSize) {
+				permits.acquire();
+
+				final long chunkOffset = position;
+				final int length = (int) Math.min(chunkSize, size - position);
+				executor.execute(() -> {
+					try {
+						emit(readChunk(chunkOffset, length));
+					} catch (Exception e) {
+						log.error("Failed to read chunk at offset: {} from {}", chunkOffset, file, e);
+						closeExceptionally(e);
+					} finally {
+						permits.release();
+					}
+				});
+			}
+
+			// Wait for the workers to finish
+			permits.acquire(parallelism);
+
+			if (!isClosed()) {
+				super.close();
+			}
+		} catch (InterruptedException e) {
+			// The stream was closed
+		}
+	}
+
+	/**
+	 * Read and encode a single chunk.
+	 *
+	 * @param position The chunk's offset in the file
+	 * @param length   The chunk's length
+	 * @return The encoded chunk
+	 */
+	private EV_FileChunk readChunk(long position, int length) throws IOException, InterruptedException {
+		var chunk = EV_FileChunk.newBuilder().setOffset(position).setLength(length).setSize(size);
+
+		ByteBuffer buffer = buffers.acquire();
+		try {
+			buffer.limit(length);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0)
+					throw new IOException("Unexpected end of file");
+			}
+			buffer.flip();
+
+			var crc = new CRC32C();
+			crc.update(buffer.duplicate());
+			chunk.setChecksum((int) crc.getValue());
+
+			if (isZero(buffer)) {
+				return chunk.setZero(true).build();
+			}
+
+			if (incompressible.get() >= 0 && incompressible.get() < INCOMPRESSIBLE_LIMIT) {
+				ByteBuffer compressed = buffers.acquire();
+				try {
+					if (compress(buffer.duplicate(), compressed)) {
+						incompressible.set(0);
+						return chunk.setCompressed(true).setData(ByteString.copyFrom(compressed)).build();
+					}
+					incompressible.incrementAndGet();
+				} finally {
+					buffers.release(compressed);
+				}
+			}
+
+			return chunk.setData(ByteString.copyFrom(buffer)).build();
+		} finally {
+			buffers.release(buffer);
+		}
+	}
+
+	/**
+	 * Compress the input buffer into the output buffer.
+	 *
+	 * @param input  The uncompressed data
+	 * @param output The destination which will be flipped for reading
+	 * @return Whether the data compressed well enough to be worth sending
+	 */
+	private static boolean compress(ByteBuffer input, ByteBuffer output) {
+		int limit = (int) (input.remaining() * COMPRESSION_THRESHOLD);
+		output.limit(Math.min(limit, output.capacity()));
+
+		var deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(input);
+			deflater.finish();
+			while (!deflater.finished()) {
+				if (deflater.deflate(output) == 0 && !output.hasRemaining()) {
+					// The output is already too large
+					return false;
+				}
+			}
+			output.flip();
+			return true;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Determine whether the given buffer contains only zeros.
+	 *
+	 * @param buffer The buffer which will not be modified
+	 * @return Whether every byte in the buffer is zero
+	 */
+	static boolean isZero(ByteBuffer buffer) {
+		int i = buffer.position();
+		int limit = buffer.limit();
+		for (; i + Long.BYTES <= limit; i += Long.BYTES) {
+			if (buffer.getLong(i) != 0)
+				return false;
+		}
+		for (; i < limit; i++) {
+			if (buffer.get(i) != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Submit a chunk from a worker thread.
+	 *
+	 * @param chunk The chunk
+	 */
+	private void emit(EV_FileChunk chunk) {
+		synchronized (submitLock) {
+			if (!isClosed()) {
+				submit(chunk);
+			}
+		}
+	}
+}
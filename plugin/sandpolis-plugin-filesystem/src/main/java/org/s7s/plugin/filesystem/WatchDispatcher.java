@@ -0,0 +1,169 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link WatchDispatcher} owns a single {@link WatchService} for a
+ * {@link FileSystem} and delivers its events to any number of listeners. One
+ * thread blocks on {@link WatchService#take()} for all watched directories, so
+ * idle directory streams cost nothing.
+ */
+public final class WatchDispatcher {
+
+	private static final Logger log = LoggerFactory.getLogger(WatchDispatcher.class);
+
+	private static final Map<FileSystem, WatchDispatcher> dispatchers = new ConcurrentHashMap<>();
+
+	/**
+	 * Get the shared dispatcher for the default filesystem.
+	 *
+	 * @return The shared dispatcher
+	 */
+	public static WatchDispatcher getDefault() {
+		return of(FileSystems.getDefault());
+	}
+
+	/**
+	 * Get the shared dispatcher for the given filesystem.
+	 *
+	 * @param filesystem The filesystem
+	 * @return The shared dispatcher
+	 */
+	public static WatchDispatcher of(FileSystem filesystem) {
+		return dispatchers.computeIfAbsent(filesystem, fs -> {
+			try {
+				return new WatchDispatcher(fs.newWatchService());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+	}
+
+	/**
+	 * Listeners keyed by the {@link WatchKey} of the directory they watch. A
+	 * directory that's watched by several streams has a single key.
+	 */
+	private final Map<WatchKey, List<Registration>> listeners = new HashMap<>();
+
+	private final WatchService service;
+
+	private final Thread thread;
+
+	private WatchDispatcher(WatchService service) {
+		this.service = service;
+
+		thread = new Thread(this::run, "watch-dispatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * A listener's registration on a watched directory.
+	 */
+	public final class Registration {
+
+		private final WatchKey key;
+
+		private final BiConsumer<Path, List<WatchEvent<?>>> listener;
+
+		private Registration(WatchKey key, BiConsumer<Path, List<WatchEvent<?>>> listener) {
+			this.key = key;
+			this.listener = listener;
+		}
+
+		/**
+		 * Stop delivering events to the listener. The underlying {@link WatchKey} is
+		 * cancelled once it has no listeners left.
+		 */
+		public void cancel() {
+			synchronized (listeners) {
+				var registrations = listeners.get(key);
+				if (registrations != null && registrations.remove(this) && registrations.isEmpty()) {
+					listeners.remove(key);
+					key.cancel();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Begin watching a directory for entry creation, deletion, and modification.
+	 *
+	 * @param directory The directory to watch
+	 * @param listener  Receives the watched directory and a batch of events
+	 * @return A registration that must be cancelled when the listener is no longer
+	 *         needed
+	 * @throws IOException If the directory could not be registered
+	 */
+	public Registration register(Path directory, BiConsumer<Path, List<WatchEvent<?>>> listener)
+			throws IOException {
+		synchronized (listeners) {
+			var key = directory.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+			var registration = new Registration(key, listener);
+
+			listeners.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(registration);
+			return registration;
+		}
+	}
+
+	private void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				WatchKey key = service.take();
+
+				var events = key.pollEvents();
+
+				List<Registration> registrations;
+				synchronized (listeners) {
+					registrations = listeners.get(key);
+				}
+
+				if (registrations != null && !events.isEmpty()) {
+					for (var registration : registrations) {
+						try {
+							registration.listener.accept((Path) key.watchable(), events);
+						} catch (Exception e) {
+							log.error("Watch listener failed", e);
+						}
+					}
+				}
+
+				if (!key.reset()) {
+					synchronized (listeners) {
+						listeners.remove(key);
+					}
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			log.debug("Watch dispatcher stopped");
+		}
+	}
+}
@@ -8,7 +8,40 @@
 //============================================================================//
 package org.s7s.plugin.filesystem.cmd;
 
+import static org.s7s.core.instance.stream.StreamStore.StreamStore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.s7s.core.foundation.S7SRandom;
 import org.s7s.core.instance.cmdlet.Cmdlet;
+import org.s7s.core.instance.stream.InboundStreamAdapter;
+import org.s7s.core.instance.stream.OutboundStreamAdapter;
+import org.s7s.plugin.filesystem.FileStreamSink;
+import org.s7s.plugin.filesystem.FileStreamSource;
+import org.s7s.plugin.filesystem.Messages.EV_FileChunk;
+import org.s7s.plugin.filesystem.Messages.FileSignature;
+import org.s7s.plugin.filesystem.Messages.RQ_DownloadStream;
+import org.s7s.plugin.filesystem.Messages.RQ_UploadStream;
+import org.s7s.plugin.filesystem.Messages.RS_DownloadStream;
+import org.s7s.plugin.filesystem.Messages.RS_UploadStream;
+import org.s7s.plugin.filesystem.Messages.EV_SyncDelta;
+import org.s7s.plugin.filesystem.Messages.RQ_SyncDelta;
+import org.s7s.plugin.filesystem.Messages.RQ_SyncSignatures;
+import org.s7s.plugin.filesystem.Messages.RS_SyncDelta;
+import org.s7s.plugin.filesystem.Messages.RS_SyncSignatures;
+import org.s7s.plugin.filesystem.Messages.EV_MountStreamFuse;
+import org.s7s.plugin.filesystem.Messages.RQ_MountStreamFuse;
+import org.s7s.plugin.filesystem.Messages.RS_MountStreamFuse;
+import org.s7s.plugin.filesystem.mount.MountCache;
+import org.s7s.plugin.filesystem.mount.MountStreamSink;
+import org.s7s.plugin.filesystem.mount.MountTransport;
+import org.s7s.plugin.filesystem.sync.DeltaStreamSource;
+import org.s7s.plugin.filesystem.sync.Signatures;
 
 /**
  * Contains filesystem commands.
@@ -18,6 +51,123 @@ import org.s7s.core.instance.cmdlet.Cmdlet;
  */
 public final class FilesystemCmd extends Cmdlet<FilesystemCmd> {
 
+	/**
+	 * Download a file from the target. If a previous download of the same file was
+	 * interrupted, it's resumed.
+	 *
+	 * @param remote The absolute path of the remote file
+	 * @param local  The local destination
+	 * @param size   The remote file's size in bytes
+	 * @return A future that completes once the file has been received
+	 * @throws IOException If the local file could not be opened
+	 */
+	public CompletionStage<Path> download(String remote, Path local, long size) throws IOException {
+		int streamId = S7SRandom.nextNonzeroInt();
+
+		var sink = new FileStreamSink(streamId, local, size, FileStreamSource.DEFAULT_CHUNK_SIZE, true);
+		var inbound = new InboundStreamAdapter<EV_FileChunk>(streamId, target, EV_FileChunk.class);
+		StreamStore.add(inbound, sink);
+
+		return request(RS_DownloadStream.class, RQ_DownloadStream.newBuilder().setStreamId(streamId).setPath(remote)
+				.setOffset(sink.offset()).setChunkSize(FileStreamSource.DEFAULT_CHUNK_SIZE).setParallelism(4)
+				.setCompress(true)).thenCompose(rs -> {
+					if (rs != RS_DownloadStream.DOWNLOAD_STREAM_OK) {
+						StreamStore.stop(streamId);
+						return CompletableFuture.failedFuture(new IOException("Download failed: " + rs));
+					}
+					return sink.future();
+				});
+	}
+
+	/**
+	 * Upload a file to the target. If a previous upload of the same file was
+	 * interrupted, it's resumed.
+	 *
+	 * @param local  The local file
+	 * @param remote The absolute path of the remote destination
+	 * @return A future that completes once the upload has started
+	 * @throws IOException If the local file could not be read
+	 */
+	public CompletionStage<Void> upload(Path local, String remote) throws IOException {
+		int streamId = S7SRandom.nextNonzeroInt();
+
+		return request(RS_UploadStream.class, RQ_UploadStream.newBuilder().setStreamId(streamId).setPath(remote)
+				.setSize(Files.size(local)).setResume(true).setChunkSize(FileStreamSource.DEFAULT_CHUNK_SIZE))
+				.thenAccept(rs -> {
+					try {
+						var source = new FileStreamSource(local, rs.getOffset(), FileStreamSource.DEFAULT_CHUNK_SIZE,
+								4, true);
+						StreamStore.add(source, new OutboundStreamAdapter<EV_FileChunk>(streamId, target, sid));
+						source.start();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+	}
+
+	/**
+	 * Synchronize a remote directory with a local directory. Only the parts of
+	 * each file that differ are transferred and unchanged files are skipped.
+	 * Files that only exist in the remote directory are left alone.
+	 *
+	 * @param local  The local directory
+	 * @param remote The absolute path of the remote directory
+	 * @return A future that completes once the delta stream has started
+	 * @throws IOException If the local directory could not be read
+	 */
+	public CompletionStage<Void> sync(Path local, String remote) throws IOException {
+		var entries = Signatures.scan(local);
+
+		return request(RS_SyncSignatures.class,
+				RQ_SyncSignatures.newBuilder().setPath(remote).addAllEntry(entries)).thenCompose(rs -> {
+
+					// Every file is sent in full to a directory that doesn't exist yet
+					var signatures = rs.getNotFound() ? entries.stream()
+							.map(entry -> FileSignature.newBuilder().setPath(entry.getPath()).build()).toList()
+							: rs.getSignatureList();
+					if (signatures.isEmpty())
+						return CompletableFuture.completedFuture(null);
+
+					int streamId = S7SRandom.nextNonzeroInt();
+					var source = new DeltaStreamSource(local, signatures);
+					StreamStore.add(source, new OutboundStreamAdapter<EV_SyncDelta>(streamId, target, sid));
+
+					return request(RS_SyncDelta.class, RQ_SyncDelta.newBuilder().setStreamId(streamId).setPath(remote))
+							.thenAccept(rs -> {
+								if (rs == RS_SyncDelta.SYNC_DELTA_OK) {
+									source.start();
+								} else {
+									StreamStore.stop(source.getStreamID());
+								}
+							});
+				});
+	}
+
+	/**
+	 * Mount a remote directory. The returned cache serves attributes, directory
+	 * entries, and file contents, and stays coherent with the remote directory
+	 * until the stream is stopped.
+	 *
+	 * @param remote The absolute path of the remote directory
+	 * @return A future that completes once the directory is mounted
+	 */
+	public CompletionStage<MountCache> mount(String remote) {
+		int streamId = S7SRandom.nextNonzeroInt();
+
+		var cache = new MountCache(streamId, MountTransport.of(target, sid));
+		var inbound = new InboundStreamAdapter<EV_MountStreamFuse>(streamId, target, EV_MountStreamFuse.class);
+		StreamStore.add(inbound, new MountStreamSink(streamId, cache));
+
+		return request(RS_MountStreamFuse.class, RQ_MountStreamFuse.newBuilder().setStreamId(streamId).setPath(remote))
+				.thenCompose(rs -> {
+					if (rs != RS_MountStreamFuse.MOUNT_STREAM_OK) {
+						StreamStore.stop(streamId);
+						return CompletableFuture.failedFuture(new IOException("Mount failed: " + rs));
+					}
+					return CompletableFuture.completedFuture(cache);
+				});
+	}
+
 	/**
 	 * Prepare for an asynchronous command.
 	 *
@@ -0,0 +1,455 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem.mount;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.protobuf.ByteString;
+import org.s7s.plugin.filesystem.Messages.EV_MountStreamFuse;
+import org.s7s.plugin.filesystem.Messages.MountAttributes;
+import org.s7s.plugin.filesystem.Messages.RQ_MountGetattr;
+import org.s7s.plugin.filesystem.Messages.RQ_MountRead;
+import org.s7s.plugin.filesystem.Messages.RQ_MountReaddir;
+import org.s7s.plugin.filesystem.Messages.RS_MountReaddir;
+
+/**
+ * The client side of a mounted directory. Attributes and directory entries are
+ * cached until they expire or the agent reports a change. File contents are
+ * cached in fixed size blocks in an LRU cache.
+ *
+ * <p>
+ * Sequential reads are detected per file and trigger read-ahead of an
+ * exponentially growing number of blocks. Every block is fetched with its own
+ * request, so a large read or read-ahead window keeps many requests in flight
+ * at once instead of paying a round-trip per block.
+ *
+ * <p>
+ * Paths are relative to the mount's root and separated by '/'. The root itself
+ * is the empty string.
+ */
+public class MountCache {
+
+	/**
+	 * The default expiration of cached attributes and directory entries. It can
+	 * be long because changes in watched directories are pushed by the agent.
+	 */
+	public static final Duration DEFAULT_TTL = Duration.ofSeconds(30);
+
+	public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+	public static final long DEFAULT_CAPACITY = 64 * 1024 * 1024;
+
+	/**
+	 * The default maximum number of blocks that are read ahead.
+	 */
+	public static final int DEFAULT_READ_AHEAD = 32;
+
+	private record Cached<T>(T value, int errno, long expires) {
+
+		boolean valid() {
+			return System.nanoTime() - expires < 0;
+		}
+	}
+
+	private record BlockKey(String path, long index) {
+	}
+
+	/**
+	 * The state of sequential read detection for a file.
+	 */
+	private static final class ReadState {
+
+		/**
+		 * The offset at which the next read begins if reads are sequential.
+		 */
+		long next;
+
+		/**
+		 * The current read-ahead window in blocks.
+		 */
+		int window;
+	}
+
+	private final int mountId;
+
+	private final MountTransport transport;
+
+	private final long ttl;
+
+	private final int blockSize;
+
+	private final long capacity;
+
+	private final int maxReadAhead;
+
+	private final Map<String, Cached<MountAttributes>> attributes = new ConcurrentHashMap<>();
+
+	private final Map<String, Cached<List<RS_MountReaddir.Entry>>> directories = new ConcurrentHashMap<>();
+
+	/**
+	 * Cached blocks in access order. Guarded by itself.
+	 */
+	private final LinkedHashMap<BlockKey, ByteString> blocks = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * The total size of cached blocks in bytes. Guarded by {@link #blocks}.
+	 */
+	private long size;
+
+	/**
+	 * Blocks that are currently being fetched.
+	 */
+	private final Map<BlockKey, CompletableFuture<ByteString>> inflight = new ConcurrentHashMap<>();
+
+	/**
+	 * A counter for each invalidated path. Fetches that started before an
+	 * invalidation don't populate the cache.
+	 */
+	private final Map<String, Long> versions = new ConcurrentHashMap<>();
+
+	private final Map<String, ReadState> reads = new ConcurrentHashMap<>();
+
+	public MountCache(int mountId, MountTransport transport) {
+		this(mountId, transport, DEFAULT_TTL, DEFAULT_BLOCK_SIZE, DEFAULT_CAPACITY, DEFAULT_READ_AHEAD);
+	}
+
+	/**
+	 * @param mountId      The mount's stream ID
+	 * @param transport    The transport to the agent
+	 * @param ttl          The expiration of attributes and directory entries
+	 * @param blockSize    The size of each cached block
+	 * @param capacity     The maximum total size of cached blocks
+	 * @param maxReadAhead The maximum number of blocks to read ahead
+	 */
+	public MountCache(int mountId, MountTransport transport, Duration ttl, int blockSize, long capacity,
+			int maxReadAhead) {
+		checkArgument(blockSize > 0 && blockSize <= MountService.MAX_READ);
+		checkArgument(capacity >= blockSize);
+		checkArgument(maxReadAhead >= 0);
+
+		this.mountId = mountId;
+		this.transport = transport;
+		this.ttl = ttl.toNanos();
+		this.blockSize = blockSize;
+		this.capacity = capacity;
+		this.maxReadAhead = maxReadAhead;
+	}
+
+	/**
+	 * Get a file's attributes.
+	 *
+	 * @param path The file's path
+	 * @return The attributes or a {@link MountException}
+	 */
+	public CompletableFuture<MountAttributes> getattr(String path) {
+		var cached = attributes.get(path);
+		if (cached != null && cached.valid()) {
+			return result(path, cached);
+		}
+
+		long version = version(path);
+		return transport.getattr(RQ_MountGetattr.newBuilder().setMountId(mountId).setPath(path).build())
+				.toCompletableFuture().thenCompose(rs -> {
+					var entry = new Cached<>(rs.getAttributes(), rs.getError(), System.nanoTime() + ttl);
+					if (version(path) == version) {
+						putAttributes(path, entry);
+					}
+					return result(path, entry);
+				});
+	}
+
+	/**
+	 * List a directory. The attributes of every entry are cached as well.
+	 *
+	 * @param path The directory's path
+	 * @return The entries or a {@link MountException}
+	 */
+	public CompletableFuture<List<RS_MountReaddir.Entry>> readdir(String path) {
+		var cached = directories.get(path);
+		if (cached != null && cached.valid()) {
+			return result(path, cached);
+		}
+
+		long version = version(path);
+		return transport.readdir(RQ_MountReaddir.newBuilder().setMountId(mountId).setPath(path).build())
+				.toCompletableFuture().thenCompose(rs -> {
+					long expires = System.nanoTime() + ttl;
+					var entry = new Cached<>(rs.getEntryList(), rs.getError(), expires);
+
+					if (version(path) == version) {
+						directories.put(path, entry);
+						for (var child : rs.getEntryList()) {
+							putAttributes(child(path, child.getName()),
+									new Cached<>(child.getAttributes(), 0, expires));
+						}
+					}
+					return result(path, entry);
+				});
+	}
+
+	/**
+	 * Read part of a file.
+	 *
+	 * @param path   The file's path
+	 * @param offset The offset at which to begin reading
+	 * @param length The maximum number of bytes to read
+	 * @return The data which is shorter than requested at the end of the file or
+	 *         a {@link MountException}
+	 */
+	public CompletableFuture<ByteString> read(String path, long offset, int length) {
+		checkArgument(offset >= 0 && length >= 0);
+
+		long end = offset + length;
+
+		// Avoid requesting blocks past the end of the file if possible
+		var cached = attributes.get(path);
+		if (cached != null && cached.valid() && cached.errno() == 0) {
+			end = Math.min(end, cached.value().getSize());
+		}
+		if (end <= offset) {
+			return CompletableFuture.completedFuture(ByteString.EMPTY);
+		}
+
+		long first = offset / blockSize;
+		long last = (end - 1) / blockSize;
+
+		var parts = new ArrayList<CompletableFuture<ByteString>>();
+		for (long i = first; i <= last; i++) {
+			parts.add(block(path, i));
+		}
+
+		readAhead(path, offset, end, last, cached);
+
+		final long from = offset;
+		final long to = end;
+		return CompletableFuture.allOf(parts.toArray(CompletableFuture[]::new)).thenApply(v -> {
+			ByteString data = ByteString.EMPTY;
+			for (int i = 0; i < parts.size(); i++) {
+				var block = parts.get(i).join();
+				long blockOffset = (first + i) * blockSize;
+
+				int start = (int) Math.max(0, from - blockOffset);
+				int stop = (int) Math.min(block.size(), to - blockOffset);
+				if (start < stop) {
+					data = data.concat(block.substring(start, stop));
+				}
+
+				// The end of the file
+				if (block.size() < blockSize)
+					break;
+			}
+			return data;
+		});
+	}
+
+	/**
+	 * Discard cached information about the paths in an invalidation from the
+	 * agent.
+	 *
+	 * @param ev The invalidation
+	 */
+	public void invalidate(EV_MountStreamFuse ev) {
+		if (ev.getOverflow()) {
+			invalidateAll();
+			return;
+		}
+
+		for (var path : ev.getPathList()) {
+			invalidate(path);
+		}
+	}
+
+	/**
+	 * Discard cached information about a path.
+	 *
+	 * @param path The path
+	 */
+	public void invalidate(String path) {
+		versions.merge(path, 1L, Long::sum);
+
+		attributes.remove(path);
+		directories.remove(path);
+		directories.remove(parent(path));
+		reads.remove(path);
+		invalidateBlocks(path);
+	}
+
+	/**
+	 * Discard everything that's cached.
+	 */
+	public void invalidateAll() {
+		for (var key : inflight.keySet()) {
+			versions.merge(key.path(), 1L, Long::sum);
+		}
+		for (var path : attributes.keySet()) {
+			versions.merge(path, 1L, Long::sum);
+		}
+		for (var path : directories.keySet()) {
+			versions.merge(path, 1L, Long::sum);
+		}
+
+		attributes.clear();
+		directories.clear();
+		reads.clear();
+		inflight.clear();
+		synchronized (blocks) {
+			blocks.clear();
+			size = 0;
+		}
+	}
+
+	/**
+	 * @return The total size of cached blocks in bytes
+	 */
+	public long size() {
+		synchronized (blocks) {
+			return size;
+		}
+	}
+
+	/**
+	 * Detect sequential reads and prefetch the blocks that follow.
+	 */
+	private void readAhead(String path, long offset, long end, long last, Cached<MountAttributes> attributes) {
+		if (maxReadAhead == 0)
+			return;
+
+		var state = reads.computeIfAbsent(path, p -> new ReadState());
+
+		int window;
+		synchronized (state) {
+			if (offset == state.next) {
+				state.window = Math.min(maxReadAhead, Math.max(1, state.window * 2));
+			} else {
+				state.window = 0;
+			}
+			state.next = end;
+			window = state.window;
+		}
+
+		long limit = Long.MAX_VALUE;
+		if (attributes != null && attributes.valid() && attributes.errno() == 0) {
+			limit = (attributes.value().getSize() - 1) / blockSize;
+		}
+
+		for (long i = last + 1; i <= Math.min(last + window, limit); i++) {
+			block(path, i);
+		}
+	}
+
+	/**
+	 * Get a block from the cache or fetch it. Concurrent requests for the same
+	 * block share a single fetch.
+	 */
+	private CompletableFuture<ByteString> block(String path, long index) {
+		var key = new BlockKey(path, index);
+
+		synchronized (blocks) {
+			var data = blocks.get(key);
+			if (data != null)
+				return CompletableFuture.completedFuture(data);
+		}
+
+		var future = new CompletableFuture<ByteString>();
+		var existing = inflight.putIfAbsent(key, future);
+		if (existing != null)
+			return existing;
+
+		long version = version(path);
+		transport.read(RQ_MountRead.newBuilder().setMountId(mountId).setPath(path).setOffset(index * blockSize)
+				.setLength(blockSize).build()).whenComplete((rs, error) -> {
+
+					// The block must be cached before it's no longer in flight
+					if (error == null && rs.getError() == 0 && version(path) == version) {
+						putBlock(key, rs.getData());
+					}
+					inflight.remove(key, future);
+
+					if (error != null) {
+						future.completeExceptionally(error);
+					} else if (rs.getError() != 0) {
+						future.completeExceptionally(new MountException(path, rs.getError()));
+					} else {
+						future.complete(rs.getData());
+					}
+				});
+		return future;
+	}
+
+	private void putBlock(BlockKey key, ByteString data) {
+		synchronized (blocks) {
+			var previous = blocks.put(key, data);
+			if (previous != null)
+				size -= previous.size();
+			size += data.size();
+
+			var iterator = blocks.values().iterator();
+			while (size > capacity && iterator.hasNext()) {
+				size -= iterator.next().size();
+				iterator.remove();
+			}
+		}
+	}
+
+	private void putAttributes(String path, Cached<MountAttributes> entry) {
+		var previous = attributes.put(path, entry);
+
+		// The file changed in a directory that isn't watched
+		if (previous != null && previous.errno() == 0 && (entry.errno() != 0
+				|| previous.value().getSize() != entry.value().getSize()
+				|| previous.value().getMtime() != entry.value().getMtime())) {
+			invalidateBlocks(path);
+		}
+	}
+
+	private void invalidateBlocks(String path) {
+
+		// Fetches in flight may return stale data, so later reads must start over
+		inflight.keySet().removeIf(key -> key.path().equals(path));
+
+		synchronized (blocks) {
+			var iterator = blocks.entrySet().iterator();
+			while (iterator.hasNext()) {
+				var entry = iterator.next();
+				if (entry.getKey().path().equals(path)) {
+					size -= entry.getValue().size();
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	private long version(String path) {
+		return versions.getOrDefault(path, 0L);
+	}
+
+	private static <T> CompletableFuture<T> result(String path, Cached<T> cached) {
+		if (cached.errno() != 0) {
+			return CompletableFuture.failedFuture(new MountException(path, cached.errno()));
+		}
+		return CompletableFuture.completedFuture(cached.value());
+	}
+
+	static String parent(String path) {
+		int slash = path.lastIndexOf('/');
+		return slash < 0 ? "" : path.substring(0, slash);
+	}
+
+	static String child(String parent, String name) {
+		return parent.isEmpty() ? name : parent + "/" + name;
+	}
+}
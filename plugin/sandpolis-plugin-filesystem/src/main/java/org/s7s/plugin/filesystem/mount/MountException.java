@@ -0,0 +1,33 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem.mount;
+
+import java.io.IOException;
+
+/**
+ * Indicates that the agent failed a mount request.
+ */
+public class MountException extends IOException {
+
+	private static final long serialVersionUID = 4109235167413275836L;
+
+	private final int errno;
+
+	public MountException(String path, int errno) {
+		super("Mount request failed for: " + path + " (errno " + errno + ")");
+		this.errno = errno;
+	}
+
+	/**
+	 * @return The errno value which can be returned to the kernel as-is
+	 */
+	public int errno() {
+		return errno;
+	}
+}
@@ -0,0 +1,238 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem.mount;
+
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ByteString;
+import org.s7s.plugin.filesystem.WatchDispatcher;
+import org.s7s.plugin.filesystem.WatchDispatcher.Registration;
+import org.s7s.plugin.filesystem.Messages.EV_MountStreamFuse;
+import org.s7s.plugin.filesystem.Messages.MountAttributes;
+import org.s7s.plugin.filesystem.Messages.RQ_MountGetattr;
+import org.s7s.plugin.filesystem.Messages.RQ_MountRead;
+import org.s7s.plugin.filesystem.Messages.RQ_MountReaddir;
+import org.s7s.plugin.filesystem.Messages.RS_MountGetattr;
+import org.s7s.plugin.filesystem.Messages.RS_MountRead;
+import org.s7s.plugin.filesystem.Messages.RS_MountReaddir;
+
+/**
+ * Serves a mounted directory on the agent. Every directory that the client has
+ * looked into is watched, and changes are reported so the client can
+ * invalidate its cache.
+ */
+public class MountService {
+
+	private static final Logger log = LoggerFactory.getLogger(MountService.class);
+
+	public static final int ENOENT = 2;
+	public static final int EIO = 5;
+	public static final int EACCES = 13;
+	public static final int ENOTDIR = 20;
+	public static final int EINVAL = 22;
+
+	/**
+	 * The maximum number of bytes returned by a single read.
+	 */
+	public static final int MAX_READ = 1024 * 1024;
+
+	/**
+	 * The maximum number of directories watched for a mount. Directories beyond
+	 * this limit are only refreshed when the client's cache expires.
+	 */
+	private static final int MAX_WATCHES = 4096;
+
+	private final Path root;
+
+	private final Consumer<EV_MountStreamFuse> invalidations;
+
+	private final Map<Path, Registration> watches = new HashMap<>();
+
+	private boolean closed;
+
+	/**
+	 * @param root          The mounted directory
+	 * @param invalidations Receives changes in watched directories
+	 */
+	public MountService(Path root, Consumer<EV_MountStreamFuse> invalidations) {
+		this.root = root.toAbsolutePath().normalize();
+		this.invalidations = invalidations;
+	}
+
+	public RS_MountGetattr getattr(RQ_MountGetattr rq) {
+		try {
+			var path = resolve(rq.getPath());
+			watch(path.equals(root) ? path : path.getParent());
+
+			return RS_MountGetattr.newBuilder().setAttributes(attributes(path)).build();
+		} catch (IOException e) {
+			return RS_MountGetattr.newBuilder().setError(errno(e)).build();
+		}
+	}
+
+	public RS_MountReaddir readdir(RQ_MountReaddir rq) {
+		try {
+			var directory = resolve(rq.getPath());
+			watch(directory);
+
+			var rs = RS_MountReaddir.newBuilder();
+			try (var stream = Files.newDirectoryStream(directory)) {
+				for (var entry : stream) {
+					try {
+						rs.addEntryBuilder().setName(entry.getFileName().toString()).setAttributes(attributes(entry));
+					} catch (NoSuchFileException e) {
+						// The entry was removed during the listing
+					}
+				}
+			}
+			return rs.build();
+		} catch (IOException e) {
+			return RS_MountReaddir.newBuilder().setError(errno(e)).build();
+		}
+	}
+
+	public RS_MountRead read(RQ_MountRead rq) {
+		if (rq.getOffset() < 0 || rq.getLength() < 0)
+			return RS_MountRead.newBuilder().setError(EINVAL).build();
+
+		try (var channel = FileChannel.open(resolve(rq.getPath()))) {
+			var buffer = ByteBuffer.allocate(Math.min(rq.getLength(), MAX_READ));
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, rq.getOffset() + buffer.position()) < 0)
+					break;
+			}
+			return RS_MountRead.newBuilder().setData(ByteString.copyFrom(buffer.flip())).build();
+		} catch (IOException e) {
+			return RS_MountRead.newBuilder().setError(errno(e)).build();
+		}
+	}
+
+	/**
+	 * Stop watching every directory.
+	 */
+	public void close() {
+		synchronized (watches) {
+			closed = true;
+			watches.values().forEach(Registration::cancel);
+			watches.clear();
+		}
+	}
+
+	private void watch(Path directory) {
+		synchronized (watches) {
+			if (closed || watches.containsKey(directory) || watches.size() >= MAX_WATCHES)
+				return;
+
+			try {
+				watches.put(directory, WatchDispatcher.getDefault().register(directory, this::onEvents));
+			} catch (IOException e) {
+				log.debug("Failed to watch directory: {}", directory, e);
+			}
+		}
+	}
+
+	private void onEvents(Path directory, List<WatchEvent<?>> events) {
+		var ev = EV_MountStreamFuse.newBuilder();
+
+		// The directory's own listing and timestamps changed
+		ev.addPath(relativize(directory));
+
+		for (var event : events) {
+			if (event.kind() == OVERFLOW) {
+				ev.setOverflow(true);
+			} else if (event.context() instanceof Path name) {
+				var path = directory.resolve(name);
+				ev.addPath(relativize(path));
+
+				synchronized (watches) {
+					var registration = watches.remove(path);
+					if (registration != null)
+						registration.cancel();
+				}
+			}
+		}
+
+		invalidations.accept(ev.build());
+	}
+
+	/**
+	 * Resolve a path from the client.
+	 *
+	 * @param relative A path relative to the root with '/' separators
+	 * @return The resolved path
+	 * @throws IOException If the path escapes the root
+	 */
+	private Path resolve(String relative) throws IOException {
+		var path = relative.isEmpty() || relative.equals("/") ? root
+				: root.resolve(relative.replaceFirst("^/+", "")).normalize();
+		if (!path.startsWith(root)) {
+			throw new AccessDeniedException(relative);
+		}
+		return path;
+	}
+
+	private String relativize(Path path) {
+		return root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+	}
+
+	static MountAttributes attributes(Path path) throws IOException {
+		var attributes = MountAttributes.newBuilder();
+
+		BasicFileAttributes basic;
+		try {
+			var posix = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			attributes.setMode(mode(posix));
+			basic = posix;
+		} catch (UnsupportedOperationException e) {
+			basic = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			attributes.setMode(basic.isDirectory() ? 0755 : 0644);
+		}
+
+		return attributes.setSize(basic.size()).setMtime(basic.lastModifiedTime().toMillis())
+				.setDirectory(basic.isDirectory()).setSymlink(basic.isSymbolicLink()).build();
+	}
+
+	private static int mode(PosixFileAttributes attributes) {
+		int mode = 0;
+		for (var permission : attributes.permissions()) {
+			mode |= 1 << (8 - permission.ordinal());
+		}
+		return mode;
+	}
+
+	private static int errno(IOException e) {
+		if (e instanceof NoSuchFileException)
+			return ENOENT;
+		if (e instanceof AccessDeniedException)
+			return EACCES;
+		if (e instanceof NotDirectoryException)
+			return ENOTDIR;
+		return EIO;
+	}
+}
@@ -0,0 +1,54 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem.mount;
+
+import static org.s7s.core.instance.stream.StreamStore.StreamStore;
+
+import org.s7s.core.instance.stream.StreamSink;
+import org.s7s.plugin.filesystem.Messages.EV_MountStreamFuse;
+
+/**
+ * A {@link StreamSink} that applies the agent's invalidations to a
+ * {@link MountCache}.
+ */
+public class MountStreamSink extends StreamSink<EV_MountStreamFuse> {
+
+	private final int streamId;
+
+	private final MountCache cache;
+
+	public MountStreamSink(int streamId, MountCache cache) {
+		this.streamId = streamId;
+		this.cache = cache;
+	}
+
+	@Override
+	public int getStreamID() {
+		return streamId;
+	}
+
+	@Override
+	public void onNext(EV_MountStreamFuse item) {
+		cache.invalidate(item);
+	}
+
+	@Override
+	public void onComplete() {
+
+		// Invalidations are no longer being received
+		cache.invalidateAll();
+		StreamStore.stop(streamId);
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		cache.invalidateAll();
+		StreamStore.stop(streamId);
+	}
+}
@@ -0,0 +1,98 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem.mount;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.s7s.core.instance.connection.Connection;
+import org.s7s.core.instance.stream.StreamSource;
+import org.s7s.plugin.filesystem.Messages.EV_MountStreamFuse;
+
+/**
+ * A {@link StreamSource} that serves a mounted directory on the agent and
+ * produces invalidations for the client's {@link MountCache}. Mount requests
+ * find their {@link MountService} by the stream's ID, but only when they arrive
+ * on the same connection and from the same instance that opened the mount.
+ */
+public class MountStreamSource extends StreamSource<EV_MountStreamFuse> {
+
+	/**
+	 * The maximum number of invalidations buffered for each subscriber.
+	 */
+	private static final int MAX_BUFFERED_EVENTS = 256;
+
+	/**
+	 * Active mounts by stream ID.
+	 */
+	private static final Map<Integer, MountStreamSource> mounts = new ConcurrentHashMap<>();
+
+	/**
+	 * Get an active mount.
+	 *
+	 * @param mountId   The mount's stream ID
+	 * @param connector The connection that the request arrived on
+	 * @param requester The SID of the requesting instance
+	 * @return The mount's service
+	 */
+	public static Optional<MountService> get(int mountId, Connection connector, int requester) {
+		return Optional.ofNullable(mounts.get(mountId))
+				.filter(source -> source.connector == connector && source.requester == requester)
+				.map(source -> source.service);
+	}
+
+	private final int mountId;
+
+	private final Connection connector;
+
+	private final int requester;
+
+	private final MountService service;
+
+	/**
+	 * @param mountId   The mount's stream ID
+	 * @param root      The mounted directory
+	 * @param connector The connection that the mount request arrived on
+	 * @param requester The SID of the instance that requested the mount
+	 */
+	public MountStreamSource(int mountId, Path root, Connection connector, int requester) {
+		super(MAX_BUFFERED_EVENTS);
+		this.mountId = mountId;
+		this.connector = connector;
+		this.requester = requester;
+		this.service = new MountService(root, ev -> {
+			if (!isClosed()) {
+				// Never block the watch dispatcher. If the client falls behind, it's told to
+				// discard everything where possible and otherwise the TTL bounds staleness.
+				if (offer(ev, null) < 0) {
+					offer(EV_MountStreamFuse.newBuilder().setOverflow(true).build(), null);
+				}
+			}
+		});
+
+		// Requests may arrive as soon as the mount is acknowledged
+		if (mounts.putIfAbsent(mountId, this) != null) {
+			service.close();
+			throw new IllegalStateException("Mount already exists: " + mountId);
+		}
+	}
+
+	@Override
+	public void start() {
+	}
+
+	@Override
+	public void close() {
+		mounts.remove(mountId, this);
+		service.close();
+		super.close();
+	}
+}
@@ -0,0 +1,94 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem.mount;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+import org.s7s.core.instance.connection.Connection;
+import org.s7s.core.instance.util.S7SMsg;
+import org.s7s.plugin.filesystem.Messages.RQ_MountGetattr;
+import org.s7s.plugin.filesystem.Messages.RQ_MountRead;
+import org.s7s.plugin.filesystem.Messages.RQ_MountReaddir;
+import org.s7s.plugin.filesystem.Messages.RS_MountGetattr;
+import org.s7s.plugin.filesystem.Messages.RS_MountRead;
+import org.s7s.plugin.filesystem.Messages.RS_MountReaddir;
+
+/**
+ * Sends mount requests to the agent serving a mounted directory. Any number of
+ * requests may be outstanding at once.
+ */
+public interface MountTransport {
+
+	public CompletionStage<RS_MountGetattr> getattr(RQ_MountGetattr rq);
+
+	public CompletionStage<RS_MountReaddir> readdir(RQ_MountReaddir rq);
+
+	public CompletionStage<RS_MountRead> read(RQ_MountRead rq);
+
+	/**
+	 * Create a transport that sends requests over a connection.
+	 *
+	 * @param connection The connection on which the agent is reachable
+	 * @param sid        The agent's SID
+	 * @return A new transport
+	 */
+	public static MountTransport of(Connection connection, int sid) {
+		return new MountTransport() {
+
+			@Override
+			public CompletionStage<RS_MountGetattr> getattr(RQ_MountGetattr rq) {
+				return connection.request(S7SMsg.rq().pack(rq).setTo(sid).build())
+						.toCompletionStage(RS_MountGetattr.class);
+			}
+
+			@Override
+			public CompletionStage<RS_MountReaddir> readdir(RQ_MountReaddir rq) {
+				return connection.request(S7SMsg.rq().pack(rq).setTo(sid).build())
+						.toCompletionStage(RS_MountReaddir.class);
+			}
+
+			@Override
+			public CompletionStage<RS_MountRead> read(RQ_MountRead rq) {
+				return connection.request(S7SMsg.rq().pack(rq).setTo(sid).build())
+						.toCompletionStage(RS_MountRead.class);
+			}
+		};
+	}
+
+	/**
+	 * Create a transport that calls a local {@link MountService} directly. This
+	 * is useful for testing and benchmarking the client's cache against a local
+	 * directory.
+	 *
+	 * @param service  The service
+	 * @param executor Runs each request, for example after a simulated delay
+	 * @return A new transport
+	 */
+	public static MountTransport of(MountService service, Executor executor) {
+		return new MountTransport() {
+
+			@Override
+			public CompletionStage<RS_MountGetattr> getattr(RQ_MountGetattr rq) {
+				return CompletableFuture.supplyAsync(() -> service.getattr(rq), executor);
+			}
+
+			@Override
+			public CompletionStage<RS_MountReaddir> readdir(RQ_MountReaddir rq) {
+				return CompletableFuture.supplyAsync(() -> service.readdir(rq), executor);
+			}
+
+			@Override
+			public CompletionStage<RS_MountRead> read(RQ_MountRead rq) {
+				return CompletableFuture.supplyAsync(() -> service.read(rq), executor);
+			}
+		};
+	}
+}
@@ -0,0 +1,151 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem.sync;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.google.protobuf.ByteString;
+import org.s7s.plugin.filesystem.Messages.DeltaOp;
+import org.s7s.plugin.filesystem.Messages.FileSignature;
+
+/**
+ * Encodes a file as a sequence of {@link DeltaOp}s against the signature of
+ * the receiver's version of the file.
+ */
+public final class DeltaEncoder {
+
+	/**
+	 * The maximum size of a single literal.
+	 */
+	public static final int MAX_LITERAL = 64 * 1024;
+
+	private final int blockSize;
+
+	/**
+	 * The concatenated strong hashes of each block.
+	 */
+	private final byte[] strong;
+
+	/**
+	 * Full blocks indexed by their weak checksum.
+	 */
+	private final Map<Integer, int[]> index;
+
+	private final MessageDigest digest = Signatures.sha256();
+
+	public DeltaEncoder(FileSignature signature) {
+		this.strong = signature.getStrong().toByteArray();
+		this.blockSize = signature.getBlockSize();
+		this.index = new HashMap<>();
+
+		// A trailing partial block can't be matched at arbitrary offsets
+		int blocks = blockSize > 0 ? (int) (signature.getSize() / blockSize) : 0;
+		for (int i = 0; i < blocks; i++) {
+			index.merge(signature.getWeak(i), new int[] { i }, (a, b) -> {
+				int[] merged = new int[a.length + 1];
+				System.arraycopy(a, 0, merged, 0, a.length);
+				merged[a.length] = b[0];
+				return merged;
+			});
+		}
+	}
+
+	/**
+	 * Encode a file.
+	 *
+	 * @param data The entire file which will not be modified
+	 * @param ops  Receives each operation in order
+	 */
+	public void encode(ByteBuffer data, Consumer<DeltaOp> ops) {
+		int size = data.limit();
+		int literal = 0;
+		int position = 0;
+
+		// The pending run of consecutive block copies
+		int runStart = -1;
+		int runCount = 0;
+
+		if (!index.isEmpty() && size >= blockSize) {
+			var weak = new RollingChecksum();
+			weak.reset(data, 0, blockSize);
+
+			while (true) {
+				int block = match(data, position, weak.value());
+				if (block >= 0) {
+					literal(data, literal, position, ops);
+
+					if (runCount > 0 && runStart + runCount == block) {
+						runCount++;
+					} else {
+						if (runCount > 0)
+							ops.accept(DeltaOp.newBuilder().setBlock(runStart).setCount(runCount).build());
+						runStart = block;
+						runCount = 1;
+					}
+
+					position += blockSize;
+					literal = position;
+					if (position + blockSize > size)
+						break;
+					weak.reset(data, position, blockSize);
+				} else {
+					if (position + blockSize >= size)
+						break;
+
+					if (runCount > 0) {
+						ops.accept(DeltaOp.newBuilder().setBlock(runStart).setCount(runCount).build());
+						runCount = 0;
+					}
+					weak.roll(data.get(position), data.get(position + blockSize));
+					position++;
+				}
+			}
+		}
+
+		if (runCount > 0)
+			ops.accept(DeltaOp.newBuilder().setBlock(runStart).setCount(runCount).build());
+
+		literal(data, literal, size, ops);
+	}
+
+	/**
+	 * Find a block that matches the window at the given position.
+	 *
+	 * @return The block's index or -1
+	 */
+	private int match(ByteBuffer data, int position, int weak) {
+		int[] candidates = index.get(weak);
+		if (candidates == null)
+			return -1;
+
+		byte[] hash = Signatures.strong(digest, data.slice(position, blockSize));
+		for (int block : candidates) {
+			int offset = block * Signatures.STRONG_LENGTH;
+			if (Arrays.equals(strong, offset, offset + Signatures.STRONG_LENGTH, hash, 0, Signatures.STRONG_LENGTH)) {
+				return block;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Emit the literal region {@code [start, end)} in bounded pieces.
+	 */
+	private static void literal(ByteBuffer data, int start, int end, Consumer<DeltaOp> ops) {
+		for (int i = start; i < end; i += MAX_LITERAL) {
+			int length = Math.min(MAX_LITERAL, end - i);
+			ops.accept(DeltaOp.newBuilder().setLiteral(ByteString.copyFrom(data.slice(i, length))).build());
+		}
+	}
+}
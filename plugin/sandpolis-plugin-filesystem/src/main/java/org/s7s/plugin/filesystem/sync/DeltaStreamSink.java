@@ -0,0 +1,249 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem.sync;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.s7s.core.instance.stream.StreamStore.StreamStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.instance.stream.StreamSink;
+import org.s7s.plugin.filesystem.Messages.DeltaOp;
+import org.s7s.plugin.filesystem.Messages.EV_SyncDelta;
+
+/**
+ * A {@link StreamSink} on the receiving side of a synchronization. Each file is
+ * reconstructed from blocks of the existing file and literal data into a
+ * temporary file, verified against the sender's digest, and then moved over the
+ * existing file.
+ */
+public class DeltaStreamSink extends StreamSink<EV_SyncDelta> {
+
+	private static final Logger log = LoggerFactory.getLogger(DeltaStreamSink.class);
+
+	private final int streamId;
+
+	private final Path root;
+
+	/**
+	 * The number of files that could not be synchronized.
+	 */
+	private int failed;
+
+	/**
+	 * The file currently being reconstructed.
+	 */
+	private Reconstruction current;
+
+	/**
+	 * A file whose remaining events are ignored because it already failed.
+	 */
+	private String skipped;
+
+	private final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+	/**
+	 * @param streamId The stream's ID
+	 * @param root     The directory being synchronized
+	 */
+	public DeltaStreamSink(int streamId, Path root) {
+		this.streamId = streamId;
+		this.root = root;
+	}
+
+	@Override
+	public int getStreamID() {
+		return streamId;
+	}
+
+	/**
+	 * @return A future that completes with the number of files that failed once
+	 *         the stream ends
+	 */
+	public CompletableFuture<Integer> future() {
+		return future;
+	}
+
+	@Override
+	public synchronized void onNext(EV_SyncDelta item) {
+		if (item.getPath().equals(skipped)) {
+			if (item.getEnd())
+				skipped = null;
+			return;
+		}
+
+		try {
+			if (current != null && !current.path.equals(item.getPath())) {
+				abort(new IOException("Incomplete file: " + current.path));
+			}
+
+			if (item.getIdentical()) {
+				Files.setLastModifiedTime(Signatures.resolve(root, item.getPath()), FileTime.fromMillis(item.getMtime()));
+				return;
+			}
+
+			if (current == null) {
+				current = new Reconstruction(item.getPath());
+			}
+
+			for (var op : item.getOpList()) {
+				current.apply(op, item.getBlockSize());
+			}
+
+			if (item.getEnd()) {
+				current.finish(item);
+				current = null;
+			}
+		} catch (IOException e) {
+			abort(e);
+			if (!item.getEnd())
+				skipped = item.getPath();
+		}
+	}
+
+	@Override
+	public synchronized void onComplete() {
+		if (current != null) {
+			abort(new IOException("Incomplete file: " + current.path));
+		}
+		future.complete(failed);
+		StreamStore.stop(streamId);
+	}
+
+	@Override
+	public synchronized void onError(Throwable throwable) {
+		if (current != null) {
+			abort(throwable);
+		}
+		future.completeExceptionally(throwable);
+	}
+
+	private void abort(Throwable cause) {
+		failed++;
+		if (current != null) {
+			log.debug("Failed to synchronize file: {}", current.path, cause);
+			current.discard();
+			current = null;
+		} else {
+			log.debug("Failed to synchronize file", cause);
+		}
+	}
+
+	/**
+	 * The state of a single file's reconstruction.
+	 */
+	private final class Reconstruction {
+
+		private final String path;
+
+		private final Path target;
+
+		private final Path temp;
+
+		private final FileChannel output;
+
+		/**
+		 * The existing file or {@code null}.
+		 */
+		private final FileChannel basis;
+
+		private final MessageDigest digest = Signatures.sha256();
+
+		private ByteBuffer buffer;
+
+		Reconstruction(String path) throws IOException {
+			this.path = path;
+			this.target = Signatures.resolve(root, path);
+
+			Files.createDirectories(target.getParent());
+			this.temp = target.resolveSibling("." + target.getFileName() + ".sync");
+			Files.deleteIfExists(temp);
+			this.output = FileChannel.open(temp, CREATE_NEW, WRITE);
+			this.basis = Files.isRegularFile(target) ? FileChannel.open(target) : null;
+		}
+
+		void apply(DeltaOp op, int blockSize) throws IOException {
+			if (op.getCount() > 0) {
+				if (basis == null || blockSize <= 0)
+					throw new IOException("Invalid block reference");
+
+				long position = (long) op.getBlock() * blockSize;
+				long end = position + (long) op.getCount() * blockSize;
+
+				if (buffer == null || buffer.capacity() < blockSize) {
+					buffer = ByteBuffer.allocateDirect(blockSize);
+				}
+
+				while (position < end) {
+					buffer.clear().limit((int) Math.min(blockSize, end - position));
+					int read = basis.read(buffer, position);
+					if (read <= 0)
+						throw new IOException("Block reference beyond end of file");
+					position += read;
+					write(buffer.flip());
+				}
+			} else {
+				write(op.getLiteral().asReadOnlyByteBuffer());
+			}
+		}
+
+		private void write(ByteBuffer data) throws IOException {
+			digest.update(data.duplicate());
+			while (data.hasRemaining()) {
+				output.write(data);
+			}
+		}
+
+		void finish(EV_SyncDelta end) throws IOException {
+			if (output.size() != end.getSize()) {
+				throw new IOException("Size mismatch");
+			}
+			if (!MessageDigest.isEqual(digest.digest(), end.getDigest().toByteArray())) {
+				throw new IOException("Digest mismatch");
+			}
+
+			output.force(true);
+			output.close();
+			if (basis != null)
+				basis.close();
+
+			Files.setLastModifiedTime(temp, FileTime.fromMillis(end.getMtime()));
+			try {
+				Files.move(temp, target, REPLACE_EXISTING, ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, REPLACE_EXISTING);
+			}
+		}
+
+		void discard() {
+			try {
+				output.close();
+				if (basis != null)
+					basis.close();
+				Files.deleteIfExists(temp);
+			} catch (IOException e) {
+				log.debug("Failed to remove temporary file: {}", temp, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,142 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem.sync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ByteString;
+import org.s7s.core.instance.stream.StreamSource;
+import org.s7s.plugin.filesystem.Messages.EV_SyncDelta;
+import org.s7s.plugin.filesystem.Messages.FileSignature;
+
+/**
+ * A {@link StreamSource} on the sending side of a synchronization. For each of
+ * the receiver's signatures, the corresponding local file is encoded as block
+ * references and literal data.
+ */
+public class DeltaStreamSource extends StreamSource<EV_SyncDelta> {
+
+	private static final Logger log = LoggerFactory.getLogger(DeltaStreamSource.class);
+
+	/**
+	 * The maximum number of events buffered for each subscriber.
+	 */
+	private static final int MAX_BUFFERED_EVENTS = 16;
+
+	/**
+	 * The approximate maximum number of literal bytes in an event.
+	 */
+	private static final int MAX_EVENT_LITERAL = 256 * 1024;
+
+	/**
+	 * The maximum number of operations in an event.
+	 */
+	private static final int MAX_EVENT_OPS = 1024;
+
+	private final Path root;
+
+	private final List<FileSignature> signatures;
+
+	private final Thread thread = new Thread(this::run, "delta-stream-source");
+
+	/**
+	 * @param root       The local directory
+	 * @param signatures The receiver's signatures of files that differ
+	 */
+	public DeltaStreamSource(Path root, List<FileSignature> signatures) {
+		super(MAX_BUFFERED_EVENTS);
+		this.root = root;
+		this.signatures = signatures;
+	}
+
+	@Override
+	public void start() {
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void close() {
+		thread.interrupt();
+		super.close();
+	}
+
+	private void run() {
+		try {
+			for (var signature : signatures) {
+				if (isClosed())
+					return;
+
+				try {
+					encode(signature);
+				} catch (IOException e) {
+					log.error("Failed to encode file: {}", signature.getPath(), e);
+				}
+			}
+
+			if (!isClosed()) {
+				super.close();
+			}
+		} catch (IllegalStateException e) {
+			// The stream was closed
+		}
+	}
+
+	private void encode(FileSignature signature) throws IOException {
+		var file = Signatures.resolve(root, signature.getPath());
+		long mtime = Files.getLastModifiedTime(file).toMillis();
+
+		try (var channel = FileChannel.open(file)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("File too large to synchronize");
+			}
+
+			ByteBuffer data = size == 0 ? ByteBuffer.allocate(0) : channel.map(MapMode.READ_ONLY, 0, size);
+
+			var digest = Signatures.sha256();
+			digest.update(data.duplicate());
+			var hash = ByteString.copyFrom(digest.digest());
+
+			var end = EV_SyncDelta.newBuilder().setPath(signature.getPath()).setEnd(true).setMtime(mtime)
+					.setSize(size).setDigest(hash).setBlockSize(signature.getBlockSize());
+
+			// The receiver only needs to update the modification time
+			if (signature.getSize() == size && signature.getDigest().equals(hash)) {
+				submit(end.setIdentical(true).build());
+				return;
+			}
+
+			var batch = EV_SyncDelta.newBuilder().setPath(signature.getPath());
+			int[] literal = new int[1];
+
+			new DeltaEncoder(signature).encode(data, op -> {
+				batch.addOp(op);
+				literal[0] += op.getLiteral().size();
+
+				if (literal[0] >= MAX_EVENT_LITERAL || batch.getOpCount() >= MAX_EVENT_OPS) {
+					submit(batch.build());
+					batch.clearOp();
+					literal[0] = 0;
+				}
+			});
+
+			submit(end.addAllOp(batch.getOpList()).build());
+		}
+	}
+}
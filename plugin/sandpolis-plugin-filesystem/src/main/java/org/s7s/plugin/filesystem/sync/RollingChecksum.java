@@ -0,0 +1,76 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem.sync;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The weak checksum used by rsync. It can be updated in constant time when the
+ * window slides forward by one byte, which makes it cheap to search for
+ * matching blocks at every offset of a file.
+ */
+public final class RollingChecksum {
+
+	/**
+	 * Compute the checksum of a window.
+	 *
+	 * @param buffer The data
+	 * @param offset The window's absolute offset in the buffer
+	 * @param length The window's length
+	 * @return The checksum
+	 */
+	public static int of(ByteBuffer buffer, int offset, int length) {
+		var checksum = new RollingChecksum();
+		checksum.reset(buffer, offset, length);
+		return checksum.value();
+	}
+
+	private int a;
+
+	private int b;
+
+	private int length;
+
+	/**
+	 * Recompute the checksum over a new window.
+	 *
+	 * @param buffer The data
+	 * @param offset The window's absolute offset in the buffer
+	 * @param length The window's length
+	 */
+	public void reset(ByteBuffer buffer, int offset, int length) {
+		this.a = 0;
+		this.b = 0;
+		this.length = length;
+
+		for (int i = 0; i < length; i++) {
+			int x = buffer.get(offset + i) & 0xff;
+			a += x;
+			b += (length - i) * x;
+		}
+	}
+
+	/**
+	 * Slide the window forward by one byte.
+	 *
+	 * @param out The byte leaving the window
+	 * @param in  The byte entering the window
+	 */
+	public void roll(byte out, byte in) {
+		a += (in & 0xff) - (out & 0xff);
+		b += a - length * (out & 0xff);
+	}
+
+	/**
+	 * @return The checksum of the current window
+	 */
+	public int value() {
+		return (a & 0xffff) | (b << 16);
+	}
+}
@@ -0,0 +1,127 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem.sync;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.s7s.plugin.filesystem.Messages.FileSignature;
+import org.s7s.plugin.filesystem.Messages.SyncEntry;
+
+/**
+ * A cache of file signatures keyed by the file's identity (inode on POSIX
+ * systems), size and full-precision modification time. Resynchronizing a mostly unchanged
+ * directory only reads the files that actually changed.
+ */
+public final class SignatureCache {
+
+	private static final Logger log = LoggerFactory.getLogger(SignatureCache.class);
+
+	/**
+	 * Identifies a version of a file. The file's key is used instead of its path
+	 * where available, so renamed files still hit the cache.
+	 */
+	private record Key(Object file, long size, FileTime mtime) {
+	}
+
+	private final Cache<Key, FileSignature> cache;
+
+	/**
+	 * @param maximumSize The maximum total size of cached signatures in bytes
+	 */
+	public SignatureCache(long maximumSize) {
+		this.cache = CacheBuilder.newBuilder().maximumWeight(maximumSize)
+				.<Key, FileSignature>weigher((key, signature) -> signature.getSerializedSize()).build();
+	}
+
+	/**
+	 * Get the signature of a file, computing it if necessary.
+	 *
+	 * @param file The file
+	 * @return The signature without its path
+	 * @throws IOException
+	 */
+	public FileSignature get(Path file) throws IOException {
+		var attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		var key = new Key(attributes.fileKey() != null ? attributes.fileKey() : file.toAbsolutePath(),
+				attributes.size(), attributes.lastModifiedTime());
+
+		try {
+			return cache.get(key, () -> Signatures.compute(file));
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException io)
+				throw io;
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Compare the sender's files against a directory and compute signatures for
+	 * each file that differs. Signatures are computed in parallel.
+	 *
+	 * @param root    The receiver's directory
+	 * @param entries The sender's files
+	 * @return A signature for each file that differs in size or modification
+	 *         time. Files that don't exist or can't be read have an empty
+	 *         signature and paths outside of the directory are skipped.
+	 */
+	public List<FileSignature> compare(Path root, List<SyncEntry> entries) {
+		return entries.parallelStream().map(entry -> {
+			Path file;
+			try {
+				file = Signatures.resolve(root, entry.getPath());
+			} catch (IOException e) {
+				log.warn("Skipping invalid path: {}", entry.getPath());
+				return null;
+			}
+
+			try {
+				var attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				if (!attributes.isRegularFile()) {
+					return FileSignature.newBuilder().setPath(entry.getPath()).build();
+				}
+
+				if (attributes.size() == entry.getSize()
+						&& attributes.lastModifiedTime().toMillis() == entry.getMtime()) {
+					return null;
+				}
+
+				return get(file).toBuilder().setPath(entry.getPath()).build();
+			} catch (NoSuchFileException e) {
+				// The file doesn't exist or was deleted while it was being read
+				return FileSignature.newBuilder().setPath(entry.getPath()).build();
+			} catch (IOException e) {
+				// The whole file is sent instead
+				log.warn("Failed to compute signature for: {}", entry.getPath(), e);
+				return FileSignature.newBuilder().setPath(entry.getPath()).build();
+			}
+		}).filter(Objects::nonNull).collect(Collectors.toList());
+	}
+
+	/**
+	 * @return The number of cached signatures
+	 */
+	public long size() {
+		return cache.size();
+	}
+}
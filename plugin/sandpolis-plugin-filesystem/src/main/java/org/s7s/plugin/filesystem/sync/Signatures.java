@@ -0,0 +1,166 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem.sync;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.google.protobuf.ByteString;
+import org.s7s.plugin.filesystem.Messages.FileSignature;
+import org.s7s.plugin.filesystem.Messages.SyncEntry;
+
+/**
+ * Utilities for computing and comparing block signatures.
+ */
+public final class Signatures {
+
+	/**
+	 * The number of bytes of each block's SHA-256 hash that are kept.
+	 */
+	public static final int STRONG_LENGTH = 16;
+
+	/**
+	 * The smallest block size.
+	 */
+	private static final int MIN_BLOCK_SIZE = 1024;
+
+	/**
+	 * The largest block size.
+	 */
+	private static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+	/**
+	 * Choose a block size for a file. Like rsync, the block size grows with the
+	 * square root of the file's size which keeps the signature small for large
+	 * files.
+	 *
+	 * @param size The file's size
+	 * @return The block size
+	 */
+	public static int blockSize(long size) {
+		int blockSize = (int) Math.min(MAX_BLOCK_SIZE, Math.sqrt(size)) & ~7;
+		return Math.max(MIN_BLOCK_SIZE, blockSize);
+	}
+
+	/**
+	 * Compute the signature of a file.
+	 *
+	 * @param file The file
+	 * @return The signature without its path
+	 * @throws IOException
+	 */
+	public static FileSignature compute(Path file) throws IOException {
+		try (var channel = FileChannel.open(file)) {
+			long size = channel.size();
+			int blockSize = blockSize(size);
+
+			var signature = FileSignature.newBuilder().setSize(size).setBlockSize(blockSize);
+			var strong = ByteString.newOutput((int) Math.min(Integer.MAX_VALUE,
+					(size / blockSize + 1) * STRONG_LENGTH));
+
+			var digest = sha256();
+			var block = sha256();
+			var buffer = ByteBuffer.allocate(blockSize);
+
+			for (long position = 0; position < size; position += blockSize) {
+				buffer.clear();
+				while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0)
+					;
+				buffer.flip();
+
+				signature.addWeak(RollingChecksum.of(buffer, 0, buffer.limit()));
+
+				digest.update(buffer.duplicate());
+				strong.write(strong(block, buffer), 0, STRONG_LENGTH);
+			}
+
+			return signature.setStrong(strong.toByteString()).setDigest(ByteString.copyFrom(digest.digest()))
+					.build();
+		}
+	}
+
+	/**
+	 * Compute a block's strong hash.
+	 *
+	 * @param digest A reusable digest
+	 * @param block  The block which will not be modified
+	 * @return The hash of which the first {@link #STRONG_LENGTH} bytes are used
+	 */
+	public static byte[] strong(MessageDigest digest, ByteBuffer block) {
+		digest.reset();
+		digest.update(block.duplicate());
+		return digest.digest();
+	}
+
+	/**
+	 * List every regular file in a directory.
+	 *
+	 * @param root The directory
+	 * @return An entry for each file in a stable order
+	 * @throws IOException
+	 */
+	public static List<SyncEntry> scan(Path root) throws IOException {
+		try (var paths = Files.walk(root)) {
+			return paths.filter(Files::isRegularFile).sorted(Comparator.naturalOrder()).map(path -> {
+				try {
+					return SyncEntry.newBuilder().setPath(relativize(root, path)).setSize(Files.size(path))
+							.setMtime(Files.getLastModifiedTime(path).toMillis()).build();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Resolve a relative path from the other side of a synchronization.
+	 *
+	 * @param root     The synchronized directory
+	 * @param relative A path with '/' separators
+	 * @return The resolved path
+	 * @throws IOException If the path escapes the directory
+	 */
+	public static Path resolve(Path root, String relative) throws IOException {
+		var path = root.resolve(relative.replace('/', root.getFileSystem().getSeparator().charAt(0))).normalize();
+		if (!path.startsWith(root.normalize()) || path.equals(root.normalize())) {
+			throw new IOException("Invalid path: " + relative);
+		}
+		return path;
+	}
+
+	/**
+	 * @param root The synchronized directory
+	 * @param path A file in the directory
+	 * @return The file's path relative to the directory with '/' separators
+	 */
+	public static String relativize(Path root, Path path) {
+		var relative = root.relativize(path);
+		return relative.toString().replace(relative.getFileSystem().getSeparator(), "/");
+	}
+
+	static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private Signatures() {
+	}
+}
@@ -0,0 +1,189 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.SPARSE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.s7s.core.instance.connection.ConnectionStore.ConnectionStore;
+import static org.s7s.core.instance.stream.StreamStore.StreamStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.protobuf.ByteString;
+import org.s7s.plugin.filesystem.Messages.EV_FileChunk;
+
+class FileStreamTest {
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	@BeforeAll
+	static void setup() {
+		ConnectionStore.init(config -> {
+		});
+		StreamStore.init(config -> {
+		});
+	}
+
+	/**
+	 * Create a sparse file with random, compressible, and empty regions.
+	 */
+	private static Path createFile(Path temp) throws IOException {
+		var file = temp.resolve("source.bin");
+		var random = new Random(0);
+
+		byte[] noise = new byte[3 * CHUNK_SIZE + 123];
+		random.nextBytes(noise);
+
+		byte[] text = "compressible ".repeat(CHUNK_SIZE / 4).getBytes();
+
+		try (var channel = FileChannel.open(file, CREATE_NEW, WRITE, SPARSE)) {
+			channel.write(ByteBuffer.wrap(noise), 0);
+			channel.write(ByteBuffer.wrap(text), 40 * CHUNK_SIZE);
+			channel.write(ByteBuffer.wrap(noise), 100 * CHUNK_SIZE + 7);
+
+			// Leave a hole at the end of the file
+			channel.write(ByteBuffer.wrap(new byte[] { 0 }), 160 * CHUNK_SIZE - 1);
+		}
+		return file;
+	}
+
+	/**
+	 * Build an uncompressed chunk directly from a file.
+	 */
+	private static EV_FileChunk readChunk(Path file, long offset, int length) throws IOException {
+		byte[] data = new byte[length];
+		try (var channel = FileChannel.open(file)) {
+			channel.read(ByteBuffer.wrap(data), offset);
+		}
+
+		var crc = new CRC32C();
+		crc.update(data);
+		return EV_FileChunk.newBuilder().setOffset(offset).setLength(length).setSize(Files.size(file))
+				.setChecksum((int) crc.getValue()).setData(ByteString.copyFrom(data)).build();
+	}
+
+	@Test
+	@DisplayName("Transfer a sparse file")
+	void transfer_1(@TempDir Path temp) throws Exception {
+		var file = createFile(temp);
+		var target = temp.resolve("target.bin");
+
+		var source = new FileStreamSource(file, 0, CHUNK_SIZE, 4, true);
+		var sink = new FileStreamSink(1, target, source.size(), CHUNK_SIZE, false);
+		StreamStore.add(source, sink);
+		source.start();
+
+		assertEquals(target, sink.future().get(10, TimeUnit.SECONDS));
+		assertEquals(-1, Files.mismatch(file, target));
+		assertFalse(Files.exists(temp.resolve("target.bin.part")));
+		assertFalse(Files.exists(temp.resolve("target.bin.part.offset")));
+	}
+
+	@Test
+	@DisplayName("Transfer an empty file")
+	void transfer_2(@TempDir Path temp) throws Exception {
+		var file = Files.createFile(temp.resolve("source.bin"));
+		var target = temp.resolve("target.bin");
+
+		var source = new FileStreamSource(file, 0, CHUNK_SIZE, 1, false);
+		var sink = new FileStreamSink(2, target, source.size(), CHUNK_SIZE, false);
+		StreamStore.add(source, sink);
+		source.start();
+
+		sink.future().get(10, TimeUnit.SECONDS);
+		assertEquals(0, Files.size(target));
+	}
+
+	@Test
+	@DisplayName("Resume an interrupted transfer")
+	void resume_1(@TempDir Path temp) throws Exception {
+		var file = createFile(temp);
+		var target = temp.resolve("target.bin");
+		long size = Files.size(file);
+
+		// Deliver the first chunks out of order and then interrupt the transfer
+		var interrupted = new FileStreamSink(3, target, size, CHUNK_SIZE, false);
+		interrupted.onNext(readChunk(file, CHUNK_SIZE, CHUNK_SIZE));
+		interrupted.onNext(readChunk(file, 0, CHUNK_SIZE));
+		interrupted.onNext(readChunk(file, 3 * CHUNK_SIZE, CHUNK_SIZE));
+		interrupted.onError(new IOException("Connection lost"));
+		assertThrows(ExecutionException.class, () -> interrupted.future().get());
+
+		var sink = new FileStreamSink(4, target, size, CHUNK_SIZE, true);
+		assertEquals(2 * CHUNK_SIZE, sink.offset());
+
+		var source = new FileStreamSource(file, sink.offset(), CHUNK_SIZE, 4, true);
+		StreamStore.add(source, sink);
+		source.start();
+
+		sink.future().get(10, TimeUnit.SECONDS);
+		assertEquals(-1, Files.mismatch(file, target));
+	}
+
+	@Test
+	@DisplayName("Check that a corrupt chunk fails the transfer")
+	void checksum_1(@TempDir Path temp) throws Exception {
+		var file = createFile(temp);
+		var target = temp.resolve("target.bin");
+
+		var chunk = readChunk(file, 0, CHUNK_SIZE);
+		byte[] corrupt = chunk.getData().toByteArray();
+		corrupt[100] ^= 1;
+
+		var sink = new FileStreamSink(5, target, Files.size(file), CHUNK_SIZE, false);
+		sink.onNext(chunk.toBuilder().setData(ByteString.copyFrom(corrupt)).build());
+
+		assertThrows(ExecutionException.class, () -> sink.future().get());
+		assertFalse(Files.exists(target));
+	}
+
+	@Test
+	@DisplayName("Check that chunks longer than the chunk size are rejected")
+	void chunk_1(@TempDir Path temp) throws Exception {
+		var file = createFile(temp);
+		var target = temp.resolve("target.bin");
+
+		var sink = new FileStreamSink(6, target, Files.size(file), CHUNK_SIZE / 2, false);
+		sink.onNext(readChunk(file, 0, CHUNK_SIZE));
+
+		assertThrows(ExecutionException.class, () -> sink.future().get());
+		assertFalse(Files.exists(target));
+	}
+
+	@Test
+	@DisplayName("Check zero detection")
+	void isZero_1() {
+		var buffer = ByteBuffer.allocateDirect(1027);
+		assertTrue(FileStreamSource.isZero(buffer));
+
+		buffer.put(1026, (byte) 1);
+		assertFalse(FileStreamSource.isZero(buffer));
+		assertTrue(FileStreamSource.isZero(buffer.limit(1026)));
+
+		assertTrue(FileStreamSource.isZero(ByteBuffer.wrap(new byte[17])));
+	}
+}
@@ -0,0 +1,83 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import org.s7s.core.foundation.S7SSystem;
+import org.s7s.core.foundation.Platform.OsType;
+
+class WatchDispatcherTest {
+
+	@Test
+	@DisplayName("Check that every listener on a directory is notified")
+	void register_1(@TempDir Path temp) throws IOException, InterruptedException {
+		assumeFalse(S7SSystem.OS_TYPE == OsType.DARWIN);
+
+		BlockingQueue<Path> first = new ArrayBlockingQueue<>(5);
+		BlockingQueue<Path> second = new ArrayBlockingQueue<>(5);
+
+		var r1 = WatchDispatcher.getDefault().register(temp, (directory, events) -> {
+			events.forEach(event -> first.add(directory.resolve((Path) event.context())));
+		});
+		var r2 = WatchDispatcher.getDefault().register(temp, (directory, events) -> {
+			events.forEach(event -> second.add(directory.resolve((Path) event.context())));
+		});
+
+		try {
+			Files.createFile(temp.resolve("added.txt"));
+
+			assertEquals(temp.resolve("added.txt"), first.poll(5000, TimeUnit.MILLISECONDS));
+			assertEquals(temp.resolve("added.txt"), second.poll(5000, TimeUnit.MILLISECONDS));
+		} finally {
+			r1.cancel();
+			r2.cancel();
+		}
+	}
+
+	@Test
+	@DisplayName("Check that a cancelled listener is no longer notified")
+	void cancel_1(@TempDir Path temp) throws IOException, InterruptedException {
+		assumeFalse(S7SSystem.OS_TYPE == OsType.DARWIN);
+
+		BlockingQueue<Path> first = new ArrayBlockingQueue<>(5);
+		BlockingQueue<Path> second = new ArrayBlockingQueue<>(5);
+
+		var r1 = WatchDispatcher.getDefault().register(temp, (directory, events) -> {
+			events.forEach(event -> first.add((Path) event.context()));
+		});
+		var r2 = WatchDispatcher.getDefault().register(temp, (directory, events) -> {
+			events.forEach(event -> second.add((Path) event.context()));
+		});
+
+		try {
+			r1.cancel();
+			Files.createFile(temp.resolve("added.txt"));
+
+			assertNotNull(second.poll(5000, TimeUnit.MILLISECONDS));
+			assertNull(first.poll(500, TimeUnit.MILLISECONDS));
+		} finally {
+			r2.cancel();
+		}
+	}
+}
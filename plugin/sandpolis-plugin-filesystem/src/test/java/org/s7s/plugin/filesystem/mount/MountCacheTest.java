@@ -0,0 +1,200 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem.mount;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.protobuf.ByteString;
+import org.s7s.core.foundation.S7SSystem;
+import org.s7s.core.foundation.Platform.OsType;
+import org.s7s.plugin.filesystem.Messages.RQ_MountGetattr;
+import org.s7s.plugin.filesystem.Messages.RQ_MountRead;
+import org.s7s.plugin.filesystem.Messages.RQ_MountReaddir;
+import org.s7s.plugin.filesystem.Messages.RS_MountGetattr;
+import org.s7s.plugin.filesystem.Messages.RS_MountRead;
+import org.s7s.plugin.filesystem.Messages.RS_MountReaddir;
+
+class MountCacheTest {
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * A loopback transport that simulates network latency and counts requests.
+	 */
+	private static final class LoopbackTransport implements MountTransport {
+
+		final AtomicInteger getattr = new AtomicInteger();
+		final AtomicInteger readdir = new AtomicInteger();
+		final AtomicInteger read = new AtomicInteger();
+
+		private final MountTransport transport;
+
+		LoopbackTransport(MountService service, long latency) {
+			this.transport = MountTransport.of(service,
+					CompletableFuture.delayedExecutor(latency, TimeUnit.MILLISECONDS));
+		}
+
+		@Override
+		public CompletionStage<RS_MountGetattr> getattr(RQ_MountGetattr rq) {
+			getattr.incrementAndGet();
+			return transport.getattr(rq);
+		}
+
+		@Override
+		public CompletionStage<RS_MountReaddir> readdir(RQ_MountReaddir rq) {
+			readdir.incrementAndGet();
+			return transport.readdir(rq);
+		}
+
+		@Override
+		public CompletionStage<RS_MountRead> read(RQ_MountRead rq) {
+			read.incrementAndGet();
+			return transport.read(rq);
+		}
+	}
+
+	private static byte[] random(int length) {
+		byte[] data = new byte[length];
+		new Random(0).nextBytes(data);
+		return data;
+	}
+
+	@Test
+	@DisplayName("Check that sequential reads are pipelined with read-ahead")
+	void read_1(@TempDir Path temp) throws IOException {
+		byte[] data = random(64 * BLOCK_SIZE + 100);
+		Files.write(temp.resolve("file"), data);
+
+		long latency = 20;
+		var transport = new LoopbackTransport(new MountService(temp, ev -> {
+		}), latency);
+		var cache = new MountCache(1, transport, Duration.ofMinutes(1), BLOCK_SIZE, 128 * BLOCK_SIZE, 32);
+
+		cache.getattr("file").join();
+
+		long start = System.nanoTime();
+		var read = ByteString.EMPTY;
+		for (long offset = 0; offset < data.length; offset += BLOCK_SIZE) {
+			read = read.concat(cache.read("file", offset, BLOCK_SIZE).join());
+		}
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		assertArrayEquals(data, read.toByteArray());
+
+		// Every block is fetched exactly once
+		assertEquals(65, transport.read.get());
+
+		// One round-trip per block would take 65 * latency
+		assertTrue(elapsed < 65 * latency / 2, "Sequential read took " + elapsed + " ms");
+	}
+
+	@Test
+	@DisplayName("Check that reads at arbitrary offsets return the right data")
+	void read_2(@TempDir Path temp) throws IOException {
+		byte[] data = random(10 * BLOCK_SIZE + 17);
+		Files.write(temp.resolve("file"), data);
+
+		var cache = new MountCache(1, new LoopbackTransport(new MountService(temp, ev -> {
+		}), 0), Duration.ofMinutes(1), BLOCK_SIZE, 4 * BLOCK_SIZE, 4);
+
+		var random = new Random(1);
+		for (int i = 0; i < 100; i++) {
+			int offset = random.nextInt(data.length + 10);
+			int length = random.nextInt(3 * BLOCK_SIZE);
+
+			byte[] expected = new byte[Math.max(0, Math.min(length, data.length - offset))];
+			System.arraycopy(data, Math.min(offset, data.length), expected, 0, expected.length);
+
+			assertArrayEquals(expected, cache.read("file", offset, length).join().toByteArray());
+			assertTrue(cache.size() <= 4 * BLOCK_SIZE);
+		}
+	}
+
+	@Test
+	@DisplayName("Check that directory listings populate the attribute cache")
+	void readdir_1(@TempDir Path temp) throws IOException {
+		for (int i = 0; i < 10; i++) {
+			Files.write(temp.resolve("file" + i), random(i));
+		}
+
+		var transport = new LoopbackTransport(new MountService(temp, ev -> {
+		}), 0);
+		var cache = new MountCache(1, transport);
+
+		assertEquals(10, cache.readdir("").join().size());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i, cache.getattr("file" + i).join().getSize());
+		}
+
+		assertEquals(1, transport.readdir.get());
+		assertEquals(0, transport.getattr.get());
+	}
+
+	@Test
+	@DisplayName("Check that missing files are cached")
+	void getattr_1(@TempDir Path temp) {
+		var transport = new LoopbackTransport(new MountService(temp, ev -> {
+		}), 0);
+		var cache = new MountCache(1, transport);
+
+		for (int i = 0; i < 2; i++) {
+			var e = assertThrows(CompletionException.class, () -> cache.getattr("missing").join());
+			assertInstanceOf(MountException.class, e.getCause());
+			assertEquals(MountService.ENOENT, ((MountException) e.getCause()).errno());
+		}
+		assertEquals(1, transport.getattr.get());
+	}
+
+	@Test
+	@DisplayName("Check that changes pushed by the agent invalidate the cache")
+	void invalidate_1(@TempDir Path temp) throws Exception {
+		assumeFalse(S7SSystem.OS_TYPE == OsType.DARWIN);
+
+		Files.write(temp.resolve("file"), "first".getBytes());
+
+		var cache = new CompletableFuture<MountCache>();
+		var service = new MountService(temp, ev -> cache.join().invalidate(ev));
+		cache.complete(new MountCache(1, new LoopbackTransport(service, 0)));
+
+		assertEquals(1, cache.get().readdir("").join().size());
+		assertEquals("first", cache.get().read("file", 0, 100).join().toStringUtf8());
+
+		Files.write(temp.resolve("file"), "second".getBytes());
+		Files.write(temp.resolve("other"), "other".getBytes());
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (cache.get().readdir("").join().size() != 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+
+		assertEquals(2, cache.get().readdir("").join().size());
+		assertEquals("second", cache.get().read("file", 0, 100).join().toStringUtf8());
+		service.close();
+	}
+}
@@ -0,0 +1,181 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.filesystem.sync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.s7s.core.instance.connection.ConnectionStore.ConnectionStore;
+import static org.s7s.core.instance.stream.StreamStore.StreamStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import org.s7s.plugin.filesystem.Messages.DeltaOp;
+import org.s7s.plugin.filesystem.Messages.FileSignature;
+import org.s7s.plugin.filesystem.Messages.SyncEntry;
+
+class DeltaSyncTest {
+
+	@BeforeAll
+	static void setup() {
+		ConnectionStore.init(config -> {
+		});
+		StreamStore.init(config -> {
+		});
+	}
+
+	private static byte[] random(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	@Test
+	@DisplayName("Check that rolling the checksum matches recomputing it")
+	void roll_1() {
+		var data = ByteBuffer.wrap(random(4096, 1));
+
+		var checksum = new RollingChecksum();
+		checksum.reset(data, 0, 1024);
+		for (int i = 1; i < 3072; i++) {
+			checksum.roll(data.get(i - 1), data.get(i + 1023));
+			assertEquals(RollingChecksum.of(data, i, 1024), checksum.value());
+		}
+	}
+
+	@Test
+	@DisplayName("Check that an insertion only produces a small literal")
+	void encode_1(@TempDir Path temp) throws IOException {
+		byte[] original = random(512 * 1024, 2);
+		Files.write(temp.resolve("original"), original);
+
+		// Insert a few bytes in the middle
+		var modified = ByteBuffer.allocate(original.length + 10);
+		modified.put(original, 0, 200_000).put(random(10, 3)).put(original, 200_000, original.length - 200_000)
+				.flip();
+
+		var ops = new ArrayList<DeltaOp>();
+		new DeltaEncoder(Signatures.compute(temp.resolve("original"))).encode(modified, ops::add);
+
+		int literal = ops.stream().mapToInt(op -> op.getLiteral().size()).sum();
+		assertTrue(literal < 2 * Signatures.blockSize(original.length) + 10);
+	}
+
+	@Test
+	@DisplayName("Synchronize a directory")
+	void sync_1(@TempDir Path temp) throws Exception {
+		var source = Files.createDirectories(temp.resolve("source"));
+		var target = Files.createDirectories(temp.resolve("target"));
+
+		// A file with a modification
+		byte[] a = random(300 * 1024, 4);
+		Files.write(source.resolve("a.bin"), a);
+		a[150_000] ^= 1;
+		Files.write(target.resolve("a.bin"), a);
+
+		// A file that only differs by modification time
+		Files.write(source.resolve("b.bin"), random(100 * 1024, 5));
+		Files.copy(source.resolve("b.bin"), target.resolve("b.bin"));
+		Files.setLastModifiedTime(target.resolve("b.bin"), FileTime.fromMillis(0));
+
+		// New files
+		Files.createDirectories(source.resolve("c/d"));
+		Files.write(source.resolve("c/d/e.bin"), random(70 * 1024, 6));
+		Files.write(source.resolve("empty"), new byte[0]);
+
+		var cache = new SignatureCache(1024 * 1024);
+		var signatures = cache.compare(target, Signatures.scan(source));
+		assertEquals(4, signatures.size());
+
+		var sink = new DeltaStreamSink(1, target);
+		var delta = new DeltaStreamSource(source, signatures);
+		StreamStore.add(delta, sink);
+		delta.start();
+
+		assertEquals(0, sink.future().get(10, TimeUnit.SECONDS));
+
+		for (var entry : Signatures.scan(source)) {
+			var file = Signatures.resolve(target, entry.getPath());
+			assertEquals(-1, Files.mismatch(Signatures.resolve(source, entry.getPath()), file));
+			assertEquals(entry.getMtime(), Files.getLastModifiedTime(file).toMillis());
+		}
+
+		// Nothing differs after synchronizing
+		assertEquals(0, cache.compare(target, Signatures.scan(source)).size());
+	}
+
+	@Test
+	@DisplayName("Check that signatures are cached by file identity")
+	void cache_1(@TempDir Path temp) throws IOException {
+		var file = Files.write(temp.resolve("file"), random(10 * 1024, 7));
+		var cache = new SignatureCache(1024 * 1024);
+
+		var signature = cache.get(file);
+		assertTrue(signature == cache.get(file));
+		assertEquals(1, cache.size());
+
+		Files.setLastModifiedTime(file, FileTime.fromMillis(1000));
+		signature = cache.get(file);
+		assertEquals(2, cache.size());
+
+		// Modifications within the same millisecond are distinguished
+		Files.setLastModifiedTime(file, FileTime.from(1000001, TimeUnit.MICROSECONDS));
+		assertTrue(signature != cache.get(file));
+		assertEquals(3, cache.size());
+	}
+
+	@Test
+	@DisplayName("Check that files that can't be compared don't fail the comparison")
+	void compare_1(@TempDir Path temp) throws IOException {
+		var source = Files.createDirectories(temp.resolve("source"));
+		var target = Files.createDirectories(temp.resolve("target"));
+
+		Files.write(source.resolve("a.bin"), random(10 * 1024, 8));
+		Files.write(source.resolve("b.bin"), random(10 * 1024, 9));
+		Files.write(target.resolve("b.bin"), random(10 * 1024, 10));
+
+		// A file that the receiver isn't allowed to read
+		var unreadable = Files.write(target.resolve("a.bin"), random(10 * 1024, 11));
+		if (temp.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			Files.setPosixFilePermissions(unreadable, Set.of());
+		}
+
+		var entries = new ArrayList<>(Signatures.scan(source));
+		entries.add(SyncEntry.newBuilder().setPath("../escape").setSize(1).build());
+
+		var signatures = new SignatureCache(1024 * 1024).compare(target, entries);
+		assertEquals(2, signatures.size());
+		assertTrue(signatures.stream().anyMatch(signature -> signature.getPath().equals("b.bin")
+				&& signature.getSize() == 10 * 1024));
+
+		if (!Files.isReadable(unreadable)) {
+			assertTrue(signatures.contains(FileSignature.newBuilder().setPath("a.bin").build()));
+		}
+	}
+
+	@Test
+	@DisplayName("Check that paths can't escape the synchronized directory")
+	void resolve_1(@TempDir Path temp) {
+		assertThrows(IOException.class, () -> Signatures.resolve(temp, "../escape"));
+		assertThrows(IOException.class, () -> Signatures.resolve(temp, "a/../../escape"));
+	}
+}
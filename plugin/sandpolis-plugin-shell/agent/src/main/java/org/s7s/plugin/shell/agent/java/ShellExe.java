@@ -10,35 +10,82 @@ package org.s7s.plugin.shell.agent.java;
 
 import static org.s7s.core.instance.stream.StreamStore.StreamStore;
 
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
-import com.google.common.io.CharStreams;
 import org.s7s.core.instance.exelet.Exelet;
 import org.s7s.core.instance.exelet.ExeletContext;
 import org.s7s.core.instance.stream.InboundStreamAdapter;
 import org.s7s.core.instance.stream.OutboundStreamAdapter;
+import org.s7s.plugin.shell.Messages.EV_ExecuteStream;
 import org.s7s.plugin.shell.Messages.EV_ShellStreamInput;
 import org.s7s.plugin.shell.Messages.EV_ShellStreamOutput;
 import org.s7s.plugin.shell.Messages.RQ_Execute;
+import org.s7s.plugin.shell.Messages.RQ_ExecuteStream;
 import org.s7s.plugin.shell.Messages.RQ_ListShells;
 import org.s7s.plugin.shell.Messages.RQ_ShellStream;
 import org.s7s.plugin.shell.Messages.RS_Execute;
+import org.s7s.plugin.shell.Messages.RS_ExecuteStream;
 import org.s7s.plugin.shell.Messages.RS_ListShells;
 import org.s7s.plugin.shell.Messages.RS_ListShells.DiscoveredShell;
 import org.s7s.plugin.shell.Messages.RS_ShellStream;
+import org.s7s.plugin.shell.agent.java.stream.ExecuteStreamSource;
 import org.s7s.plugin.shell.agent.java.stream.ShellStreamSink;
 import org.s7s.plugin.shell.agent.java.stream.ShellStreamSource;
 
 public final class ShellExe extends Exelet {
 
+	/**
+	 * Drains process pipes with blocking reads, which would starve the common
+	 * pool.
+	 */
+	private static final ExecutorService DRAIN_EXECUTOR = Executors.newCachedThreadPool(r -> {
+		var thread = new Thread(r, "shell-drain");
+		thread.setDaemon(true);
+		return thread;
+	});
+
 	@Handler(auth = true)
 	public static RS_Execute rq_execute(RQ_Execute rq) throws Exception {
 
 		Process p = Shell.of(rq.getShellPath()).execute(rq.getCommand()).start();
-		try (var in = new InputStreamReader(p.getInputStream())) {
-			int exit = p.waitFor();
-			return RS_Execute.newBuilder().setStdout(CharStreams.toString(in)).setExitCode(exit).build();
+
+		// Drain both pipes concurrently so the process can't block on a full buffer
+		var stdout = CompletableFuture.supplyAsync(() -> drain(p.getInputStream(), rq.getIgnoreStdout()),
+				DRAIN_EXECUTOR);
+		var stderr = CompletableFuture.supplyAsync(() -> drain(p.getErrorStream(), rq.getIgnoreStderr()),
+				DRAIN_EXECUTOR);
+
+		if (rq.getTimeout() > 0 && !p.waitFor(rq.getTimeout(), TimeUnit.SECONDS)) {
+			p.destroyForcibly();
 		}
+
+		int exit = p.waitFor();
+		return RS_Execute.newBuilder().setStdout(stdout.get()).setStderr(stderr.get()).setExitCode(exit).build();
+	}
+
+	@Handler(auth = true)
+	public static RS_ExecuteStream rq_execute_stream(ExeletContext context, RQ_ExecuteStream rq) throws Exception {
+
+		Process p = Shell.of(rq.getShellPath()).execute(rq.getCommand()).start();
+
+		var source = new ExecuteStreamSource(p, Math.max(0, rq.getTimeout()), rq.getIgnoreStdout(),
+				rq.getIgnoreStderr());
+		var outbound = new OutboundStreamAdapter<EV_ExecuteStream>(rq.getStreamId(), context.connector,
+				context.request.getFrom());
+		StreamStore.add(source, outbound);
+
+		context.defer(() -> {
+			source.start();
+		});
+
+		return RS_ExecuteStream.EXECUTE_STREAM_OK;
 	}
 
 	@Handler(auth = true)
@@ -90,6 +137,25 @@ public final class ShellExe extends Exelet {
 		return RS_ShellStream.SHELL_STREAM_OK;
 	}
 
+	/**
+	 * Read the given process stream until EOF.
+	 *
+	 * @param in      The process stream
+	 * @param discard Whether the contents should be dropped rather than collected
+	 * @return The stream's contents or an empty String if discarded
+	 */
+	private static String drain(InputStream in, boolean discard) {
+		try (in) {
+			if (discard) {
+				in.transferTo(OutputStream.nullOutputStream());
+				return "";
+			}
+			return new String(in.readAllBytes());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
 	private ShellExe() {
 	}
 }
@@ -0,0 +1,149 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.shell.agent.java.stream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ByteString;
+import org.s7s.core.instance.stream.StreamSource;
+import org.s7s.plugin.shell.Messages.EV_ExecuteStream;
+
+/**
+ * A {@link StreamSource} that forwards the output of a non-interactive process
+ * in chunks as soon as it's produced. The final event carries the process's exit
+ * code.
+ *
+ * <p>
+ * Both pipes are drained concurrently, so a process cannot block on a full pipe
+ * buffer. Memory usage is bounded by {@link #MAX_BUFFERED_EVENTS} events of at
+ * most {@link #CHUNK_SIZE} bytes per subscriber; once that limit is reached,
+ * the reader threads block until the subscriber catches up.
+ */
+public class ExecuteStreamSource extends StreamSource<EV_ExecuteStream> {
+
+	private static final Logger log = LoggerFactory.getLogger(ExecuteStreamSource.class);
+
+	/**
+	 * The maximum number of bytes in an event.
+	 */
+	private static final int CHUNK_SIZE = 8192;
+
+	/**
+	 * The maximum number of events buffered for each subscriber.
+	 */
+	private static final int MAX_BUFFERED_EVENTS = 64;
+
+	private final Process process;
+
+	/**
+	 * The execution timeout in seconds or zero for no timeout.
+	 */
+	private final int timeout;
+
+	private final Thread stdout;
+
+	private final Thread stderr;
+
+	private final Thread waiter;
+
+	public ExecuteStreamSource(Process process, int timeout, boolean ignoreStdout, boolean ignoreStderr) {
+		super(MAX_BUFFERED_EVENTS);
+		checkArgument(timeout >= 0);
+
+		this.process = process;
+		this.timeout = timeout;
+
+		stdout = new Thread(() -> pump(process.getInputStream(), ignoreStdout,
+				(ev, chunk) -> ev.setStdout(chunk)));
+		stderr = new Thread(() -> pump(process.getErrorStream(), ignoreStderr,
+				(ev, chunk) -> ev.setStderr(chunk)));
+		waiter = new Thread(this::await);
+	}
+
+	/**
+	 * Read the given stream until EOF and submit each chunk.
+	 *
+	 * @param in      The process stream
+	 * @param discard Whether the stream's contents should be dropped
+	 * @param setter  Sets the chunk on the event
+	 */
+	private void pump(InputStream in, boolean discard, BiConsumer<EV_ExecuteStream.Builder, ByteString> setter) {
+		byte[] buffer = new byte[CHUNK_SIZE];
+		int read;
+
+		try (in) {
+			while ((read = in.read(buffer, 0, CHUNK_SIZE)) >= 0) {
+				if (read > 0 && !discard && !isClosed()) {
+					var ev = EV_ExecuteStream.newBuilder();
+					setter.accept(ev, ByteString.copyFrom(buffer, 0, read));
+					submit(ev.build());
+				}
+			}
+		} catch (IOException | IllegalStateException e) {
+			// The process or the stream was closed
+			log.debug("Process stream closed", e);
+		}
+	}
+
+	/**
+	 * Wait for the process and both of its streams to finish and then submit the
+	 * final event.
+	 */
+	private void await() {
+		try {
+			if (timeout > 0) {
+				if (!process.waitFor(timeout, TimeUnit.SECONDS)) {
+					log.debug("Execution timed out after {} seconds", timeout);
+					process.destroyForcibly();
+				}
+			}
+
+			int exit = process.waitFor();
+			stdout.join();
+			stderr.join();
+
+			if (!isClosed()) {
+				submit(EV_ExecuteStream.newBuilder().setExited(true).setExitCode(exit).build());
+				super.close();
+			}
+		} catch (InterruptedException | IllegalStateException e) {
+			process.destroyForcibly();
+		}
+	}
+
+	@Override
+	public void close() {
+		if (process.isAlive()) {
+			process.destroyForcibly();
+		}
+		if (waiter.isAlive()) {
+			waiter.interrupt();
+		}
+		super.close();
+	}
+
+	@Override
+	public void start() {
+		stdout.setDaemon(true);
+		stderr.setDaemon(true);
+		waiter.setDaemon(true);
+
+		stdout.start();
+		stderr.start();
+		waiter.start();
+	}
+}
@@ -0,0 +1,34 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+
+plugins {
+	id("java-library")
+	id("org.s7s.build.module")
+}
+
+dependencies {
+	testImplementation("org.junit.jupiter:junit-jupiter-api:5.+")
+	testRuntimeOnly("org.junit.jupiter:junit-jupiter-engine:5.+")
+
+	compileOnly(project.getParent()!!)
+	testImplementation(project.getParent()!!)
+
+	if (project.getParent() == null) {
+		testImplementation("org.s7s:core.instance:+")
+	} else {
+		testImplementation(project(":core:instance"))
+	}
+}
+
+eclipse {
+	project {
+		name = "org.s7s.plugin.shell:server:java"
+		comment = "org.s7s.plugin.shell:server:java"
+	}
+}
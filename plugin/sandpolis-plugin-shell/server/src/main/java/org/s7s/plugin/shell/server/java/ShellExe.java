@@ -0,0 +1,51 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.shell.server.java;
+
+import static org.s7s.core.foundation.Instance.InstanceType.CLIENT;
+import static org.s7s.core.instance.stream.StreamStore.StreamStore;
+
+import org.s7s.core.instance.exelet.Exelet;
+import org.s7s.core.instance.exelet.ExeletContext;
+import org.s7s.core.instance.stream.OutboundStreamAdapter;
+import org.s7s.plugin.shell.Messages.EV_ExecuteStream;
+import org.s7s.plugin.shell.Messages.RQ_GroupExecuteStream;
+import org.s7s.plugin.shell.Messages.RS_GroupExecuteStream;
+import org.s7s.plugin.shell.server.java.stream.GroupExecuteStreamSource;
+
+/**
+ * {@link ShellExe} contains server-side shell message handlers.
+ */
+public final class ShellExe extends Exelet {
+
+	/**
+	 * The number of agents executing at once if the request doesn't specify a
+	 * limit.
+	 */
+	private static final int DEFAULT_CONCURRENCY = 64;
+
+	@Handler(auth = true, instances = CLIENT)
+	public static RS_GroupExecuteStream rq_group_execute_stream(ExeletContext context, RQ_GroupExecuteStream rq) {
+
+		var source = new GroupExecuteStreamSource(rq.getAgentSidList(), rq.getExecute(),
+				rq.getConcurrency() > 0 ? rq.getConcurrency() : DEFAULT_CONCURRENCY);
+		var outbound = new OutboundStreamAdapter<EV_ExecuteStream>(rq.getStreamId(), context.connector,
+				context.request.getFrom());
+		StreamStore.add(source, outbound);
+
+		context.defer(() -> {
+			source.start();
+		});
+
+		return RS_GroupExecuteStream.GROUP_EXECUTE_STREAM_OK;
+	}
+
+	private ShellExe() {
+	}
+}
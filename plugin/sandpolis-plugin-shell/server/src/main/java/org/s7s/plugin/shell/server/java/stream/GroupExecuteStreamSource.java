@@ -0,0 +1,368 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.shell.server.java.stream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.s7s.core.instance.connection.ConnectionStore.ConnectionStore;
+import static org.s7s.core.instance.stream.StreamStore.StreamStore;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.foundation.S7SRandom;
+import org.s7s.core.instance.connection.Connection;
+import org.s7s.core.instance.stream.InboundStreamAdapter;
+import org.s7s.core.instance.stream.StreamSink;
+import org.s7s.core.instance.stream.StreamSource;
+import org.s7s.core.instance.util.S7SMsg;
+import org.s7s.core.protocol.Stream.RQ_StopStream;
+import org.s7s.plugin.shell.Messages.EV_ExecuteStream;
+import org.s7s.plugin.shell.Messages.RQ_ExecuteStream;
+import org.s7s.plugin.shell.Messages.RS_ExecuteStream;
+
+/**
+ * A {@link StreamSource} that dispatches one execution to a group of agents and
+ * merges their output into a single stream. Every event is tagged with the SID
+ * of the agent that produced it and each agent produces exactly one final event
+ * (with {@code exited} set).
+ *
+ * <p>
+ * At most {@code concurrency} agents execute at once. The next agent is
+ * dispatched as soon as a running agent finishes, fails, or disconnects.
+ *
+ * <p>
+ * Agent events arrive on the threads that deliver stream data, so they must
+ * never block. Output events are dropped if the merged stream's buffer is
+ * full, and the agent's next event that fits reports the number of dropped
+ * events in place of the missing output. Final events and dispatching are
+ * handed to a dedicated thread which waits for buffer space so that no agent's
+ * exit or dropped output is lost.
+ */
+public class GroupExecuteStreamSource extends StreamSource<EV_ExecuteStream> {
+
+	private static final Logger log = LoggerFactory.getLogger(GroupExecuteStreamSource.class);
+
+	/**
+	 * The maximum number of events buffered for each subscriber.
+	 */
+	private static final int MAX_BUFFERED_EVENTS = 256;
+
+	/**
+	 * The time in milliseconds to wait for buffer space before a final event is
+	 * offered again.
+	 */
+	private static final long EMIT_RETRY_INTERVAL = 10;
+
+	/**
+	 * The execution to dispatch to each agent.
+	 */
+	private final RQ_ExecuteStream execute;
+
+	/**
+	 * The maximum number of agents executing at once.
+	 */
+	private final int concurrency;
+
+	/**
+	 * Agents that have not been dispatched yet.
+	 */
+	private final Queue<Integer> pending;
+
+	/**
+	 * Agent executions that are currently running, keyed by agent SID.
+	 */
+	private final Map<Integer, AgentSink> running;
+
+	/**
+	 * Guards the dispatch state. The publisher's own monitor is not used because
+	 * {@link #submit(Object)} may block.
+	 */
+	private final Object lock = new Object();
+
+	private boolean stopped;
+
+	/**
+	 * Delivers final events and dispatches agents in order.
+	 */
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		var thread = new Thread(r, "shell-group-execute");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public GroupExecuteStreamSource(List<Integer> agents, RQ_ExecuteStream execute, int concurrency) {
+		super(MAX_BUFFERED_EVENTS);
+		checkArgument(concurrency > 0);
+
+		this.execute = execute;
+		this.concurrency = concurrency;
+		this.pending = new ArrayDeque<>(agents);
+		this.running = new HashMap<>();
+	}
+
+	@Override
+	public void start() {
+		executor.execute(this::dispatch);
+	}
+
+	/**
+	 * Start executions on pending agents until the concurrency limit is reached.
+	 * The stream is completed once no agents remain. This method runs on the
+	 * executor.
+	 */
+	private void dispatch() {
+		while (true) {
+			int sid;
+			synchronized (lock) {
+				if (stopped)
+					return;
+
+				if (pending.isEmpty()) {
+					if (running.isEmpty()) {
+						stopped = true;
+						super.close();
+						executor.shutdown();
+					}
+					return;
+				}
+
+				if (running.size() >= concurrency)
+					return;
+
+				sid = pending.remove();
+			}
+
+			var sink = new AgentSink(sid);
+			synchronized (lock) {
+				running.put(sid, sink);
+			}
+
+			if (!execute(sink)) {
+				synchronized (lock) {
+					running.remove(sid);
+				}
+				emit(EV_ExecuteStream.newBuilder().setAgentSid(sid).setExited(true).setExitCode(-1)
+						.setError("Agent not connected").build());
+			}
+		}
+	}
+
+	/**
+	 * Start an execution on an agent.
+	 *
+	 * @param sink The sink that receives the agent's events
+	 * @return Whether the agent is connected
+	 */
+	boolean execute(AgentSink sink) {
+		var connection = ConnectionStore.getBySid(sink.sid);
+		if (connection.isEmpty())
+			return false;
+
+		sink.connection = connection.get();
+
+		var inbound = new InboundStreamAdapter<EV_ExecuteStream>(sink.streamId, sink.connection,
+				EV_ExecuteStream.class);
+		StreamStore.add(inbound, sink);
+
+		sink.connection.request(RS_ExecuteStream.class, execute.toBuilder().setStreamId(sink.streamId))
+				.whenComplete((rs, error) -> {
+					if (error != null) {
+						log.debug("Failed to start execution on agent: {}", sink.sid, error);
+						sink.finish(EV_ExecuteStream.newBuilder().setExited(true).setExitCode(-1)
+								.setError("Failed to start execution"));
+					}
+				});
+		return true;
+	}
+
+	/**
+	 * Release an agent's execution. This method may be called by the StreamStore
+	 * itself, so it doesn't block.
+	 *
+	 * @param sink   The agent's sink
+	 * @param cancel Whether the agent should also stop executing
+	 */
+	void stop(AgentSink sink, boolean cancel) {
+		if (cancel && sink.connection != null) {
+			sink.connection.send(S7SMsg.rq().pack(RQ_StopStream.newBuilder().setId(sink.streamId)).setTo(sink.sid));
+		}
+
+		CompletableFuture.runAsync(() -> StreamStore.stop(sink.streamId));
+	}
+
+	/**
+	 * Submit an event into the merged stream, waiting for buffer space if
+	 * necessary. A blocking {@link #submit(Object)} would hold the publisher's
+	 * lock while it waits, which also blocks agents that are forwarding output,
+	 * so the wait happens outside of the publisher. This method runs on the
+	 * executor.
+	 *
+	 * @param ev The event
+	 */
+	private void emit(EV_ExecuteStream ev) {
+		try {
+			while (estimateMaximumLag() >= getMaxBufferCapacity() || offer(ev, null) < 0) {
+				Thread.sleep(EMIT_RETRY_INTERVAL);
+			}
+		} catch (IllegalStateException e) {
+			// The stream was closed concurrently
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Submit an output event into the merged stream without blocking.
+	 *
+	 * @param ev The event
+	 * @return Whether the event was buffered
+	 */
+	private boolean forward(EV_ExecuteStream ev) {
+		try {
+			return offer(ev, null) >= 0;
+		} catch (IllegalStateException e) {
+			// The stream was closed concurrently
+			return true;
+		}
+	}
+
+	@Override
+	public void close() {
+		List<AgentSink> remaining;
+		synchronized (lock) {
+			if (stopped && running.isEmpty()) {
+				super.close();
+				return;
+			}
+
+			stopped = true;
+			pending.clear();
+			remaining = List.copyOf(running.values());
+			running.clear();
+		}
+
+		// Cancel any executions that are still running
+		for (var sink : remaining) {
+			stop(sink, true);
+		}
+
+		super.close();
+		executor.shutdown();
+	}
+
+	/**
+	 * Receives events from a single agent and forwards them into the merged stream.
+	 */
+	final class AgentSink extends StreamSink<EV_ExecuteStream> {
+
+		final int sid;
+
+		final int streamId;
+
+		/**
+		 * The connection on which the agent is reachable once it's dispatched.
+		 */
+		volatile Connection connection;
+
+		private boolean finished;
+
+		/**
+		 * The number of output events dropped since the last event that was
+		 * forwarded.
+		 */
+		private int dropped;
+
+		AgentSink(int sid) {
+			this.sid = sid;
+			this.streamId = S7SRandom.nextNonzeroInt();
+		}
+
+		@Override
+		public int getStreamID() {
+			return streamId;
+		}
+
+		@Override
+		public void onNext(EV_ExecuteStream item) {
+			if (item.getExited()) {
+				finish(item.toBuilder());
+				return;
+			}
+
+			synchronized (this) {
+				if (finished)
+					return;
+
+				// Mark the gap before forwarding any later output
+				if (dropped > 0
+						&& forward(EV_ExecuteStream.newBuilder().setAgentSid(sid).setDropped(dropped).build())) {
+					dropped = 0;
+				}
+
+				if (dropped > 0 || !forward(item.toBuilder().setAgentSid(sid).build())) {
+					log.trace("Dropped output from agent: {}", sid);
+					dropped++;
+				}
+			}
+		}
+
+		@Override
+		public void onComplete() {
+
+			// The agent went away without reporting an exit code
+			finish(EV_ExecuteStream.newBuilder().setExited(true).setExitCode(-1).setError("Stream closed"));
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			log.debug("Agent stream failed: {}", sid, throwable);
+			finish(EV_ExecuteStream.newBuilder().setExited(true).setExitCode(-1).setError("Stream failed"));
+		}
+
+		/**
+		 * Emit the agent's final event and release its concurrency slot. This method
+		 * may be called by the StreamStore itself, so it doesn't block.
+		 *
+		 * @param ev The final event
+		 */
+		void finish(EV_ExecuteStream.Builder ev) {
+			synchronized (this) {
+				if (finished)
+					return;
+				finished = true;
+				ev.setDropped(dropped);
+			}
+
+			stop(this, false);
+
+			try {
+				executor.execute(() -> {
+					emit(ev.setAgentSid(sid).build());
+
+					synchronized (lock) {
+						running.remove(sid);
+					}
+					dispatch();
+				});
+			} catch (RejectedExecutionException e) {
+				// The stream was closed concurrently
+			}
+		}
+	}
+}
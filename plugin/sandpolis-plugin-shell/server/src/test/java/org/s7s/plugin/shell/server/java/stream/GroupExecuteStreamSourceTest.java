@@ -0,0 +1,203 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.shell.server.java.stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import com.google.protobuf.ByteString;
+
+import org.s7s.plugin.shell.Messages.EV_ExecuteStream;
+import org.s7s.plugin.shell.Messages.RQ_ExecuteStream;
+
+class GroupExecuteStreamSourceTest {
+
+	private final ExecutorService agents = Executors.newCachedThreadPool();
+
+	@AfterEach
+	void shutdown() {
+		agents.shutdownNow();
+	}
+
+	/**
+	 * A group execution whose agents are stubs that each produce a number of
+	 * output events followed by an exit code equal to their SID.
+	 */
+	private final class StubExecution extends GroupExecuteStreamSource {
+
+		private final int outputs;
+
+		final AtomicInteger active = new AtomicInteger();
+
+		final AtomicInteger maxActive = new AtomicInteger();
+
+		/**
+		 * Counted down once each agent's final event has been received.
+		 */
+		final CountDownLatch finished;
+
+		StubExecution(List<Integer> sids, int concurrency, int outputs) {
+			super(sids, RQ_ExecuteStream.getDefaultInstance(), concurrency);
+			this.outputs = outputs;
+			this.finished = new CountDownLatch(sids.size());
+		}
+
+		@Override
+		boolean execute(AgentSink sink) {
+			maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+
+			var agent = new SubmissionPublisher<EV_ExecuteStream>(agents, Flow.defaultBufferSize());
+			agent.subscribe(sink);
+			agents.execute(() -> {
+				for (int i = 0; i < outputs; i++) {
+					agent.submit(EV_ExecuteStream.newBuilder().setStdout(ByteString.copyFromUtf8(String.valueOf(i)))
+							.build());
+				}
+				agent.submit(EV_ExecuteStream.newBuilder().setExited(true).setExitCode(sink.sid).build());
+				agent.close();
+			});
+			return true;
+		}
+
+		@Override
+		void stop(AgentSink sink, boolean cancel) {
+			if (!cancel) {
+				active.decrementAndGet();
+				finished.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Collects the merged stream, optionally waiting before the first event is
+	 * consumed.
+	 */
+	private static final class Client implements Flow.Subscriber<EV_ExecuteStream> {
+
+		final List<EV_ExecuteStream> events = new ArrayList<>();
+
+		final CountDownLatch complete = new CountDownLatch(1);
+
+		private final CountDownLatch ready;
+
+		private Flow.Subscription subscription;
+
+		Client(CountDownLatch ready) {
+			this.ready = ready;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		@Override
+		public void onNext(EV_ExecuteStream item) {
+			try {
+				ready.await(30, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			events.add(item);
+			subscription.request(1);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+		}
+
+		@Override
+		public void onComplete() {
+			complete.countDown();
+		}
+	}
+
+	/**
+	 * Check that each agent's output arrives in order, accounting for any dropped
+	 * events, and is followed by exactly one final event.
+	 *
+	 * @return The number of dropped events
+	 */
+	private static int check(List<EV_ExecuteStream> events, List<Integer> sids, int outputs) {
+		Map<Integer, Integer> expected = new HashMap<>();
+		Map<Integer, Integer> exited = new HashMap<>();
+		int dropped = 0;
+
+		for (var ev : events) {
+			int sid = ev.getAgentSid();
+			assertTrue(sids.contains(sid));
+			assertFalse(exited.containsKey(sid), "Event after the final event of agent: " + sid);
+
+			int next = expected.getOrDefault(sid, 0) + ev.getDropped();
+			dropped += ev.getDropped();
+
+			if (ev.getExited()) {
+				assertEquals(sid, ev.getExitCode());
+				exited.put(sid, next);
+			} else if (!ev.getStdout().isEmpty()) {
+				assertEquals(String.valueOf(next), ev.getStdout().toStringUtf8());
+				next++;
+			}
+			expected.put(sid, next);
+		}
+
+		for (int sid : sids) {
+			assertEquals(outputs, exited.get(sid));
+		}
+		return dropped;
+	}
+
+	@Test
+	@DisplayName("Check that every agent's output is merged in order")
+	void merge_1() throws Exception {
+		var sids = List.of(1, 2, 3, 4, 5);
+		var execution = new StubExecution(sids, 2, 50);
+		var client = new Client(new CountDownLatch(0));
+		execution.subscribe(client);
+		execution.start();
+
+		assertTrue(client.complete.await(30, TimeUnit.SECONDS));
+		assertEquals(sids.size() * 51, client.events.size());
+		assertEquals(0, check(client.events, sids, 50));
+		assertTrue(execution.maxActive.get() <= 2);
+	}
+
+	@Test
+	@DisplayName("Check that output dropped for a slow client is reported")
+	void merge_2() throws Exception {
+		var sids = List.of(1, 2, 3);
+		var execution = new StubExecution(sids, 3, 2000);
+
+		// The client doesn't consume anything until every agent has exited
+		var client = new Client(execution.finished);
+		execution.subscribe(client);
+		execution.start();
+
+		assertTrue(client.complete.await(30, TimeUnit.SECONDS));
+		assertTrue(check(client.events, sids, 2000) > 0);
+	}
+}
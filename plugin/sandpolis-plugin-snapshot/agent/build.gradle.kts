@@ -19,6 +19,25 @@ dependencies {
 	compileOnly(project.getParent()!!)
 }
 
+// Throughput benchmarks are kept out of the unit tests
+val benchmark by sourceSets.creating {
+	compileClasspath += sourceSets.main.get().output
+	runtimeClasspath += sourceSets.main.get().output
+}
+
+configurations["benchmarkImplementation"].extendsFrom(configurations.testImplementation.get(),
+		configurations.compileOnly.get())
+configurations["benchmarkRuntimeOnly"].extendsFrom(configurations.testRuntimeOnly.get())
+
+tasks.register<Test>("benchmark") {
+	description = "Runs the throughput benchmarks."
+	group = "verification"
+
+	testClassesDirs = benchmark.output.classesDirs
+	classpath = benchmark.runtimeClasspath
+	useJUnitPlatform()
+}
+
 eclipse {
 	project {
 		name = "org.s7s.plugin.snapshot:agent:java"
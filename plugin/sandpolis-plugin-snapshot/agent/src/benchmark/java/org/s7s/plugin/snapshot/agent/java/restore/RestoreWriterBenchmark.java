@@ -0,0 +1,60 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.snapshot.agent.java.restore;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RestoreWriterBenchmark {
+
+	private static final int BLOCK_SIZE = 65536;
+
+	@Test
+	@DisplayName("Measure restore throughput")
+	void restore_1(@TempDir Path temp) throws IOException {
+		byte[] data = new byte[16 * 1024 * 1024];
+		new Random(0).nextBytes(data);
+		long size = 8L * data.length;
+		int blocks = (int) (size / BLOCK_SIZE);
+
+		for (int parallelism : new int[] { 1, 4 }) {
+			var device = temp.resolve("device" + parallelism);
+			try (var channel = FileChannel.open(device, CREATE, WRITE)) {
+				channel.write(ByteBuffer.allocate(1), size - 1);
+			}
+
+			var writer = RestoreWriter.open(device, size, BLOCK_SIZE, 64, temp.resolve("checkpoint" + parallelism),
+					parallelism);
+
+			long start = System.nanoTime();
+			for (int block = 0; block < blocks; block++) {
+				int offset = (int) ((long) block * BLOCK_SIZE % data.length);
+				writer.write((long) block * BLOCK_SIZE, ByteBuffer.wrap(data, offset, BLOCK_SIZE));
+			}
+			writer.finish();
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+			assertEquals(size, writer.written());
+			System.out.printf("Restored %d MiB with %d threads in %d ms (%d MiB/s)%n", size >> 20, parallelism,
+					elapsed, (size >> 20) * 1000 / Math.max(1, elapsed));
+		}
+	}
+}
@@ -0,0 +1,177 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.snapshot.agent.java.exe;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.s7s.core.instance.stream.StreamStore.StreamStore;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.MessageLiteOrBuilder;
+import org.s7s.core.foundation.S7SSystem;
+import org.s7s.core.foundation.Platform.OsType;
+import org.s7s.core.instance.InstanceContext;
+import org.s7s.core.instance.exelet.Exelet;
+import org.s7s.core.instance.exelet.ExeletContext;
+import org.s7s.core.instance.stream.InboundStreamAdapter;
+import org.s7s.core.instance.stream.OutboundStreamAdapter;
+import org.s7s.plugin.snapshot.Messages.EV_SnapshotDataBlock;
+import org.s7s.plugin.snapshot.Messages.EV_SnapshotHashBlock;
+import org.s7s.plugin.snapshot.Messages.RQ_SnapshotStream;
+import org.s7s.plugin.snapshot.Messages.RS_SnapshotStream;
+import org.s7s.plugin.snapshot.agent.java.restore.RestoreWriter;
+import org.s7s.plugin.snapshot.agent.java.stream.AgentBlockStreamSink;
+import org.s7s.plugin.snapshot.agent.java.stream.AgentBlockStreamSource;
+import org.s7s.plugin.snapshot.agent.java.stream.AgentHashStreamSink;
+import org.s7s.plugin.snapshot.agent.java.stream.AgentHashStreamSource;
+import org.s7s.plugin.snapshot.hash.HashTreeDiff;
+
+public final class SnapshotExe extends Exelet {
+
+	private static final Logger log = LoggerFactory.getLogger(SnapshotExe.class);
+
+	private static final Pattern PARTITION_UUID = Pattern.compile("[0-9a-fA-F-]+");
+
+	/**
+	 * Hashes partitions so that it doesn't delay the connection's other messages.
+	 */
+	private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+		var thread = new Thread(r, "snapshot-restore");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	@Handler(auth = true)
+	public static MessageLiteOrBuilder rq_snapshot_stream(ExeletContext context, RQ_SnapshotStream rq)
+			throws Exception {
+		if (S7SSystem.OS_TYPE != OsType.LINUX) {
+			return result(RS_SnapshotStream.Result.SNAPSHOT_STREAM_FAILED_UNSUPPORTED);
+		}
+
+		if (!PARTITION_UUID.matcher(rq.getPartitionUuid()).matches()) {
+			return result(RS_SnapshotStream.Result.SNAPSHOT_STREAM_FAILED_NOT_FOUND);
+		}
+		var device = Path.of("/dev/disk/by-partuuid", rq.getPartitionUuid());
+		if (!Files.exists(device)) {
+			return result(RS_SnapshotStream.Result.SNAPSHOT_STREAM_FAILED_NOT_FOUND);
+		}
+
+		switch (rq.getOperation()) {
+		case SNAPSHOT_CREATE:
+			return create(context, rq, device);
+		case SNAPSHOT_APPLY:
+			return apply(context, rq, device);
+		default:
+			return result(RS_SnapshotStream.Result.SNAPSHOT_STREAM_FAILED_UNSUPPORTED);
+		}
+	}
+
+	/**
+	 * Upload the blocks of a partition that differ from the server's latest
+	 * snapshot.
+	 */
+	private static RS_SnapshotStream.Builder create(ExeletContext context, RQ_SnapshotStream rq, Path device) {
+		long size;
+		try (var channel = FileChannel.open(device, READ)) {
+			// The JDK asks the kernel for the size of block devices
+			size = channel.size();
+		} catch (IOException e) {
+			log.error("Failed to open partition: {}", device, e);
+			return result(RS_SnapshotStream.Result.SNAPSHOT_STREAM_FAILED_IO);
+		}
+
+		var hashes = new AgentHashStreamSource();
+		var replies = new AgentHashStreamSink(rq.getReplyStreamId());
+		var blocks = new AgentBlockStreamSource(rq, device, size, hashes, replies);
+
+		// The server may send hashes as soon as it has the response
+		StreamStore.add(new InboundStreamAdapter<EV_SnapshotHashBlock>(rq.getReplyStreamId(), context.connector,
+				EV_SnapshotHashBlock.class), replies);
+		StreamStore.add(hashes, new OutboundStreamAdapter<EV_SnapshotHashBlock>(rq.getHashStreamId(),
+				context.connector, context.request.getFrom()));
+		StreamStore.add(blocks, new OutboundStreamAdapter<EV_SnapshotDataBlock>(rq.getStreamId(), context.connector,
+				context.request.getFrom()));
+
+		// Hashing the partition takes a while, so do it after responding
+		context.defer(blocks::start);
+		return result(RS_SnapshotStream.Result.SNAPSHOT_STREAM_OK).setSize(size);
+	}
+
+	/**
+	 * Write the blocks of a snapshot that differ from the partition.
+	 */
+	private static RS_SnapshotStream.Builder apply(ExeletContext context, RQ_SnapshotStream rq, Path device)
+			throws IOException {
+
+		try (var channel = FileChannel.open(device, READ, WRITE)) {
+			if (channel.size() < rq.getSize()) {
+				log.debug("Partition is smaller than snapshot: {}", device);
+				return result(RS_SnapshotStream.Result.SNAPSHOT_STREAM_FAILED_IO);
+			}
+		} catch (IOException e) {
+			log.error("Failed to open partition: {}", device, e);
+			return result(RS_SnapshotStream.Result.SNAPSHOT_STREAM_FAILED_IO);
+		}
+
+		var checkpoint = InstanceContext.PATH_DATA.get().resolve("snapshot").resolve(rq.getPartitionUuid());
+		Files.createDirectories(checkpoint.getParent());
+
+		var hashes = new AgentHashStreamSource();
+		var replies = new AgentHashStreamSink(rq.getReplyStreamId());
+		var blocks = new AgentBlockStreamSink(rq);
+
+		// The server may send hashes as soon as it has the response
+		StreamStore.add(new InboundStreamAdapter<EV_SnapshotDataBlock>(rq.getStreamId(), context.connector,
+				EV_SnapshotDataBlock.class), blocks);
+		StreamStore.add(hashes, new OutboundStreamAdapter<EV_SnapshotHashBlock>(rq.getHashStreamId(),
+				context.connector, context.request.getFrom()));
+		StreamStore.add(new InboundStreamAdapter<EV_SnapshotHashBlock>(rq.getReplyStreamId(), context.connector,
+				EV_SnapshotHashBlock.class), replies);
+
+		// Hashing the partition takes a while, so do it after responding
+		context.defer(() -> EXECUTOR.execute(() -> {
+			RestoreWriter writer;
+			try {
+				writer = RestoreWriter.open(device, rq.getSize(), rq.getBlockSize(), rq.getReductionFactor(),
+						checkpoint, Runtime.getRuntime().availableProcessors());
+			} catch (Exception e) {
+				log.error("Failed to open partition: {}", device, e);
+
+				// Closing the streams tells the server that the restore failed
+				blocks.stop();
+				return;
+			}
+
+			blocks.ready(writer);
+			var diff = new HashTreeDiff(writer.tree(), false, hashes, block -> {
+			});
+			replies.ready(diff);
+			diff.start();
+		}));
+
+		return result(RS_SnapshotStream.Result.SNAPSHOT_STREAM_OK);
+	}
+
+	private static RS_SnapshotStream.Builder result(RS_SnapshotStream.Result result) {
+		return RS_SnapshotStream.newBuilder().setResult(result);
+	}
+
+	private SnapshotExe() {
+	}
+}
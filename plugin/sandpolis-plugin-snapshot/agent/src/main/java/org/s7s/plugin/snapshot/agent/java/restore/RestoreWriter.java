@@ -0,0 +1,428 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.snapshot.agent.java.restore;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.s7s.plugin.snapshot.hash.HashTree.HASH_SIZE;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.plugin.snapshot.hash.HashTree;
+
+/**
+ * Writes the blocks of a snapshot onto a partition as they arrive from the
+ * server.
+ *
+ * <p>
+ * Each block is copied into one of a bounded pool of direct buffers and
+ * written with a positional write on a small pool of threads, so several
+ * writes are in flight while the next blocks are received. When every buffer
+ * is in use, {@link #write(long, ByteBuffer)} blocks which slows the stream
+ * down to the speed of the disk.
+ *
+ * <p>
+ * The partition's {@link HashTree} is kept up to date as blocks are written.
+ * The tree that the restore started with is saved next to the checkpoint, and
+ * the hashes of written blocks are periodically appended to a log once the
+ * partition has been forced to disk. An interrupted restore reopens the tree
+ * from the checkpoint instead of hashing the partition again, so the next
+ * comparison only requests the blocks that weren't durably written. A sample
+ * of the logged blocks is hashed again before resuming, and the checkpoint is
+ * discarded if the partition was written to in the meantime.
+ */
+public final class RestoreWriter implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(RestoreWriter.class);
+
+	/**
+	 * The number of bytes written between checkpoints.
+	 */
+	private static final long CHECKPOINT_INTERVAL = 32 * 1024 * 1024;
+
+	/**
+	 * The size of a log entry: the block's index followed by its hash.
+	 */
+	private static final int LOG_ENTRY_SIZE = Long.BYTES + HASH_SIZE;
+
+	/**
+	 * The maximum number of blocks that are hashed again to check a checkpoint.
+	 */
+	private static final int SAMPLE_SIZE = 64;
+
+	private static record Written(long block, byte[] hash) {
+	}
+
+	private final FileChannel channel;
+
+	private final HashTree tree;
+
+	private final Path treeFile;
+
+	private final Path logFile;
+
+	private final FileChannel logChannel;
+
+	/**
+	 * Buffers that aren't being written.
+	 */
+	private final BlockingQueue<ByteBuffer> buffers;
+
+	private final int bufferCount;
+
+	private final ExecutorService executor;
+
+	/**
+	 * Blocks that were written since the last checkpoint.
+	 */
+	private final ConcurrentLinkedQueue<Written> written = new ConcurrentLinkedQueue<>();
+
+	private final AtomicLong unflushed = new AtomicLong();
+
+	private final AtomicLong total = new AtomicLong();
+
+	private volatile Throwable failure;
+
+	/**
+	 * Open a partition for a restore, resuming from a checkpoint if one exists.
+	 *
+	 * @param device          The partition
+	 * @param size            The size of the snapshot in bytes
+	 * @param blockSize       The block size in bytes
+	 * @param reductionFactor The number of hashes covered by each node
+	 * @param checkpoint      The path of the checkpoint without an extension
+	 * @param parallelism     The maximum number of concurrent writes
+	 */
+	public static RestoreWriter open(Path device, long size, int blockSize, int reductionFactor, Path checkpoint,
+			int parallelism) throws IOException {
+
+		var treeFile = checkpoint.resolveSibling(checkpoint.getFileName() + ".tree");
+		var logFile = checkpoint.resolveSibling(checkpoint.getFileName() + ".log");
+
+		var channel = FileChannel.open(device, READ, WRITE);
+		try {
+			HashTree tree = resume(channel, treeFile, logFile, size, blockSize, reductionFactor);
+			if (tree == null) {
+				tree = HashTree.build(channel::read, size, blockSize, reductionFactor, parallelism);
+
+				// Save the initial tree before anything is written
+				var partial = treeFile.resolveSibling(treeFile.getFileName() + ".part");
+				try (var out = new BufferedOutputStream(Files.newOutputStream(partial))) {
+					tree.write(out);
+				}
+				Files.deleteIfExists(logFile);
+				Files.move(partial, treeFile, ATOMIC_MOVE, REPLACE_EXISTING);
+			}
+
+			return new RestoreWriter(channel, tree, treeFile, logFile, parallelism);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Read a checkpoint's tree, replay its log and check that it still describes
+	 * the partition.
+	 *
+	 * @return The tree or {@code null} if there's no usable checkpoint
+	 */
+	private static HashTree resume(FileChannel channel, Path treeFile, Path logFile, long size, int blockSize,
+			int reductionFactor) throws IOException {
+
+		if (!Files.exists(treeFile)) {
+			return null;
+		}
+
+		HashTree tree;
+		try (var in = new BufferedInputStream(Files.newInputStream(treeFile))) {
+			tree = HashTree.read(in);
+		} catch (IOException e) {
+			log.debug("Ignoring invalid checkpoint: {}", treeFile, e);
+			return null;
+		}
+
+		if (tree.size() != size || tree.blockSize() != blockSize || tree.reductionFactor() != reductionFactor) {
+			log.debug("Ignoring checkpoint for a different snapshot: {}", treeFile);
+			return null;
+		}
+
+		long blocks = tree.count(tree.depth() - 1);
+		long replayed = 0;
+
+		// A uniform sample of the logged blocks
+		var sample = new long[SAMPLE_SIZE];
+		var random = ThreadLocalRandom.current();
+
+		if (Files.exists(logFile)) {
+			try (var logChannel = FileChannel.open(logFile, READ, WRITE)) {
+				var entry = ByteBuffer.allocate(LOG_ENTRY_SIZE);
+				var hash = new byte[HASH_SIZE];
+
+				while (logChannel.read(entry.clear(), replayed * LOG_ENTRY_SIZE) == LOG_ENTRY_SIZE) {
+					long block = entry.flip().getLong();
+					if (block < 0 || block >= blocks) {
+						break;
+					}
+					entry.get(hash);
+					tree.update(block, hash);
+
+					if (replayed < SAMPLE_SIZE) {
+						sample[(int) replayed] = block;
+					} else {
+						long i = random.nextLong(replayed + 1);
+						if (i < SAMPLE_SIZE) {
+							sample[(int) i] = block;
+						}
+					}
+					replayed++;
+				}
+
+				// Drop a torn entry at the end
+				logChannel.truncate(replayed * LOG_ENTRY_SIZE);
+			}
+		}
+
+		int count = (int) Math.min(replayed, SAMPLE_SIZE);
+		if (count == 0) {
+			// Nothing was written yet, so check blocks across the whole partition
+			count = (int) Math.min(blocks, SAMPLE_SIZE);
+			for (int i = 0; i < count; i++) {
+				sample[i] = i * blocks / count;
+			}
+		}
+
+		if (!matches(channel, tree, sample, count)) {
+			log.debug("Ignoring checkpoint for a partition that changed: {}", treeFile);
+			return null;
+		}
+
+		log.debug("Resuming restore with {} written blocks", replayed);
+		return tree;
+	}
+
+	/**
+	 * Check that the partition's blocks still have the hashes in a tree.
+	 *
+	 * @param blocks The indexes of the blocks to hash
+	 * @param count  The number of blocks to hash
+	 */
+	private static boolean matches(FileChannel channel, HashTree tree, long[] blocks, int count) throws IOException {
+		var buffer = ByteBuffer.allocate(tree.blockSize());
+		for (int i = 0; i < count; i++) {
+			long offset = blocks[i] * tree.blockSize();
+			buffer.clear().limit((int) Math.min(tree.blockSize(), tree.size() - offset));
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, offset + buffer.position()) < 0) {
+					return false;
+				}
+			}
+
+			if (!Arrays.equals(HashTree.hashBlock(buffer.flip()), tree.hashes(tree.depth() - 1, blocks[i], 1))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private RestoreWriter(FileChannel channel, HashTree tree, Path treeFile, Path logFile, int parallelism)
+			throws IOException {
+		this.channel = channel;
+		this.tree = tree;
+		this.treeFile = treeFile;
+		this.logFile = logFile;
+		this.logChannel = FileChannel.open(logFile, CREATE, WRITE, APPEND);
+
+		// Enough buffers to keep every thread busy while more blocks arrive
+		this.bufferCount = 2 * parallelism;
+		this.buffers = new ArrayBlockingQueue<>(bufferCount);
+		for (int i = 0; i < bufferCount; i++) {
+			buffers.add(ByteBuffer.allocateDirect(tree.blockSize()));
+		}
+
+		this.executor = Executors.newFixedThreadPool(parallelism, r -> {
+			var thread = new Thread(r, "snapshot-restore");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * @return The partition's tree which reflects every written block
+	 */
+	public HashTree tree() {
+		return tree;
+	}
+
+	/**
+	 * @return The number of bytes written
+	 */
+	public long written() {
+		return total.get();
+	}
+
+	/**
+	 * Write a block. The data is copied before this method returns.
+	 *
+	 * @param offset The block's offset which must be a multiple of the block size
+	 * @param data   The block's contents
+	 */
+	public void write(long offset, ByteBuffer data) throws IOException {
+		check();
+
+		int blockSize = tree.blockSize();
+		if (offset < 0 || offset % blockSize != 0 || offset >= Math.max(tree.size(), 1)
+				|| data.remaining() != Math.min(blockSize, tree.size() - offset)) {
+			throw new IOException("Invalid block at offset: " + offset);
+		}
+
+		ByteBuffer buffer;
+		try {
+			buffer = buffers.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		buffer.clear();
+		buffer.put(data.duplicate()).flip();
+
+		executor.execute(() -> {
+			try {
+				int length = buffer.remaining();
+				byte[] hash = HashTree.hashBlock(buffer.duplicate());
+
+				while (buffer.hasRemaining()) {
+					channel.write(buffer, offset + buffer.position());
+				}
+
+				tree.update(offset / blockSize, hash);
+				written.add(new Written(offset / blockSize, hash));
+				total.addAndGet(length);
+
+				if (unflushed.addAndGet(length) >= CHECKPOINT_INTERVAL) {
+					checkpoint();
+				}
+			} catch (Throwable e) {
+				if (failure == null) {
+					failure = e;
+				}
+			} finally {
+				buffers.add(buffer);
+			}
+		});
+	}
+
+	private void check() throws IOException {
+		if (failure != null) {
+			throw new IOException("Failed to write block", failure);
+		}
+	}
+
+	/**
+	 * Wait for every write in flight to complete.
+	 */
+	private void await() throws IOException {
+		var taken = new ArrayList<ByteBuffer>(bufferCount);
+		try {
+			while (taken.size() < bufferCount) {
+				taken.add(buffers.take());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} finally {
+			buffers.addAll(taken);
+		}
+	}
+
+	/**
+	 * Force the written blocks to disk and then record them in the log.
+	 */
+	private synchronized void checkpoint() throws IOException {
+		unflushed.set(0);
+
+		// Only blocks that completed before the force are recorded
+		var entries = new ArrayList<Written>();
+		for (Written entry; (entry = written.poll()) != null;) {
+			entries.add(entry);
+		}
+		if (entries.isEmpty()) {
+			return;
+		}
+
+		channel.force(false);
+
+		var buffer = ByteBuffer.allocate(entries.size() * LOG_ENTRY_SIZE);
+		for (var entry : entries) {
+			buffer.putLong(entry.block()).put(entry.hash());
+		}
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			logChannel.write(buffer);
+		}
+		logChannel.force(false);
+	}
+
+	/**
+	 * Wait for the remaining writes and discard the checkpoint once the partition
+	 * is durable.
+	 */
+	public void finish() throws IOException {
+		await();
+		check();
+
+		channel.force(true);
+		close();
+
+		Files.deleteIfExists(logFile);
+		Files.deleteIfExists(treeFile);
+	}
+
+	/**
+	 * Stop the restore, leaving a checkpoint of the completed writes in place.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!channel.isOpen()) {
+			return;
+		}
+
+		try {
+			await();
+			checkpoint();
+		} finally {
+			executor.shutdown();
+			logChannel.close();
+			channel.close();
+		}
+	}
+}
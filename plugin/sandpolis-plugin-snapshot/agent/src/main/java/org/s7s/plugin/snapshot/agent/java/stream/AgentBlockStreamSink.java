@@ -0,0 +1,117 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.snapshot.agent.java.stream;
+
+import static org.s7s.core.instance.stream.StreamStore.StreamStore;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.instance.stream.StreamSink;
+import org.s7s.plugin.snapshot.Messages.EV_SnapshotDataBlock;
+import org.s7s.plugin.snapshot.Messages.RQ_SnapshotStream;
+import org.s7s.plugin.snapshot.agent.java.restore.RestoreWriter;
+
+/**
+ * Writes the blocks that the server sends during a restore. The server
+ * completes the stream once it has sent every differing block.
+ *
+ * <p>
+ * The sink is registered before the partition is opened, but blocks only
+ * arrive after the agent has sent its hashes, so they always find the writer.
+ */
+public class AgentBlockStreamSink extends StreamSink<EV_SnapshotDataBlock> {
+
+	private static final Logger log = LoggerFactory.getLogger(AgentBlockStreamSink.class);
+
+	private final RQ_SnapshotStream rq;
+
+	private volatile RestoreWriter writer;
+
+	public AgentBlockStreamSink(RQ_SnapshotStream rq) {
+		this.rq = rq;
+	}
+
+	/**
+	 * Begin accepting blocks.
+	 *
+	 * @param writer The partition's writer
+	 */
+	public void ready(RestoreWriter writer) {
+		this.writer = writer;
+	}
+
+	@Override
+	public int getStreamID() {
+		return rq.getStreamId();
+	}
+
+	@Override
+	public void onNext(EV_SnapshotDataBlock item) {
+		var writer = this.writer;
+		if (writer == null) {
+			onError(new IllegalStateException("Received block before hashes"));
+			return;
+		}
+
+		try {
+			writer.write(item.getOffset(), item.getData().asReadOnlyByteBuffer());
+		} catch (IOException e) {
+			log.error("Failed to write block at offset: {}", item.getOffset(), e);
+			onError(e);
+		}
+	}
+
+	@Override
+	public void onComplete() {
+		var writer = this.writer;
+		if (writer == null) {
+			stop();
+			return;
+		}
+
+		try {
+			writer.finish();
+			log.debug("Restored {} bytes to partition: {}", writer.written(), rq.getPartitionUuid());
+		} catch (IOException e) {
+			log.error("Failed to complete restore", e);
+		}
+		stop();
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		stop();
+	}
+
+	@Override
+	public void close() {
+		super.close();
+
+		// Keep the checkpoint so the restore can be resumed
+		try {
+			if (writer != null) {
+				writer.close();
+			}
+		} catch (IOException e) {
+			log.error("Failed to checkpoint restore", e);
+		}
+	}
+
+	/**
+	 * Stop every stream of the restore.
+	 */
+	public void stop() {
+		StreamStore.stop(rq.getHashStreamId());
+		StreamStore.stop(rq.getReplyStreamId());
+		StreamStore.stop(rq.getStreamId());
+	}
+}
@@ -0,0 +1,134 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.snapshot.agent.java.stream;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static org.s7s.core.instance.stream.StreamStore.StreamStore;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ByteString;
+import org.s7s.core.instance.stream.StreamSource;
+import org.s7s.plugin.snapshot.Messages.EV_SnapshotDataBlock;
+import org.s7s.plugin.snapshot.Messages.RQ_SnapshotStream;
+import org.s7s.plugin.snapshot.hash.HashTree;
+import org.s7s.plugin.snapshot.hash.HashTreeDiff;
+
+/**
+ * Uploads the blocks of a partition that differ from the server's latest
+ * snapshot. The partition's hash tree is compared with the server's from the
+ * root down and only the blocks that the server asks for are sent.
+ */
+public class AgentBlockStreamSource extends StreamSource<EV_SnapshotDataBlock> {
+
+	private static final Logger log = LoggerFactory.getLogger(AgentBlockStreamSource.class);
+
+	/**
+	 * Marks the end of the requested blocks.
+	 */
+	private static final long END = -1;
+
+	private final RQ_SnapshotStream rq;
+
+	private final Path device;
+
+	private final long size;
+
+	private final AgentHashStreamSource hashes;
+
+	private final AgentHashStreamSink replies;
+
+	/**
+	 * The blocks that the server requested.
+	 */
+	private final BlockingQueue<Long> requested = new LinkedBlockingQueue<>();
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		var thread = new Thread(r, "snapshot-upload");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * @param rq      The request
+	 * @param device  The partition
+	 * @param size    The partition's size in bytes
+	 * @param hashes  Sends the partition's hashes to the server
+	 * @param replies Receives the server's hashes
+	 */
+	public AgentBlockStreamSource(RQ_SnapshotStream rq, Path device, long size, AgentHashStreamSource hashes,
+			AgentHashStreamSink replies) {
+		this.rq = rq;
+		this.device = device;
+		this.size = size;
+		this.hashes = hashes;
+		this.replies = replies;
+	}
+
+	@Override
+	public int getStreamID() {
+		return rq.getStreamId();
+	}
+
+	@Override
+	public void start() {
+		executor.execute(() -> {
+			try (var channel = FileChannel.open(device, READ)) {
+				var tree = HashTree.build(channel::read, size, rq.getBlockSize(), rq.getReductionFactor(),
+						Runtime.getRuntime().availableProcessors());
+
+				var diff = new HashTreeDiff(tree, true, hashes, requested::add);
+				diff.complete().thenRun(() -> requested.add(END));
+				replies.ready(diff);
+				diff.start();
+
+				var buffer = ByteBuffer.allocate(rq.getBlockSize());
+				long block;
+				while ((block = requested.take()) != END) {
+					long offset = block * rq.getBlockSize();
+					buffer.clear().limit((int) Math.min(rq.getBlockSize(), size - offset));
+					while (buffer.hasRemaining()) {
+						if (channel.read(buffer, offset + buffer.position()) < 0) {
+							throw new EOFException("Partition is shorter than: " + size);
+						}
+					}
+					submit(EV_SnapshotDataBlock.newBuilder().setOffset(offset).setData(ByteString.copyFrom(buffer.flip()))
+							.build());
+				}
+
+				log.debug("Uploaded {} hashes for partition: {}", diff.sent(), rq.getPartitionUuid());
+				close();
+			} catch (InterruptedException e) {
+				// The stream was closed
+			} catch (Exception e) {
+				log.error("Failed to upload partition: {}", device, e);
+				closeExceptionally(e);
+			} finally {
+				StreamStore.stop(rq.getHashStreamId());
+				StreamStore.stop(rq.getReplyStreamId());
+			}
+		});
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+		super.close();
+	}
+}
@@ -0,0 +1,91 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.snapshot.agent.java.stream;
+
+import static org.s7s.core.instance.stream.StreamStore.StreamStore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.instance.stream.StreamSink;
+import org.s7s.plugin.snapshot.Messages.EV_SnapshotHashBlock;
+import org.s7s.plugin.snapshot.hash.HashTree;
+import org.s7s.plugin.snapshot.hash.HashTreeDiff;
+
+/**
+ * Compares the server's hashes with the agent's tree. The sink is registered
+ * before the agent responds to the server, but the tree takes a while to build,
+ * so hashes that arrive before {@link #ready} are held until then.
+ */
+public class AgentHashStreamSink extends StreamSink<EV_SnapshotHashBlock> {
+
+	private static final Logger log = LoggerFactory.getLogger(AgentHashStreamSink.class);
+
+	private final int streamId;
+
+	private HashTreeDiff diff;
+
+	/**
+	 * Hashes that arrived before the comparison began.
+	 */
+	private List<EV_SnapshotHashBlock> pending = new ArrayList<>();
+
+	public AgentHashStreamSink(int streamId) {
+		this.streamId = streamId;
+	}
+
+	/**
+	 * Begin comparing hashes.
+	 *
+	 * @param diff The comparison
+	 */
+	public synchronized void ready(HashTreeDiff diff) {
+		this.diff = diff;
+		for (var item : pending) {
+			receive(item);
+		}
+		pending = null;
+	}
+
+	@Override
+	public int getStreamID() {
+		return streamId;
+	}
+
+	@Override
+	public synchronized void onNext(EV_SnapshotHashBlock item) {
+		if (diff == null) {
+			pending.add(item);
+		} else {
+			receive(item);
+		}
+	}
+
+	private void receive(EV_SnapshotHashBlock item) {
+		var hashes = new byte[item.getHashCount() * HashTree.HASH_SIZE];
+		for (int i = 0; i < item.getHashCount(); i++) {
+			item.getHash(i).copyTo(hashes, i * HashTree.HASH_SIZE);
+		}
+
+		try {
+			diff.receive(item.getLevel(), item.getOffset(), hashes, item.getAcks());
+		} catch (IllegalArgumentException e) {
+			log.error("Received invalid hashes from server", e);
+			onError(e);
+		}
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		StreamStore.stop(streamId);
+	}
+}
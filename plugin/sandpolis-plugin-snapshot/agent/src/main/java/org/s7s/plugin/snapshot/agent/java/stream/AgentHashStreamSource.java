@@ -0,0 +1,34 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.snapshot.agent.java.stream;
+
+import com.google.protobuf.ByteString;
+import org.s7s.core.instance.stream.StreamSource;
+import org.s7s.plugin.snapshot.Messages.EV_SnapshotHashBlock;
+import org.s7s.plugin.snapshot.hash.HashTree;
+import org.s7s.plugin.snapshot.hash.HashTreeDiff;
+
+/**
+ * Sends the agent's hashes to the server during a hash tree comparison.
+ */
+public class AgentHashStreamSource extends StreamSource<EV_SnapshotHashBlock> implements HashTreeDiff.Peer {
+
+	@Override
+	public void send(int level, long index, byte[] hashes, int acks) {
+		var ev = EV_SnapshotHashBlock.newBuilder().setLevel(level).setOffset(index).setAcks(acks);
+		for (int i = 0; i < hashes.length; i += HashTree.HASH_SIZE) {
+			ev.addHash(ByteString.copyFrom(hashes, i, HashTree.HASH_SIZE));
+		}
+		submit(ev.build());
+	}
+
+	@Override
+	public void start() {
+	}
+}
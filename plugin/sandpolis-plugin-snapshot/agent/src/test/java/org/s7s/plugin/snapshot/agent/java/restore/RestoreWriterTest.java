@@ -0,0 +1,269 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.snapshot.agent.java.restore;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.function.LongConsumer;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import org.s7s.plugin.snapshot.hash.HashTree;
+import org.s7s.plugin.snapshot.hash.HashTreeDiff;
+
+class RestoreWriterTest {
+
+	private static final int BLOCK_SIZE = 65536;
+
+	private static final int REDUCTION_FACTOR = 16;
+
+	private static HashTree.BlockSource source(byte[] data) {
+		return (buffer, offset) -> {
+			if (offset >= data.length) {
+				return -1;
+			}
+			int length = (int) Math.min(buffer.remaining(), data.length - offset);
+			buffer.put(data, (int) offset, length);
+			return length;
+		};
+	}
+
+	private static byte[] random(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	/**
+	 * Compare the snapshot's tree with the writer's tree like the server and agent
+	 * do, passing each differing block to the given consumer.
+	 */
+	private static void diff(HashTree snapshot, RestoreWriter writer, LongConsumer blocks) {
+		Deque<Runnable> queue = new ArrayDeque<>();
+		var peers = new HashTreeDiff[2];
+		peers[0] = new HashTreeDiff(snapshot, true,
+				(level, index, hashes, acks) -> queue.add(() -> peers[1].receive(level, index, hashes, acks)),
+				blocks);
+		peers[1] = new HashTreeDiff(writer.tree(), false,
+				(level, index, hashes, acks) -> queue.add(() -> peers[0].receive(level, index, hashes, acks)),
+				block -> {
+				});
+
+		peers[0].start();
+		peers[1].start();
+		while (!queue.isEmpty()) {
+			queue.poll().run();
+		}
+		assertTrue(peers[0].complete().isDone());
+	}
+
+	/**
+	 * Write a block of the snapshot.
+	 */
+	private static void write(RestoreWriter writer, byte[] snapshot, long block) {
+		int offset = (int) (block * BLOCK_SIZE);
+		try {
+			writer.write(offset, ByteBuffer.wrap(snapshot, offset, Math.min(BLOCK_SIZE, snapshot.length - offset)));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Change random blocks of the given data.
+	 *
+	 * @return The changed blocks
+	 */
+	private static TreeSet<Long> change(byte[] data, int count) {
+		var random = new Random(1);
+		var changed = new TreeSet<Long>();
+		for (int i = 0; i < count; i++) {
+			int offset = random.nextInt(data.length);
+			data[offset]++;
+			changed.add((long) offset / BLOCK_SIZE);
+		}
+		return changed;
+	}
+
+	@Test
+	@DisplayName("Check that a restore writes exactly the changed blocks")
+	void restore_1(@TempDir Path temp) throws IOException {
+		byte[] snapshot = random(256 * BLOCK_SIZE + 100, 0);
+		byte[] disk = snapshot.clone();
+		var changed = change(disk, 50);
+
+		var device = temp.resolve("device");
+		Files.write(device, disk);
+
+		var tree = HashTree.build(source(snapshot), snapshot.length, BLOCK_SIZE, REDUCTION_FACTOR, 1);
+		var writer = RestoreWriter.open(device, snapshot.length, BLOCK_SIZE, REDUCTION_FACTOR,
+				temp.resolve("checkpoint"), 4);
+
+		var requested = new TreeSet<Long>();
+		diff(tree, writer, block -> {
+			requested.add(block);
+			write(writer, snapshot, block);
+		});
+		writer.finish();
+
+		assertEquals(changed, requested);
+		assertArrayEquals(snapshot, Files.readAllBytes(device));
+		assertFalse(Files.exists(temp.resolve("checkpoint.tree")));
+		assertFalse(Files.exists(temp.resolve("checkpoint.log")));
+	}
+
+	@Test
+	@DisplayName("Check that an interrupted restore resumes from its checkpoint")
+	void restore_2(@TempDir Path temp) throws IOException {
+		byte[] snapshot = random(512 * BLOCK_SIZE, 0);
+		byte[] disk = random(snapshot.length, 1);
+
+		var device = temp.resolve("device");
+		var checkpoint = temp.resolve("checkpoint");
+		Files.write(device, disk);
+
+		var tree = HashTree.build(source(snapshot), snapshot.length, BLOCK_SIZE, REDUCTION_FACTOR, 1);
+		var writer = RestoreWriter.open(device, snapshot.length, BLOCK_SIZE, REDUCTION_FACTOR, checkpoint, 4);
+
+		// Write only some of the blocks before the restore is interrupted
+		var first = new TreeSet<Long>();
+		diff(tree, writer, block -> {
+			if (block % 3 == 0) {
+				first.add(block);
+				write(writer, snapshot, block);
+			}
+		});
+		writer.close();
+
+		// The checkpoint describes the partition without hashing it again
+		var resumed = RestoreWriter.open(device, snapshot.length, BLOCK_SIZE, REDUCTION_FACTOR, checkpoint, 4);
+		assertArrayEquals(HashTree.build(source(Files.readAllBytes(device)), snapshot.length, BLOCK_SIZE,
+				REDUCTION_FACTOR, 1).root(), resumed.tree().root());
+
+		var remaining = new TreeSet<Long>();
+		diff(tree, resumed, block -> {
+			remaining.add(block);
+			write(resumed, snapshot, block);
+		});
+		resumed.finish();
+
+		assertEquals(512, first.size() + remaining.size());
+		assertTrue(remaining.stream().noneMatch(first::contains));
+		assertArrayEquals(snapshot, Files.readAllBytes(device));
+	}
+
+	@Test
+	@DisplayName("Check that a torn checkpoint log entry is ignored")
+	void restore_3(@TempDir Path temp) throws IOException {
+		byte[] snapshot = random(64 * BLOCK_SIZE, 0);
+
+		var device = temp.resolve("device");
+		var checkpoint = temp.resolve("checkpoint");
+		Files.write(device, new byte[snapshot.length]);
+
+		var writer = RestoreWriter.open(device, snapshot.length, BLOCK_SIZE, REDUCTION_FACTOR, checkpoint, 2);
+		for (long block = 0; block < 10; block++) {
+			write(writer, snapshot, block);
+		}
+		writer.close();
+
+		// Simulate a crash while appending to the log
+		Files.write(checkpoint.resolveSibling("checkpoint.log"), new byte[] { 1, 2, 3 }, APPEND);
+
+		var resumed = RestoreWriter.open(device, snapshot.length, BLOCK_SIZE, REDUCTION_FACTOR, checkpoint, 2);
+		assertArrayEquals(HashTree.build(source(Files.readAllBytes(device)), snapshot.length, BLOCK_SIZE,
+				REDUCTION_FACTOR, 1).root(), resumed.tree().root());
+		resumed.close();
+	}
+
+	@Test
+	@DisplayName("Check that parallel restores write every block")
+	void restore_4(@TempDir Path temp) throws IOException {
+		byte[] data = random(4 * 1024 * 1024, 0);
+		long size = 4L * data.length;
+		int blocks = (int) (size / BLOCK_SIZE);
+
+		for (int parallelism : new int[] { 1, 4 }) {
+			var device = temp.resolve("device" + parallelism);
+			try (var channel = FileChannel.open(device, CREATE, WRITE)) {
+				channel.write(ByteBuffer.allocate(1), size - 1);
+			}
+
+			var writer = RestoreWriter.open(device, size, BLOCK_SIZE, 64, temp.resolve("checkpoint" + parallelism),
+					parallelism);
+			for (int block = 0; block < blocks; block++) {
+				int offset = (int) ((long) block * BLOCK_SIZE % data.length);
+				writer.write((long) block * BLOCK_SIZE, ByteBuffer.wrap(data, offset, BLOCK_SIZE));
+			}
+			writer.finish();
+			assertEquals(size, writer.written());
+
+			var written = Files.readAllBytes(device);
+			for (int copy = 0; copy < size / data.length; copy++) {
+				assertTrue(Arrays.equals(data, 0, data.length, written, copy * data.length, (copy + 1) * data.length));
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Check that a checkpoint is discarded when the partition changes")
+	void restore_5(@TempDir Path temp) throws IOException {
+		byte[] snapshot = random(64 * BLOCK_SIZE, 0);
+
+		var device = temp.resolve("device");
+		var checkpoint = temp.resolve("checkpoint");
+		Files.write(device, new byte[snapshot.length]);
+
+		var writer = RestoreWriter.open(device, snapshot.length, BLOCK_SIZE, REDUCTION_FACTOR, checkpoint, 2);
+		for (long block = 0; block < 10; block++) {
+			write(writer, snapshot, block);
+		}
+		writer.close();
+
+		// Something else writes to a restored block before the restore resumes
+		try (var channel = FileChannel.open(device, WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 1 }), 5 * BLOCK_SIZE + 100);
+		}
+
+		var resumed = RestoreWriter.open(device, snapshot.length, BLOCK_SIZE, REDUCTION_FACTOR, checkpoint, 2);
+		assertArrayEquals(HashTree.build(source(Files.readAllBytes(device)), snapshot.length, BLOCK_SIZE,
+				REDUCTION_FACTOR, 1).root(), resumed.tree().root());
+
+		// The changed block is requested again
+		var tree = HashTree.build(source(snapshot), snapshot.length, BLOCK_SIZE, REDUCTION_FACTOR, 1);
+		var requested = new TreeSet<Long>();
+		diff(tree, resumed, block -> {
+			requested.add(block);
+			write(resumed, snapshot, block);
+		});
+		resumed.finish();
+
+		assertTrue(requested.contains(5L));
+		assertArrayEquals(snapshot, Files.readAllBytes(device));
+	}
+}
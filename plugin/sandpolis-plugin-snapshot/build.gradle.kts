@@ -26,6 +26,24 @@ dependencies {
 	}
 }
 
+// Throughput benchmarks are kept out of the unit tests
+val benchmark by sourceSets.creating {
+	compileClasspath += sourceSets.main.get().output
+	runtimeClasspath += sourceSets.main.get().output
+}
+
+configurations["benchmarkImplementation"].extendsFrom(configurations.testImplementation.get())
+configurations["benchmarkRuntimeOnly"].extendsFrom(configurations.testRuntimeOnly.get())
+
+tasks.register<Test>("benchmark") {
+	description = "Runs the throughput benchmarks."
+	group = "verification"
+
+	testClassesDirs = benchmark.output.classesDirs
+	classpath = benchmark.runtimeClasspath
+	useJUnitPlatform()
+}
+
 sandpolis_plugin {
 	id = project.name
 	coordinate = "org.s7s:sandpolis-plugin-snapshot"
@@ -9,6 +9,7 @@
 module org.s7s.plugin.snapshot.server.java {
 	exports org.s7s.plugin.snapshot.server.java.stream;
 	exports org.s7s.plugin.snapshot.server.java;
+	exports org.s7s.plugin.snapshot.server.java.dedup;
 
 	requires com.google.common;
 	requires com.google.protobuf;
@@ -18,6 +19,5 @@ module org.s7s.plugin.snapshot.server.java {
 	requires org.s7s.core.integration.qcow2;
 	requires org.slf4j;
 
-	// provides org.s7s.core.instance.plugin.SandpolisPlugin with
-	// org.s7s.plugin.snapshot.server.java.SnapshotPlugin;
+	provides org.s7s.core.instance.plugin.SandpolisPlugin with org.s7s.plugin.snapshot.server.java.SnapshotPlugin;
 }
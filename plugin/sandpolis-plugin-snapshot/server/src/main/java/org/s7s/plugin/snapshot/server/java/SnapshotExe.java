@@ -8,6 +8,176 @@
 //============================================================================//
 package org.s7s.plugin.snapshot.server.java;
 
-public class SnapshotExe {
+import static org.s7s.core.instance.connection.ConnectionStore.ConnectionStore;
+import static org.s7s.core.instance.stream.StreamStore.StreamStore;
+import static org.s7s.plugin.snapshot.server.java.SnapshotStore.SnapshotStore;
 
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.foundation.S7SRandom;
+import org.s7s.core.instance.connection.Connection;
+import org.s7s.core.instance.exelet.Exelet;
+import org.s7s.core.instance.exelet.ExeletContext;
+import org.s7s.core.instance.state.InstanceOids.ProfileOid.ConnectionOid;
+import org.s7s.core.instance.stream.InboundStreamAdapter;
+import org.s7s.core.instance.stream.OutboundStreamAdapter;
+import org.s7s.core.integration.qcow2.Qcow2;
+import org.s7s.plugin.snapshot.Messages.EV_SnapshotDataBlock;
+import org.s7s.plugin.snapshot.Messages.EV_SnapshotHashBlock;
+import org.s7s.plugin.snapshot.Messages.RQ_ApplySnapshot;
+import org.s7s.plugin.snapshot.Messages.RQ_CreateSnapshot;
+import org.s7s.plugin.snapshot.Messages.RQ_SnapshotStream;
+import org.s7s.plugin.snapshot.Messages.RS_ApplySnapshot;
+import org.s7s.plugin.snapshot.Messages.RS_CreateSnapshot;
+import org.s7s.plugin.snapshot.Messages.RS_SnapshotStream;
+import org.s7s.plugin.snapshot.hash.HashTreeDiff;
+import org.s7s.plugin.snapshot.server.java.stream.ServerBlockStreamSink;
+import org.s7s.plugin.snapshot.server.java.stream.ServerBlockStreamSource;
+import org.s7s.plugin.snapshot.server.java.stream.ServerHashStreamSink;
+import org.s7s.plugin.snapshot.server.java.stream.ServerHashStreamSource;
+
+public final class SnapshotExe extends Exelet {
+
+	private static final Logger log = LoggerFactory.getLogger(SnapshotExe.class);
+
+	@Handler(auth = true)
+	public static CompletionStage<RS_CreateSnapshot> rq_create_snapshot(ExeletContext context, RQ_CreateSnapshot rq) {
+		var agent = find(rq.getAgentUuid());
+		if (agent.isEmpty()) {
+			return CompletableFuture.completedFuture(RS_CreateSnapshot.CREATE_SNAPSHOT_FAILED_NOT_CONNECTED);
+		}
+		var connection = agent.get();
+
+		int streamId = S7SRandom.nextNonzeroInt();
+		int hashStreamId = S7SRandom.nextNonzeroInt();
+		int replyStreamId = S7SRandom.nextNonzeroInt();
+
+		// The agent may send hashes as soon as it responds
+		var hashes = new ServerHashStreamSink();
+		var replies = new ServerHashStreamSource();
+		StreamStore.add(new InboundStreamAdapter<EV_SnapshotHashBlock>(hashStreamId, connection,
+				EV_SnapshotHashBlock.class), hashes);
+		StreamStore.add(replies, new OutboundStreamAdapter<EV_SnapshotHashBlock>(replyStreamId, connection));
+
+		return connection.request(RS_SnapshotStream.class, RQ_SnapshotStream.newBuilder() //
+				.setOperation(RQ_SnapshotStream.SnapshotOperation.SNAPSHOT_CREATE) //
+				.setStreamId(streamId) //
+				.setHashStreamId(hashStreamId) //
+				.setReplyStreamId(replyStreamId) //
+				.setPartitionUuid(rq.getPartitionUuid()) //
+				.setBlockSize(SnapshotStore.BLOCK_SIZE) //
+				.setReductionFactor(SnapshotStore.REDUCTION_FACTOR)).handle((rs, error) -> {
+					if (error != null || rs.getResult() != RS_SnapshotStream.Result.SNAPSHOT_STREAM_OK) {
+						log.debug("Agent rejected snapshot: {}", error != null ? error : rs.getResult());
+						stop(streamId, hashStreamId, replyStreamId);
+						return RS_CreateSnapshot.CREATE_SNAPSHOT_FAILED_REJECTED;
+					}
+
+					try {
+						var snapshot = SnapshotStore.create(rq.getAgentUuid(), rq.getPartitionUuid(), rs.getSize());
+						// Blocks that any completed snapshot contains don't have to be uploaded
+						HashTreeDiff.Available available = SnapshotStore.blocks()
+								.map(blocks -> blocks.into(snapshot.image, SnapshotStore.BLOCK_SIZE))
+								.orElse((block, hash, i) -> false);
+
+						var sink = new ServerBlockStreamSink(snapshot, streamId, hashes, hashStreamId, replies,
+								replyStreamId, SnapshotStore.BLOCK_SIZE, SnapshotStore.REDUCTION_FACTOR, available);
+
+						StreamStore.add(new InboundStreamAdapter<EV_SnapshotDataBlock>(streamId, connection,
+								EV_SnapshotDataBlock.class), sink);
+						sink.start();
+					} catch (Exception e) {
+						log.error("Failed to create snapshot", e);
+						stop(streamId, hashStreamId, replyStreamId);
+						return RS_CreateSnapshot.CREATE_SNAPSHOT_FAILED_REJECTED;
+					}
+
+					return RS_CreateSnapshot.CREATE_SNAPSHOT_OK;
+				});
+	}
+
+	@Handler(auth = true)
+	public static CompletionStage<RS_ApplySnapshot> rq_apply_snapshot(ExeletContext context, RQ_ApplySnapshot rq)
+			throws Exception {
+		var agent = find(rq.getAgentUuid());
+		if (agent.isEmpty()) {
+			return CompletableFuture.completedFuture(RS_ApplySnapshot.APPLY_SNAPSHOT_FAILED_NOT_CONNECTED);
+		}
+		var connection = agent.get();
+
+		// Snapshots are identified by the name of their image and the latest is the
+		// default
+		var file = rq.getSnapshotUuid().isEmpty() ? SnapshotStore.latest(rq.getAgentUuid(), rq.getPartitionUuid())
+				: SnapshotStore.list(rq.getAgentUuid(), rq.getPartitionUuid()).stream().filter(
+						image -> image.getFileName().toString().equals(rq.getSnapshotUuid() + ".qcow2")).findFirst();
+		if (file.isEmpty()) {
+			return CompletableFuture.completedFuture(RS_ApplySnapshot.APPLY_SNAPSHOT_FAILED_NOT_FOUND);
+		}
+		var image = new Qcow2(file.get(), true);
+
+		int streamId = S7SRandom.nextNonzeroInt();
+		int hashStreamId = S7SRandom.nextNonzeroInt();
+		int replyStreamId = S7SRandom.nextNonzeroInt();
+
+		// The agent may send hashes as soon as it responds
+		var hashes = new ServerHashStreamSink();
+		var replies = new ServerHashStreamSource();
+		var blocks = new ServerBlockStreamSource(image, hashes, hashStreamId, replies, replyStreamId,
+				SnapshotStore.BLOCK_SIZE, SnapshotStore.REDUCTION_FACTOR);
+		StreamStore.add(new InboundStreamAdapter<EV_SnapshotHashBlock>(hashStreamId, connection,
+				EV_SnapshotHashBlock.class), hashes);
+		StreamStore.add(replies, new OutboundStreamAdapter<EV_SnapshotHashBlock>(replyStreamId, connection));
+		StreamStore.add(blocks, new OutboundStreamAdapter<EV_SnapshotDataBlock>(streamId, connection));
+
+		return connection.request(RS_SnapshotStream.class, RQ_SnapshotStream.newBuilder() //
+				.setOperation(RQ_SnapshotStream.SnapshotOperation.SNAPSHOT_APPLY) //
+				.setStreamId(streamId) //
+				.setHashStreamId(hashStreamId) //
+				.setReplyStreamId(replyStreamId) //
+				.setPartitionUuid(rq.getPartitionUuid()) //
+				.setSize(image.size()) //
+				.setBlockSize(SnapshotStore.BLOCK_SIZE) //
+				.setReductionFactor(SnapshotStore.REDUCTION_FACTOR)).handle((rs, error) -> {
+					if (error != null || rs.getResult() != RS_SnapshotStream.Result.SNAPSHOT_STREAM_OK) {
+						log.debug("Agent rejected restore: {}", error != null ? error : rs.getResult());
+						stop(streamId, hashStreamId, replyStreamId);
+						return RS_ApplySnapshot.APPLY_SNAPSHOT_FAILED_REJECTED;
+					}
+
+					blocks.start();
+					return RS_ApplySnapshot.APPLY_SNAPSHOT_OK;
+				});
+	}
+
+	/**
+	 * Stop every stream that was registered for a snapshot operation.
+	 *
+	 * @param ids The stream IDs
+	 */
+	private static void stop(int... ids) {
+		for (int id : ids) {
+			StreamStore.stop(id);
+		}
+	}
+
+	/**
+	 * Find the connection to an agent.
+	 *
+	 * @param uuid The agent's UUID
+	 * @return The agent's connection
+	 */
+	private static Optional<Connection> find(String uuid) {
+		return ConnectionStore.values().stream().filter(connection -> {
+			var attr = connection.get(ConnectionOid.REMOTE_UUID);
+			return attr.isPresent() && uuid.equals(attr.asString());
+		}).findFirst();
+	}
+
+	private SnapshotExe() {
+	}
 }
@@ -0,0 +1,33 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.snapshot.server.java;
+
+import static org.s7s.plugin.snapshot.server.java.SnapshotStore.SnapshotStore;
+
+import org.s7s.core.instance.InstanceContext;
+import org.s7s.core.instance.exelet.Exelet;
+import org.s7s.core.instance.plugin.ExeletProvider;
+import org.s7s.core.instance.plugin.SandpolisPlugin;
+
+public final class SnapshotPlugin extends SandpolisPlugin implements ExeletProvider {
+
+	@Override
+	public void loaded() {
+		SnapshotStore.init(config -> {
+			config.directory = InstanceContext.PATH_DATA.get().resolve("snapshot");
+			config.blockDirectory = InstanceContext.PATH_DATA.get().resolve("snapshot_blocks");
+		});
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Class<? extends Exelet>[] getExelets() {
+		return new Class[] { SnapshotExe.class };
+	}
+}
@@ -8,8 +8,568 @@
 //============================================================================//
 package org.s7s.plugin.snapshot.server.java;
 
-import com.google.common.hash.BloomFilter;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
 
-public class SnapshotStore {
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.instance.store.ConfigurableStore;
+import org.s7s.core.instance.store.StoreBase;
+import org.s7s.core.integration.qcow2.QHeader;
+import org.s7s.core.integration.qcow2.QHeader.IllegalHeaderException;
+import org.s7s.core.integration.qcow2.Qcow2;
+import org.s7s.plugin.snapshot.hash.HashTree;
+import org.s7s.plugin.snapshot.server.java.SnapshotStore.SnapshotStoreConfig;
+import org.s7s.plugin.snapshot.server.java.dedup.BlockStore;
+
+/**
+ * Stores snapshots of agent partitions as chains of qcow2 images. The first
+ * snapshot of a partition is a complete image and every later snapshot is an
+ * overlay that only contains the blocks that changed since the previous one.
+ * If the partition is resized, the next snapshot is a new complete image.
+ *
+ * <p>
+ * Snapshots are numbered in the order they were taken which is also the order
+ * of the backing chain:
+ *
+ * <pre>
+ * &lt;directory&gt;/&lt;agent&gt;/&lt;partition&gt;/00000000000000000001.qcow2
+ * &lt;directory&gt;/&lt;agent&gt;/&lt;partition&gt;/00000000000000000002.qcow2 -&gt; 00000000000000000001.qcow2
+ * </pre>
+ *
+ * To bound the cost of reads, the oldest overlay is merged into the base image
+ * in the background once a chain is longer than
+ * {@link SnapshotStoreConfig#maxChainDepth}. The base image then takes the
+ * overlay's place, so the oldest restore point is dropped from the chain.
+ *
+ * <p>
+ * If a {@link BlockStore} is configured, every completed snapshot is also
+ * stored there as a manifest, which costs only the blocks that no other
+ * snapshot contains. Uploads of any partition can then obtain blocks from the
+ * store instead of the agent, and a restore point that's dropped from its chain
+ * remains available as an archive. Beyond
+ * {@link SnapshotStoreConfig#maxArchived}, the oldest archived manifests are
+ * removed and the space of their unshared blocks is reclaimed.
+ */
+public class SnapshotStore extends StoreBase implements ConfigurableStore<SnapshotStoreConfig> {
+
+	private static final Logger log = LoggerFactory.getLogger(SnapshotStore.class);
+
+	private static final String EXTENSION = ".qcow2";
+
+	/**
+	 * The extension of snapshots that are still being received.
+	 */
+	private static final String PARTIAL_EXTENSION = ".qcow2.part";
+
+	/**
+	 * The extension of the marker that exists while a base image is being merged
+	 * with the next snapshot.
+	 */
+	private static final String MERGING_EXTENSION = ".merging";
+
+	/**
+	 * The extension of archived snapshots.
+	 */
+	private static final String MANIFEST_EXTENSION = ".manifest";
+
+	/**
+	 * The block size of transfers and archived snapshots. They're the same so that
+	 * uploaded blocks can be found in the block store.
+	 */
+	public static final int BLOCK_SIZE = 65536;
+
+	/**
+	 * The reduction factor of transfers and manifests.
+	 */
+	public static final int REDUCTION_FACTOR = 64;
+
+	private SnapshotStoreConfig config;
+
+	private BlockStore blocks;
+
+	/**
+	 * Locks that serialize changes to the snapshot chain of each partition.
+	 */
+	private final Map<Path, ReentrantLock> locks = new ConcurrentHashMap<>();
+
+	public SnapshotStore() {
+		super(log);
+	}
+
+	/**
+	 * A snapshot that's being received.
+	 */
+	public final class PendingSnapshot implements Closeable {
+
+		private final Path chain;
+
+		private final Path file;
+
+		/**
+		 * The image which receives the snapshot's blocks.
+		 */
+		public final Qcow2 image;
+
+		private boolean complete;
+
+		private PendingSnapshot(Path chain, Path file, Qcow2 image) {
+			this.chain = chain;
+			this.file = file;
+			this.image = image;
+		}
+
+		/**
+		 * Make the snapshot available as a restore point.
+		 *
+		 * @return The snapshot's image file
+		 */
+		public Path complete() throws IOException {
+			image.close();
+
+			var lock = lock(chain);
+			try {
+				var snapshot = chain.resolve(file.getFileName().toString().replace(PARTIAL_EXTENSION, EXTENSION));
+				Files.move(file, snapshot, ATOMIC_MOVE);
+				complete = true;
+
+				schedule(chain, snapshot);
+				return snapshot;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Discard the snapshot if it wasn't completed.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (!complete) {
+				image.close();
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+
+	/**
+	 * Begin a new snapshot of a partition. The snapshot is an overlay of the
+	 * partition's latest snapshot if there is one.
+	 *
+	 * @param agent     The agent's UUID
+	 * @param partition The partition's UUID
+	 * @param size      The partition's size in bytes
+	 * @return The new snapshot
+	 */
+	public PendingSnapshot create(String agent, String partition, long size) throws IOException {
+		var chain = chain(agent, partition);
+		Files.createDirectories(chain);
+
+		var lock = lock(chain);
+		try {
+			var snapshots = images(chain);
+
+			long sequence = snapshots.isEmpty() ? 1 : sequence(snapshots.get(snapshots.size() - 1)) + 1;
+			var file = chain.resolve(String.format("%020d", sequence) + PARTIAL_EXTENSION);
+			Files.deleteIfExists(file);
+
+			Qcow2 image;
+			if (snapshots.isEmpty()) {
+				image = new Qcow2(file, size, config.clusterSize);
+			} else {
+				image = new Qcow2(file, snapshots.get(snapshots.size() - 1));
+				if (image.size() != size) {
+					image.close();
+					Files.delete(file);
+
+					// The partition was resized, so start a new base image. The older images
+					// are retired by merge() once the chain is too long.
+					log.debug("Partition size changed from {} to {} bytes", image.size(), size);
+					image = new Qcow2(file, size, config.clusterSize);
+				}
+			}
+
+			return new PendingSnapshot(chain, file, image);
+		} catch (IllegalHeaderException e) {
+			throw new IOException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the restore points of a partition.
+	 *
+	 * @param agent     The agent's UUID
+	 * @param partition The partition's UUID
+	 * @return The snapshot image files from oldest to newest
+	 */
+	public List<Path> list(String agent, String partition) throws IOException {
+		var chain = chain(agent, partition);
+		if (!Files.exists(chain)) {
+			return List.of();
+		}
+
+		// A base that's being merged no longer has its original contents
+		return images(chain).stream()
+				.filter(image -> !Files.exists(image.resolveSibling(image.getFileName() + MERGING_EXTENSION)))
+				.toList();
+	}
+
+	/**
+	 * Get the newest restore point of a partition.
+	 *
+	 * @param agent     The agent's UUID
+	 * @param partition The partition's UUID
+	 * @return The newest snapshot image file
+	 */
+	public Optional<Path> latest(String agent, String partition) throws IOException {
+		var snapshots = list(agent, partition);
+		return snapshots.isEmpty() ? Optional.empty() : Optional.of(snapshots.get(snapshots.size() - 1));
+	}
+
+	/**
+	 * Get the archived restore points of a partition, which are the restore points
+	 * that were dropped from its chain.
+	 *
+	 * @param agent     The agent's UUID
+	 * @param partition The partition's UUID
+	 * @return The manifest files from oldest to newest
+	 */
+	public List<Path> archived(String agent, String partition) throws IOException {
+		var chain = chain(agent, partition);
+		if (!Files.exists(chain)) {
+			return List.of();
+		}
+
+		return manifests(chain);
+	}
+
+	/**
+	 * @return The manifests of a chain whose images no longer exist ordered from
+	 *         oldest to newest
+	 */
+	private List<Path> manifests(Path chain) throws IOException {
+		try (Stream<Path> files = Files.list(chain)) {
+			return files.filter(file -> file.getFileName().toString().endsWith(MANIFEST_EXTENSION))
+					.filter(file -> !Files.exists(file.resolveSibling(
+							file.getFileName().toString().replace(MANIFEST_EXTENSION, EXTENSION))))
+					.sorted().toList();
+		}
+	}
+
+	/**
+	 * Write an archived restore point to a new image.
+	 *
+	 * @param manifest The manifest file
+	 * @param image    The new image file
+	 */
+	public void restore(Path manifest, Path image) throws IOException {
+		if (blocks == null) {
+			throw new IllegalStateException("No block store is configured");
+		}
+
+		HashTree tree;
+		try (var in = Files.newInputStream(manifest)) {
+			tree = HashTree.read(in);
+		}
+		try (var qcow2 = new Qcow2(image, tree.size(), config.clusterSize)) {
+			blocks.restore(tree, qcow2);
+		}
+	}
+
+	/**
+	 * @return The store of snapshot blocks
+	 */
+	public Optional<BlockStore> blocks() {
+		return Optional.ofNullable(blocks);
+	}
+
+	/**
+	 * Write a snapshot's blocks to the block store unless it was already stored.
+	 */
+	private void archive(Path snapshot) throws IOException {
+		var name = snapshot.getFileName().toString();
+		var manifest = snapshot.resolveSibling(name.replace(EXTENSION, MANIFEST_EXTENSION));
+		if (blocks == null || Files.exists(manifest)) {
+			return;
+		}
+
+		log.debug("Archiving snapshot: {}", snapshot);
+
+		var partial = manifest.resolveSibling(manifest.getFileName() + ".part");
+		try (var image = new Qcow2(snapshot, true); var out = Files.newOutputStream(partial)) {
+			blocks.store(image, BLOCK_SIZE, REDUCTION_FACTOR).write(out);
+		} catch (IllegalHeaderException e) {
+			throw new IOException(e);
+		}
+
+		// The references must be durable before the manifest that owns them exists
+		blocks.flush();
+		Files.move(partial, manifest, ATOMIC_MOVE);
+
+		expire(snapshot.getParent());
+	}
+
+	/**
+	 * Remove the oldest archived snapshots of a partition until there are few
+	 * enough and reclaim the blocks that are no longer referenced.
+	 *
+	 * @param chain The partition's directory
+	 */
+	private void expire(Path chain) throws IOException {
+		var manifests = manifests(chain);
+		if (manifests.size() <= config.maxArchived) {
+			return;
+		}
+
+		for (var manifest : manifests.subList(0, manifests.size() - config.maxArchived)) {
+			log.debug("Expiring archived snapshot: {}", manifest);
+
+			HashTree tree;
+			try (var in = Files.newInputStream(manifest)) {
+				tree = HashTree.read(in);
+			}
+
+			// Delete the manifest first so that an interruption can only leak
+			// references rather than leave a manifest with missing blocks
+			Files.delete(manifest);
+			blocks.release(tree);
+		}
+
+		long reclaimed = blocks.compact(0.5);
+		log.debug("Reclaimed {} bytes from the block store", reclaimed);
+	}
+
+	/**
+	 * Merge the oldest snapshots of a partition until its chain is short enough.
+	 * A partition that was resized has several base images in its directory. The
+	 * last image before a newer base has nothing to merge into, so it's retired on
+	 * its own.
+	 *
+	 * @param chain The partition's directory
+	 */
+	void merge(Path chain) throws IOException {
+		var lock = lock(chain);
+		try {
+			List<Path> snapshots;
+			while ((snapshots = images(chain)).size() > config.maxChainDepth) {
+				var base = snapshots.get(0);
+				var overlay = snapshots.get(1);
+				var marker = base.resolveSibling(base.getFileName() + MERGING_EXTENSION);
+
+				if (!hasBacking(overlay)) {
+					log.debug("Retiring snapshot: {}", base);
+
+					// Nothing depends on the base, so only its archive remains
+					if (!Files.exists(marker)) {
+						archive(base);
+					}
+					Files.delete(base);
+					Files.deleteIfExists(marker);
+					continue;
+				}
+
+				log.debug("Merging snapshot {} into {}", overlay, base);
+
+				// The base's contents are about to change
+				if (!Files.exists(marker)) {
+					archive(base);
+				}
+
+				// Writing the overlay's blocks into the base is idempotent, so an
+				// interrupted merge can simply be repeated
+				Files.deleteIfExists(marker);
+				Files.createFile(marker);
+				try (var image = new Qcow2(overlay)) {
+					image.commit();
+				} catch (IllegalHeaderException e) {
+					throw new IOException(e);
+				}
+
+				// The base now has the overlay's contents, so it can replace the overlay
+				// without changing what the overlay's children see
+				Files.move(base, overlay, ATOMIC_MOVE, REPLACE_EXISTING);
+				Files.delete(marker);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Store a new snapshot's blocks and then shorten its chain in the background.
+	 *
+	 * @param chain    The partition's directory
+	 * @param snapshot The new snapshot
+	 */
+	private void schedule(Path chain, Path snapshot) {
+		config.executor.execute(() -> {
+			var lock = lock(chain);
+			try {
+				// The snapshot may have been merged already
+				if (Files.exists(snapshot)) {
+					archive(snapshot);
+				}
+			} catch (IOException | RuntimeException e) {
+				log.error("Failed to store snapshot blocks: {}", snapshot, e);
+			} finally {
+				lock.unlock();
+			}
+		});
+		scheduleMerge(chain);
+	}
+
+	private void scheduleMerge(Path chain) {
+		config.executor.execute(() -> {
+			try {
+				merge(chain);
+			} catch (IOException | RuntimeException e) {
+				log.error("Failed to merge snapshots in: {}", chain, e);
+			}
+		});
+	}
+
+	/**
+	 * @return Whether the image is an overlay of another image
+	 */
+	private static boolean hasBacking(Path image) throws IOException {
+		try (var channel = FileChannel.open(image, READ)) {
+			return QHeader.read(channel).backing_file_offset() != 0;
+		} catch (IllegalHeaderException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * @return The completed images of a chain ordered from oldest to newest
+	 */
+	private List<Path> images(Path chain) throws IOException {
+		try (Stream<Path> files = Files.list(chain)) {
+			return files.filter(file -> file.getFileName().toString().endsWith(EXTENSION)).sorted().toList();
+		}
+	}
+
+	private long sequence(Path image) {
+		var name = image.getFileName().toString();
+		return Long.parseLong(name.substring(0, name.length() - EXTENSION.length()));
+	}
+
+	private Path chain(String agent, String partition) {
+		// The names come from the agent and must not escape the directory
+		var chain = config.directory.resolve(agent).resolve(partition);
+		if (!chain.normalize().equals(chain) || chain.getNameCount() != config.directory.getNameCount() + 2) {
+			throw new IllegalArgumentException("Invalid agent or partition: " + agent + "/" + partition);
+		}
+		return chain;
+	}
+
+	private ReentrantLock lock(Path chain) {
+		var lock = locks.computeIfAbsent(chain, key -> new ReentrantLock());
+		lock.lock();
+		return lock;
+	}
+
+	@Override
+	public void init(Consumer<SnapshotStoreConfig> configurator) {
+		config = new SnapshotStoreConfig(configurator);
+
+		if (config.maxChainDepth < 2) {
+			throw new IllegalArgumentException("The maximum chain depth must be at least 2");
+		}
+
+		if (config.blockDirectory != null) {
+			try {
+				blocks = new BlockStore(config.blockDirectory);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		// Finish merges that were interrupted and remove incomplete snapshots
+		if (Files.exists(config.directory)) {
+			try (Stream<Path> files = Files.find(config.directory, 3, (file, attributes) -> attributes.isRegularFile())) {
+				for (var file : (Iterable<Path>) files::iterator) {
+					var name = file.getFileName().toString();
+					if (name.endsWith(PARTIAL_EXTENSION) || name.endsWith(MANIFEST_EXTENSION + ".part")) {
+						Files.delete(file);
+					} else if (name.endsWith(MERGING_EXTENSION)) {
+						if (Files.exists(file.resolveSibling(name.replace(MERGING_EXTENSION, "")))) {
+							scheduleMerge(file.getParent());
+						} else {
+							Files.delete(file);
+						}
+					}
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	public static final class SnapshotStoreConfig {
+
+		/**
+		 * The directory that contains snapshot images.
+		 */
+		public Path directory;
+
+		/**
+		 * The maximum number of images in a partition's snapshot chain.
+		 */
+		public int maxChainDepth = 8;
+
+		/**
+		 * The maximum number of archived restore points of each partition.
+		 */
+		public int maxArchived = 64;
+
+		/**
+		 * The cluster size of new base images.
+		 */
+		public int clusterSize = 65536;
+
+		/**
+		 * The directory of the block store that deduplicates snapshots and archives
+		 * old restore points or {@code null} to drop them.
+		 */
+		public Path blockDirectory;
+
+		/**
+		 * The executor that merges snapshot chains.
+		 */
+		public Executor executor;
+
+		private SnapshotStoreConfig(Consumer<SnapshotStoreConfig> configurator) {
+			configurator.accept(this);
+
+			if (executor == null) {
+				executor = Executors.newSingleThreadExecutor(r -> {
+					Thread thread = new Thread(r, "snapshot_merge");
+					thread.setDaemon(true);
+					return thread;
+				});
+			}
+		}
+	}
+
+	public static final SnapshotStore SnapshotStore = new SnapshotStore();
 }
@@ -0,0 +1,325 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.snapshot.server.java.dedup;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.s7s.plugin.snapshot.hash.HashTree;
+
+/**
+ * A hash table in a memory-mapped file that maps block hashes to their location
+ * in a segment. Hashes are uniformly distributed, so their first bytes select a
+ * slot directly and collisions are resolved by linear probing.
+ *
+ * <p>
+ * Each slot is laid out as follows:
+ *
+ * <pre>
+ * 0  hash      (32 bytes)
+ * 32 segment   (uint32, 0 if the slot is empty)
+ * 36 length    (uint32)
+ * 40 offset    (uint64)
+ * 48 refcount  (uint32)
+ * </pre>
+ */
+final class BlockIndex implements Closeable {
+
+	/**
+	 * The location of a block.
+	 *
+	 * @param segment  The segment number starting at 1
+	 * @param offset   The offset of the block's data in the segment
+	 * @param length   The length of the block's data
+	 * @param refcount The number of references to the block
+	 */
+	record Entry(int segment, long offset, int length, int refcount) {
+	}
+
+	private static final int MAGIC = 0x53374249;
+
+	private static final int HEADER_SIZE = 64;
+
+	static final int SLOT_SIZE = 64;
+
+	/**
+	 * The size of each mapping of the index file.
+	 */
+	private static final long REGION_SIZE = 1L << 30;
+
+	/**
+	 * The fraction of occupied slots that triggers a resize.
+	 */
+	private static final double MAX_LOAD = 0.7;
+
+	private final Path file;
+
+	private FileChannel channel;
+
+	private MappedByteBuffer[] regions;
+
+	private long capacity;
+
+	private long count;
+
+	/**
+	 * Open an index or create it with the given capacity.
+	 *
+	 * @param file     The index file
+	 * @param capacity The initial number of slots which must be a power of 2
+	 */
+	BlockIndex(Path file, long capacity) throws IOException {
+		this.file = file;
+
+		if (!Files.exists(file)) {
+			create(file, capacity).close();
+		}
+		open();
+	}
+
+	private static BlockIndex create(Path file, long capacity) throws IOException {
+		if (Long.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Capacity must be a power of 2");
+		}
+
+		try (var channel = FileChannel.open(file, READ, WRITE, CREATE, TRUNCATE_EXISTING)) {
+			var header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(1).putLong(capacity).putLong(0).putInt(0)
+					.clear();
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+
+			// Extend the file without writing the slots
+			channel.write(ByteBuffer.allocate(1), HEADER_SIZE + capacity * SLOT_SIZE - 1);
+			channel.force(true);
+		}
+		return new BlockIndex(file, capacity);
+	}
+
+	private void open() throws IOException {
+		channel = FileChannel.open(file, READ, WRITE);
+
+		var header = ByteBuffer.allocate(HEADER_SIZE);
+		while (header.hasRemaining()) {
+			if (channel.read(header, header.position()) < 0) {
+				throw new IOException("Truncated block index: " + file);
+			}
+		}
+		if (header.getInt(0) != MAGIC) {
+			throw new IOException("Invalid block index: " + file);
+		}
+
+		capacity = header.getLong(8);
+		count = header.getLong(16);
+		if (Long.bitCount(capacity) != 1 || channel.size() < HEADER_SIZE + capacity * SLOT_SIZE) {
+			throw new IOException("Invalid block index: " + file);
+		}
+
+		long size = HEADER_SIZE + capacity * SLOT_SIZE;
+		regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+		for (int i = 0; i < regions.length; i++) {
+			regions[i] = channel.map(MapMode.READ_WRITE, i * REGION_SIZE, Math.min(REGION_SIZE, size - i * REGION_SIZE));
+		}
+	}
+
+	/**
+	 * Find a block.
+	 *
+	 * @param hash The block's hash
+	 * @return The block's location or {@code null}
+	 */
+	Entry get(byte[] hash) {
+		long slot = find(hash);
+		if (slot < 0) {
+			return null;
+		}
+
+		var region = region(slot);
+		int position = position(slot);
+		return new Entry(region.getInt(position + 32), region.getLong(position + 40), region.getInt(position + 36),
+				region.getInt(position + 48));
+	}
+
+	/**
+	 * Insert or replace a block's location.
+	 *
+	 * @param hash  The block's hash
+	 * @param entry The block's location
+	 */
+	void put(byte[] hash, Entry entry) throws IOException {
+		if (entry.segment() <= 0) {
+			throw new IllegalArgumentException();
+		}
+
+		long slot = find(hash);
+		if (slot < 0) {
+			if (count + 1 > capacity * MAX_LOAD) {
+				grow();
+				slot = find(hash);
+			}
+
+			slot = -slot - 1;
+			count++;
+			setCount(count);
+		}
+
+		var region = region(slot);
+		int position = position(slot);
+		region.put(position, hash, 0, HashTree.HASH_SIZE);
+		region.putInt(position + 36, entry.length());
+		region.putLong(position + 40, entry.offset());
+		region.putInt(position + 48, entry.refcount());
+
+		// The segment marks the slot as occupied, so write it last
+		region.putInt(position + 32, entry.segment());
+	}
+
+	/**
+	 * Remove a block's location. Since collisions are resolved by linear probing,
+	 * the following entries of the cluster are shifted back into the gap unless
+	 * that would move them before their home slot.
+	 *
+	 * @param hash The block's hash
+	 */
+	void remove(byte[] hash) {
+		long empty = find(hash);
+		if (empty < 0) {
+			return;
+		}
+
+		long slot = empty;
+		while (true) {
+			slot = (slot + 1) & (capacity - 1);
+			var region = region(slot);
+			int position = position(slot);
+			if (region.getInt(position + 32) == 0) {
+				break;
+			}
+
+			long home = region.getLong(position) & (capacity - 1);
+			boolean reachable = empty <= slot ? (empty < home && home <= slot) : (empty < home || home <= slot);
+			if (!reachable) {
+				var gap = region(empty);
+				gap.put(position(empty), region.slice(position, SLOT_SIZE), 0, SLOT_SIZE);
+				empty = slot;
+			}
+		}
+
+		region(empty).putInt(position(empty) + 32, 0);
+		count--;
+		setCount(count);
+	}
+
+	/**
+	 * @return The slot containing the hash or {@code -(slot + 1)} where slot is
+	 *         the empty slot that the hash would be inserted into
+	 */
+	private long find(byte[] hash) {
+		long slot = ByteBuffer.wrap(hash).getLong() & (capacity - 1);
+		while (true) {
+			var region = region(slot);
+			int position = position(slot);
+			if (region.getInt(position + 32) == 0) {
+				return -slot - 1;
+			}
+			if (region.slice(position, HashTree.HASH_SIZE).equals(ByteBuffer.wrap(hash))) {
+				return slot;
+			}
+			slot = (slot + 1) & (capacity - 1);
+		}
+	}
+
+	private MappedByteBuffer region(long slot) {
+		return regions[(int) ((HEADER_SIZE + slot * SLOT_SIZE) / REGION_SIZE)];
+	}
+
+	private static int position(long slot) {
+		return (int) ((HEADER_SIZE + slot * SLOT_SIZE) % REGION_SIZE);
+	}
+
+	/**
+	 * Double the capacity by copying every entry into a new index.
+	 */
+	private void grow() throws IOException {
+		var resized = file.resolveSibling(file.getFileName() + ".tmp");
+		try (var index = create(resized, capacity * 2)) {
+			for (long slot = 0; slot < capacity; slot++) {
+				var region = region(slot);
+				int position = position(slot);
+				if (region.getInt(position + 32) != 0) {
+					var hash = new byte[HashTree.HASH_SIZE];
+					region.get(position, hash);
+					index.put(hash, new Entry(region.getInt(position + 32), region.getLong(position + 40),
+							region.getInt(position + 36), region.getInt(position + 48)));
+				}
+			}
+			index.setDirty(dirty());
+			index.force();
+		}
+
+		channel.close();
+		Files.move(resized, file, ATOMIC_MOVE, REPLACE_EXISTING);
+		open();
+	}
+
+	/**
+	 * @return The number of blocks in the index
+	 */
+	long count() {
+		return count;
+	}
+
+	private void setCount(long count) {
+		regions[0].putLong(16, count);
+	}
+
+	/**
+	 * @return Whether the index was modified after it was last forced
+	 */
+	boolean dirty() {
+		return regions[0].getInt(24) != 0;
+	}
+
+	/**
+	 * Mark the index as modified. The mark is written immediately so that it's
+	 * on disk before any of the modifications.
+	 */
+	void setDirty(boolean dirty) {
+		regions[0].putInt(24, dirty ? 1 : 0);
+		regions[0].force(0, HEADER_SIZE);
+	}
+
+	/**
+	 * Write all modifications to disk.
+	 */
+	void force() {
+		for (var region : regions) {
+			region.force();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		force();
+		channel.close();
+	}
+}
@@ -0,0 +1,525 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.snapshot.server.java.dedup;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.integration.qcow2.Qcow2;
+import org.s7s.plugin.snapshot.hash.HashTree;
+import org.s7s.plugin.snapshot.hash.HashTreeDiff;
+
+/**
+ * A content-addressed store of blocks that's shared by all snapshots. Blocks
+ * are keyed by their {@link HashTree} hash, reference counted, and appended to
+ * large segment files. A {@link BlockIndex} maps each hash to its location.
+ *
+ * <p>
+ * A snapshot is stored as a manifest, which is the {@link HashTree} of its
+ * blocks, so identical blocks from any number of snapshots are stored once.
+ *
+ * <p>
+ * Each block in a segment is preceded by its hash and length so that the index
+ * can be rebuilt from the segments if the store wasn't closed cleanly.
+ * Reference counts are durable once {@link #flush()} returns.
+ *
+ * <p>
+ * Segments are never modified in place. Space that's used by blocks without
+ * references is reclaimed by {@link #compact(double)}, which moves the live
+ * blocks out of a segment before truncating it.
+ */
+public class BlockStore implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(BlockStore.class);
+
+	/**
+	 * The default size at which a new segment is started.
+	 */
+	private static final long SEGMENT_SIZE = 1L << 30;
+
+	private static final int RECORD_HEADER_SIZE = HashTree.HASH_SIZE + Integer.BYTES;
+
+	private static final long INITIAL_CAPACITY = 1 << 16;
+
+	private final Path directory;
+
+	/**
+	 * The size at which a new segment is started.
+	 */
+	private final long segmentSize;
+
+	private final List<FileChannel> segments = new ArrayList<>();
+
+	private BlockIndex index;
+
+	/**
+	 * The end of the last segment.
+	 */
+	private long position;
+
+	/**
+	 * Whether the store was modified since the last flush.
+	 */
+	private boolean dirty;
+
+	private long bytes;
+
+	/**
+	 * Open a store or create it if the directory is empty.
+	 *
+	 * @param directory The store's directory
+	 */
+	public BlockStore(Path directory) throws IOException {
+		this(directory, SEGMENT_SIZE);
+	}
+
+	BlockStore(Path directory, long segmentSize) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		Files.createDirectories(directory);
+
+		try (Stream<Path> files = Files.list(directory)) {
+			for (var file : files.filter(file -> file.getFileName().toString().endsWith(".segment")).sorted()
+					.toList()) {
+				if (!file.getFileName().toString().equals(segmentName(segments.size() + 1))) {
+					throw new IOException("Missing segment before: " + file);
+				}
+				segments.add(FileChannel.open(file, READ, WRITE));
+			}
+		}
+
+		index = new BlockIndex(directory.resolve("index"), INITIAL_CAPACITY);
+		if (index.dirty()) {
+			log.debug("Rebuilding block index: {}", directory);
+			rebuild();
+		}
+
+		if (segments.isEmpty()) {
+			segments.add(FileChannel.open(directory.resolve(segmentName(1)), READ, WRITE, CREATE));
+		}
+		position = segments.get(segments.size() - 1).size();
+		for (var segment : segments) {
+			bytes += segment.size();
+		}
+	}
+
+	private static String segmentName(int segment) {
+		return String.format("%08d.segment", segment);
+	}
+
+	/**
+	 * Add a reference to a block, storing it if it's not already present.
+	 *
+	 * @param block The block's data
+	 * @return The block's hash
+	 */
+	public byte[] put(ByteBuffer block) throws IOException {
+		var hash = HashTree.hashBlock(block.duplicate());
+
+		synchronized (this) {
+			if (reference(hash)) {
+				return hash;
+			}
+			markDirty();
+			append(hash, block, 1);
+		}
+		return hash;
+	}
+
+	/**
+	 * Write a record at the end of the last segment and point the index at it.
+	 */
+	private void append(byte[] hash, ByteBuffer block, int refcount) throws IOException {
+		if (position + RECORD_HEADER_SIZE + block.remaining() > segmentSize && position != 0) {
+			segments.add(FileChannel.open(directory.resolve(segmentName(segments.size() + 1)), READ, WRITE, CREATE));
+			position = 0;
+		}
+
+		var segment = segments.get(segments.size() - 1);
+		int length = block.remaining();
+		long offset = position + RECORD_HEADER_SIZE;
+
+		writeFully(segment, ByteBuffer.allocate(RECORD_HEADER_SIZE).put(hash).putInt(length).flip(), position);
+		writeFully(segment, block.duplicate(), offset);
+		position = offset + length;
+		bytes += RECORD_HEADER_SIZE + length;
+
+		index.put(hash, new BlockIndex.Entry(segments.size(), offset, length, refcount));
+	}
+
+	/**
+	 * Add a reference to a block if it's present.
+	 *
+	 * @param hash The block's hash
+	 * @return Whether the block is present
+	 */
+	public synchronized boolean reference(byte[] hash) throws IOException {
+		var entry = index.get(hash);
+		if (entry == null) {
+			return false;
+		}
+
+		markDirty();
+		index.put(hash, new BlockIndex.Entry(entry.segment(), entry.offset(), entry.length(), entry.refcount() + 1));
+		return true;
+	}
+
+	/**
+	 * Remove a reference to a block. Blocks without references remain readable
+	 * until their segment is reclaimed by {@link #compact(double)}.
+	 *
+	 * @param hash The block's hash
+	 */
+	public synchronized void release(byte[] hash) throws IOException {
+		var entry = index.get(hash);
+		if (entry == null || entry.refcount() == 0) {
+			throw new IllegalStateException("Block is not referenced");
+		}
+
+		markDirty();
+		index.put(hash, new BlockIndex.Entry(entry.segment(), entry.offset(), entry.length(), entry.refcount() - 1));
+	}
+
+	/**
+	 * @param hash The block's hash
+	 * @return Whether the block is present
+	 */
+	public synchronized boolean contains(byte[] hash) {
+		return index.get(hash) != null;
+	}
+
+	/**
+	 * @param hash The block's hash
+	 * @return The number of references to the block
+	 */
+	public synchronized int refcount(byte[] hash) {
+		var entry = index.get(hash);
+		return entry == null ? 0 : entry.refcount();
+	}
+
+	/**
+	 * Read a block.
+	 *
+	 * @param hash The block's hash
+	 * @param data The destination buffer
+	 * @return The block's length or -1 if it's not present
+	 */
+	public synchronized int read(byte[] hash, ByteBuffer data) throws IOException {
+		// The segment can't be compacted while it's being read
+		var entry = index.get(hash);
+		if (entry == null) {
+			return -1;
+		}
+		var segment = segments.get(entry.segment() - 1);
+
+		if (data.remaining() < entry.length()) {
+			throw new IllegalArgumentException("The buffer is too small for the block");
+		}
+
+		var record = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		readFully(segment, record, entry.offset() - RECORD_HEADER_SIZE);
+		if (!Arrays.equals(record.array(), 0, HashTree.HASH_SIZE, hash, 0, HashTree.HASH_SIZE)) {
+			throw new IOException("Block index is inconsistent with segment: " + entry.segment());
+		}
+
+		int start = data.position();
+		readFully(segment, data.slice(start, entry.length()), entry.offset());
+		data.position(start + entry.length());
+		return entry.length();
+	}
+
+	/**
+	 * @return The number of distinct blocks
+	 */
+	public synchronized long blocks() {
+		return index.count();
+	}
+
+	/**
+	 * @return The total size of all segments in bytes
+	 */
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+	/**
+	 * Add the blocks of an image to the store.
+	 *
+	 * @param image           The image
+	 * @param blockSize       The block size in bytes
+	 * @param reductionFactor The reduction factor of the manifest
+	 * @return The image's manifest
+	 */
+	public HashTree store(Qcow2 image, int blockSize, int reductionFactor) throws IOException {
+		var manifest = HashTree.build(image::read, image.size(), blockSize, reductionFactor,
+				Runtime.getRuntime().availableProcessors());
+
+		var buffer = ByteBuffer.allocate(blockSize);
+		for (long block = 0; block < manifest.count(manifest.depth() - 1); block++) {
+			if (!reference(manifest.hashes(manifest.depth() - 1, block, 1))) {
+				long offset = block * blockSize;
+				image.read(buffer.clear().limit((int) Math.min(blockSize, image.size() - offset)), offset);
+				put(buffer.flip());
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * Write the blocks of a manifest to an image.
+	 *
+	 * @param manifest The manifest
+	 * @param image    The image which must be at least as large as the manifest
+	 */
+	public void restore(HashTree manifest, Qcow2 image) throws IOException {
+		var buffer = ByteBuffer.allocate(manifest.blockSize());
+		for (long block = 0; block < manifest.count(manifest.depth() - 1); block++) {
+			if (read(manifest.hashes(manifest.depth() - 1, block, 1), buffer.clear()) < 0) {
+				throw new IOException("Missing block: " + block);
+			}
+			image.write(buffer.flip(), block * manifest.blockSize());
+		}
+	}
+
+	/**
+	 * Remove the references of a manifest.
+	 *
+	 * @param manifest The manifest
+	 */
+	public void release(HashTree manifest) throws IOException {
+		for (long block = 0; block < manifest.count(manifest.depth() - 1); block++) {
+			release(manifest.hashes(manifest.depth() - 1, block, 1));
+		}
+	}
+
+	/**
+	 * Obtain blocks that an agent is uploading from the store instead. Each block
+	 * that's found is copied into the image.
+	 *
+	 * @param image     The image that receives the upload
+	 * @param blockSize The block size in bytes
+	 * @return A handler for {@link HashTreeDiff}
+	 */
+	public HashTreeDiff.Available into(Qcow2 image, int blockSize) {
+		return (block, hashes, i) -> {
+			var hash = Arrays.copyOfRange(hashes, i * HashTree.HASH_SIZE, (i + 1) * HashTree.HASH_SIZE);
+			var buffer = ByteBuffer.allocate(blockSize);
+			try {
+				if (read(hash, buffer) < 0) {
+					return false;
+				}
+				image.write(buffer.flip(), block * blockSize);
+				return true;
+			} catch (IOException e) {
+				log.debug("Failed to read block from store", e);
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Reclaim the space of blocks without references. The live blocks of each
+	 * full segment that's mostly unreferenced are appended to the last segment
+	 * and the segment is truncated. Truncated segments are kept so that the
+	 * segment numbers in the index remain valid.
+	 *
+	 * @param threshold The fraction of unreferenced bytes at which a segment is
+	 *                  compacted
+	 * @return The number of bytes that were reclaimed
+	 */
+	public synchronized long compact(double threshold) throws IOException {
+		long reclaimed = 0;
+
+		// The last segment is still being appended to
+		for (int i = 0; i < segments.size() - 1; i++) {
+			var segment = segments.get(i);
+			long size = segment.size();
+			if (size == 0 || live(i + 1) > size * (1 - threshold)) {
+				continue;
+			}
+
+			log.debug("Compacting segment {} of {} bytes", i + 1, size);
+			markDirty();
+
+			var header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+			long offset = 0;
+			while (offset + RECORD_HEADER_SIZE <= size) {
+				readFully(segment, header.clear(), offset);
+				var hash = Arrays.copyOf(header.array(), HashTree.HASH_SIZE);
+				int length = header.getInt(HashTree.HASH_SIZE);
+
+				var entry = index.get(hash);
+				if (entry != null && entry.segment() == i + 1 && entry.offset() == offset + RECORD_HEADER_SIZE) {
+					if (entry.refcount() == 0) {
+						index.remove(hash);
+					} else {
+						var data = ByteBuffer.allocate(length);
+						readFully(segment, data, offset + RECORD_HEADER_SIZE);
+						append(hash, data.flip(), entry.refcount());
+					}
+				}
+				offset += RECORD_HEADER_SIZE + length;
+			}
+
+			// The copies must be durable before the originals are gone. If the store
+			// isn't closed cleanly before the next flush, the index is rebuilt from
+			// the copies.
+			for (var s : segments) {
+				s.force(false);
+			}
+			index.force();
+
+			segment.truncate(0);
+			bytes -= size;
+			reclaimed += size;
+		}
+
+		flush();
+		return reclaimed;
+	}
+
+	/**
+	 * @return The number of bytes of referenced records in a segment
+	 */
+	private long live(int number) throws IOException {
+		var segment = segments.get(number - 1);
+		var header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+		long live = 0;
+		long offset = 0;
+		while (offset + RECORD_HEADER_SIZE <= segment.size()) {
+			readFully(segment, header.clear(), offset);
+			int length = header.getInt(HashTree.HASH_SIZE);
+
+			var entry = index.get(Arrays.copyOf(header.array(), HashTree.HASH_SIZE));
+			if (entry != null && entry.segment() == number && entry.offset() == offset + RECORD_HEADER_SIZE
+					&& entry.refcount() > 0) {
+				live += RECORD_HEADER_SIZE + length;
+			}
+			offset += RECORD_HEADER_SIZE + length;
+		}
+		return live;
+	}
+
+	private void markDirty() {
+		if (!dirty) {
+			index.setDirty(true);
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Make all blocks and references durable.
+	 */
+	public synchronized void flush() throws IOException {
+		if (dirty) {
+			for (var segment : segments) {
+				segment.force(false);
+			}
+			index.force();
+			index.setDirty(false);
+			dirty = false;
+		}
+	}
+
+	/**
+	 * Replace the index with one that's built from the segments. References of
+	 * blocks that are in both indexes are kept.
+	 */
+	private void rebuild() throws IOException {
+		var rebuilt = directory.resolve("index.rebuild");
+		Files.deleteIfExists(rebuilt);
+
+		try (var index = new BlockIndex(rebuilt, INITIAL_CAPACITY)) {
+			var header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+			for (int i = 0; i < segments.size(); i++) {
+				var segment = segments.get(i);
+
+				long offset = 0;
+				while (offset + RECORD_HEADER_SIZE <= segment.size()) {
+					readFully(segment, header.clear(), offset);
+					var hash = Arrays.copyOf(header.array(), HashTree.HASH_SIZE);
+					int length = header.getInt(HashTree.HASH_SIZE);
+
+					// Stop at a record that wasn't completely written
+					if (length < 0 || offset + RECORD_HEADER_SIZE + length > segment.size()) {
+						break;
+					}
+					var data = ByteBuffer.allocate(length);
+					readFully(segment, data, offset + RECORD_HEADER_SIZE);
+					if (!Arrays.equals(hash, HashTree.hashBlock(data.flip()))) {
+						break;
+					}
+
+					if (index.get(hash) == null) {
+						var previous = this.index.get(hash);
+						index.put(hash, new BlockIndex.Entry(i + 1, offset + RECORD_HEADER_SIZE, length,
+								previous == null ? 0 : previous.refcount()));
+					}
+					offset += RECORD_HEADER_SIZE + length;
+				}
+
+				if (offset != segment.size()) {
+					log.debug("Truncating segment {} from {} to {} bytes", i + 1, segment.size(), offset);
+					segment.truncate(offset);
+				}
+			}
+			index.force();
+		}
+
+		this.index.close();
+		Files.move(rebuilt, directory.resolve("index"), ATOMIC_MOVE, REPLACE_EXISTING);
+		this.index = new BlockIndex(directory.resolve("index"), INITIAL_CAPACITY);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, offset);
+			if (read < 0) {
+				throw new IOException("Unexpected end of segment");
+			}
+			offset += read;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+		while (buffer.hasRemaining()) {
+			offset += channel.write(buffer, offset);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			flush();
+			index.close();
+		} finally {
+			for (var segment : segments) {
+				segment.close();
+			}
+		}
+	}
+}
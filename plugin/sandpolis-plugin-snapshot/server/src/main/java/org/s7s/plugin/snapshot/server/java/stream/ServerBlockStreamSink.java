@@ -8,22 +8,214 @@
 //============================================================================//
 package org.s7s.plugin.snapshot.server.java.stream;
 
-import org.s7s.core.integration.qcow2.Qcow2;
+import static org.s7s.core.instance.stream.StreamStore.StreamStore;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import org.s7s.core.instance.stream.StreamSink;
 import org.s7s.plugin.snapshot.Messages.EV_SnapshotDataBlock;
+import org.s7s.plugin.snapshot.Messages.EV_SnapshotHashBlock;
+import org.s7s.plugin.snapshot.hash.HashTree;
+import org.s7s.plugin.snapshot.hash.HashTreeDiff;
+import org.s7s.plugin.snapshot.server.java.SnapshotStore.PendingSnapshot;
 
+/**
+ * Receives the blocks of a new snapshot. The new snapshot is an overlay of the
+ * partition's latest snapshot, so its hash tree describes the latest snapshot
+ * and the agent only sends the blocks that changed since then. Changed blocks
+ * that the block store already has are copied from there instead.
+ *
+ * <p>
+ * The snapshot becomes a restore point once the agent completes the stream
+ * after every hash was compared. Otherwise it's discarded.
+ */
 public class ServerBlockStreamSink extends StreamSink<EV_SnapshotDataBlock> {
 
-	private Qcow2 container;
+	private static final Logger log = LoggerFactory.getLogger(ServerBlockStreamSink.class);
+
+	/**
+	 * The maximum number of seconds to wait for the comparison to finish after the
+	 * last block.
+	 */
+	private static final long COMPARE_TIMEOUT = 10;
+
+	private final PendingSnapshot snapshot;
+
+	private final int streamId;
+
+	private final ServerHashStreamSink hashStream;
+
+	private final ServerHashStreamSource hashReplies;
+
+	private final int hashStreamId;
+
+	private final int replyStreamId;
+
+	private final int blockSize;
+
+	private final int reductionFactor;
+
+	private final HashTreeDiff.Available available;
+
+	private volatile HashTreeDiff diff;
+
+	private volatile boolean failed;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		var thread = new Thread(r, "snapshot-upload");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * @param snapshot        The new snapshot
+	 * @param streamId        The ID of the stream that carries the blocks
+	 * @param hashStream      Receives the agent's hashes
+	 * @param hashStreamId    The ID of the stream that carries the agent's hashes
+	 * @param hashReplies     Sends the snapshot's hashes to the agent
+	 * @param replyStreamId   The ID of the stream that carries the snapshot's
+	 *                        hashes
+	 * @param blockSize       The block size in bytes
+	 * @param reductionFactor The number of hashes covered by each node
+	 * @param available       Obtains changed blocks without requesting them from
+	 *                        the agent
+	 */
+	public ServerBlockStreamSink(PendingSnapshot snapshot, int streamId, ServerHashStreamSink hashStream,
+			int hashStreamId, ServerHashStreamSource hashReplies, int replyStreamId, int blockSize,
+			int reductionFactor, HashTreeDiff.Available available) {
+		this.snapshot = snapshot;
+		this.streamId = streamId;
+		this.hashStream = hashStream;
+		this.hashStreamId = hashStreamId;
+		this.hashReplies = hashReplies;
+		this.replyStreamId = replyStreamId;
+		this.blockSize = blockSize;
+		this.reductionFactor = reductionFactor;
+		this.available = available;
+	}
+
+	@Override
+	public int getStreamID() {
+		return streamId;
+	}
+
+	/**
+	 * Begin comparing the agent's hashes with the snapshot.
+	 */
+	public void start() {
+		executor.execute(() -> {
+			try {
+				var image = snapshot.image;
+				var tree = HashTree.build(image::read, image.size(), blockSize, reductionFactor,
+						Runtime.getRuntime().availableProcessors());
+
+				diff = new HashTreeDiff(tree, false, hashReplies, block -> {
+				}, available);
+
+				diff.start();
+				while (!diff.complete().isDone()) {
+					EV_SnapshotHashBlock ev = hashStream.take();
+
+					var hashes = new byte[ev.getHashCount() * HashTree.HASH_SIZE];
+					for (int i = 0; i < ev.getHashCount(); i++) {
+						ev.getHash(i).copyTo(hashes, i * HashTree.HASH_SIZE);
+					}
+					diff.receive(ev.getLevel(), ev.getOffset(), hashes, ev.getAcks());
+				}
+			} catch (InterruptedException e) {
+				// The stream was closed
+			} catch (Exception e) {
+				log.error("Failed to compare snapshot with agent", e);
+				onError(e);
+			}
+		});
+	}
 
 	@Override
 	public void onNext(EV_SnapshotDataBlock item) {
-		container.write(item.getData().asReadOnlyByteBuffer());
+		long offset = item.getOffset();
+		var data = item.getData();
+
+		// Only accept whole blocks within the snapshot
+		if (offset < 0 || offset % blockSize != 0 || offset >= snapshot.image.size()
+				|| data.size() != Math.min(blockSize, snapshot.image.size() - offset)) {
+			log.debug("Rejecting invalid block at offset: {}", offset);
+			onError(new IOException("Invalid block"));
+			return;
+		}
+
+		try {
+			// Blocks may arrive in any order, so always write at the block's offset
+			snapshot.image.write(data.asReadOnlyByteBuffer(), offset);
+		} catch (IOException e) {
+			log.error("Failed to write block at offset: {}", offset, e);
+			onError(e);
+		}
+	}
+
+	@Override
+	public void onComplete() {
+		if (!failed && compared()) {
+			try {
+				var image = snapshot.complete();
+				log.debug("Received {} hashes for snapshot: {}", diff.received(), image);
+			} catch (IOException e) {
+				log.error("Failed to complete snapshot", e);
+			}
+		} else {
+			log.debug("Discarding incomplete snapshot");
+		}
+		stop();
+	}
+
+	/**
+	 * Wait for the last hashes to be compared. They were sent before the agent
+	 * completed the stream, but they're compared on another thread.
+	 */
+	private boolean compared() {
+		var diff = this.diff;
+		if (diff == null) {
+			return false;
+		}
+
+		try {
+			diff.complete().get(COMPARE_TIMEOUT, TimeUnit.SECONDS);
+			return true;
+		} catch (InterruptedException | ExecutionException | TimeoutException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		failed = true;
+		stop();
 	}
 
 	@Override
 	public void close() {
 		super.close();
-		// container.close();
+		executor.shutdownNow();
+
+		// Discard the snapshot unless it was completed
+		try {
+			snapshot.close();
+		} catch (IOException e) {
+			log.error("Failed to discard snapshot", e);
+		}
+	}
+
+	private void stop() {
+		StreamStore.stop(hashStreamId);
+		StreamStore.stop(replyStreamId);
+		StreamStore.stop(streamId);
 	}
 }
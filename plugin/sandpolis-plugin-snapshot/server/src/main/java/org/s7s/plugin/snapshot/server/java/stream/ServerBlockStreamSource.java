@@ -8,71 +8,135 @@
 //============================================================================//
 package org.s7s.plugin.snapshot.server.java.stream;
 
+import static org.s7s.core.instance.stream.StreamStore.StreamStore;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.s7s.core.integration.qcow2.Qcow2;
-import com.google.common.hash.Hashing;
 import com.google.protobuf.ByteString;
 import org.s7s.core.instance.stream.StreamSource;
 import org.s7s.plugin.snapshot.Messages.EV_SnapshotDataBlock;
 import org.s7s.plugin.snapshot.Messages.EV_SnapshotHashBlock;
+import org.s7s.plugin.snapshot.hash.HashTree;
+import org.s7s.plugin.snapshot.hash.HashTreeDiff;
 
+/**
+ * Sends the blocks of a snapshot that differ from the agent's disk. The agent's
+ * hash tree is compared with the snapshot's from the root down, so only the
+ * subtrees that changed are exchanged.
+ */
 public class ServerBlockStreamSource extends StreamSource<EV_SnapshotDataBlock> {
 
-	private ServerHashStreamSink hashStream;
+	private static final Logger log = LoggerFactory.getLogger(ServerBlockStreamSource.class);
+
+	private final ServerHashStreamSink hashStream;
+
+	private final ServerHashStreamSource hashReplies;
+
+	private final Qcow2 container;
+
+	private final int hashStreamId;
+
+	private final int replyStreamId;
 
-	private Qcow2 container;
+	private final int blockSize;
 
-	private ExecutorService executor;
+	private final int reductionFactor;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		var thread = new Thread(r, "snapshot-blocks");
+		thread.setDaemon(true);
+		return thread;
+	});
 
 	private void startTask() {
 		executor.execute(() -> {
-			var buffer = ByteBuffer.allocateDirect(65536);
-
-			while (!Thread.interrupted()) {
-				EV_SnapshotHashBlock ev = null;
-				try {
-					ev = hashStream.queue.take();
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-				var offset = ev.getOffset();
+			try {
+				var tree = HashTree.build(container::read, container.size(), blockSize, reductionFactor,
+						Runtime.getRuntime().availableProcessors());
 
-				for (ByteString hash : ev.getHashList()) {
+				var buffer = ByteBuffer.allocate(blockSize);
+				var diff = new HashTreeDiff(tree, true, hashReplies, block -> {
+					long offset = block * blockSize;
 					try {
-						container.read(buffer, offset);
+						container.read(buffer.clear().limit((int) Math.min(blockSize, container.size() - offset)),
+								offset);
 					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
+						throw new RuntimeException(e);
 					}
+					submit(EV_SnapshotDataBlock.newBuilder().setOffset(offset)
+							.setData(ByteString.copyFrom(buffer.flip())).build());
+				});
+
+				diff.start();
+				while (!diff.complete().isDone()) {
+					EV_SnapshotHashBlock ev = hashStream.take();
 
-					// Hash the block and submit if different
-					if (!Arrays.equals(Hashing.sha512().hashBytes(buffer).asBytes(), hash.toByteArray())) {
-						submit(EV_SnapshotDataBlock.newBuilder().setOffset(offset).setData(ByteString.copyFrom(buffer))
-								.build());
+					var hashes = new byte[ev.getHashCount() * HashTree.HASH_SIZE];
+					for (int i = 0; i < ev.getHashCount(); i++) {
+						ev.getHash(i).copyTo(hashes, i * HashTree.HASH_SIZE);
 					}
-					offset += buffer.capacity();
+					diff.receive(ev.getLevel(), ev.getOffset(), hashes, ev.getAcks());
 				}
+
+				// Every differing block has been sent
+				close();
+			} catch (InterruptedException e) {
+				// The stream was closed
+			} catch (Exception e) {
+				log.error("Failed to compare snapshot with agent", e);
+				closeExceptionally(e);
 			}
 		});
 	}
 
-	public ServerBlockStreamSource(ServerHashStreamSink hashStream) {
+	/**
+	 * @param container       The snapshot
+	 * @param hashStream      Receives the agent's hashes
+	 * @param hashStreamId    The ID of the stream that carries the agent's hashes
+	 * @param hashReplies     Sends the snapshot's hashes to the agent
+	 * @param replyStreamId   The ID of the stream that carries the snapshot's
+	 *                        hashes
+	 * @param blockSize       The block size in bytes
+	 * @param reductionFactor The number of hashes covered by each node
+	 */
+	public ServerBlockStreamSource(Qcow2 container, ServerHashStreamSink hashStream, int hashStreamId,
+			ServerHashStreamSource hashReplies, int replyStreamId, int blockSize, int reductionFactor) {
+		this.container = container;
 		this.hashStream = hashStream;
+		this.hashStreamId = hashStreamId;
+		this.hashReplies = hashReplies;
+		this.replyStreamId = replyStreamId;
+		this.blockSize = blockSize;
+		this.reductionFactor = reductionFactor;
 	}
 
 	@Override
 	public void start() {
-		// TODO configure concurrency
 		startTask();
 	}
 
 	@Override
 	public void close() {
-		executor.shutdown();
+		executor.shutdownNow();
+		super.close();
+
+		// This method may be called by the StreamStore itself
+		CompletableFuture.runAsync(() -> {
+			StreamStore.stop(hashStreamId);
+			StreamStore.stop(replyStreamId);
+		});
+		try {
+			container.close();
+		} catch (IOException e) {
+			log.error("Failed to close snapshot", e);
+		}
 	}
 }
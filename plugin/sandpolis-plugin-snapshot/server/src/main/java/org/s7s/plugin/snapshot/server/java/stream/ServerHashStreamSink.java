@@ -8,18 +8,53 @@
 //============================================================================//
 package org.s7s.plugin.snapshot.server.java.stream;
 
+import java.io.EOFException;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.s7s.core.instance.stream.StreamSink;
 import org.s7s.plugin.snapshot.Messages.EV_SnapshotHashBlock;
 
+/**
+ * Queues the agent's hashes until they're compared. The sink is registered
+ * before the server's tree is ready, so hashes may arrive early.
+ */
 public class ServerHashStreamSink extends StreamSink<EV_SnapshotHashBlock> {
 
-	BlockingQueue<EV_SnapshotHashBlock> queue;
+	/**
+	 * Marks the end of the stream.
+	 */
+	private static final EV_SnapshotHashBlock END = EV_SnapshotHashBlock.newBuilder().setLevel(-1).build();
+
+	private final BlockingQueue<EV_SnapshotHashBlock> queue = new LinkedBlockingQueue<>();
 
 	@Override
 	public void onNext(EV_SnapshotHashBlock item) {
 		queue.add(item);
 	}
 
+	@Override
+	public void onComplete() {
+		queue.add(END);
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		queue.add(END);
+	}
+
+	/**
+	 * Wait for the agent's next hashes.
+	 *
+	 * @return The hashes
+	 * @throws EOFException If the agent closed the stream
+	 */
+	EV_SnapshotHashBlock take() throws InterruptedException, EOFException {
+		var item = queue.take();
+		if (item == END) {
+			queue.add(END);
+			throw new EOFException("The agent closed the hash stream");
+		}
+		return item;
+	}
 }
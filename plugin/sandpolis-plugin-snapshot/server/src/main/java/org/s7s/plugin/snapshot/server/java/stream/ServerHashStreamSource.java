@@ -8,24 +8,33 @@
 //============================================================================//
 package org.s7s.plugin.snapshot.server.java.stream;
 
-import org.s7s.core.integration.qcow2.Qcow2;
+import com.google.protobuf.ByteString;
 import org.s7s.core.instance.stream.StreamSource;
 import org.s7s.plugin.snapshot.Messages.EV_SnapshotHashBlock;
+import org.s7s.plugin.snapshot.hash.HashTree;
+import org.s7s.plugin.snapshot.hash.HashTreeDiff;
 
-public class ServerHashStreamSource extends StreamSource<EV_SnapshotHashBlock> {
+/**
+ * Sends the server's hashes to the agent during a hash tree comparison.
+ */
+public class ServerHashStreamSource extends StreamSource<EV_SnapshotHashBlock> implements HashTreeDiff.Peer {
 
-	private Qcow2 container;
+	@Override
+	public void send(int level, long index, byte[] hashes, int acks) {
+		var ev = EV_SnapshotHashBlock.newBuilder().setLevel(level).setOffset(index).setAcks(acks);
+		for (int i = 0; i < hashes.length; i += HashTree.HASH_SIZE) {
+			ev.addHash(ByteString.copyFrom(hashes, i, HashTree.HASH_SIZE));
+		}
+		submit(ev.build());
+	}
 
 	@Override
 	public void start() {
-		// TODO Auto-generated method stub
-
 	}
 
 	@Override
 	public void close() {
-		// TODO Auto-generated method stub
-
+		super.close();
 	}
 
 }
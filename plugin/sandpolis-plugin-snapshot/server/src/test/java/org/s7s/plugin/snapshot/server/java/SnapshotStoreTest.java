@@ -0,0 +1,134 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.snapshot.server.java;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import org.s7s.core.integration.qcow2.Qcow2;
+import org.s7s.plugin.snapshot.hash.HashTree;
+
+class SnapshotStoreTest {
+
+	private static final String AGENT = "a2b0c8b4-9b4a-4f2e-8f5a-5c1f2d9e7a10";
+
+	private static final String PARTITION = "0f6e3d1c-2b7a-4c8e-9d5f-1a2b3c4d5e6f";
+
+	private static SnapshotStore store(Path temp) {
+		var store = new SnapshotStore();
+		store.init(config -> {
+			config.directory = temp.resolve("snapshots");
+			config.blockDirectory = temp.resolve("blocks");
+			config.maxChainDepth = 3;
+			config.clusterSize = 4096;
+			config.executor = Runnable::run;
+		});
+		return store;
+	}
+
+	private static byte[] random(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	private static Path snapshot(SnapshotStore store, byte[] data) throws Exception {
+		return snapshot(store, AGENT, data);
+	}
+
+	private static Path snapshot(SnapshotStore store, String agent, byte[] data) throws Exception {
+		try (var pending = store.create(agent, PARTITION, data.length)) {
+			pending.image.write(ByteBuffer.wrap(data), 0);
+			return pending.complete();
+		}
+	}
+
+	private static byte[] read(Path image, int size) throws Exception {
+		try (var qcow2 = new Qcow2(image, true)) {
+			var buffer = ByteBuffer.allocate(size);
+			qcow2.read(buffer, 0);
+			return buffer.array();
+		}
+	}
+
+	@Test
+	@DisplayName("Check that a resized partition's old images are retired once the chain is too long")
+	void merge_1(@TempDir Path temp) throws Exception {
+		var store = store(temp);
+
+		int small = 1024 * 1024;
+		int large = 2 * 1024 * 1024;
+		snapshot(store, random(small, 1));
+		snapshot(store, random(small, 2));
+		snapshot(store, random(large, 3));
+		snapshot(store, random(large, 4));
+		var latest = snapshot(store, random(large, 5));
+
+		// Both of the small images were dropped from the chain and archived
+		var snapshots = store.list(AGENT, PARTITION);
+		assertEquals(3, snapshots.size());
+		assertEquals(latest, snapshots.get(2));
+		assertArrayEquals(random(large, 5), read(latest, large));
+
+		var archived = store.archived(AGENT, PARTITION);
+		assertEquals(2, archived.size());
+		store.restore(archived.get(1), temp.resolve("restored.qcow2"));
+		assertArrayEquals(random(small, 2), read(temp.resolve("restored.qcow2"), small));
+
+		// No merge was left unfinished
+		try (var files = Files.list(latest.getParent())) {
+			assertFalse(files.anyMatch(file -> file.toString().endsWith(".merging")));
+		}
+
+		// Later snapshots keep the chain at its maximum depth
+		snapshot(store, random(large, 6));
+		assertEquals(3, store.list(AGENT, PARTITION).size());
+	}
+
+	@Test
+	@DisplayName("Check that the first snapshots of identical agents share their blocks")
+	void dedup_1(@TempDir Path temp) throws Exception {
+		var store = store(temp);
+		var blocks = store.blocks().orElseThrow();
+
+		int size = 1024 * 1024;
+		var data = random(size, 1);
+		snapshot(store, data);
+		assertEquals(size / SnapshotStore.BLOCK_SIZE, blocks.blocks());
+
+		// The second agent's upload finds every block in the store
+		try (var pending = store.create("5d0c8e2a-7f3b-4a61-9e2d-3c4b5a6f7e80", PARTITION, size)) {
+			var available = blocks.into(pending.image, SnapshotStore.BLOCK_SIZE);
+			for (int block = 0; block < size / SnapshotStore.BLOCK_SIZE; block++) {
+				var hash = HashTree.hashBlock(
+						ByteBuffer.wrap(data, block * SnapshotStore.BLOCK_SIZE, SnapshotStore.BLOCK_SIZE));
+				assertTrue(available.obtain(block, hash, 0));
+			}
+			var completed = pending.complete();
+			assertArrayEquals(data, read(completed, size));
+		}
+
+		// Identical blocks are only stored once
+		assertEquals(size / SnapshotStore.BLOCK_SIZE, blocks.blocks());
+
+		// Snapshots that are still in their chain aren't archived
+		assertTrue(store.archived(AGENT, PARTITION).isEmpty());
+	}
+}
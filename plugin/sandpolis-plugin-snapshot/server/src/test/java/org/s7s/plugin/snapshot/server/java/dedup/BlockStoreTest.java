@@ -0,0 +1,228 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.snapshot.server.java.dedup;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import org.s7s.core.integration.qcow2.Qcow2;
+import org.s7s.plugin.snapshot.hash.HashTree;
+
+class BlockStoreTest {
+
+	private static final int BLOCK_SIZE = 4096;
+
+	private static byte[] random(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	@Test
+	@DisplayName("Check that identical blocks are stored once and reference counted")
+	void put_1(@TempDir Path temp) throws Exception {
+		try (var store = new BlockStore(temp)) {
+			var first = store.put(ByteBuffer.wrap(random(BLOCK_SIZE, 0)));
+			var second = store.put(ByteBuffer.wrap(random(BLOCK_SIZE, 0)));
+			var other = store.put(ByteBuffer.wrap(random(100, 1)));
+
+			assertArrayEquals(first, second);
+			assertEquals(2, store.blocks());
+			assertEquals(2, store.refcount(first));
+
+			store.release(first);
+			assertEquals(1, store.refcount(first));
+
+			var buffer = ByteBuffer.allocate(BLOCK_SIZE);
+			assertEquals(100, store.read(other, buffer));
+			assertArrayEquals(random(100, 1), Arrays.copyOf(buffer.array(), 100));
+			assertEquals(-1, store.read(new byte[HashTree.HASH_SIZE], buffer.clear()));
+		}
+	}
+
+	@Test
+	@DisplayName("Check that the index survives reopening and grows when needed")
+	void index_1(@TempDir Path temp) throws Exception {
+		var hashes = new ArrayList<byte[]>();
+		try (var store = new BlockStore(temp)) {
+			for (int i = 0; i < 100000; i++) {
+				hashes.add(store.put(ByteBuffer.allocate(8).putLong(0, i)));
+			}
+		}
+
+		try (var store = new BlockStore(temp)) {
+			assertEquals(100000, store.blocks());
+
+			var buffer = ByteBuffer.allocate(8);
+			for (int i = 0; i < hashes.size(); i++) {
+				assertEquals(8, store.read(hashes.get(i), buffer.clear()));
+				assertEquals(i, buffer.getLong(0));
+				assertEquals(1, store.refcount(hashes.get(i)));
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Check that the index is rebuilt after an unclean shutdown")
+	void index_2(@TempDir Path temp) throws Exception {
+		var store = new BlockStore(temp);
+		var flushed = store.put(ByteBuffer.wrap(random(BLOCK_SIZE, 0)));
+		store.put(ByteBuffer.wrap(random(BLOCK_SIZE, 0)));
+		store.flush();
+		var unflushed = store.put(ByteBuffer.wrap(random(BLOCK_SIZE, 1)));
+
+		// Simulate a torn write at the end of the segment
+		Files.write(temp.resolve("00000001.segment"), new byte[100], APPEND);
+
+		try (var reopened = new BlockStore(temp)) {
+			assertEquals(2, reopened.blocks());
+			assertEquals(2, reopened.refcount(flushed));
+			assertTrue(reopened.contains(unflushed));
+
+			var buffer = ByteBuffer.allocate(BLOCK_SIZE);
+			reopened.read(unflushed, buffer);
+			assertArrayEquals(random(BLOCK_SIZE, 1), buffer.array());
+
+			// New blocks are appended after the last complete record
+			var appended = reopened.put(ByteBuffer.wrap(random(BLOCK_SIZE, 2)));
+			reopened.read(appended, buffer.clear());
+			assertArrayEquals(random(BLOCK_SIZE, 2), buffer.array());
+		}
+	}
+
+	@Test
+	@DisplayName("Check that removing colliding entries keeps the others reachable")
+	void index_3(@TempDir Path temp) throws Exception {
+		try (var index = new BlockIndex(temp.resolve("index"), 16)) {
+			var hashes = new ArrayList<byte[]>();
+
+			// Every hash has one of two home slots, the second of which wraps around
+			for (int i = 0; i < 10; i++) {
+				var hash = random(HashTree.HASH_SIZE, i);
+				ByteBuffer.wrap(hash).putLong(0, i % 2 == 0 ? 14 : 15);
+				hashes.add(hash);
+				index.put(hash, new BlockIndex.Entry(1, i, i, i));
+			}
+
+			for (int i = 0; i < 10; i += 3) {
+				index.remove(hashes.get(i));
+			}
+
+			assertEquals(6, index.count());
+			for (int i = 0; i < 10; i++) {
+				if (i % 3 == 0) {
+					assertNull(index.get(hashes.get(i)));
+				} else {
+					assertEquals(new BlockIndex.Entry(1, i, i, i), index.get(hashes.get(i)));
+				}
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Check that unreferenced blocks are reclaimed")
+	void compact_1(@TempDir Path temp) throws Exception {
+		var hashes = new ArrayList<byte[]>();
+		try (var store = new BlockStore(temp, 16 * BLOCK_SIZE)) {
+			for (int i = 0; i < 64; i++) {
+				hashes.add(store.put(ByteBuffer.wrap(random(BLOCK_SIZE, i))));
+			}
+
+			// Keep every fourth block of the full segments. Each segment holds 15
+			// blocks and the last one isn't compacted.
+			for (int i = 0; i < 60; i++) {
+				if (i % 4 != 0) {
+					store.release(hashes.get(i));
+				}
+			}
+
+			long before = store.bytes();
+			assertTrue(store.compact(0.5) > 0);
+			assertTrue(store.bytes() < before / 2, "Kept " + store.bytes() + " of " + before + " bytes");
+			assertEquals(19, store.blocks());
+		}
+
+		try (var store = new BlockStore(temp, 16 * BLOCK_SIZE)) {
+			var buffer = ByteBuffer.allocate(BLOCK_SIZE);
+			for (int i = 0; i < hashes.size(); i++) {
+				if (i % 4 == 0 || i >= 60) {
+					assertEquals(BLOCK_SIZE, store.read(hashes.get(i), buffer.clear()));
+					assertArrayEquals(random(BLOCK_SIZE, i), buffer.array());
+					assertEquals(1, store.refcount(hashes.get(i)));
+				} else {
+					assertFalse(store.contains(hashes.get(i)));
+				}
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Check that similar images share storage")
+	void store_1(@TempDir Path temp) throws Exception {
+		int size = 4 * 1024 * 1024;
+		var base = random(size, 0);
+
+		try (var store = new BlockStore(temp.resolve("blocks"))) {
+			var manifests = new ArrayList<HashTree>();
+			var images = new ArrayList<byte[]>();
+
+			// Every machine differs from the others in a few places
+			for (int machine = 0; machine < 10; machine++) {
+				var data = base.clone();
+				var random = new Random(machine);
+				for (int i = 0; i < 20; i++) {
+					int offset = random.nextInt(size - 1000);
+					System.arraycopy(random(1000, random.nextLong()), 0, data, offset, 1000);
+				}
+				images.add(data);
+
+				try (var image = new Qcow2(temp.resolve(machine + ".qcow2"), size, 65536)) {
+					image.write(ByteBuffer.wrap(data), 0);
+					manifests.add(store.store(image, BLOCK_SIZE, 64));
+				}
+			}
+
+			long raw = 10L * size;
+			assertTrue(store.bytes() < raw / 5, "Stored " + store.bytes() + " bytes");
+
+			// Each change touches at most two blocks
+			assertTrue(store.blocks() <= size / BLOCK_SIZE + 10 * 20 * 2, "Stored " + store.blocks() + " blocks");
+
+			for (int machine = 0; machine < 10; machine++) {
+				try (var image = new Qcow2(temp.resolve("restore" + machine + ".qcow2"), size, 65536)) {
+					store.restore(manifests.get(machine), image);
+
+					var buffer = ByteBuffer.allocate(size);
+					image.read(buffer, 0);
+					assertArrayEquals(images.get(machine), buffer.array());
+				}
+			}
+
+			for (var manifest : manifests) {
+				store.release(manifest);
+			}
+			assertFalse(store.refcount(manifests.get(0).hashes(manifests.get(0).depth() - 1, 0, 1)) > 0);
+		}
+	}
+}
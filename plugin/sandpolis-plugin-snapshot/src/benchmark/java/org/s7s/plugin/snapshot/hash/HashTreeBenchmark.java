@@ -0,0 +1,52 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.snapshot.hash;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class HashTreeBenchmark {
+
+	private static final int BLOCK_SIZE = 65536;
+
+	@Test
+	@DisplayName("Measure hashing throughput")
+	void build_1() throws IOException {
+		byte[] data = new byte[64 * 1024 * 1024];
+		new Random(0).nextBytes(data);
+		long size = 16L * data.length;
+
+		// Reads of the same data repeated
+		HashTree.BlockSource source = (buffer, offset) -> {
+			if (offset >= size) {
+				return -1;
+			}
+			int start = (int) (offset % data.length);
+			int length = Math.min(buffer.remaining(), data.length - start);
+			buffer.put(data, start, length);
+			return length;
+		};
+
+		for (int parallelism : new int[] { 1, Runtime.getRuntime().availableProcessors() }) {
+			long start = System.nanoTime();
+			var tree = HashTree.build(source, size, BLOCK_SIZE, 64, parallelism);
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+			assertEquals(size / BLOCK_SIZE, tree.count(tree.depth() - 1));
+			System.out.printf("Hashed %d MiB with %d threads in %d ms (%d MiB/s)%n", size >> 20, parallelism, elapsed,
+					(size >> 20) * 1000 / Math.max(1, elapsed));
+		}
+	}
+}
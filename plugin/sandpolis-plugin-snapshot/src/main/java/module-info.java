@@ -8,6 +8,7 @@
 //============================================================================//
 module org.s7s.plugin.snapshot {
 	exports org.s7s.plugin.snapshot;
+	exports org.s7s.plugin.snapshot.hash;
 
 	requires com.google.protobuf;
 	requires org.s7s.core.instance;
@@ -0,0 +1,376 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.snapshot.hash;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A Merkle tree over the fixed-size blocks of a disk. Level 0 contains the root
+ * hash and the last level contains the hash of each block. Every other hash
+ * covers up to {@link #reductionFactor()} consecutive hashes of the level below
+ * it.
+ *
+ * <p>
+ * Two trees with the same shape can be compared from the root down so that
+ * only the subtrees that differ are visited (see {@link HashTreeDiff}). A tree
+ * can be kept up to date as blocks are written with
+ * {@link #update(long, byte[])}.
+ */
+public final class HashTree {
+
+	/**
+	 * The size of each hash in bytes.
+	 */
+	public static final int HASH_SIZE = 32;
+
+	/**
+	 * The amount of data read at once while building a tree.
+	 */
+	private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Prefixes that keep block hashes distinct from the hashes of other nodes.
+	 */
+	private static final byte LEAF = 0;
+
+	private static final byte NODE = 1;
+
+	private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	});
+
+	/**
+	 * A source of block data such as a {@link java.nio.channels.FileChannel}.
+	 */
+	@FunctionalInterface
+	public interface BlockSource {
+
+		/**
+		 * Read data at an offset.
+		 *
+		 * @param data   The destination buffer
+		 * @param offset The source offset
+		 * @return The number of bytes read or -1 at the end of the source
+		 */
+		int read(ByteBuffer data, long offset) throws IOException;
+	}
+
+	private final long size;
+
+	private final int blockSize;
+
+	private final int reductionFactor;
+
+	/**
+	 * The concatenated hashes of each level.
+	 */
+	private final byte[][] levels;
+
+	private HashTree(long size, int blockSize, int reductionFactor, byte[][] levels) {
+		this.size = size;
+		this.blockSize = blockSize;
+		this.reductionFactor = reductionFactor;
+		this.levels = levels;
+	}
+
+	/**
+	 * Build a tree by reading a source sequentially in large chunks and hashing
+	 * the blocks on a pool of threads.
+	 *
+	 * @param source          The data to hash
+	 * @param size            The size of the data in bytes
+	 * @param blockSize       The block size in bytes
+	 * @param reductionFactor The number of hashes covered by each node
+	 * @param parallelism     The number of hashing threads
+	 * @return A new tree
+	 */
+	public static HashTree build(BlockSource source, long size, int blockSize, int reductionFactor,
+			int parallelism) throws IOException {
+		if (size < 0 || blockSize <= 0 || reductionFactor < 2 || parallelism <= 0) {
+			throw new IllegalArgumentException();
+		}
+
+		long blocks = Math.max(1, (size + blockSize - 1) / blockSize);
+		if (blocks * HASH_SIZE > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Too many blocks: " + blocks);
+		}
+
+		byte[] leaves = new byte[(int) (blocks * HASH_SIZE)];
+
+		// Chunks hold whole blocks
+		int chunkSize = (int) Math.min(Math.max(blockSize, CHUNK_SIZE / blockSize * blockSize),
+				Math.max(blockSize, size));
+
+		// Two buffers per thread let the next chunk be read while others are hashed
+		BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(2 * parallelism);
+		for (int i = 0; i < 2 * parallelism; i++) {
+			buffers.add(ByteBuffer.allocateDirect(chunkSize));
+		}
+
+		var failure = new AtomicReference<Exception>();
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+			var thread = new Thread(r, "snapshot-hasher");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		try {
+			for (long offset = 0; offset < size && failure.get() == null; offset += chunkSize) {
+				var buffer = buffers.take();
+				buffer.clear().limit((int) Math.min(chunkSize, size - offset));
+
+				while (buffer.hasRemaining()) {
+					if (source.read(buffer, offset + buffer.position()) < 0) {
+						// Treat a truncated source as zeros
+						while (buffer.hasRemaining()) {
+							buffer.put((byte) 0);
+						}
+					}
+				}
+				buffer.flip();
+
+				long first = offset / blockSize;
+				executor.execute(() -> {
+					try {
+						for (int i = 0; buffer.hasRemaining(); i++) {
+							var block = buffer.slice(buffer.position(), Math.min(blockSize, buffer.remaining()));
+							hash(LEAF, block, leaves, (int) ((first + i) * HASH_SIZE));
+							buffer.position(buffer.position() + block.limit());
+						}
+					} catch (Exception e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						buffers.add(buffer);
+					}
+				});
+			}
+
+			if (size == 0) {
+				hash(LEAF, ByteBuffer.allocate(0), leaves, 0);
+			}
+
+			// Wait for every buffer to be returned
+			for (int i = 0; i < 2 * parallelism; i++) {
+				buffers.take();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if (failure.get() != null) {
+			throw new IOException("Failed to hash block", failure.get());
+		}
+
+		return new HashTree(size, blockSize, reductionFactor, reduce(leaves, reductionFactor));
+	}
+
+	/**
+	 * Compute the levels above the given leaves.
+	 *
+	 * @return Every level ordered from the root
+	 */
+	private static byte[][] reduce(byte[] leaves, int reductionFactor) {
+		int depth = 1;
+		for (long count = leaves.length / HASH_SIZE; count > 1; count = (count + reductionFactor - 1)
+				/ reductionFactor) {
+			depth++;
+		}
+
+		var levels = new byte[depth][];
+		levels[depth - 1] = leaves;
+		for (int level = depth - 2; level >= 0; level--) {
+			byte[] below = levels[level + 1];
+			int count = (below.length / HASH_SIZE + reductionFactor - 1) / reductionFactor;
+
+			levels[level] = new byte[count * HASH_SIZE];
+			for (int i = 0; i < count; i++) {
+				int start = i * reductionFactor * HASH_SIZE;
+				var children = ByteBuffer.wrap(below, start, Math.min(reductionFactor * HASH_SIZE, below.length - start));
+				hash(NODE, children, levels[level], i * HASH_SIZE);
+			}
+		}
+		return levels;
+	}
+
+	/**
+	 * Compute the hash that a tree stores for a block.
+	 *
+	 * @param block The block's data
+	 * @return The block's hash
+	 */
+	public static byte[] hashBlock(ByteBuffer block) {
+		var hash = new byte[HASH_SIZE];
+		hash(LEAF, block, hash, 0);
+		return hash;
+	}
+
+	private static void hash(byte type, ByteBuffer data, byte[] output, int offset) {
+		var digest = DIGEST.get();
+		digest.update(type);
+		digest.update(data);
+		try {
+			digest.digest(output, offset, HASH_SIZE);
+		} catch (DigestException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read a tree in the format written by {@link #write(OutputStream)}.
+	 */
+	public static HashTree read(InputStream in) throws IOException {
+		var data = new DataInputStream(in);
+
+		long size = data.readLong();
+		long blocks = data.readInt() & 0xffffffffL;
+		int blockSize = data.readInt();
+		int reductionFactor = data.readUnsignedShort();
+
+		if (size < 0 || blockSize <= 0 || reductionFactor < 2
+				|| blocks != Math.max(1, (size + blockSize - 1) / blockSize)
+				|| blocks * HASH_SIZE > Integer.MAX_VALUE - 8) {
+			throw new IOException("Invalid hash tree header");
+		}
+
+		byte[][] levels = reduce(new byte[(int) (blocks * HASH_SIZE)], reductionFactor);
+		for (byte[] level : levels) {
+			data.readFully(level);
+		}
+		return new HashTree(size, blockSize, reductionFactor, levels);
+	}
+
+	/**
+	 * Write the tree's metadata followed by each level from the root down.
+	 */
+	public synchronized void write(OutputStream out) throws IOException {
+		var data = new DataOutputStream(out);
+
+		data.writeLong(size);
+		data.writeInt((int) count(depth() - 1));
+		data.writeInt(blockSize);
+		data.writeShort(reductionFactor);
+		for (byte[] level : levels) {
+			data.write(level);
+		}
+		data.flush();
+	}
+
+	/**
+	 * @return The size of the hashed data in bytes
+	 */
+	public long size() {
+		return size;
+	}
+
+	public int blockSize() {
+		return blockSize;
+	}
+
+	public int reductionFactor() {
+		return reductionFactor;
+	}
+
+	/**
+	 * @return The number of levels including the root and block levels
+	 */
+	public int depth() {
+		return levels.length;
+	}
+
+	/**
+	 * @param level The level where 0 is the root
+	 * @return The number of hashes in the level
+	 */
+	public long count(int level) {
+		return levels[level].length / HASH_SIZE;
+	}
+
+	public synchronized byte[] root() {
+		return levels[0].clone();
+	}
+
+	/**
+	 * Copy a range of consecutive hashes.
+	 *
+	 * @param level The level where 0 is the root
+	 * @param index The index of the first hash within its level
+	 * @param count The number of hashes
+	 * @return The concatenated hashes
+	 */
+	public synchronized byte[] hashes(int level, long index, int count) {
+		return Arrays.copyOfRange(levels[level], (int) (index * HASH_SIZE), (int) ((index + count) * HASH_SIZE));
+	}
+
+	/**
+	 * Check whether a remote hash matches the local one.
+	 *
+	 * @param level  The level where 0 is the root
+	 * @param index  The index of the local hash within its level
+	 * @param remote An array of concatenated hashes
+	 * @param i      The index of the remote hash in the array
+	 */
+	synchronized boolean matches(int level, long index, byte[] remote, int i) {
+		int offset = (int) (index * HASH_SIZE);
+		return Arrays.equals(levels[level], offset, offset + HASH_SIZE, remote, i * HASH_SIZE,
+				(i + 1) * HASH_SIZE);
+	}
+
+	/**
+	 * Replace the hash of a block and recompute the hashes above it.
+	 *
+	 * @param block The block's index
+	 * @param hash  The block's new hash from {@link #hashBlock(ByteBuffer)}
+	 */
+	public synchronized void update(long block, byte[] hash) {
+		if (hash.length != HASH_SIZE) {
+			throw new IllegalArgumentException();
+		}
+
+		System.arraycopy(hash, 0, levels[levels.length - 1], (int) (block * HASH_SIZE), HASH_SIZE);
+
+		long index = block;
+		for (int level = levels.length - 2; level >= 0; level--) {
+			index /= reductionFactor;
+
+			byte[] below = levels[level + 1];
+			int start = (int) (index * reductionFactor * HASH_SIZE);
+			var children = ByteBuffer.wrap(below, start, Math.min(reductionFactor * HASH_SIZE, below.length - start));
+			hash(NODE, children, levels[level], (int) (index * HASH_SIZE));
+		}
+	}
+
+	/**
+	 * Check whether another tree covers the same blocks in the same way.
+	 */
+	public boolean isCompatible(HashTree other) {
+		return size == other.size && blockSize == other.blockSize && reductionFactor == other.reductionFactor;
+	}
+}
@@ -0,0 +1,271 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.snapshot.hash;
+
+import static org.s7s.plugin.snapshot.hash.HashTree.HASH_SIZE;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * Finds the blocks that differ between a local {@link HashTree} and a remote
+ * one by exchanging hashes from the root down. Each side answers a range of
+ * remote hashes with its own children of the hashes that don't match, so an
+ * unchanged disk costs a single hash and a changed block costs about
+ * {@code reductionFactor} hashes per level.
+ *
+ * <p>
+ * Every range of hashes is acknowledged once it has been compared, either by
+ * the last reply it caused or by an empty message. Since replies are sent
+ * before the acknowledgement, a side whose messages have all been
+ * acknowledged knows that the comparison is complete.
+ *
+ * <p>
+ * Only the side that has the data (the source) reports differing blocks. When
+ * the other side finds a differing block, it returns its own block hash so
+ * that the source finds it too, unless it can obtain the block elsewhere (for
+ * example from a store of blocks that other snapshots already uploaded).
+ */
+public final class HashTreeDiff {
+
+	/**
+	 * The maximum number of hashes sent at once.
+	 */
+	private static final int MAX_HASHES = 4096;
+
+	/**
+	 * Sends hashes to the remote side.
+	 */
+	@FunctionalInterface
+	public interface Peer {
+
+		/**
+		 * @param level  The level where 0 is the root
+		 * @param index  The index of the first hash within its level
+		 * @param hashes The concatenated hashes which may be empty
+		 * @param acks   The number of remote messages that this message
+		 *               acknowledges
+		 */
+		void send(int level, long index, byte[] hashes, int acks);
+	}
+
+	private final HashTree tree;
+
+	private final boolean source;
+
+	private final Peer peer;
+
+	private final LongConsumer blocks;
+
+	private final Available available;
+
+	private final AtomicLong sent = new AtomicLong();
+
+	private final AtomicLong received = new AtomicLong();
+
+	/**
+	 * The number of messages with hashes that haven't been acknowledged.
+	 */
+	private long unacknowledged;
+
+	/**
+	 * A message that's held back so it can carry an acknowledgement.
+	 */
+	private int heldLevel;
+
+	private long heldIndex;
+
+	private int heldCount;
+
+	private final CompletableFuture<Void> complete = new CompletableFuture<>();
+
+	/**
+	 * Provides differing blocks to the side that isn't the source without
+	 * requesting them from the source.
+	 */
+	@FunctionalInterface
+	public interface Available {
+
+		/**
+		 * @param block The index of a differing block
+		 * @param hash  The concatenated remote hashes
+		 * @param i     The index of the block's remote hash in the array
+		 * @return Whether the block was obtained locally
+		 */
+		boolean obtain(long block, byte[] hash, int i);
+	}
+
+	/**
+	 * @param tree   The local tree
+	 * @param source Whether this side has the data that the other side needs
+	 * @param peer   Sends hashes to the remote side
+	 * @param blocks Receives the index of each differing block if this side is
+	 *               the source
+	 */
+	public HashTreeDiff(HashTree tree, boolean source, Peer peer, LongConsumer blocks) {
+		this(tree, source, peer, blocks, (block, hash, i) -> false);
+	}
+
+	/**
+	 * @param tree      The local tree
+	 * @param source    Whether this side has the data that the other side needs
+	 * @param peer      Sends hashes to the remote side
+	 * @param blocks    Receives the index of each differing block if this side is
+	 *                  the source
+	 * @param available Obtains differing blocks locally if this side isn't the
+	 *                  source
+	 */
+	public HashTreeDiff(HashTree tree, boolean source, Peer peer, LongConsumer blocks, Available available) {
+		this.tree = tree;
+		this.source = source;
+		this.peer = peer;
+		this.blocks = blocks;
+		this.available = available;
+	}
+
+	/**
+	 * Begin the comparison. Both sides call this and one of them sends the root
+	 * hash, chosen so that block hashes are always sent by the source. This lets
+	 * the other side decide whether it needs each differing block.
+	 */
+	public synchronized void start() {
+		// The sides take turns sending levels starting from the root
+		if (source == ((tree.depth() - 1) % 2 == 0)) {
+			send(0, 0, 1);
+			flush(0);
+		}
+	}
+
+	/**
+	 * Compare a range of remote hashes with the local tree.
+	 *
+	 * @param level  The level where 0 is the root
+	 * @param index  The index of the first hash within its level
+	 * @param hashes The concatenated hashes
+	 * @param acks   The number of local messages that the remote side has
+	 *               compared
+	 */
+	public synchronized void receive(int level, long index, byte[] hashes, int acks) {
+		unacknowledged -= acks;
+		if (hashes.length != 0) {
+			compare(level, index, hashes);
+
+			// The last reply acknowledges the range
+			flush(1);
+		}
+
+		if (unacknowledged == 0) {
+			complete.complete(null);
+		}
+	}
+
+	private void compare(int level, long index, byte[] hashes) {
+		if (level < 0 || level >= tree.depth() || hashes.length % HASH_SIZE != 0 || index < 0
+				|| index + hashes.length / HASH_SIZE > tree.count(level)) {
+			throw new IllegalArgumentException("Hashes don't fit the tree at level: " + level);
+		}
+
+		int count = hashes.length / HASH_SIZE;
+		received.addAndGet(count);
+
+		boolean leaf = level == tree.depth() - 1;
+
+		// The current run of consecutive hashes to send
+		int runLevel = leaf ? level : level + 1;
+		long runStart = 0;
+		int runLength = 0;
+
+		for (int i = 0; i < count; i++) {
+			if (tree.matches(level, index + i, hashes, i)) {
+				continue;
+			}
+
+			if (leaf && source) {
+				blocks.accept(index + i);
+				continue;
+			}
+			if (leaf && available.obtain(index + i, hashes, i)) {
+				continue;
+			}
+
+			long first;
+			int length;
+			if (leaf) {
+				first = index + i;
+				length = 1;
+			} else {
+				first = (index + i) * tree.reductionFactor();
+				length = (int) Math.min(tree.reductionFactor(), tree.count(level + 1) - first);
+			}
+
+			if (runLength != 0 && (runStart + runLength != first || runLength + length > MAX_HASHES)) {
+				send(runLevel, runStart, runLength);
+				runLength = 0;
+			}
+			if (runLength == 0) {
+				runStart = first;
+			}
+			runLength += length;
+		}
+
+		if (runLength != 0) {
+			send(runLevel, runStart, runLength);
+		}
+	}
+
+	private void send(int level, long index, int count) {
+		sent.addAndGet(count);
+
+		// Hold the message back in case it's the last one
+		if (heldCount != 0) {
+			peer.send(heldLevel, heldIndex, tree.hashes(heldLevel, heldIndex, heldCount), 0);
+		}
+		unacknowledged++;
+		heldLevel = level;
+		heldIndex = index;
+		heldCount = count;
+	}
+
+	/**
+	 * Send the held message or an empty message if there isn't one.
+	 *
+	 * @param acks The number of remote messages to acknowledge
+	 */
+	private void flush(int acks) {
+		if (heldCount != 0) {
+			peer.send(heldLevel, heldIndex, tree.hashes(heldLevel, heldIndex, heldCount), acks);
+			heldCount = 0;
+		} else if (acks != 0) {
+			peer.send(0, 0, new byte[0], acks);
+		}
+	}
+
+	/**
+	 * @return A future that completes once both sides have compared every hash
+	 *         they received
+	 */
+	public CompletableFuture<Void> complete() {
+		return complete;
+	}
+
+	/**
+	 * @return The number of hashes sent to the remote side
+	 */
+	public long sent() {
+		return sent.get();
+	}
+
+	/**
+	 * @return The number of hashes received from the remote side
+	 */
+	public long received() {
+		return received.get();
+	}
+}
@@ -0,0 +1,244 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.snapshot.hash;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class HashTreeTest {
+
+	private static final int BLOCK_SIZE = 65536;
+
+	/**
+	 * A source that reads from a byte array.
+	 */
+	private static HashTree.BlockSource source(byte[] data) {
+		return (buffer, offset) -> {
+			if (offset >= data.length) {
+				return -1;
+			}
+			int length = (int) Math.min(buffer.remaining(), data.length - offset);
+			buffer.put(data, (int) offset, length);
+			return length;
+		};
+	}
+
+	/**
+	 * Delivers messages in order without recursion like a pair of streams.
+	 */
+	private static final class Loopback {
+
+		final Deque<Runnable> queue = new ArrayDeque<>();
+
+		final HashTreeDiff[] peers = new HashTreeDiff[2];
+
+		HashTreeDiff.Peer to(int side) {
+			return (level, index, hashes, acks) -> queue.add(() -> peers[side].receive(level, index, hashes, acks));
+		}
+
+		void run() {
+			peers[0].start();
+			peers[1].start();
+			while (!queue.isEmpty()) {
+				queue.poll().run();
+			}
+
+			// Both sides know that the comparison is over
+			assertTrue(peers[0].complete().isDone());
+			assertTrue(peers[1].complete().isDone());
+		}
+	}
+
+	private static byte[] random(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	/**
+	 * Compare two trees with a synchronous loopback where the first tree is the
+	 * source.
+	 *
+	 * @return The differing blocks
+	 */
+	private static TreeSet<Long> diff(HashTree source, HashTree target, List<HashTreeDiff> sides) {
+		var blocks = new TreeSet<Long>();
+		var loopback = new Loopback();
+		loopback.peers[0] = new HashTreeDiff(source, true, loopback.to(1), blocks::add);
+		loopback.peers[1] = new HashTreeDiff(target, false, loopback.to(0), block -> {
+		});
+		sides.add(loopback.peers[0]);
+		sides.add(loopback.peers[1]);
+
+		loopback.run();
+		return blocks;
+	}
+
+	@Test
+	@DisplayName("Check that the tree's shape follows the reduction factor")
+	void build_1() throws IOException {
+		byte[] data = random(100 * 1000 + 1, 0);
+		var tree = HashTree.build(source(data), data.length, 1000, 10, 3);
+
+		assertEquals(4, tree.depth());
+		assertEquals(1, tree.count(0));
+		assertEquals(2, tree.count(1));
+		assertEquals(11, tree.count(2));
+		assertEquals(101, tree.count(3));
+
+		// The result doesn't depend on the number of threads
+		assertArrayEquals(tree.root(), HashTree.build(source(data), data.length, 1000, 10, 1).root());
+	}
+
+	@Test
+	@DisplayName("Check that a tree can be written and read")
+	void write_1() throws IOException {
+		byte[] data = random(37 * BLOCK_SIZE + 5, 0);
+		var tree = HashTree.build(source(data), data.length, BLOCK_SIZE, 4, 2);
+
+		var out = new ByteArrayOutputStream();
+		tree.write(out);
+		var read = HashTree.read(new ByteArrayInputStream(out.toByteArray()));
+
+		assertTrue(tree.isCompatible(read));
+		for (int level = 0; level < tree.depth(); level++) {
+			assertArrayEquals(tree.hashes(level, 0, (int) tree.count(level)),
+					read.hashes(level, 0, (int) read.count(level)));
+		}
+	}
+
+	@Test
+	@DisplayName("Check that updating blocks matches rebuilding the tree")
+	void update_1() throws IOException {
+		byte[] data = random(37 * BLOCK_SIZE + 5, 0);
+		var tree = HashTree.build(source(data), data.length, BLOCK_SIZE, 4, 1);
+
+		for (int block : new int[] { 0, 17, 36, 37 }) {
+			int offset = block * BLOCK_SIZE;
+			data[offset]++;
+			tree.update(block, HashTree.hashBlock(ByteBuffer.wrap(data, offset, Math.min(BLOCK_SIZE, data.length - offset))));
+		}
+
+		var rebuilt = HashTree.build(source(data), data.length, BLOCK_SIZE, 4, 1);
+		for (int level = 0; level < tree.depth(); level++) {
+			assertArrayEquals(rebuilt.hashes(level, 0, (int) rebuilt.count(level)),
+					tree.hashes(level, 0, (int) tree.count(level)));
+		}
+	}
+
+	@Test
+	@DisplayName("Check that identical trees exchange only the root hash")
+	void diff_1() throws IOException {
+		byte[] data = random(1000 * BLOCK_SIZE, 0);
+		var tree = HashTree.build(source(data), data.length, BLOCK_SIZE, 16, 2);
+
+		var sides = new ArrayList<HashTreeDiff>();
+		assertTrue(diff(tree, tree, sides).isEmpty());
+		assertEquals(1, sides.get(0).sent() + sides.get(1).sent());
+	}
+
+	@Test
+	@DisplayName("Check that exactly the changed blocks are found")
+	void diff_2() throws IOException {
+		byte[] data = random(1000 * BLOCK_SIZE + 123, 0);
+		byte[] changed = data.clone();
+
+		var random = new Random(1);
+		var expected = new TreeSet<Long>();
+		for (int i = 0; i < 20; i++) {
+			int offset = random.nextInt(changed.length);
+			changed[offset]++;
+			expected.add((long) offset / BLOCK_SIZE);
+		}
+
+		var source = HashTree.build(source(changed), changed.length, BLOCK_SIZE, 16, 2);
+		var target = HashTree.build(source(data), data.length, BLOCK_SIZE, 16, 2);
+
+		var sides = new ArrayList<HashTreeDiff>();
+		assertEquals(expected, diff(source, target, sides));
+
+		// Far fewer hashes than blocks cross the wire
+		long hashes = sides.get(0).sent() + sides.get(1).sent();
+		assertTrue(hashes < 20 * 16 * 2 * source.depth(), "Sent " + hashes + " hashes");
+	}
+
+	@Test
+	@DisplayName("Check that blocks available elsewhere aren't requested")
+	void diff_3() throws IOException {
+		byte[] data = random(100 * BLOCK_SIZE, 0);
+		byte[] changed = data.clone();
+		changed[5 * BLOCK_SIZE]++;
+		changed[50 * BLOCK_SIZE]++;
+
+		var known = HashTree.hashBlock(ByteBuffer.wrap(changed, 50 * BLOCK_SIZE, BLOCK_SIZE));
+
+		var source = HashTree.build(source(changed), changed.length, BLOCK_SIZE, 8, 1);
+		var target = HashTree.build(source(data), data.length, BLOCK_SIZE, 8, 1);
+
+		var requested = new TreeSet<Long>();
+		var obtained = new TreeSet<Long>();
+		var loopback = new Loopback();
+		loopback.peers[0] = new HashTreeDiff(source, true, loopback.to(1), requested::add);
+		loopback.peers[1] = new HashTreeDiff(target, false, loopback.to(0), block -> {
+		}, (block, hashes, i) -> {
+			if (Arrays.equals(known, 0, known.length, hashes, i * HashTree.HASH_SIZE, (i + 1) * HashTree.HASH_SIZE)) {
+				obtained.add(block);
+				return true;
+			}
+			return false;
+		});
+		loopback.run();
+
+		assertEquals(new TreeSet<>(List.of(5L)), requested);
+		assertEquals(new TreeSet<>(List.of(50L)), obtained);
+	}
+
+	@Test
+	@DisplayName("Check that parallel hashing builds the same tree")
+	void build_2() throws IOException {
+		byte[] data = random(2 * 1024 * 1024, 0);
+		long size = 4L * data.length;
+
+		// Reads of the same data repeated
+		HashTree.BlockSource source = (buffer, offset) -> {
+			if (offset >= size) {
+				return -1;
+			}
+			int start = (int) (offset % data.length);
+			int length = Math.min(buffer.remaining(), data.length - start);
+			buffer.put(data, start, length);
+			return length;
+		};
+
+		var sequential = HashTree.build(source, size, BLOCK_SIZE, 64, 1);
+		assertEquals(size / BLOCK_SIZE, sequential.count(sequential.depth() - 1));
+
+		for (int parallelism : new int[] { 2, 4, 7 }) {
+			var tree = HashTree.build(source, size, BLOCK_SIZE, 64, parallelism);
+			assertEquals(sequential.depth(), tree.depth());
+			assertArrayEquals(sequential.root(), tree.root());
+		}
+	}
+}
@@ -17,6 +17,16 @@ dependencies {
 	testRuntimeOnly("org.junit.jupiter:junit-jupiter-engine:5.+")
 
 	compileOnly(project.getParent()!!)
+
+	if (project.getParent() == null) {
+		implementation("org.s7s.core.ext.apt:+")
+		implementation("org.s7s.core.ext.pacman:+")
+		testImplementation("org.s7s:core.instance:+")
+	} else {
+		implementation(project(":core:ext:apt"))
+		implementation(project(":core:ext:pacman"))
+		testImplementation(project(":core:instance"))
+	}
 }
 
 eclipse {
@@ -8,11 +8,16 @@
 //============================================================================//
 module org.s7s.plugin.update.agent.java {
 	exports org.s7s.plugin.update.agent.java;
+	exports org.s7s.plugin.update.agent.java.inventory;
 
 	requires com.google.common;
 	requires com.google.protobuf;
 	requires org.s7s.core.foundation;
 	requires org.s7s.core.instance;
+	requires org.s7s.core.integration.apt;
+	requires org.s7s.core.integration.pacman;
 	requires org.s7s.plugin.update;
 	requires org.slf4j;
+
+	provides org.s7s.core.instance.plugin.SandpolisPlugin with org.s7s.plugin.update.agent.java.UpdatePlugin;
 }
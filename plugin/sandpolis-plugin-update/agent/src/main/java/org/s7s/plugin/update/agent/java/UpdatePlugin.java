@@ -0,0 +1,68 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.update.agent.java;
+
+import static org.s7s.core.instance.state.STStore.STStore;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.s7s.core.instance.Entrypoint;
+import org.s7s.core.instance.InstanceContext;
+import org.s7s.core.instance.plugin.SandpolisPlugin;
+import org.s7s.core.instance.state.oid.Oid;
+import org.s7s.plugin.update.agent.java.inventory.PackageInventory;
+
+public final class UpdatePlugin extends SandpolisPlugin {
+
+	private static final Logger log = LoggerFactory.getLogger(UpdatePlugin.class);
+
+	/**
+	 * The number of minutes between package inventories. An unchanged database
+	 * costs a single fingerprint.
+	 */
+	private static final long INVENTORY_INTERVAL = 15;
+
+	private ScheduledExecutorService executor;
+
+	@Override
+	public void loaded() {
+		var inventory = PackageInventory.detect(InstanceContext.PATH_DATA.get().resolve("package_inventory"));
+		if (inventory.isEmpty()) {
+			log.debug("No supported package database was found");
+			return;
+		}
+
+		var collection = STStore.get(Oid.of("/profile/*/plugin/update/package", Entrypoint.data().uuid()));
+
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			var thread = new Thread(r, "update-inventory");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(() -> {
+			try {
+				inventory.get().sync(collection);
+			} catch (Exception e) {
+				log.error("Failed to take package inventory", e);
+			}
+		}, 0, INVENTORY_INTERVAL, TimeUnit.MINUTES);
+	}
+
+	@Override
+	public void unloaded() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.update.agent.java.inventory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.s7s.core.integration.apt.DpkgStatus;
+
+/**
+ * A {@link PackageSource} for the dpkg status database. The database is a
+ * single file, so it's streamed in full whenever it changes and each package is
+ * fingerprinted by the hash of its stanza.
+ */
+public final class DpkgSource implements PackageSource {
+
+	private final DpkgStatus status;
+
+	public DpkgSource(DpkgStatus status) {
+		this.status = status;
+	}
+
+	@Override
+	public String fingerprint() throws IOException {
+		return status.fingerprint();
+	}
+
+	@Override
+	public void forEach(Consumer<Candidate> consumer) throws IOException {
+		status.read(entry -> {
+			consumer.accept(new Candidate(entry.name(), entry.fingerprint(), () -> {
+				Map<String, Object> attributes = new HashMap<>();
+				attributes.put("name", entry.name());
+				attributes.put("version", entry.version());
+				attributes.put("description", entry.description());
+				attributes.put("architecture", entry.architecture());
+				attributes.put("upstream_url", entry.homepage());
+				attributes.put("local_size", entry.installedSize());
+				return attributes;
+			}));
+		});
+	}
+}
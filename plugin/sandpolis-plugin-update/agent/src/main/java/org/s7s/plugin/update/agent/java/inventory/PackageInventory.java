@@ -0,0 +1,256 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.update.agent.java.inventory;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.s7s.core.instance.state.st.STDocument;
+import org.s7s.core.integration.apt.DpkgStatus;
+import org.s7s.core.integration.pacman.LocalDatabase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the packages installed on the local system so that only the packages
+ * that were added, removed, or changed since the last inventory need to be read
+ * and sent to the state tree.
+ *
+ * <p>
+ * The fingerprints of the database and each package are persisted in a state
+ * file, so an unchanged database is detected without parsing it even across
+ * restarts.
+ */
+public final class PackageInventory {
+
+	private static final Logger log = LoggerFactory.getLogger(PackageInventory.class);
+
+	/**
+	 * The changes between two inventories.
+	 *
+	 * @param added   The attributes of new packages by name
+	 * @param changed The attributes of modified packages by name
+	 * @param removed The names of removed packages
+	 */
+	public static record Diff( //
+			Map<String, Map<String, Object>> added, //
+			Map<String, Map<String, Object>> changed, //
+			Set<String> removed) {
+
+		public boolean isEmpty() {
+			return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+		}
+	}
+
+	/**
+	 * Find the inventory of the system's package manager.
+	 *
+	 * @param state The file in which to persist the inventory
+	 * @return The inventory or empty if no compatible database was found
+	 */
+	public static Optional<PackageInventory> detect(Path state) {
+		var pacman = LocalDatabase.load();
+		if (Files.isDirectory(pacman.directory()))
+			return Optional.of(new PackageInventory(new PacmanSource(pacman), state));
+
+		var dpkg = DpkgStatus.load();
+		if (Files.isRegularFile(dpkg.file()))
+			return Optional.of(new PackageInventory(new DpkgSource(dpkg), state));
+
+		return Optional.empty();
+	}
+
+	private final PackageSource source;
+
+	private final Path state;
+
+	/**
+	 * The fingerprint of the database at the last inventory.
+	 */
+	private String fingerprint;
+
+	/**
+	 * The fingerprint of each package at the last inventory.
+	 */
+	private Map<String, String> packages = new HashMap<>();
+
+	/**
+	 * @param source The package database
+	 * @param state  The file in which to persist the inventory or {@code null}
+	 */
+	public PackageInventory(PackageSource source, Path state) {
+		this.source = source;
+		this.state = state;
+
+		if (state != null && Files.exists(state)) {
+			try {
+				load();
+			} catch (IOException | RuntimeException e) {
+				log.warn("Discarding unreadable package inventory", e);
+				reset();
+			}
+		}
+	}
+
+	/**
+	 * Forget the previous inventory so that every package is reported as added by
+	 * the next update.
+	 */
+	public synchronized void reset() {
+		fingerprint = null;
+		packages = new HashMap<>();
+	}
+
+	/**
+	 * Take a new inventory and compare it with the previous one. Only the packages
+	 * whose fingerprints changed are read.
+	 *
+	 * @return The changes since the previous inventory
+	 * @throws Exception
+	 */
+	public synchronized Diff update() throws Exception {
+		return update(diff -> {
+		});
+	}
+
+	/**
+	 * Take a new inventory and remember it once the changes have been handled. If
+	 * the handler fails, the same changes are reported by the next update.
+	 *
+	 * @param handler Receives the changes since the previous inventory
+	 * @return The changes
+	 * @throws Exception
+	 */
+	synchronized Diff update(Consumer<Diff> handler) throws Exception {
+		String current = source.fingerprint();
+		if (current.equals(fingerprint)) {
+			return new Diff(Map.of(), Map.of(), Set.of());
+		}
+
+		var previous = packages;
+		var next = new HashMap<String, String>();
+		var modified = new ArrayList<PackageSource.Candidate>();
+
+		source.forEach(candidate -> {
+			next.put(candidate.name(), candidate.fingerprint());
+			if (!candidate.fingerprint().equals(previous.get(candidate.name()))) {
+				modified.add(candidate);
+			}
+		});
+
+		var added = new HashMap<String, Map<String, Object>>();
+		var changed = new HashMap<String, Map<String, Object>>();
+		for (var candidate : modified) {
+			(previous.containsKey(candidate.name()) ? changed : added).put(candidate.name(),
+					candidate.attributes().call());
+		}
+
+		var removed = new HashSet<>(previous.keySet());
+		removed.removeAll(next.keySet());
+
+		var diff = new Diff(added, changed, removed);
+		handler.accept(diff);
+
+		fingerprint = current;
+		packages = next;
+		if (state != null) {
+			save();
+		}
+
+		log.debug("Package inventory: {} added, {} changed, {} removed", added.size(), changed.size(),
+				removed.size());
+		return diff;
+	}
+
+	/**
+	 * Update the inventory and apply the changes to a package collection.
+	 *
+	 * @param collection The collection at /profile/*&#47;plugin/update/package
+	 * @return The changes that were applied
+	 * @throws Exception
+	 */
+	public synchronized Diff sync(STDocument collection) throws Exception {
+
+		// The collection doesn't match the persisted inventory if it was lost
+		if (collection.documentCount() != packages.size()) {
+			reset();
+		}
+
+		return update(diff -> apply(diff, collection));
+	}
+
+	static void apply(Diff diff, STDocument collection) {
+		for (var name : diff.removed()) {
+			collection.remove(name);
+		}
+		diff.added().forEach((name, attributes) -> apply(attributes, collection.document(name)));
+		diff.changed().forEach((name, attributes) -> apply(attributes, collection.document(name)));
+	}
+
+	/**
+	 * Set a package's attributes, skipping those that are unchanged so they don't
+	 * produce change events.
+	 */
+	private static void apply(Map<String, Object> attributes, STDocument document) {
+		attributes.forEach((id, value) -> {
+			if (value == null) {
+				var attribute = document.getAttribute(id);
+				if (attribute != null) {
+					document.remove(attribute);
+				}
+			} else {
+				var attribute = document.attribute(id);
+				if (!Objects.equals(attribute.get(), value)) {
+					attribute.set(value);
+				}
+			}
+		});
+	}
+
+	private void load() throws IOException {
+		List<String> lines = Files.readAllLines(state);
+		if (lines.isEmpty())
+			return;
+
+		var loaded = new HashMap<String, String>();
+		for (var line : lines.subList(1, lines.size())) {
+			int tab = line.indexOf('\t');
+			if (tab > 0) {
+				loaded.put(line.substring(0, tab), line.substring(tab + 1));
+			}
+		}
+
+		fingerprint = lines.get(0);
+		packages = loaded;
+	}
+
+	private void save() throws IOException {
+		var lines = new ArrayList<String>(packages.size() + 1);
+		lines.add(fingerprint);
+		packages.forEach((name, value) -> lines.add(name + "\t" + value));
+
+		// Replace the previous inventory atomically so a crash can't corrupt it
+		var temporary = state.resolveSibling(state.getFileName() + ".tmp");
+		Files.write(temporary, lines);
+		Files.move(temporary, state, ATOMIC_MOVE, REPLACE_EXISTING);
+	}
+}
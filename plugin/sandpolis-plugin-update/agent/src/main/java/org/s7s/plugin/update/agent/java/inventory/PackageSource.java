@@ -0,0 +1,48 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.update.agent.java.inventory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+
+/**
+ * A local package database that can be inventoried incrementally.
+ */
+public interface PackageSource {
+
+	/**
+	 * An installed package whose attributes are only read when its fingerprint has
+	 * changed.
+	 *
+	 * @param name        The package's unique name
+	 * @param fingerprint A value that changes whenever the package changes
+	 * @param attributes  Reads the package's attributes by attribute name
+	 */
+	public static record Candidate(String name, String fingerprint, Callable<Map<String, Object>> attributes) {
+	}
+
+	/**
+	 * Compute a fingerprint of the entire database that changes whenever any
+	 * package changes. This is called before each {@link #forEach}.
+	 *
+	 * @return The fingerprint
+	 * @throws IOException
+	 */
+	public String fingerprint() throws IOException;
+
+	/**
+	 * Visit every installed package.
+	 *
+	 * @param consumer Receives each package
+	 * @throws IOException
+	 */
+	public void forEach(Consumer<Candidate> consumer) throws IOException;
+}
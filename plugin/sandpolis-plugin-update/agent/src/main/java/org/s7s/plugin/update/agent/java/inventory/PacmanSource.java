@@ -0,0 +1,63 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.update.agent.java.inventory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.s7s.core.integration.pacman.LocalDatabase;
+
+/**
+ * A {@link PackageSource} for pacman's local database. Packages are listed
+ * with a single stat of each "desc" file and only changed packages are parsed.
+ */
+public final class PacmanSource implements PackageSource {
+
+	private final LocalDatabase database;
+
+	private List<LocalDatabase.Entry> entries;
+
+	public PacmanSource(LocalDatabase database) {
+		this.database = database;
+	}
+
+	@Override
+	public String fingerprint() throws IOException {
+		entries = database.list();
+		return LocalDatabase.fingerprint(entries);
+	}
+
+	@Override
+	public void forEach(Consumer<Candidate> consumer) throws IOException {
+		if (entries == null) {
+			entries = database.list();
+		}
+
+		for (var entry : entries) {
+			consumer.accept(new Candidate(entry.name(), entry.fingerprint(), () -> {
+				var data = entry.read();
+
+				Map<String, Object> attributes = new HashMap<>();
+				attributes.put("name", data.name());
+				attributes.put("version", data.version());
+				attributes.put("description", data.desc());
+				attributes.put("architecture", data.arch());
+				attributes.put("upstream_url", data.url());
+				attributes.put("local_size", data.size());
+				attributes.put("build_timestamp", data.builddate() * 1000);
+				attributes.put("install_timestamp", data.installdate() * 1000);
+				return attributes;
+			}));
+		}
+		entries = null;
+	}
+}
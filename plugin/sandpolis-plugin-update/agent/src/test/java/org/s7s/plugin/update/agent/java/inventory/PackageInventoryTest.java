@@ -0,0 +1,125 @@
+//============================================================================//
+//                                                                            //
+//            Copyright © 2015 - 2022 Sandpolis Software Foundation           //
+//                                                                            //
+//  This source file is subject to the terms of the Mozilla Public License    //
+//  version 2. You may not use this file except in compliance with the MPLv2. //
+//                                                                            //
+//============================================================================//
+package org.s7s.plugin.update.agent.java.inventory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import org.s7s.core.instance.state.st.EphemeralDocument;
+import org.s7s.core.integration.apt.DpkgStatus;
+import org.s7s.core.integration.pacman.LocalDatabase;
+
+class PackageInventoryTest {
+
+	private static String stanza(String name, String version) {
+		return "Package: " + name + "\nStatus: install ok installed\nArchitecture: amd64\nVersion: " + version
+				+ "\nDescription: " + name + "\n long description\n\n";
+	}
+
+	@Test
+	@DisplayName("Check that only changed dpkg packages are reported")
+	void update_1(@TempDir Path directory) throws Exception {
+		var status = directory.resolve("status");
+		var state = directory.resolve("inventory");
+		Files.writeString(status, stanza("a", "1.0") + stanza("b", "1.0"));
+
+		var inventory = new PackageInventory(new DpkgSource(new DpkgStatus(status)), state);
+		var diff = inventory.update();
+		assertEquals(Set.of("a", "b"), diff.added().keySet());
+		assertEquals("1.0", diff.added().get("a").get("version"));
+
+		// An unchanged database isn't read again
+		assertTrue(inventory.update().isEmpty());
+
+		Files.writeString(status, stanza("b", "1.10") + stanza("c", "1.0"));
+		diff = inventory.update();
+		assertEquals(Set.of("c"), diff.added().keySet());
+		assertEquals(Set.of("b"), diff.changed().keySet());
+		assertEquals(Set.of("a"), diff.removed());
+		assertEquals("1.10", diff.changed().get("b").get("version"));
+	}
+
+	@Test
+	@DisplayName("Check that the inventory is persisted across restarts")
+	void update_2(@TempDir Path directory) throws Exception {
+		var local = Files.createDirectory(directory.resolve("local"));
+		var state = directory.resolve("inventory");
+
+		var a = Files.createDirectory(local.resolve("a-1.0-1"));
+		Files.writeString(a.resolve("desc"), "%NAME%\na\n\n%VERSION%\n1.0-1\n\n%SIZE%\n100\n");
+		Files.createDirectory(local.resolve("b-1.0-1")).resolve("desc").toFile().createNewFile();
+
+		var database = new LocalDatabase(local);
+		assertEquals(Set.of("a", "b"), new PackageInventory(new PacmanSource(database), state).update().added().keySet());
+		assertTrue(new PackageInventory(new PacmanSource(database), state).update().isEmpty());
+
+		Files.writeString(a.resolve("desc"), "%NAME%\na\n\n%VERSION%\n1.0-1\n\n%SIZE%\n1000\n");
+		var diff = new PackageInventory(new PacmanSource(database), state).update();
+		assertEquals(Set.of("a"), diff.changed().keySet());
+		assertEquals(1000L, diff.changed().get("a").get("local_size"));
+		assertTrue(diff.added().isEmpty());
+
+		// A corrupt inventory is discarded
+		Files.writeString(state, "");
+		assertEquals(Set.of("a", "b"), new PackageInventory(new PacmanSource(database), state).update().added().keySet());
+	}
+
+	@Test
+	@DisplayName("Check that changes are reported again if they weren't handled")
+	void update_3(@TempDir Path directory) throws Exception {
+		var status = directory.resolve("status");
+		var state = directory.resolve("inventory");
+		Files.writeString(status, stanza("a", "1.0"));
+
+		var inventory = new PackageInventory(new DpkgSource(new DpkgStatus(status)), state);
+		assertThrows(IllegalStateException.class, () -> inventory.update(diff -> {
+			throw new IllegalStateException();
+		}));
+		assertFalse(Files.exists(state));
+
+		assertEquals(Set.of("a"), inventory.update().added().keySet());
+		assertTrue(new PackageInventory(new DpkgSource(new DpkgStatus(status)), state).update().isEmpty());
+	}
+
+	@Test
+	@DisplayName("Check that changes are applied to the package collection")
+	void sync_1(@TempDir Path directory) throws Exception {
+		var status = directory.resolve("status");
+		var state = directory.resolve("inventory");
+		Files.writeString(status, stanza("a", "1.0") + stanza("b", "1.0"));
+
+		var collection = new EphemeralDocument(null, "package");
+		var inventory = new PackageInventory(new DpkgSource(new DpkgStatus(status)), state);
+		inventory.sync(collection);
+		assertEquals(2, collection.documentCount());
+		assertEquals("1.0", collection.document("a").attribute("version").get());
+
+		Files.writeString(status, stanza("a", "2.0"));
+		inventory.sync(collection);
+		assertEquals(1, collection.documentCount());
+		assertNull(collection.getDocument("b"));
+		assertEquals("2.0", collection.document("a").attribute("version").get());
+
+		// A new collection receives every package
+		var restored = new EphemeralDocument(null, "package");
+		new PackageInventory(new DpkgSource(new DpkgStatus(status)), state).sync(restored);
+		assertEquals(1, restored.documentCount());
+	}
+}
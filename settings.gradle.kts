@@ -44,6 +44,7 @@ include("plugin:filesystem:agent")
 include("plugin:shell")
 include("plugin:shell:agent")
 include("plugin:shell:client")
+include("plugin:shell:server")
 include("plugin:snapshot")
 include("plugin:snapshot:agent")
 include("plugin:snapshot:server")